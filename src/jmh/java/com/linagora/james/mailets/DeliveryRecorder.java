@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.mail.MessagingException;
+
+import org.apache.mailet.Mail;
+import org.apache.mailet.base.GenericMailet;
+
+/**
+ * Records when the mails sent by the {@link LoadReplayHarness} reach it, and whether they were classified.
+ *
+ * The harness runs James in the same JVM, hence reads the recorded deliveries straight from this mailet.
+ */
+public class DeliveryRecorder extends GenericMailet {
+
+    public static final String LOAD_ID_HEADER = "X-Load-Id";
+
+    public static class Delivery {
+        private final long deliveredAtInNanos;
+        private final boolean classified;
+
+        Delivery(long deliveredAtInNanos, boolean classified) {
+            this.deliveredAtInNanos = deliveredAtInNanos;
+            this.classified = classified;
+        }
+
+        public long getDeliveredAtInNanos() {
+            return deliveredAtInNanos;
+        }
+
+        public boolean isClassified() {
+            return classified;
+        }
+    }
+
+    private static final Map<String, Delivery> DELIVERIES = new ConcurrentHashMap<>();
+
+    public static Optional<Delivery> delivery(String loadId) {
+        return Optional.ofNullable(DELIVERIES.get(loadId));
+    }
+
+    public static int deliveryCount() {
+        return DELIVERIES.size();
+    }
+
+    @Override
+    public void service(Mail mail) throws MessagingException {
+        String loadId = mail.getMessage().getHeader(LOAD_ID_HEADER, null);
+        if (loadId != null) {
+            boolean classified = !mail.getPerRecipientSpecificHeaders().getRecipientsWithSpecificHeaders().isEmpty();
+            DELIVERIES.putIfAbsent(loadId, new Delivery(System.nanoTime(), classified));
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import com.google.common.collect.ImmutableList;
+import com.linagora.james.mailets.json.MailCorpus;
+
+/**
+ * The mails sent by the {@link LoadReplayHarness}, with the number of local recipients each one is sent to.
+ *
+ * Synthetic corpora cycle over every combination of the given sizes, shapes and recipient counts. Replayed mbox
+ * files are sent as is, each mail to recipientCount recipients.
+ */
+class LoadCorpus {
+
+    static class LoadMail {
+        private final byte[] rawMessage;
+        private final int recipientCount;
+
+        LoadMail(byte[] rawMessage, int recipientCount) {
+            this.rawMessage = rawMessage;
+            this.recipientCount = recipientCount;
+        }
+
+        byte[] getRawMessage() {
+            return rawMessage;
+        }
+
+        int getRecipientCount() {
+            return recipientCount;
+        }
+    }
+
+    private static final String MBOX_SEPARATOR = "From ";
+    private static final Pattern ESCAPED_MBOX_SEPARATOR = Pattern.compile("^>+From ");
+    private static final String CRLF = "\r\n";
+
+    static List<LoadMail> synthetic(int mailCount, List<Integer> sizesInBytes, List<MailCorpus.Shape> shapes, List<Integer> recipientCounts) {
+        ImmutableList.Builder<LoadMail> variants = ImmutableList.builder();
+        for (int sizeInBytes : sizesInBytes) {
+            for (MailCorpus.Shape shape : shapes) {
+                byte[] rawMessage = MailCorpus.rawMessage(shape, sizeInBytes);
+                for (int recipientCount : recipientCounts) {
+                    variants.add(new LoadMail(rawMessage, recipientCount));
+                }
+            }
+        }
+        return cycle(variants.build(), mailCount);
+    }
+
+    static List<LoadMail> mbox(Path mboxFile, int mailCount, int recipientCount) throws IOException {
+        ImmutableList.Builder<LoadMail> mails = ImmutableList.builder();
+        try (BufferedReader reader = Files.newBufferedReader(mboxFile, StandardCharsets.ISO_8859_1)) {
+            StringBuilder message = null;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(MBOX_SEPARATOR)) {
+                    addMail(mails, message, recipientCount);
+                    message = new StringBuilder();
+                } else if (message != null) {
+                    message.append(unescape(line)).append(CRLF);
+                }
+            }
+            addMail(mails, message, recipientCount);
+        }
+        return cycle(mails.build(), mailCount);
+    }
+
+    private static void addMail(ImmutableList.Builder<LoadMail> mails, StringBuilder message, int recipientCount) {
+        if (message != null && message.length() > 0) {
+            mails.add(new LoadMail(message.toString().getBytes(StandardCharsets.ISO_8859_1), recipientCount));
+        }
+    }
+
+    private static String unescape(String line) {
+        if (ESCAPED_MBOX_SEPARATOR.matcher(line).find()) {
+            return line.substring(1);
+        }
+        return line;
+    }
+
+    private static List<LoadMail> cycle(List<LoadMail> mails, int mailCount) {
+        if (mails.isEmpty()) {
+            throw new IllegalArgumentException("The corpus contains no mail");
+        }
+        ImmutableList.Builder<LoadMail> result = ImmutableList.builder();
+        for (int i = 0; i < mailCount; i++) {
+            result.add(mails.get(i % mails.size()));
+        }
+        return result.build();
+    }
+}
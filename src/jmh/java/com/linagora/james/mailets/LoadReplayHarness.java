@@ -0,0 +1,335 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.mockito.Mockito.mock;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.mail.Address;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.mailbox.model.MailboxConstants;
+import org.apache.james.mailbox.store.search.ListeningMessageSearchIndex;
+import org.apache.james.mailets.TemporaryJamesServer;
+import org.apache.james.mailets.configuration.CommonProcessors;
+import org.apache.james.mailets.configuration.MailetConfiguration;
+import org.apache.james.mailets.configuration.MailetContainer;
+import org.apache.james.mailets.configuration.ProcessorConfiguration;
+import org.apache.james.modules.MailboxProbeImpl;
+import org.apache.james.modules.server.JMXServerModule;
+import org.apache.james.probe.DataProbe;
+import org.apache.james.utils.DataProbeImpl;
+import org.junit.rules.TemporaryFolder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.steveash.guavate.Guavate;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.linagora.james.mailets.json.MailCorpus;
+import com.linagora.james.mailets.json.WireFormat;
+
+/**
+ * Sends a corpus of mails over SMTP at a target rate to a {@link TemporaryJamesServer} running the
+ * {@link GuessClassificationMailet} against a {@link ClassificationStubServer}, then writes a JSON {@link LoadReport} of the
+ * end-to-end delivery throughput and latency.
+ *
+ * Mails are tagged with an {@link DeliveryRecorder#LOAD_ID_HEADER} header, and considered delivered when they reach
+ * the {@link DeliveryRecorder} mailet, right before LocalDelivery.
+ *
+ * mvn -Pbenchmarks test-compile exec:java -Dexec.mainClass=com.linagora.james.mailets.LoadReplayHarness -Dload.ratePerSecond=100
+ *
+ * It is configured by the following system properties:
+ * <ul>
+ *     <li>load.mailCount: the number of mails to send, default=1000</li>
+ *     <li>load.ratePerSecond: the target sending rate, default=50</li>
+ *     <li>load.senderThreads: the number of SMTP connections used to send mails, default=8</li>
+ *     <li>load.sizes: the comma separated sizes in bytes of synthetic mails, default=2048,65536,1048576</li>
+ *     <li>load.shapes: the comma separated shapes of synthetic mails, among text, html, alternative and mixed, default=text,html,alternative,mixed</li>
+ *     <li>load.recipientCounts: the comma separated recipient counts of synthetic mails, default=1,5,20</li>
+ *     <li>load.mbox: an mbox file to replay instead of generating synthetic mails</li>
+ *     <li>load.mboxRecipientCount: the number of recipients of replayed mails, default=1</li>
+ *     <li>load.classifierLatencyMs: the latency of the stub classifier, default=20</li>
+ *     <li>load.spoolThreads: the number of James spool threads, default=20</li>
+ *     <li>load.deliveryTimeoutMs: how long to wait for the last deliveries once every mail is sent, default=300000</li>
+ *     <li>load.report: the report file, default=target/load-report.json</li>
+ *     <li>load.mailet.&lt;parameter&gt;: any additional GuessClassificationMailet parameter, for instance load.mailet.threadCount=4</li>
+ * </ul>
+ */
+public class LoadReplayHarness {
+
+    private static final String PREFIX = "load.";
+    private static final String MAILET_PREFIX = PREFIX + "mailet.";
+    private static final String DEFAULT_DOMAIN = "james.org";
+    private static final String PASSWORD = "secret";
+    private static final String LOCALHOST_IP = "127.0.0.1";
+    private static final int SMTP_PORT = 1025;
+    private static final long POLL_INTERVAL_MS = 100;
+
+    public static void main(String[] args) throws Exception {
+        LoadReport report = new LoadReplayHarness().run();
+        File reportFile = new File(property("report", "target/load-report.json"));
+        ObjectMapper objectMapper = new ObjectMapper();
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(reportFile, report);
+        System.out.println(objectMapper.writerWithDefaultPrettyPrinter().writeValueAsString(report));
+        System.exit(0);
+    }
+
+    private static String property(String name, String defaultValue) {
+        return System.getProperty(PREFIX + name, defaultValue);
+    }
+
+    private static int intProperty(String name, int defaultValue) {
+        return Integer.parseInt(property(name, String.valueOf(defaultValue)));
+    }
+
+    private static List<String> listProperty(String name, String defaultValue) {
+        return Splitter.on(',').trimResults().omitEmptyStrings().splitToList(property(name, defaultValue));
+    }
+
+    private final int mailCount = intProperty("mailCount", 1000);
+    private final int ratePerSecond = intProperty("ratePerSecond", 50);
+    private final int senderThreads = intProperty("senderThreads", 8);
+    private final int classifierLatencyMs = intProperty("classifierLatencyMs", 20);
+    private final int spoolThreads = intProperty("spoolThreads", 20);
+    private final int deliveryTimeoutMs = intProperty("deliveryTimeoutMs", 300000);
+    private final Optional<String> mbox = Optional.ofNullable(System.getProperty(PREFIX + "mbox"));
+
+    LoadReport run() throws Exception {
+        List<LoadCorpus.LoadMail> corpus = corpus();
+        int maxRecipientCount = corpus.stream().mapToInt(LoadCorpus.LoadMail::getRecipientCount).max().orElse(1);
+        TemporaryFolder temporaryFolder = new TemporaryFolder();
+        temporaryFolder.create();
+        try (ClassificationStubServer stubServer = ClassificationStubServer.speaking(WireFormat.JSON)
+                .respondingAfter(classifierLatencyMs)
+                .notRecordingRequests()) {
+            TemporaryJamesServer jamesServer = new TemporaryJamesServer(temporaryFolder, mailetContainer(stubServer),
+                new JMXServerModule(),
+                binder -> binder.bind(ListeningMessageSearchIndex.class).toInstance(mock(ListeningMessageSearchIndex.class)));
+            try {
+                InternetAddress[] recipients = createUsers(jamesServer, maxRecipientCount);
+                return send(corpus, recipients);
+            } finally {
+                jamesServer.shutdown();
+            }
+        } finally {
+            temporaryFolder.delete();
+        }
+    }
+
+    private List<LoadCorpus.LoadMail> corpus() throws Exception {
+        if (mbox.isPresent()) {
+            return LoadCorpus.mbox(Paths.get(mbox.get()), mailCount, intProperty("mboxRecipientCount", 1));
+        }
+        return LoadCorpus.synthetic(mailCount,
+            listProperty("sizes", "2048,65536,1048576").stream()
+                .map(Integer::valueOf)
+                .collect(Guavate.toImmutableList()),
+            listProperty("shapes", "text,html,alternative,mixed").stream()
+                .map(shape -> MailCorpus.Shape.valueOf(shape.toUpperCase()))
+                .collect(Guavate.toImmutableList()),
+            listProperty("recipientCounts", "1,5,20").stream()
+                .map(Integer::valueOf)
+                .collect(Guavate.toImmutableList()));
+    }
+
+    private InternetAddress[] createUsers(TemporaryJamesServer jamesServer, int userCount) throws Exception {
+        DataProbe dataProbe = jamesServer.getProbe(DataProbeImpl.class);
+        dataProbe.addDomain(DEFAULT_DOMAIN);
+        InternetAddress[] users = new InternetAddress[userCount];
+        for (int i = 0; i < userCount; i++) {
+            String user = "user" + i + "@" + DEFAULT_DOMAIN;
+            dataProbe.addUser(user, PASSWORD);
+            jamesServer.getProbe(MailboxProbeImpl.class).createMailbox(MailboxConstants.USER_NAMESPACE, user, "INBOX");
+            users[i] = new InternetAddress(user);
+        }
+        return users;
+    }
+
+    private LoadReport send(List<LoadCorpus.LoadMail> corpus, InternetAddress[] recipients) throws Exception {
+        Properties properties = new Properties();
+        properties.put("mail.smtp.host", LOCALHOST_IP);
+        properties.put("mail.smtp.port", String.valueOf(SMTP_PORT));
+        properties.put("mail.smtp.from", "sender@" + DEFAULT_DOMAIN);
+        Session session = Session.getInstance(properties);
+
+        long intervalInNanos = TimeUnit.SECONDS.toNanos(1) / ratePerSecond;
+        long[] scheduledAtInNanos = new long[corpus.size()];
+        boolean[] sent = new boolean[corpus.size()];
+        AtomicInteger nextMail = new AtomicInteger();
+        AtomicInteger failedSends = new AtomicInteger();
+        long startInNanos = System.nanoTime();
+
+        ExecutorService senders = Executors.newFixedThreadPool(senderThreads);
+        for (int i = 0; i < senderThreads; i++) {
+            senders.submit(() -> {
+                Transport transport = session.getTransport("smtp");
+                transport.connect();
+                try {
+                    int index;
+                    while ((index = nextMail.getAndIncrement()) < corpus.size()) {
+                        long scheduledAt = startInNanos + index * intervalInNanos;
+                        waitUntil(scheduledAt);
+                        scheduledAtInNanos[index] = scheduledAt;
+                        LoadCorpus.LoadMail mail = corpus.get(index);
+                        try {
+                            transport.sendMessage(message(session, index, mail), Arrays.copyOf(recipients, mail.getRecipientCount(), Address[].class));
+                            sent[index] = true;
+                        } catch (MessagingException e) {
+                            failedSends.incrementAndGet();
+                        }
+                    }
+                } finally {
+                    transport.close();
+                }
+                return null;
+            });
+        }
+        senders.shutdown();
+        senders.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+
+        int sentMails = corpus.size() - failedSends.get();
+        long deadline = System.currentTimeMillis() + deliveryTimeoutMs;
+        while (DeliveryRecorder.deliveryCount() < sentMails && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_INTERVAL_MS);
+        }
+        return report(scheduledAtInNanos, sent, sentMails, failedSends.get(), startInNanos);
+    }
+
+    private void waitUntil(long deadlineInNanos) {
+        long remainingNanos;
+        while ((remainingNanos = deadlineInNanos - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remainingNanos);
+        }
+    }
+
+    private MimeMessage message(Session session, int index, LoadCorpus.LoadMail mail) throws MessagingException {
+        byte[] loadIdHeader = (DeliveryRecorder.LOAD_ID_HEADER + ": " + index + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        return new MimeMessage(session, new SequenceInputStream(
+            new ByteArrayInputStream(loadIdHeader),
+            new ByteArrayInputStream(mail.getRawMessage())));
+    }
+
+    private LoadReport report(long[] scheduledAtInNanos, boolean[] sent, int sentMails, int failedSends, long startInNanos) {
+        long[] latenciesInNanos = new long[sentMails];
+        int deliveredMails = 0;
+        int classifiedMails = 0;
+        long lastDeliveryInNanos = startInNanos;
+        for (int i = 0; i < sent.length; i++) {
+            Optional<DeliveryRecorder.Delivery> delivery = sent[i] ? DeliveryRecorder.delivery(String.valueOf(i)) : Optional.empty();
+            if (delivery.isPresent()) {
+                latenciesInNanos[deliveredMails] = delivery.get().getDeliveredAtInNanos() - scheduledAtInNanos[i];
+                lastDeliveryInNanos = Math.max(lastDeliveryInNanos, delivery.get().getDeliveredAtInNanos());
+                deliveredMails++;
+                classifiedMails += delivery.get().isClassified() ? 1 : 0;
+            }
+        }
+        return new LoadReport(configuration(), sentMails, failedSends, deliveredMails, classifiedMails,
+            TimeUnit.NANOSECONDS.toMillis(lastDeliveryInNanos - startInNanos),
+            LoadReport.Latency.of(Arrays.copyOf(latenciesInNanos, deliveredMails)));
+    }
+
+    private Map<String, String> configuration() {
+        return System.getProperties().stringPropertyNames().stream()
+            .filter(name -> name.startsWith(PREFIX))
+            .sorted()
+            .collect(Guavate.toImmutableMap(name -> name.substring(PREFIX.length()), System::getProperty));
+    }
+
+    private MailetContainer mailetContainer(ClassificationStubServer stubServer) {
+        return MailetContainer.builder()
+            .postmaster("postmaster@" + DEFAULT_DOMAIN)
+            .threads(spoolThreads)
+            .addProcessor(CommonProcessors.root())
+            .addProcessor(CommonProcessors.error())
+            .addProcessor(transportProcessor(stubServer))
+            .addProcessor(CommonProcessors.spam())
+            .addProcessor(CommonProcessors.localAddressError())
+            .addProcessor(CommonProcessors.relayDenied())
+            .addProcessor(CommonProcessors.bounces())
+            .addProcessor(CommonProcessors.sieveManagerCheck())
+            .build();
+    }
+
+    private ProcessorConfiguration transportProcessor(ClassificationStubServer stubServer) {
+        return ProcessorConfiguration.builder()
+            .state("transport")
+            .enableJmx(true)
+            .addMailet(MailetConfiguration.builder()
+                .match("All")
+                .clazz("RemoveMimeHeader")
+                .addProperty("name", "bcc")
+                .build())
+            .addMailet(MailetConfiguration.builder()
+                .match("All")
+                .clazz("RecipientRewriteTable")
+                .build())
+            .addMailet(classificationMailet(stubServer))
+            .addMailet(MailetConfiguration.builder()
+                .match("RecipientIsLocal")
+                .clazz(DeliveryRecorder.class.getName())
+                .build())
+            .addMailet(MailetConfiguration.builder()
+                .match("RecipientIsLocal")
+                .clazz("AddDeliveredToHeader")
+                .build())
+            .addMailet(MailetConfiguration.builder()
+                .match("RecipientIsLocal")
+                .clazz("LocalDelivery")
+                .build())
+            .addMailet(MailetConfiguration.builder()
+                .match("All")
+                .clazz("ToProcessor")
+                .addProperty("processor", "relay-denied")
+                .build())
+            .build();
+    }
+
+    private MailetConfiguration classificationMailet(ClassificationStubServer stubServer) {
+        MailetConfiguration.Builder builder = MailetConfiguration.builder()
+            .match("RecipientIsLocal")
+            .clazz(GuessClassificationMailet.class.getName())
+            .addProperty(GuessClassificationMailet.SERVICE_URL, "http://localhost:" + stubServer.getPort() + "/email/classification/predict")
+            .addProperty(GuessClassificationMailet.SERVICE_USERNAME, "username")
+            .addProperty(GuessClassificationMailet.SERVICE_PASSWORD, "password");
+        ImmutableMap<String, String> mailetParameters = System.getProperties().stringPropertyNames().stream()
+            .filter(name -> name.startsWith(MAILET_PREFIX))
+            .collect(Guavate.toImmutableMap(name -> name.substring(MAILET_PREFIX.length()), System::getProperty));
+        mailetParameters.forEach(builder::addProperty);
+        return builder.build();
+    }
+}
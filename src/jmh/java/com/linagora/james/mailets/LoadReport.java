@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Outcome of a {@link LoadReplayHarness} run, serialized as JSON.
+ *
+ * Latencies are measured from the time each mail was scheduled to be sent, rather than from the time it was
+ * actually sent, so that senders falling behind the target rate do not hide the queueing delay.
+ */
+public class LoadReport {
+
+    public static class Latency {
+        private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+        static Latency of(long[] latenciesInNanos) {
+            long[] sortedLatencies = latenciesInNanos.clone();
+            Arrays.sort(sortedLatencies);
+            if (sortedLatencies.length == 0) {
+                return new Latency(0, 0, 0, 0, 0, 0);
+            }
+            return new Latency(
+                toMillis(Arrays.stream(sortedLatencies).average().orElse(0)),
+                toMillis(percentile(sortedLatencies, 0.5)),
+                toMillis(percentile(sortedLatencies, 0.9)),
+                toMillis(percentile(sortedLatencies, 0.99)),
+                toMillis(percentile(sortedLatencies, 0.999)),
+                toMillis(sortedLatencies[sortedLatencies.length - 1]));
+        }
+
+        private static long percentile(long[] sortedLatencies, double quantile) {
+            int index = (int) Math.ceil(quantile * sortedLatencies.length) - 1;
+            return sortedLatencies[Math.max(0, index)];
+        }
+
+        private static double toMillis(double latencyInNanos) {
+            return latencyInNanos / NANOS_PER_MILLI;
+        }
+
+        private final double meanMs;
+        private final double p50Ms;
+        private final double p90Ms;
+        private final double p99Ms;
+        private final double p999Ms;
+        private final double maxMs;
+
+        private Latency(double meanMs, double p50Ms, double p90Ms, double p99Ms, double p999Ms, double maxMs) {
+            this.meanMs = meanMs;
+            this.p50Ms = p50Ms;
+            this.p90Ms = p90Ms;
+            this.p99Ms = p99Ms;
+            this.p999Ms = p999Ms;
+            this.maxMs = maxMs;
+        }
+
+        public double getMeanMs() {
+            return meanMs;
+        }
+
+        public double getP50Ms() {
+            return p50Ms;
+        }
+
+        public double getP90Ms() {
+            return p90Ms;
+        }
+
+        public double getP99Ms() {
+            return p99Ms;
+        }
+
+        public double getP999Ms() {
+            return p999Ms;
+        }
+
+        public double getMaxMs() {
+            return maxMs;
+        }
+    }
+
+    private final Map<String, String> configuration;
+    private final int sentMails;
+    private final int failedSends;
+    private final int deliveredMails;
+    private final int classifiedMails;
+    private final long durationMs;
+    private final double deliveredMailsPerSecond;
+    private final Latency latency;
+
+    LoadReport(Map<String, String> configuration, int sentMails, int failedSends, int deliveredMails, int classifiedMails,
+               long durationMs, Latency latency) {
+        this.configuration = configuration;
+        this.sentMails = sentMails;
+        this.failedSends = failedSends;
+        this.deliveredMails = deliveredMails;
+        this.classifiedMails = classifiedMails;
+        this.durationMs = durationMs;
+        this.deliveredMailsPerSecond = durationMs == 0 ? 0 : deliveredMails * 1000.0 / durationMs;
+        this.latency = latency;
+    }
+
+    public Map<String, String> getConfiguration() {
+        return configuration;
+    }
+
+    public int getSentMails() {
+        return sentMails;
+    }
+
+    public int getFailedSends() {
+        return failedSends;
+    }
+
+    public int getDeliveredMails() {
+        return deliveredMails;
+    }
+
+    public int getClassifiedMails() {
+        return classifiedMails;
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    public double getDeliveredMailsPerSecond() {
+        return deliveredMailsPerSecond;
+    }
+
+    public Latency getLatency() {
+        return latency;
+    }
+}
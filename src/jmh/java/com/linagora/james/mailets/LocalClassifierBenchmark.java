@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.base.test.FakeMail;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.collect.ImmutableList;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+import com.linagora.james.mailets.json.MailCorpus;
+
+/**
+ * Measures the in process classification of a mail by a {@link LocalClassifier}, excluding the extraction of its
+ * text, for a per user model of 20 mailboxes over 2^18 features.
+ *
+ * Run it with: mvn -Pbenchmarks test-compile exec:exec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class LocalClassifierBenchmark {
+
+    private static final int FEATURE_BITS = 18;
+    private static final int MAILBOX_COUNT = 20;
+    private static final int MAILS_PER_MAILBOX = 50;
+    private static final int WORDS_PER_MAIL = 200;
+    private static final int VOCABULARY_SIZE = 20000;
+
+    @Param({"2048", "65536", "1048576"})
+    public int sizeInBytes;
+
+    @Param({"1", "10"})
+    public int recipientCount;
+
+    private LocalClassifier localClassifier;
+    private ClassificationRequestBody requestBody;
+    private List<MailAddress> recipients;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+        NaiveBayesModel.Trainer trainer = NaiveBayesModel.trainer(FEATURE_BITS);
+        for (int mailbox = 0; mailbox < MAILBOX_COUNT; mailbox++) {
+            for (int mail = 0; mail < MAILS_PER_MAILBOX; mail++) {
+                trainer.learn(NaiveBayesModel.DEFAULT_USER, "mailbox" + mailbox, "Mailbox " + mailbox,
+                    ImmutableList.of(words(random, 5)), words(random, WORDS_PER_MAIL));
+            }
+        }
+        localClassifier = new LocalClassifier(trainer.build());
+        requestBody = ClassificationRequestBody.from(FakeMail.from(MailCorpus.mimeMessage(sizeInBytes)), UUID.randomUUID());
+        ImmutableList.Builder<MailAddress> recipientsBuilder = ImmutableList.builder();
+        for (int recipient = 0; recipient < recipientCount; recipient++) {
+            recipientsBuilder.add(new MailAddress("user" + recipient + "@domain.tld"));
+        }
+        recipients = recipientsBuilder.build();
+    }
+
+    private String words(Random random, int wordCount) {
+        StringBuilder words = new StringBuilder();
+        for (int word = 0; word < wordCount; word++) {
+            words.append("word").append(random.nextInt(VOCABULARY_SIZE)).append(' ');
+        }
+        return words.toString();
+    }
+
+    @Benchmark
+    public void classify(Blackhole blackhole) throws IOException {
+        localClassifier.classify(requestBody, recipients, (recipient, guess) -> blackhole.consume(guess));
+    }
+}
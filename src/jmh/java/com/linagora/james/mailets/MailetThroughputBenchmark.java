@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.FakeMailetConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.linagora.james.mailets.json.MailCorpus;
+import com.linagora.james.mailets.json.WireFormat;
+
+/**
+ * Drives {@link GuessClassificationMailet#service(org.apache.mailet.Mail)} from concurrent threads against a
+ * {@link ClassificationStubServer}, reporting mails per second and the p50/p99/p999 service latencies.
+ *
+ * A single run uses the JMH thread count (-t). Use the main method to sweep over several thread counts, given
+ * as a comma separated list by the "threads" system property:
+ *
+ * mvn -Pbenchmarks test-compile exec:java -Dexec.mainClass=com.linagora.james.mailets.MailetThroughputBenchmark -Dthreads=1,8,64
+ *
+ * Mails are counted as failed when the mailet did not add any header, which happens when the classification
+ * call timed out or was rejected.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class MailetThroughputBenchmark {
+
+    private static final String DEFAULT_THREAD_COUNTS = "1,4,16,64,256";
+    private static final List<String> RECIPIENTS = ImmutableList.of("user1@domain.tld", "user2@domain.tld", "user3@domain.tld");
+
+    @Param({"blocking", "async"})
+    public String client;
+
+    @Param({"0", "10", "100"})
+    public int latencyInMs;
+
+    @Param({"0", "65536"})
+    public int responsePaddingInBytes;
+
+    @Param({"65536"})
+    public int mailSizeInBytes;
+
+    private ClassificationStubServer stubServer;
+    private GuessClassificationMailet mailet;
+    private MimeMessage mimeMessage;
+    private ImmutableList<MailAddress> recipients;
+    private AtomicLong mailCount;
+    private AtomicLong failedMailCount;
+
+    @Setup
+    public void setUp() throws Exception {
+        stubServer = ClassificationStubServer.speaking(WireFormat.JSON)
+            .respondingAfter(latencyInMs)
+            .paddingResponsesWith(responsePaddingInBytes)
+            .notRecordingRequests();
+        mimeMessage = MailCorpus.mimeMessage(mailSizeInBytes);
+        ImmutableList.Builder<MailAddress> recipients = ImmutableList.builder();
+        for (String recipient : RECIPIENTS) {
+            recipients.add(new MailAddress(recipient));
+        }
+        this.recipients = recipients.build();
+        mailCount = new AtomicLong();
+        failedMailCount = new AtomicLong();
+
+        FakeMailetConfig.Builder config = FakeMailetConfig.builder()
+            .setProperty(GuessClassificationMailet.SERVICE_URL, "http://localhost:" + stubServer.getPort() + "/email/classification/predict")
+            .setProperty(GuessClassificationMailet.SERVICE_USERNAME, "username")
+            .setProperty(GuessClassificationMailet.SERVICE_PASSWORD, "password")
+            .setProperty(GuessClassificationMailet.MAX_CONNECTIONS, "1024")
+            .setProperty(GuessClassificationMailet.MAX_PER_ROUTE, "1024")
+            .setProperty(GuessClassificationMailet.MAX_IN_FLIGHT_REQUESTS, "1024");
+        if (client.equals("async")) {
+            config.setProperty(GuessClassificationMailet.THREAD_COUNT, String.valueOf(Runtime.getRuntime().availableProcessors()));
+        }
+        mailet = new GuessClassificationMailet();
+        mailet.init(config.build());
+    }
+
+    @TearDown
+    public void tearDown() {
+        mailet.destroy();
+        stubServer.close();
+        if (failedMailCount.get() > 0) {
+            System.err.println(failedMailCount.get() + " out of " + mailCount.get() + " mails were not classified");
+        }
+    }
+
+    @Benchmark
+    public FakeMail service() throws MessagingException {
+        FakeMail mail = FakeMail.builder()
+            .name("mail-" + mailCount.incrementAndGet())
+            .mimeMessage(mimeMessage)
+            .recipients(recipients)
+            .build();
+        mailet.service(mail);
+        if (mail.getPerRecipientSpecificHeaders().getRecipientsWithSpecificHeaders().isEmpty()) {
+            failedMailCount.incrementAndGet();
+        }
+        return mail;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (String threads : Splitter.on(',').trimResults().split(System.getProperty("threads", DEFAULT_THREAD_COUNTS))) {
+            new Runner(new OptionsBuilder()
+                .include(MailetThroughputBenchmark.class.getSimpleName())
+                .threads(Integer.parseInt(threads))
+                .resultFormat(ResultFormatType.JSON)
+                .result("target/mailet-throughput-" + threads + "-threads.json")
+                .build())
+                .run();
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Properties;
+import java.util.Random;
+
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+/**
+ * Generates deterministic mails of a given size, shaped like the ones the classification API gets. The default
+ * {@link Shape#MIXED} shape is a multipart/alternative text and html body followed by a binary attachment,
+ * addressed to a handful of recipients.
+ *
+ * Roughly 10% of the size goes to the text body, 40% to the html body and the rest to the attachment. Shapes
+ * without attachment, or without one of the bodies, give the whole size to the remaining bodies.
+ */
+public class MailCorpus {
+
+    public enum Shape {
+        TEXT,
+        HTML,
+        ALTERNATIVE,
+        MIXED
+    }
+
+    private static final String BOUNDARY_MIXED = "----=_mixed_boundary";
+    private static final String BOUNDARY_ALTERNATIVE = "----=_alternative_boundary";
+    private static final String[] WORDS = {"classification", "mailbox", "meeting", "invoice", "report", "the", "a",
+        "project", "deadline", "review", "attached", "please", "find", "weekly", "summary", "team", "of", "for"};
+    private static final int BASE64_LINE_LENGTH = 76;
+
+    public static MimeMessage mimeMessage(int sizeInBytes) throws MessagingException {
+        return new MimeMessage(Session.getDefaultInstance(new Properties()), new ByteArrayInputStream(rawMessage(sizeInBytes)));
+    }
+
+    public static byte[] rawMessage(int sizeInBytes) {
+        return rawMessage(Shape.MIXED, sizeInBytes);
+    }
+
+    public static byte[] rawMessage(Shape shape, int sizeInBytes) {
+        Random random = new Random(sizeInBytes);
+        StringBuilder message = new StringBuilder(sizeInBytes + 4096);
+        message.append("From: Sender <sender@domain.tld>\r\n")
+            .append("To: User 1 <user1@domain.tld>, User 2 <user2@domain.tld>, user3@domain.tld\r\n")
+            .append("Cc: User 4 <user4@domain.tld>, =?UTF-8?Q?Us=C3=A9r_5?= <user5@domain.tld>\r\n")
+            .append("Bcc: user6@other.tld\r\n")
+            .append("Subject: Weekly classification report\r\n")
+            .append("Date: Mon, 3 Jul 2017 10:15:00 +0200\r\n")
+            .append("Message-ID: <").append(sizeInBytes).append("@domain.tld>\r\n")
+            .append("MIME-Version: 1.0\r\n");
+        switch (shape) {
+            case TEXT:
+                appendTextPart(message, random, sizeInBytes);
+                break;
+            case HTML:
+                appendHtmlPart(message, random, sizeInBytes);
+                break;
+            case ALTERNATIVE:
+                appendAlternative(message, random, sizeInBytes / 5, sizeInBytes * 4 / 5);
+                break;
+            default:
+                message.append("Content-Type: multipart/mixed; boundary=\"").append(BOUNDARY_MIXED).append("\"\r\n")
+                    .append("\r\n")
+                    .append("--").append(BOUNDARY_MIXED).append("\r\n");
+                appendAlternative(message, random, sizeInBytes / 10, sizeInBytes * 4 / 10);
+                message.append("\r\n--").append(BOUNDARY_MIXED).append("\r\n")
+                    .append("Content-Type: application/pdf; name=\"report.pdf\"\r\n")
+                    .append("Content-Disposition: attachment; filename=\"report.pdf\"\r\n")
+                    .append("Content-Transfer-Encoding: base64\r\n")
+                    .append("\r\n");
+                appendAttachment(message, random, sizeInBytes - message.length() - 64);
+                message.append("\r\n--").append(BOUNDARY_MIXED).append("--\r\n");
+        }
+        return message.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void appendAlternative(StringBuilder message, Random random, int textSizeInChars, int htmlSizeInChars) {
+        message.append("Content-Type: multipart/alternative; boundary=\"").append(BOUNDARY_ALTERNATIVE).append("\"\r\n")
+            .append("\r\n")
+            .append("--").append(BOUNDARY_ALTERNATIVE).append("\r\n");
+        appendTextPart(message, random, textSizeInChars);
+        message.append("\r\n--").append(BOUNDARY_ALTERNATIVE).append("\r\n");
+        appendHtmlPart(message, random, htmlSizeInChars);
+        message.append("\r\n--").append(BOUNDARY_ALTERNATIVE).append("--\r\n");
+    }
+
+    private static void appendTextPart(StringBuilder message, Random random, int sizeInChars) {
+        message.append("Content-Type: text/plain; charset=UTF-8\r\n")
+            .append("Content-Transfer-Encoding: 8bit\r\n")
+            .append("\r\n");
+        appendText(message, random, sizeInChars);
+    }
+
+    private static void appendHtmlPart(StringBuilder message, Random random, int sizeInChars) {
+        message.append("Content-Type: text/html; charset=UTF-8\r\n")
+            .append("Content-Transfer-Encoding: 8bit\r\n")
+            .append("\r\n");
+        appendHtml(message, random, sizeInChars);
+    }
+
+    private static void appendText(StringBuilder message, Random random, int sizeInChars) {
+        int start = message.length();
+        while (message.length() - start < sizeInChars) {
+            appendSentence(message, random);
+            message.append("\r\n");
+        }
+    }
+
+    private static void appendHtml(StringBuilder message, Random random, int sizeInChars) {
+        int start = message.length();
+        message.append("<html><head><style>p { margin: 0; } .signature { color: #888; }</style></head><body>");
+        while (message.length() - start < sizeInChars) {
+            message.append("<div><p>");
+            appendSentence(message, random);
+            message.append(" <a href=\"http://domain.tld/").append(random.nextInt(1000)).append("\">link</a> &amp; <b>");
+            appendSentence(message, random);
+            message.append("</b></p></div>\r\n");
+        }
+        message.append("<p class=\"signature\">-- Sender</p></body></html>");
+    }
+
+    private static void appendSentence(StringBuilder message, Random random) {
+        int wordCount = 8 + random.nextInt(8);
+        for (int i = 0; i < wordCount; i++) {
+            if (i > 0) {
+                message.append(' ');
+            }
+            message.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        message.append('.');
+    }
+
+    private static void appendAttachment(StringBuilder message, Random random, int sizeInChars) {
+        if (sizeInChars <= 0) {
+            return;
+        }
+        byte[] content = new byte[sizeInChars * 3 / 4];
+        random.nextBytes(content);
+        String encoded = Base64.getEncoder().encodeToString(content);
+        for (int i = 0; i < encoded.length(); i += BASE64_LINE_LENGTH) {
+            message.append(encoded, i, Math.min(encoded.length(), i + BASE64_LINE_LENGTH)).append("\r\n");
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.jmap.utils.JsoupHtmlTextExtractor;
+import org.apache.james.mime4j.dom.Message;
+import org.apache.james.mime4j.stream.MimeConfig;
+import org.apache.james.util.mime.MessageContentExtractor;
+import org.apache.james.util.mime.MessageContentExtractor.MessageContent;
+import org.apache.mailet.Mail;
+import org.apache.mailet.base.test.FakeMail;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures each step of building a classification request, over mails from 2 KB to 25 MB.
+ *
+ * toMime4jMessage and messageContentExtractor reproduce the former mime4j DOM based extraction, so that James and
+ * mime4j upgrades can be compared against the streaming extraction the mailet now relies on.
+ *
+ * Run it with: mvn -Pbenchmarks test-compile exec:exec
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class RequestBuildingBenchmark {
+
+    private static final MimeConfig MIME_ENTITY_CONFIG = MimeConfig.custom()
+        .setMaxContentLen(-1)
+        .setMaxHeaderCount(-1)
+        .setMaxHeaderLen(-1)
+        .setMaxLineLen(-1)
+        .build();
+    private static final UUID MESSAGE_ID = UUID.fromString("b3b5e5f6-1c3f-4b5a-9f2d-7f6f1c8f0a42");
+
+    @Param({"2048", "65536", "1048576", "26214400"})
+    public int sizeInBytes;
+
+    private MimeMessage mimeMessage;
+    private Mail mail;
+    private Message mime4jMessage;
+    private String htmlBody;
+    private ClassificationRequestBody requestBody;
+    private UUIDGenerator uuidGenerator;
+
+    @Setup
+    public void setUp() throws Exception {
+        mimeMessage = MailCorpus.mimeMessage(sizeInBytes);
+        mail = FakeMail.from(mimeMessage);
+        mime4jMessage = toMime4jMessage();
+        htmlBody = new StreamingMessageContentExtractor().extract(mimeMessage).getHtmlBody().get();
+        requestBody = ClassificationRequestBody.from(mail, MESSAGE_ID);
+        uuidGenerator = new UUIDGenerator();
+    }
+
+    @Benchmark
+    public Message toMime4jMessage() throws IOException, MessagingException {
+        ByteArrayOutputStream rawMessage = new ByteArrayOutputStream(sizeInBytes);
+        mimeMessage.writeTo(rawMessage);
+
+        return Message.Builder.of()
+                .use(MIME_ENTITY_CONFIG)
+                .parse(new ByteArrayInputStream(rawMessage.toByteArray()))
+                .build();
+    }
+
+    @Benchmark
+    public MessageContent messageContentExtractor() throws IOException {
+        return new MessageContentExtractor().extract(mime4jMessage);
+    }
+
+    @Benchmark
+    public StreamingMessageContentExtractor.ExtractedContent streamingMessageContentExtractor() throws IOException, MessagingException {
+        return new StreamingMessageContentExtractor().extract(mimeMessage);
+    }
+
+    @Benchmark
+    public String jsoupToPlainText() {
+        return new JsoupHtmlTextExtractor().toPlainText(htmlBody);
+    }
+
+    @Benchmark
+    public String streamingToPlainText() {
+        return new StreamingHtmlToTextConverter().toPlainText(htmlBody, TextBudget.UNLIMITED);
+    }
+
+    @Benchmark
+    public Recipients recipientsFrom() throws MessagingException {
+        return Recipients.from(mimeMessage);
+    }
+
+    @Benchmark
+    public String serializeRequestBody() throws IOException {
+        return ClassificationRequestBodySerializer.toJsonAsString(requestBody);
+    }
+
+    @Benchmark
+    public String toJsonAsString() throws IOException, MessagingException {
+        return new ClassificationRequestBodySerializer(mail, uuidGenerator).toJsonAsString();
+    }
+}
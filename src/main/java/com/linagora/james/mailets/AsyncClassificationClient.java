@@ -0,0 +1,194 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.auth.AuthScope;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.AuthCache;
+import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.auth.BasicScheme;
+import org.apache.http.impl.client.BasicAuthCache;
+import org.apache.http.impl.client.BasicCredentialsProvider;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Non blocking client: the request is handled by the I/O reactor threads, and callers only get a
+ * {@link CompletableFuture}. At most maxInFlightRequests requests can be pending at the same time, the
+ * following ones fail fast instead of queueing.
+ *
+ * Unlike the blocking one, the non blocking HTTP client does not handle compressed responses by itself: this
+ * client asks for them, and decodes them as a stream before parsing.
+ *
+ * Responses are decoded and parsed by threadCount parser threads, so that the I/O reactor threads only move bytes.
+ */
+class AsyncClassificationClient implements ClassificationClient {
+
+    private static final String ACCEPTED_ENCODINGS = "gzip,deflate";
+
+    private final CloseableHttpAsyncClient httpClient;
+    private final HttpHost host;
+    private final CredentialsProvider credentialsProvider;
+    private final RequestConfig requestConfig;
+    private final Semaphore inFlightRequests;
+    private final ResponseContentEncoding responseContentEncoding;
+    private final ExecutorService parsers;
+
+    AsyncClassificationClient(HttpHost host, UsernamePasswordCredentials credentials, int threadCount, int maxInFlightRequests, int timeoutInMs) {
+        this.host = host;
+        this.credentialsProvider = new BasicCredentialsProvider();
+        this.credentialsProvider.setCredentials(new AuthScope(host), credentials);
+        this.requestConfig = RequestConfig.custom()
+            .setSocketTimeout(timeoutInMs)
+            .build();
+        this.inFlightRequests = new Semaphore(maxInFlightRequests);
+        this.responseContentEncoding = new ResponseContentEncoding();
+        this.parsers = Executors.newFixedThreadPool(threadCount, new ThreadFactoryBuilder()
+            .setNameFormat("classification-response-parser-%d")
+            .setDaemon(true)
+            .build());
+        this.httpClient = HttpAsyncClients.custom()
+            .setDefaultIOReactorConfig(IOReactorConfig.custom()
+                .setIoThreadCount(threadCount)
+                .build())
+            .setMaxConnTotal(maxInFlightRequests)
+            .setMaxConnPerRoute(maxInFlightRequests)
+            .build();
+        this.httpClient.start();
+    }
+
+    @Override
+    public <T> CompletableFuture<T> classify(URI uri, HttpEntity requestBody, ResponseParser<T> responseParser) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (!inFlightRequests.tryAcquire()) {
+            result.completeExceptionally(new RejectedExecutionException("Too many in-flight classification requests"));
+            return result;
+        }
+
+        HttpPost post = new HttpPost(uri);
+        post.setConfig(requestConfig);
+        post.setEntity(requestBody);
+        post.setHeader(HttpHeaders.ACCEPT, ResponseParser.wireFormatOf(requestBody).getAcceptHeader());
+        post.setHeader(HttpHeaders.ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+        Future<HttpResponse> response = httpClient.execute(post, preemptiveAuthenticationContext(), new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    parsers.execute(() -> parse(response, responseParser, result));
+                } catch (RejectedExecutionException e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel(false);
+            }
+        });
+
+        result.whenComplete((any, e) -> {
+            inFlightRequests.release();
+            if (result.isCancelled()) {
+                response.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private <T> void parse(HttpResponse response, ResponseParser<T> responseParser, CompletableFuture<T> result) {
+        try {
+            responseContentEncoding.process(response, HttpClientContext.create());
+            result.complete(responseParser.parseResponse(response));
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public boolean isAlive(URI uri, int timeoutInMs) throws IOException {
+        HttpGet get = new HttpGet(uri);
+        get.setConfig(RequestConfig.custom()
+            .setConnectTimeout(timeoutInMs)
+            .setSocketTimeout(timeoutInMs)
+            .build());
+        Future<HttpResponse> response = httpClient.execute(get, preemptiveAuthenticationContext(), null);
+        try {
+            return ClassificationClient.isSuccessful(response.get(timeoutInMs, TimeUnit.MILLISECONDS));
+        } catch (TimeoutException e) {
+            response.cancel(true);
+            return false;
+        } catch (InterruptedException e) {
+            response.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while checking " + uri);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private HttpClientContext preemptiveAuthenticationContext() {
+        AuthCache authCache = new BasicAuthCache();
+        authCache.put(host, new BasicScheme());
+
+        HttpClientContext context = HttpClientContext.create();
+        context.setCredentialsProvider(credentialsProvider);
+        context.setAuthCache(authCache);
+        return context;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            httpClient.close();
+        } finally {
+            parsers.shutdownNow();
+        }
+    }
+}
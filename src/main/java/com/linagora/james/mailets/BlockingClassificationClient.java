@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpHost;
+import org.apache.http.auth.UsernamePasswordCredentials;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.fluent.Executor;
+import org.apache.http.client.fluent.Request;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+
+import com.google.common.annotations.VisibleForTesting;
+
+/**
+ * Blocking client relying on a connection pool owned by this client, hence shut down when closing it.
+ *
+ * The time spent waiting for a pooled connection is recorded by the given {@link ClassificationMetrics}.
+ */
+class BlockingClassificationClient implements ClassificationClient {
+
+    private final PoolingHttpClientConnectionManager connectionManager;
+    private final CloseableHttpClient httpClient;
+    private final Executor executor;
+    private final int timeoutInMs;
+
+    BlockingClassificationClient(HttpHost host, UsernamePasswordCredentials credentials, ConnectionPoolConfiguration connectionPoolConfiguration, int timeoutInMs,
+                                 ClassificationMetrics metrics) {
+        this.connectionManager = timedConnectionManager(metrics);
+        this.connectionManager.setMaxTotal(connectionPoolConfiguration.getMaxConnections());
+        this.connectionManager.setDefaultMaxPerRoute(connectionPoolConfiguration.getMaxPerRoute());
+        this.connectionManager.setValidateAfterInactivity(connectionPoolConfiguration.getValidateAfterInactivityMs());
+        this.httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setKeepAliveStrategy(keepAliveStrategy(connectionPoolConfiguration.getKeepAliveMs()))
+            .evictExpiredConnections()
+            .evictIdleConnections(connectionPoolConfiguration.getIdleEvictMs(), TimeUnit.MILLISECONDS)
+            .setDefaultRequestConfig(RequestConfig.custom()
+                .setConnectionRequestTimeout(connectionPoolConfiguration.getConnectionRequestTimeoutMs())
+                .build())
+            .build();
+        this.executor = Executor.newInstance(httpClient)
+            .authPreemptive(host)
+            .auth(host, credentials);
+        this.timeoutInMs = timeoutInMs;
+    }
+
+    private PoolingHttpClientConnectionManager timedConnectionManager(ClassificationMetrics metrics) {
+        return new PoolingHttpClientConnectionManager() {
+            @Override
+            public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+                ConnectionRequest connectionRequest = super.requestConnection(route, state);
+                return new ConnectionRequest() {
+                    @Override
+                    public HttpClientConnection get(long timeout, TimeUnit timeUnit) throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                        long start = metrics.start();
+                        try {
+                            return connectionRequest.get(timeout, timeUnit);
+                        } finally {
+                            metrics.record(ClassificationMetrics.Stage.CONNECTION_ACQUISITION, start);
+                        }
+                    }
+
+                    @Override
+                    public boolean cancel() {
+                        return connectionRequest.cancel();
+                    }
+                };
+            }
+        };
+    }
+
+    private ConnectionKeepAliveStrategy keepAliveStrategy(int keepAliveMs) {
+        return (response, context) -> {
+            long serverKeepAliveMs = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            if (serverKeepAliveMs > 0) {
+                return Math.min(serverKeepAliveMs, keepAliveMs);
+            }
+            return keepAliveMs;
+        };
+    }
+
+    @VisibleForTesting PoolingHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    @Override
+    public <T> CompletableFuture<T> classify(URI uri, HttpEntity requestBody, ResponseParser<T> responseParser) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            result.complete(executor.execute(
+                    Request.Post(uri)
+                        .socketTimeout(timeoutInMs)
+                        .addHeader(HttpHeaders.ACCEPT, ResponseParser.wireFormatOf(requestBody).getAcceptHeader())
+                        .body(requestBody))
+                .handleResponse(responseParser::parseResponse));
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    @Override
+    public boolean isAlive(URI uri, int timeoutInMs) throws IOException {
+        return executor.execute(
+                Request.Get(uri)
+                    .connectTimeout(timeoutInMs)
+                    .socketTimeout(timeoutInMs))
+            .handleResponse(ClassificationClient::isSuccessful);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            httpClient.close();
+        } finally {
+            connectionManager.shutdown();
+        }
+    }
+}
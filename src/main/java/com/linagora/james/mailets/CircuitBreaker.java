@@ -0,0 +1,176 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Ticker;
+
+/**
+ * Count based circuit breaker.
+ *
+ * While CLOSED, the outcome of the last windowSize calls is recorded, and the breaker opens once at least
+ * minimumCalls were recorded and their failure rate or slow call rate reaches its threshold.
+ *
+ * While OPEN, calls are not permitted. After openDurationMs, the breaker becomes HALF_OPEN and lets
+ * halfOpenProbes calls through: it closes again if their rates are below the thresholds, and opens otherwise.
+ *
+ * Calls are recorded only in the state they started in: the outcome of a call started before a transition is ignored.
+ */
+class CircuitBreaker {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    static class Call {
+        private final long startInNanos;
+        private final long generation;
+
+        private Call(long startInNanos, long generation) {
+            this.startInNanos = startInNanos;
+            this.generation = generation;
+        }
+    }
+
+    private final CircuitBreakerConfiguration configuration;
+    private final Ticker ticker;
+    private final long slowCallDurationInNanos;
+    private final long openDurationInNanos;
+    private final boolean[] failedCalls;
+    private final boolean[] slowCalls;
+    private State state;
+    private long generation;
+    private int recordedCalls;
+    private int nextCall;
+    private int failedCallCount;
+    private int slowCallCount;
+    private int permittedProbes;
+    private long openedAtInNanos;
+    private long notPermittedCalls;
+    private long openings;
+
+    CircuitBreaker(CircuitBreakerConfiguration configuration, Ticker ticker) {
+        this.configuration = configuration;
+        this.ticker = ticker;
+        this.slowCallDurationInNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getSlowCallDurationMs());
+        this.openDurationInNanos = TimeUnit.MILLISECONDS.toNanos(configuration.getOpenDurationMs());
+        this.failedCalls = new boolean[Math.max(configuration.getWindowSize(), configuration.getHalfOpenProbes())];
+        this.slowCalls = new boolean[failedCalls.length];
+        this.state = State.CLOSED;
+    }
+
+    synchronized boolean tryAcquirePermission() {
+        if (state == State.OPEN && ticker.read() - openedAtInNanos >= openDurationInNanos) {
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && permittedProbes < configuration.getHalfOpenProbes()) {
+            permittedProbes++;
+            return true;
+        }
+        notPermittedCalls++;
+        return false;
+    }
+
+    synchronized Call startCall() {
+        return new Call(ticker.read(), generation);
+    }
+
+    synchronized void recordCall(Call call, boolean failed) {
+        if (state == State.OPEN || call.generation != generation) {
+            return;
+        }
+        if (recordedCalls == windowSize()) {
+            failedCallCount -= failedCalls[nextCall] ? 1 : 0;
+            slowCallCount -= slowCalls[nextCall] ? 1 : 0;
+        } else {
+            recordedCalls++;
+        }
+        boolean slow = ticker.read() - call.startInNanos >= slowCallDurationInNanos;
+        failedCalls[nextCall] = failed;
+        slowCalls[nextCall] = slow;
+        failedCallCount += failed ? 1 : 0;
+        slowCallCount += slow ? 1 : 0;
+        nextCall = (nextCall + 1) % windowSize();
+
+        if (state == State.CLOSED && recordedCalls >= configuration.getMinimumCalls() && thresholdReached()) {
+            transitionTo(State.OPEN);
+        } else if (state == State.HALF_OPEN && recordedCalls == configuration.getHalfOpenProbes()) {
+            transitionTo(thresholdReached() ? State.OPEN : State.CLOSED);
+        }
+    }
+
+    /**
+     * Forgets a call that tells nothing about the webservice, giving its probe back when HALF_OPEN.
+     */
+    synchronized void ignoreCall(Call call) {
+        if (state == State.HALF_OPEN && call.generation == generation && permittedProbes > 0) {
+            permittedProbes--;
+        }
+    }
+
+    private int windowSize() {
+        if (state == State.HALF_OPEN) {
+            return configuration.getHalfOpenProbes();
+        }
+        return configuration.getWindowSize();
+    }
+
+    private boolean thresholdReached() {
+        return failedCallCount * 100 >= configuration.getFailureRateThreshold() * recordedCalls
+            || slowCallCount * 100 >= configuration.getSlowCallRateThreshold() * recordedCalls;
+    }
+
+    private void transitionTo(State newState) {
+        LOGGER.warn("Classification circuit breaker transitioned from {} to {}", state, newState);
+        if (newState == State.OPEN) {
+            openedAtInNanos = ticker.read();
+            openings++;
+        }
+        state = newState;
+        generation++;
+        recordedCalls = 0;
+        nextCall = 0;
+        failedCallCount = 0;
+        slowCallCount = 0;
+        permittedProbes = 0;
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    synchronized long getNotPermittedCalls() {
+        return notPermittedCalls;
+    }
+
+    synchronized long getOpenings() {
+        return openings;
+    }
+}
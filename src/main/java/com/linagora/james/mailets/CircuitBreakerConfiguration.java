@@ -0,0 +1,172 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Objects;
+import java.util.Optional;
+
+import com.google.common.base.Preconditions;
+
+public class CircuitBreakerConfiguration {
+
+    public static final int DEFAULT_WINDOW_SIZE = 100;
+    public static final int DEFAULT_MINIMUM_CALLS = 20;
+    public static final int DEFAULT_FAILURE_RATE_THRESHOLD = 50;
+    public static final int DEFAULT_SLOW_CALL_RATE_THRESHOLD = 100;
+    public static final int DEFAULT_SLOW_CALL_DURATION_MS = 5000;
+    public static final int DEFAULT_OPEN_DURATION_MS = 30000;
+    public static final int DEFAULT_HALF_OPEN_PROBES = 5;
+
+    public static final CircuitBreakerConfiguration DEFAULT = builder().build();
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private Optional<Integer> windowSize = Optional.empty();
+        private Optional<Integer> minimumCalls = Optional.empty();
+        private Optional<Integer> failureRateThreshold = Optional.empty();
+        private Optional<Integer> slowCallRateThreshold = Optional.empty();
+        private Optional<Integer> slowCallDurationMs = Optional.empty();
+        private Optional<Integer> openDurationMs = Optional.empty();
+        private Optional<Integer> halfOpenProbes = Optional.empty();
+
+        public Builder windowSize(Optional<Integer> windowSize) {
+            this.windowSize = windowSize;
+            return this;
+        }
+
+        public Builder minimumCalls(Optional<Integer> minimumCalls) {
+            this.minimumCalls = minimumCalls;
+            return this;
+        }
+
+        public Builder failureRateThreshold(Optional<Integer> failureRateThreshold) {
+            this.failureRateThreshold = failureRateThreshold;
+            return this;
+        }
+
+        public Builder slowCallRateThreshold(Optional<Integer> slowCallRateThreshold) {
+            this.slowCallRateThreshold = slowCallRateThreshold;
+            return this;
+        }
+
+        public Builder slowCallDurationMs(Optional<Integer> slowCallDurationMs) {
+            this.slowCallDurationMs = slowCallDurationMs;
+            return this;
+        }
+
+        public Builder openDurationMs(Optional<Integer> openDurationMs) {
+            this.openDurationMs = openDurationMs;
+            return this;
+        }
+
+        public Builder halfOpenProbes(Optional<Integer> halfOpenProbes) {
+            this.halfOpenProbes = halfOpenProbes;
+            return this;
+        }
+
+        public CircuitBreakerConfiguration build() {
+            int windowSize = this.windowSize.orElse(DEFAULT_WINDOW_SIZE);
+            int minimumCalls = this.minimumCalls.orElse(Math.min(DEFAULT_MINIMUM_CALLS, windowSize));
+            int failureRateThreshold = this.failureRateThreshold.orElse(DEFAULT_FAILURE_RATE_THRESHOLD);
+            int slowCallRateThreshold = this.slowCallRateThreshold.orElse(DEFAULT_SLOW_CALL_RATE_THRESHOLD);
+            Preconditions.checkState(minimumCalls <= windowSize, "minimumCalls can not exceed windowSize");
+            Preconditions.checkState(failureRateThreshold <= 100, "failureRateThreshold is a percentage");
+            Preconditions.checkState(slowCallRateThreshold <= 100, "slowCallRateThreshold is a percentage");
+
+            return new CircuitBreakerConfiguration(windowSize,
+                minimumCalls,
+                failureRateThreshold,
+                slowCallRateThreshold,
+                slowCallDurationMs.orElse(DEFAULT_SLOW_CALL_DURATION_MS),
+                openDurationMs.orElse(DEFAULT_OPEN_DURATION_MS),
+                halfOpenProbes.orElse(DEFAULT_HALF_OPEN_PROBES));
+        }
+    }
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final int slowCallDurationMs;
+    private final int openDurationMs;
+    private final int halfOpenProbes;
+
+    private CircuitBreakerConfiguration(int windowSize, int minimumCalls, int failureRateThreshold, int slowCallRateThreshold,
+                                        int slowCallDurationMs, int openDurationMs, int halfOpenProbes) {
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDurationMs = slowCallDurationMs;
+        this.openDurationMs = openDurationMs;
+        this.halfOpenProbes = halfOpenProbes;
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    public int getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    public int getSlowCallRateThreshold() {
+        return slowCallRateThreshold;
+    }
+
+    public int getSlowCallDurationMs() {
+        return slowCallDurationMs;
+    }
+
+    public int getOpenDurationMs() {
+        return openDurationMs;
+    }
+
+    public int getHalfOpenProbes() {
+        return halfOpenProbes;
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+        if (o instanceof CircuitBreakerConfiguration) {
+            CircuitBreakerConfiguration that = (CircuitBreakerConfiguration) o;
+
+            return Objects.equals(this.windowSize, that.windowSize)
+                && Objects.equals(this.minimumCalls, that.minimumCalls)
+                && Objects.equals(this.failureRateThreshold, that.failureRateThreshold)
+                && Objects.equals(this.slowCallRateThreshold, that.slowCallRateThreshold)
+                && Objects.equals(this.slowCallDurationMs, that.slowCallDurationMs)
+                && Objects.equals(this.openDurationMs, that.openDurationMs)
+                && Objects.equals(this.halfOpenProbes, that.halfOpenProbes);
+        }
+        return false;
+    }
+
+    @Override
+    public final int hashCode() {
+        return Objects.hash(windowSize, minimumCalls, failureRateThreshold, slowCallRateThreshold, slowCallDurationMs, openDurationMs, halfOpenProbes);
+    }
+}
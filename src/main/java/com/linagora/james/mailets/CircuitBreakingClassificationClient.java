@@ -0,0 +1,85 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.http.HttpEntity;
+
+/**
+ * Fails fast with a {@link CircuitBreakerOpenException} while the {@link CircuitBreaker} does not permit calls,
+ * and records the outcome and duration of the other ones.
+ *
+ * A cancelled call, for instance after a timeout, counts as failed. A call rejected by the underlying client without
+ * reaching the webservice, because of its in-flight requests limit, is not recorded.
+ */
+class CircuitBreakingClassificationClient implements ClassificationClient {
+
+    private final ClassificationClient classificationClient;
+    private final CircuitBreaker circuitBreaker;
+
+    CircuitBreakingClassificationClient(ClassificationClient classificationClient, CircuitBreaker circuitBreaker) {
+        this.classificationClient = classificationClient;
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    @Override
+    public <T> CompletableFuture<T> classify(URI uri, HttpEntity requestBody, ResponseParser<T> responseParser) {
+        if (!circuitBreaker.tryAcquirePermission()) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            result.completeExceptionally(new CircuitBreakerOpenException());
+            return result;
+        }
+        CircuitBreaker.Call call = circuitBreaker.startCall();
+        CompletableFuture<T> result = classificationClient.classify(uri, requestBody, responseParser);
+        result.whenComplete((response, exception) -> {
+            if (isRejectedLocally(exception)) {
+                circuitBreaker.ignoreCall(call);
+            } else {
+                circuitBreaker.recordCall(call, exception != null);
+            }
+        });
+        return result;
+    }
+
+    private boolean isRejectedLocally(Throwable exception) {
+        if (exception instanceof CompletionException) {
+            return exception.getCause() instanceof RejectedExecutionException;
+        }
+        return exception instanceof RejectedExecutionException;
+    }
+
+    @Override
+    public boolean isAlive(URI uri, int timeoutInMs) throws IOException {
+        return classificationClient.isAlive(uri, timeoutInMs);
+    }
+
+    @Override
+    public void close() throws IOException {
+        classificationClient.close();
+    }
+}
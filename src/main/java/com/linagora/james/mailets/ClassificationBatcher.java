@@ -0,0 +1,253 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.HttpEntity;
+
+import com.github.steveash.guavate.Guavate;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.linagora.james.mailets.json.ClassificationBatchEntry;
+import com.linagora.james.mailets.json.ClassificationGuessesParser;
+import com.linagora.james.mailets.json.ClassificationRequestBodySerializer;
+import com.linagora.james.mailets.json.WireFormat;
+
+/**
+ * Groups classification requests, and sends them as a single JSON array once batchSize requests are pending,
+ * or batchDelayInMs after the first pending one.
+ *
+ * The batch endpoint is expected to answer a JSON array of classification guesses, in the order of the requests.
+ * Binary wire formats carry the same array.
+ *
+ * Batches are sent by at most senderCount threads, and at most senderCount more batches wait for one of them: the
+ * classifications of the batches exceeding this bound fail right away instead of piling up.
+ */
+class ClassificationBatcher implements Closeable {
+
+    private static class PendingClassification {
+        private final ClassificationBatchEntry entry;
+        private final long deadlineInNanos;
+        private final CompletableFuture<Map<String, String>> result;
+
+        PendingClassification(ClassificationBatchEntry entry, long deadlineInNanos) {
+            this.entry = entry;
+            this.deadlineInNanos = deadlineInNanos;
+            this.result = new CompletableFuture<>();
+        }
+
+        boolean isExpired(long nowInNanos) {
+            return nowInNanos - deadlineInNanos >= 0;
+        }
+    }
+
+    private static final long SENDER_KEEP_ALIVE_IN_MS = 60000;
+
+    private final ClassificationClient classificationClient;
+    private final URI batchServiceUri;
+    private final int batchSize;
+    private final int batchDelayInMs;
+    private final Optional<RequestCompression> requestCompression;
+    private final WireFormatNegotiation wireFormatNegotiation;
+    private final ClassificationGuessesParser classificationGuessesParser;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService sender;
+    private List<PendingClassification> pendingClassifications;
+    private ScheduledFuture<?> scheduledFlush;
+
+    ClassificationBatcher(ClassificationClient classificationClient, URI batchServiceUri, int batchSize, int batchDelayInMs, int senderCount) {
+        this(classificationClient, batchServiceUri, batchSize, batchDelayInMs, senderCount, Optional.empty(), new WireFormatNegotiation(WireFormat.JSON));
+    }
+
+    ClassificationBatcher(ClassificationClient classificationClient, URI batchServiceUri, int batchSize, int batchDelayInMs, int senderCount,
+                          Optional<RequestCompression> requestCompression, WireFormatNegotiation wireFormatNegotiation) {
+        this.classificationClient = classificationClient;
+        this.batchServiceUri = batchServiceUri;
+        this.batchSize = batchSize;
+        this.batchDelayInMs = batchDelayInMs;
+        this.requestCompression = requestCompression;
+        this.wireFormatNegotiation = wireFormatNegotiation;
+        this.classificationGuessesParser = new ClassificationGuessesParser();
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("classification-batch-timer-%d")
+            .setDaemon(true)
+            .build());
+        ThreadPoolExecutor sender = new ThreadPoolExecutor(senderCount, senderCount, SENDER_KEEP_ALIVE_IN_MS, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(senderCount),
+            new ThreadFactoryBuilder()
+                .setNameFormat("classification-batch-sender-%d")
+                .setDaemon(true)
+                .build());
+        sender.allowCoreThreadTimeOut(true);
+        this.sender = sender;
+        this.pendingClassifications = new ArrayList<>();
+    }
+
+    CompletableFuture<Map<String, String>> classify(ClassificationBatchEntry entry, int timeoutInMs) {
+        PendingClassification pendingClassification = new PendingClassification(entry, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutInMs));
+        List<PendingClassification> batch = enqueue(pendingClassification);
+        if (!batch.isEmpty()) {
+            submit(batch);
+        }
+        return pendingClassification.result;
+    }
+
+    private synchronized List<PendingClassification> enqueue(PendingClassification pendingClassification) {
+        pendingClassifications.add(pendingClassification);
+        if (pendingClassifications.size() >= batchSize) {
+            return drain();
+        }
+        if (pendingClassifications.size() == 1) {
+            scheduledFlush = scheduler.schedule(this::flush, batchDelayInMs, TimeUnit.MILLISECONDS);
+        }
+        return new ArrayList<>();
+    }
+
+    private void flush() {
+        List<PendingClassification> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        if (!batch.isEmpty()) {
+            submit(batch);
+        }
+    }
+
+    private void submit(List<PendingClassification> batch) {
+        try {
+            sender.execute(() -> send(batch));
+        } catch (RejectedExecutionException e) {
+            failAll(batch, e);
+        }
+    }
+
+    private List<PendingClassification> drain() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        List<PendingClassification> batch = pendingClassifications;
+        pendingClassifications = new ArrayList<>();
+        return batch;
+    }
+
+    private void send(List<PendingClassification> batch) {
+        List<PendingClassification> stillAwaited = discardExpiredOrCancelled(batch);
+        if (stillAwaited.isEmpty()) {
+            return;
+        }
+        try {
+            List<ClassificationBatchEntry> entries = stillAwaited.stream()
+                .map(pendingClassification -> pendingClassification.entry)
+                .collect(Guavate.toImmutableList());
+            classificationClient.classify(batchServiceUri, requestBody(entries), this::parseBatchResponse)
+                .whenComplete((response, exception) -> {
+                    if (exception != null) {
+                        failAll(stillAwaited, exception);
+                    } else {
+                        dispatch(stillAwaited, response);
+                    }
+                });
+        } catch (Exception e) {
+            failAll(stillAwaited, e);
+        }
+    }
+
+    private HttpEntity requestBody(List<ClassificationBatchEntry> entries) {
+        WireFormat wireFormat = wireFormatNegotiation.getWireFormat();
+        HttpEntity requestBody = new StreamingJsonEntity(outputStream -> ClassificationRequestBodySerializer.write(entries, wireFormat, outputStream), wireFormat);
+        if (!requestCompression.isPresent()) {
+            return requestBody;
+        }
+        long estimatedSizeInBytes = entries.stream()
+            .mapToLong(entry -> RequestCompression.estimatedSizeInBytes(entry.getRequest()))
+            .sum();
+        return requestCompression.get().compressIfAboveThreshold(requestBody, estimatedSizeInBytes);
+    }
+
+    private List<PendingClassification> discardExpiredOrCancelled(List<PendingClassification> batch) {
+        long now = System.nanoTime();
+        List<PendingClassification> stillAwaited = new ArrayList<>(batch.size());
+        for (PendingClassification pendingClassification : batch) {
+            if (pendingClassification.result.isDone()) {
+                continue;
+            }
+            if (pendingClassification.isExpired(now)) {
+                pendingClassification.result.completeExceptionally(new TimeoutException("Classification timed out before its batch was sent"));
+                continue;
+            }
+            stillAwaited.add(pendingClassification);
+        }
+        return stillAwaited;
+    }
+
+    private List<Map<String, String>> parseBatchResponse(InputStream responseBody, WireFormat wireFormat) throws IOException {
+        List<Map<String, String>> classificationGuesses = new ArrayList<>();
+        classificationGuessesParser.parseBatch(responseBody, wireFormat, index -> {
+            Map<String, String> entryGuesses = new HashMap<>();
+            classificationGuesses.add(entryGuesses);
+            return entryGuesses::put;
+        });
+        return classificationGuesses;
+    }
+
+    private void dispatch(List<PendingClassification> batch, List<Map<String, String>> classificationGuesses) {
+        for (int i = 0; i < batch.size(); i++) {
+            if (i < classificationGuesses.size()) {
+                batch.get(i).result.complete(classificationGuesses.get(i));
+            } else {
+                batch.get(i).result.completeExceptionally(new IOException("No classification returned for batch entry " + i));
+            }
+        }
+    }
+
+    private void failAll(List<PendingClassification> batch, Throwable exception) {
+        batch.forEach(pendingClassification -> pendingClassification.result.completeExceptionally(exception));
+    }
+
+    @Override
+    public void close() {
+        List<PendingClassification> batch;
+        synchronized (this) {
+            batch = drain();
+        }
+        failAll(batch, new CancellationException("Classification batcher is closed"));
+        scheduler.shutdownNow();
+        sender.shutdownNow();
+    }
+}
@@ -0,0 +1,129 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.CharMatcher;
+import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+import com.linagora.james.mailets.json.Emailer;
+
+/**
+ * Remembers the serialized classification guess of a recipient for a given content, identified by a hash of the sender,
+ * subject and text body of the mail, so that bulk mails sent again and again are only classified once per
+ * recipient.
+ *
+ * The cache is bounded either by its number of entries, or by the estimated size in bytes of its entries.
+ * Entries also expire ttlInMs after being written.
+ */
+class ClassificationCache {
+
+    private static final HashFunction HASH_FUNCTION = Hashing.sha256();
+    private static final byte FIELD_SEPARATOR = 0;
+    private static final int ENTRY_OVERHEAD_IN_BYTES = 128;
+
+    static ClassificationCache sizedByEntries(long maxEntries, long ttlInMs, Ticker ticker) {
+        return new ClassificationCache(CacheBuilder.newBuilder()
+            .maximumSize(maxEntries)
+            .expireAfterWrite(ttlInMs, TimeUnit.MILLISECONDS)
+            .ticker(ticker)
+            .recordStats()
+            .build());
+    }
+
+    static ClassificationCache sizedByBytes(long maxBytes, long ttlInMs, Ticker ticker) {
+        return new ClassificationCache(CacheBuilder.newBuilder()
+            .maximumWeight(maxBytes)
+            .<HashCode, String>weigher((key, serializedGuess) -> estimatedSizeInBytes(serializedGuess))
+            .expireAfterWrite(ttlInMs, TimeUnit.MILLISECONDS)
+            .ticker(ticker)
+            .recordStats()
+            .build());
+    }
+
+    private static int estimatedSizeInBytes(String serializedGuess) {
+        return ENTRY_OVERHEAD_IN_BYTES
+            + HASH_FUNCTION.bits() / Byte.SIZE
+            + 2 * serializedGuess.length();
+    }
+
+    private final Cache<HashCode, String> cache;
+
+    private ClassificationCache(Cache<HashCode, String> cache) {
+        this.cache = cache;
+    }
+
+    static HashCode contentHash(ClassificationRequestBody requestBody) {
+        Hasher hasher = HASH_FUNCTION.newHasher();
+        requestBody.getFrom().stream()
+            .map(Emailer::getAddress)
+            .map(Strings::nullToEmpty)
+            .map(address -> address.toLowerCase(Locale.ROOT))
+            .sorted()
+            .forEach(address -> hasher.putString(address, StandardCharsets.UTF_8).putByte(FIELD_SEPARATOR));
+        hasher.putByte(FIELD_SEPARATOR);
+        requestBody.getSubject()
+            .forEach(subject -> hasher.putString(normalize(subject), StandardCharsets.UTF_8).putByte(FIELD_SEPARATOR));
+        hasher.putByte(FIELD_SEPARATOR);
+        return hasher.putString(normalize(requestBody.getTextBody()), StandardCharsets.UTF_8)
+            .hash();
+    }
+
+    private static String normalize(String text) {
+        return CharMatcher.WHITESPACE.trimAndCollapseFrom(Strings.nullToEmpty(text), ' ');
+    }
+
+    Optional<String> get(HashCode contentHash, String recipient) {
+        return Optional.ofNullable(cache.getIfPresent(key(contentHash, recipient)));
+    }
+
+    void put(HashCode contentHash, String recipient, String serializedGuess) {
+        cache.put(key(contentHash, recipient), serializedGuess);
+    }
+
+    private HashCode key(HashCode contentHash, String recipient) {
+        return HASH_FUNCTION.newHasher()
+            .putBytes(contentHash.asBytes())
+            .putString(recipient.toLowerCase(Locale.ROOT), StandardCharsets.UTF_8)
+            .hash();
+    }
+
+    long hitCount() {
+        return cache.stats().hitCount();
+    }
+
+    long missCount() {
+        return cache.stats().missCount();
+    }
+
+    long evictionCount() {
+        return cache.stats().evictionCount();
+    }
+}
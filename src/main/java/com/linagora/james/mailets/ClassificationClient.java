@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+
+/**
+ * Posts classification requests. Successful responses are read by the given {@link ResponseParser}, while
+ * responses with an error status fail with an {@link org.apache.http.client.HttpResponseException}.
+ *
+ * Responses in the wire format of the request body are preferred, JSON ones are accepted too.
+ */
+interface ClassificationClient extends Closeable {
+
+    static boolean isSuccessful(HttpResponse response) {
+        int statusCode = response.getStatusLine().getStatusCode();
+        return statusCode >= HttpStatus.SC_OK && statusCode < HttpStatus.SC_MULTIPLE_CHOICES;
+    }
+
+    <T> CompletableFuture<T> classify(URI uri, HttpEntity requestBody, ResponseParser<T> responseParser);
+
+    /**
+     * Whether a GET of the given URI, authenticated like the classification requests, answers a 2xx status within
+     * timeoutInMs.
+     */
+    boolean isAlive(URI uri, int timeoutInMs) throws IOException;
+}
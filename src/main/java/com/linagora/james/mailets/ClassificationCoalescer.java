@@ -0,0 +1,198 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import java.net.URISyntaxException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.mailet.MailAddress;
+
+import com.github.steveash.guavate.Guavate;
+import com.google.common.hash.HashCode;
+
+/**
+ * Lets concurrent classifications of the same content for the same recipients share a single call to the
+ * classification webservice, as happens when several spool threads process copies of the same mail at once.
+ *
+ * The content is identified by {@link ClassificationCache#contentHash}. Calls are only shared while in flight:
+ * once completed, the next classification of the same content calls the webservice again.
+ *
+ * Each caller gets its own future, and waits for the shared call within its own deadline: a caller giving up does
+ * not fail the others, and the shared call is only cancelled once every caller gave up.
+ */
+class ClassificationCoalescer {
+
+    @FunctionalInterface
+    interface Classification {
+        CompletableFuture<Map<String, String>> classify() throws URISyntaxException;
+    }
+
+    private static class Key {
+        private final HashCode contentHash;
+        private final Set<String> recipients;
+
+        private Key(HashCode contentHash, Set<String> recipients) {
+            this.contentHash = contentHash;
+            this.recipients = recipients;
+        }
+
+        @Override
+        public final boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key that = (Key) o;
+
+                return Objects.equals(this.contentHash, that.contentHash)
+                    && Objects.equals(this.recipients, that.recipients);
+            }
+            return false;
+        }
+
+        @Override
+        public final int hashCode() {
+            return Objects.hash(contentHash, recipients);
+        }
+    }
+
+    /**
+     * Joining and leaving are synchronized, so that once the last caller gave up, the classification is abandoned:
+     * it is removed from the in-flight classifications, its call is cancelled, even when it is not started yet, and
+     * it can not be joined anymore.
+     */
+    private class InFlightClassification {
+        private final Key key;
+        private final CompletableFuture<Map<String, String>> result;
+        private int waiterCount;
+        private boolean abandoned;
+        private Optional<CompletableFuture<Map<String, String>>> call;
+
+        private InFlightClassification(Key key) {
+            this.key = key;
+            this.result = new CompletableFuture<>();
+            this.waiterCount = 0;
+            this.abandoned = false;
+            this.call = Optional.empty();
+        }
+
+        private synchronized Optional<CompletableFuture<Map<String, String>>> join() {
+            if (abandoned) {
+                return Optional.empty();
+            }
+            waiterCount++;
+            CompletableFuture<Map<String, String>> waiter = result.thenApply(guesses -> guesses);
+            waiter.whenComplete((guesses, e) -> {
+                if (waiter.isCancelled()) {
+                    leave();
+                }
+            });
+            return Optional.of(waiter);
+        }
+
+        private void leave() {
+            Optional<CompletableFuture<Map<String, String>>> abandonedCall;
+            synchronized (this) {
+                waiterCount--;
+                if (waiterCount > 0) {
+                    return;
+                }
+                abandoned = true;
+                abandonedCall = call;
+            }
+            inFlightClassifications.remove(key, this);
+            abandonedCall.ifPresent(future -> future.cancel(true));
+        }
+
+        private void started(CompletableFuture<Map<String, String>> startedCall) {
+            synchronized (this) {
+                call = Optional.of(startedCall);
+                if (!abandoned) {
+                    return;
+                }
+            }
+            startedCall.cancel(true);
+        }
+
+        private void complete(Map<String, String> guesses, Throwable e) {
+            inFlightClassifications.remove(key, this);
+            if (e != null) {
+                result.completeExceptionally(e);
+            } else {
+                result.complete(guesses);
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<Key, InFlightClassification> inFlightClassifications;
+    private final AtomicLong coalescedCount;
+
+    ClassificationCoalescer() {
+        this.inFlightClassifications = new ConcurrentHashMap<>();
+        this.coalescedCount = new AtomicLong();
+    }
+
+    CompletableFuture<Map<String, String>> classify(HashCode contentHash, Collection<MailAddress> recipients,
+                                                    Classification classification) throws URISyntaxException {
+        Key key = new Key(contentHash, recipients.stream()
+            .map(MailAddress::asString)
+            .collect(Guavate.toImmutableSet()));
+        while (true) {
+            InFlightClassification inFlightClassification = new InFlightClassification(key);
+            // Joined before being published, so that followers giving up can not abandon it before its call starts
+            CompletableFuture<Map<String, String>> waiter = inFlightClassification.join().get();
+            InFlightClassification sharedClassification = inFlightClassifications.putIfAbsent(key, inFlightClassification);
+            if (sharedClassification == null) {
+                return start(inFlightClassification, waiter, classification);
+            }
+            Optional<CompletableFuture<Map<String, String>>> sharedWaiter = sharedClassification.join();
+            if (sharedWaiter.isPresent()) {
+                coalescedCount.incrementAndGet();
+                return sharedWaiter.get();
+            }
+            inFlightClassifications.remove(key, sharedClassification);
+        }
+    }
+
+    private CompletableFuture<Map<String, String>> start(InFlightClassification inFlightClassification, CompletableFuture<Map<String, String>> waiter,
+                                                         Classification classification) throws URISyntaxException {
+        try {
+            CompletableFuture<Map<String, String>> call = classification.classify();
+            inFlightClassification.started(call);
+            call.whenComplete(inFlightClassification::complete);
+            return waiter;
+        } catch (URISyntaxException | RuntimeException e) {
+            inFlightClassification.complete(null, e);
+            throw e;
+        }
+    }
+
+    int inFlightCount() {
+        return inFlightClassifications.size();
+    }
+
+    long coalescedCount() {
+        return coalescedCount.get();
+    }
+}
@@ -0,0 +1,312 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.steveash.guavate.Guavate;
+
+/**
+ * An append-only journal of records, stored in memory-mapped segment files of segmentSizeInBytes bytes.
+ *
+ * Each record is preceded by its length, its CRC32 and its append time. The length is written last, so that a record
+ * is only visible once complete. The position of the consumer is stored in a separate file when a polled batch is
+ * acknowledged: records polled but not acknowledged before a restart are polled again. Fully consumed segments are
+ * deleted.
+ *
+ * Records survive a crash of the JVM as soon as they are appended. Segments are only forced to the disk when rolled
+ * and when the journal is closed.
+ *
+ * A single consumer is expected to poll a batch, then acknowledge it before polling the next one.
+ */
+class ClassificationJournal implements Closeable {
+
+    static class Batch {
+        private final List<byte[]> records;
+        private final long segment;
+        private final int offset;
+
+        private Batch(List<byte[]> records, long segment, int offset) {
+            this.records = records;
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        List<byte[]> getRecords() {
+            return records;
+        }
+
+        boolean isEmpty() {
+            return records.isEmpty();
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClassificationJournal.class);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    private static final String CONSUMER_OFFSET_FILE = "consumer.offset";
+    private static final String CONSUMER_OFFSET_TEMPORARY_FILE = "consumer.offset.tmp";
+    private static final int CRC_POSITION = Integer.BYTES;
+    private static final int APPENDED_AT_POSITION = CRC_POSITION + Integer.BYTES;
+    static final int HEADER_SIZE = APPENDED_AT_POSITION + Long.BYTES;
+    private static final int END_OF_SEGMENT = -1;
+
+    static ClassificationJournal open(Path directory, int segmentSizeInBytes, Clock clock) throws IOException {
+        Files.createDirectories(directory);
+        return new ClassificationJournal(directory, segmentSizeInBytes, clock);
+    }
+
+    private final Path directory;
+    private final int segmentSizeInBytes;
+    private final Clock clock;
+    private long firstSegment;
+    private long writeSegment;
+    private MappedByteBuffer writeBuffer;
+    private int writeOffset;
+    private long readSegment;
+    private MappedByteBuffer readBuffer;
+    private int readOffset;
+    private long depth;
+    private long oldestPendingAppendedAtInMs;
+
+    private ClassificationJournal(Path directory, int segmentSizeInBytes, Clock clock) throws IOException {
+        this.directory = directory;
+        this.segmentSizeInBytes = segmentSizeInBytes;
+        this.clock = clock;
+        List<Long> segments = segments();
+        this.firstSegment = segments.isEmpty() ? 0 : segments.get(0);
+        this.writeSegment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1);
+        this.writeBuffer = map(writeSegment);
+        this.writeOffset = recoverWriteOffset();
+        recoverReadPosition();
+        this.depth = countPendingRecords();
+        if (depth > 0) {
+            moveToNextRecord();
+            this.oldestPendingAppendedAtInMs = readBuffer.getLong(readOffset + APPENDED_AT_POSITION);
+        }
+    }
+
+    private List<Long> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(file -> file.getFileName().toString())
+                .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                .map(name -> Long.valueOf(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                .sorted()
+                .collect(Guavate.toImmutableList());
+        }
+    }
+
+    private Path segmentFile(long segment) {
+        return directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private MappedByteBuffer map(long segment) throws IOException {
+        try (FileChannel channel = FileChannel.open(segmentFile(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSizeInBytes);
+        }
+    }
+
+    /**
+     * Stops at the first incomplete or corrupted record of the last segment, and erases what follows it.
+     */
+    private int recoverWriteOffset() {
+        int offset = 0;
+        while (offset + HEADER_SIZE <= segmentSizeInBytes) {
+            int length = writeBuffer.getInt(offset);
+            if (length <= 0 || offset + HEADER_SIZE + length > segmentSizeInBytes
+                    || writeBuffer.getInt(offset + CRC_POSITION) != crc(writeBuffer, offset + HEADER_SIZE, length)) {
+                break;
+            }
+            offset += HEADER_SIZE + length;
+        }
+        if (offset + Integer.BYTES <= segmentSizeInBytes && writeBuffer.getInt(offset) > 0) {
+            LOGGER.warn("Discarding a corrupted record of {} at offset {}", segmentFile(writeSegment), offset);
+            for (int i = offset; i < segmentSizeInBytes; i++) {
+                writeBuffer.put(i, (byte) 0);
+            }
+        }
+        return offset;
+    }
+
+    private void recoverReadPosition() throws IOException {
+        Optional<ByteBuffer> consumerOffset = readConsumerOffset();
+        long consumerSegment = consumerOffset.map(buffer -> buffer.getLong(0)).orElse(firstSegment);
+        if (consumerSegment < firstSegment || consumerSegment > writeSegment) {
+            readSegment = firstSegment;
+            readOffset = 0;
+        } else {
+            readSegment = consumerSegment;
+            readOffset = consumerOffset.map(buffer -> buffer.getInt(Long.BYTES)).orElse(0);
+        }
+        if (readSegment == writeSegment) {
+            readOffset = Math.min(readOffset, writeOffset);
+        }
+        readBuffer = readSegment == writeSegment ? writeBuffer : map(readSegment);
+    }
+
+    private Optional<ByteBuffer> readConsumerOffset() throws IOException {
+        Path consumerOffsetFile = directory.resolve(CONSUMER_OFFSET_FILE);
+        if (!Files.exists(consumerOffsetFile)) {
+            return Optional.empty();
+        }
+        return Optional.of(ByteBuffer.wrap(Files.readAllBytes(consumerOffsetFile)));
+    }
+
+    private long countPendingRecords() throws IOException {
+        long savedReadSegment = readSegment;
+        MappedByteBuffer savedReadBuffer = readBuffer;
+        int savedReadOffset = readOffset;
+        long count = 0;
+        while (moveToNextRecord()) {
+            readOffset += HEADER_SIZE + readBuffer.getInt(readOffset);
+            count++;
+        }
+        readSegment = savedReadSegment;
+        readBuffer = savedReadBuffer;
+        readOffset = savedReadOffset;
+        return count;
+    }
+
+    synchronized void append(byte[] record) throws IOException {
+        if (record.length == 0 || HEADER_SIZE + record.length > segmentSizeInBytes) {
+            throw new IOException("Can not journal a record of " + record.length + " bytes in segments of " + segmentSizeInBytes + " bytes");
+        }
+        if (writeOffset + HEADER_SIZE + record.length > segmentSizeInBytes) {
+            roll();
+        }
+        long appendedAtInMs = clock.millis();
+        ByteBuffer payload = writeBuffer.duplicate();
+        payload.position(writeOffset + HEADER_SIZE);
+        payload.put(record);
+        writeBuffer.putLong(writeOffset + APPENDED_AT_POSITION, appendedAtInMs);
+        writeBuffer.putInt(writeOffset + CRC_POSITION, crc(ByteBuffer.wrap(record), 0, record.length));
+        writeBuffer.putInt(writeOffset, record.length);
+        writeOffset += HEADER_SIZE + record.length;
+        if (depth++ == 0) {
+            oldestPendingAppendedAtInMs = appendedAtInMs;
+        }
+    }
+
+    private void roll() throws IOException {
+        if (writeOffset + Integer.BYTES <= segmentSizeInBytes) {
+            writeBuffer.putInt(writeOffset, END_OF_SEGMENT);
+        }
+        writeBuffer.force();
+        writeSegment++;
+        writeBuffer = map(writeSegment);
+        writeOffset = 0;
+    }
+
+    synchronized Batch poll(int maxRecords) throws IOException {
+        List<byte[]> records = new ArrayList<>();
+        while (records.size() < maxRecords && moveToNextRecord()) {
+            byte[] record = new byte[readBuffer.getInt(readOffset)];
+            ByteBuffer payload = readBuffer.duplicate();
+            payload.position(readOffset + HEADER_SIZE);
+            payload.get(record);
+            readOffset += HEADER_SIZE + record.length;
+            records.add(record);
+        }
+        return new Batch(records, readSegment, readOffset);
+    }
+
+    private boolean moveToNextRecord() throws IOException {
+        while (true) {
+            if (readSegment == writeSegment) {
+                return readOffset < writeOffset;
+            }
+            if (readOffset + HEADER_SIZE <= segmentSizeInBytes && readBuffer.getInt(readOffset) > 0) {
+                return true;
+            }
+            readSegment++;
+            readBuffer = readSegment == writeSegment ? writeBuffer : map(readSegment);
+            readOffset = 0;
+        }
+    }
+
+    synchronized void acknowledge(Batch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        writeConsumerOffset(batch.segment, batch.offset);
+        depth -= batch.records.size();
+        for (; firstSegment < batch.segment; firstSegment++) {
+            Files.deleteIfExists(segmentFile(firstSegment));
+        }
+        if (depth > 0 && moveToNextRecord()) {
+            oldestPendingAppendedAtInMs = readBuffer.getLong(readOffset + APPENDED_AT_POSITION);
+        }
+    }
+
+    private void writeConsumerOffset(long segment, int offset) throws IOException {
+        ByteBuffer consumerOffset = ByteBuffer.allocate(Long.BYTES + Integer.BYTES)
+            .putLong(segment)
+            .putInt(offset);
+        Path temporaryFile = directory.resolve(CONSUMER_OFFSET_TEMPORARY_FILE);
+        Files.write(temporaryFile, consumerOffset.array());
+        Files.move(temporaryFile, directory.resolve(CONSUMER_OFFSET_FILE), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    synchronized long depth() {
+        return depth;
+    }
+
+    /**
+     * How long the oldest record not acknowledged yet has been waiting, 0 when there is none.
+     */
+    synchronized long lagInMs() {
+        if (depth == 0) {
+            return 0;
+        }
+        return Math.max(0, clock.millis() - oldestPendingAppendedAtInMs);
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer content = buffer.duplicate();
+        content.position(offset);
+        content.limit(offset + length);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() {
+        writeBuffer.force();
+    }
+}
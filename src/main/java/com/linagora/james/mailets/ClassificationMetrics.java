@@ -0,0 +1,318 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.http.conn.ConnectTimeoutException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.github.steveash.guavate.Guavate;
+import com.google.common.base.Ticker;
+import com.linagora.james.mailets.json.ExtractionListener;
+
+/**
+ * Times each stage of the classification of a mail, and counts their outcomes.
+ *
+ * The remote call covers the whole HTTP exchange, hence overlaps with the serialization, connection acquisition
+ * and response parsing stages. Connection acquisition is only timed by the blocking client.
+ */
+class ClassificationMetrics implements ClassificationMetricsMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClassificationMetrics.class);
+    private static final String OBJECT_NAME_PREFIX = "com.linagora.james.mailets:type=GuessClassificationMailet,name=";
+    /**
+     * Large enough for the p999 to be computed over at least ten samples above it, rather than being the max.
+     */
+    static final int DEFAULT_WINDOW_SIZE = 16384;
+    static final String CIRCUIT_BREAKER_DISABLED = "DISABLED";
+
+    enum Stage {
+        MIME_PARSING,
+        HTML_TO_TEXT,
+        SERIALIZATION,
+        CONNECTION_ACQUISITION,
+        REMOTE_CALL,
+        RESPONSE_PARSING,
+        HEADER_ATTACHMENT,
+        LOCAL_CLASSIFICATION
+    }
+
+    private final Ticker ticker;
+    private final Map<Stage, LatencyHistogram> histograms;
+    private final AtomicLong successCount;
+    private final AtomicLong failureCount;
+    private final AtomicLong timeoutCount;
+    private final AtomicLong parseErrorCount;
+    private final AtomicLong skippedCount;
+    private final AtomicInteger inFlightRequests;
+    private volatile Optional<DeferredClassifier> deferredClassifier;
+    private volatile Optional<ClassificationCache> classificationCache;
+    private volatile Optional<CircuitBreaker> circuitBreaker;
+    private volatile Optional<ClassificationCoalescer> classificationCoalescer;
+    private Optional<ObjectName> registeredName;
+
+    ClassificationMetrics(Ticker ticker) {
+        this(ticker, DEFAULT_WINDOW_SIZE);
+    }
+
+    ClassificationMetrics(Ticker ticker, int windowSize) {
+        this.ticker = ticker;
+        this.histograms = Arrays.stream(Stage.values())
+            .collect(Guavate.toImmutableMap(Function.identity(), stage -> new LatencyHistogram(windowSize)));
+        this.successCount = new AtomicLong();
+        this.failureCount = new AtomicLong();
+        this.timeoutCount = new AtomicLong();
+        this.parseErrorCount = new AtomicLong();
+        this.skippedCount = new AtomicLong();
+        this.inFlightRequests = new AtomicInteger();
+        this.deferredClassifier = Optional.empty();
+        this.classificationCache = Optional.empty();
+        this.circuitBreaker = Optional.empty();
+        this.classificationCoalescer = Optional.empty();
+        this.registeredName = Optional.empty();
+    }
+
+    long start() {
+        return ticker.read();
+    }
+
+    void record(Stage stage, long startInNanos) {
+        recordDuration(stage, ticker.read() - startInNanos);
+    }
+
+    void recordDuration(Stage stage, long durationInNanos) {
+        histograms.get(stage).record(durationInNanos);
+    }
+
+    ExtractionListener extractionListener() {
+        return new ExtractionListener() {
+            @Override
+            public void mimeParsed(long durationInNanos) {
+                recordDuration(Stage.MIME_PARSING, durationInNanos);
+            }
+
+            @Override
+            public void htmlConvertedToText(long durationInNanos) {
+                recordDuration(Stage.HTML_TO_TEXT, durationInNanos);
+            }
+        };
+    }
+
+    void requestStarted() {
+        inFlightRequests.incrementAndGet();
+    }
+
+    void requestCompleted() {
+        inFlightRequests.decrementAndGet();
+    }
+
+    void recordSuccess() {
+        successCount.incrementAndGet();
+    }
+
+    void recordSkipped() {
+        skippedCount.incrementAndGet();
+    }
+
+    void recordFailure(Throwable cause) {
+        if (cause instanceof CircuitBreakerOpenException) {
+            skippedCount.incrementAndGet();
+        } else if (isTimeout(cause)) {
+            timeoutCount.incrementAndGet();
+        } else if (cause instanceof JsonProcessingException) {
+            parseErrorCount.incrementAndGet();
+        } else {
+            failureCount.incrementAndGet();
+        }
+    }
+
+    private boolean isTimeout(Throwable cause) {
+        return cause instanceof TimeoutException
+            || cause instanceof SocketTimeoutException
+            || cause instanceof ConnectTimeoutException;
+    }
+
+    void monitorDeferredClassifier(DeferredClassifier deferredClassifier) {
+        this.deferredClassifier = Optional.of(deferredClassifier);
+    }
+
+    void monitorClassificationCache(ClassificationCache classificationCache) {
+        this.classificationCache = Optional.of(classificationCache);
+    }
+
+    void monitorCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = Optional.of(circuitBreaker);
+    }
+
+    void monitorClassificationCoalescer(ClassificationCoalescer classificationCoalescer) {
+        this.classificationCoalescer = Optional.of(classificationCoalescer);
+    }
+
+    synchronized void register(String mailetName) {
+        try {
+            ObjectName objectName = new ObjectName(OBJECT_NAME_PREFIX + ObjectName.quote(mailetName));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+            registeredName = Optional.of(objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Could not register the classification metrics of {}", mailetName, e);
+        }
+    }
+
+    synchronized void unregister() {
+        if (registeredName.isPresent()) {
+            try {
+                MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+                mBeanServer.unregisterMBean(registeredName.get());
+            } catch (JMException e) {
+                LOGGER.warn("Could not unregister {}", registeredName.get(), e);
+            }
+            registeredName = Optional.empty();
+        }
+    }
+
+    @Override
+    public LatencySnapshot getMimeParsingLatency() {
+        return histograms.get(Stage.MIME_PARSING).snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getHtmlToTextLatency() {
+        return histograms.get(Stage.HTML_TO_TEXT).snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getSerializationLatency() {
+        return histograms.get(Stage.SERIALIZATION).snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getConnectionAcquisitionLatency() {
+        return histograms.get(Stage.CONNECTION_ACQUISITION).snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getRemoteCallLatency() {
+        return histograms.get(Stage.REMOTE_CALL).snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getResponseParsingLatency() {
+        return histograms.get(Stage.RESPONSE_PARSING).snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getHeaderAttachmentLatency() {
+        return histograms.get(Stage.HEADER_ATTACHMENT).snapshot();
+    }
+
+    @Override
+    public LatencySnapshot getLocalClassificationLatency() {
+        return histograms.get(Stage.LOCAL_CLASSIFICATION).snapshot();
+    }
+
+    @Override
+    public long getSuccessCount() {
+        return successCount.get();
+    }
+
+    @Override
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    @Override
+    public long getTimeoutCount() {
+        return timeoutCount.get();
+    }
+
+    @Override
+    public long getParseErrorCount() {
+        return parseErrorCount.get();
+    }
+
+    @Override
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    @Override
+    public int getInFlightRequests() {
+        return inFlightRequests.get();
+    }
+
+    @Override
+    public long getDeferredQueueDepth() {
+        return deferredClassifier.map(DeferredClassifier::queueDepth).orElse(0L);
+    }
+
+    @Override
+    public long getDeferredLagMs() {
+        return deferredClassifier.map(DeferredClassifier::lagInMs).orElse(0L);
+    }
+
+    @Override
+    public long getCacheHitCount() {
+        return classificationCache.map(ClassificationCache::hitCount).orElse(0L);
+    }
+
+    @Override
+    public long getCacheMissCount() {
+        return classificationCache.map(ClassificationCache::missCount).orElse(0L);
+    }
+
+    @Override
+    public long getCacheEvictionCount() {
+        return classificationCache.map(ClassificationCache::evictionCount).orElse(0L);
+    }
+
+    @Override
+    public String getCircuitBreakerState() {
+        return circuitBreaker.map(breaker -> breaker.getState().name()).orElse(CIRCUIT_BREAKER_DISABLED);
+    }
+
+    @Override
+    public long getCircuitBreakerOpenings() {
+        return circuitBreaker.map(CircuitBreaker::getOpenings).orElse(0L);
+    }
+
+    @Override
+    public long getCircuitBreakerNotPermittedCalls() {
+        return circuitBreaker.map(CircuitBreaker::getNotPermittedCalls).orElse(0L);
+    }
+
+    @Override
+    public long getCoalescedCount() {
+        return classificationCoalescer.map(ClassificationCoalescer::coalescedCount).orElse(0L);
+    }
+}
@@ -0,0 +1,77 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+/**
+ * Per stage latencies and outcome counters of a {@link GuessClassificationMailet}, the depth and lag of its
+ * deferred classification queue, the counters of its classification cache and the state of its circuit breaker,
+ * registered under
+ * com.linagora.james.mailets:type=GuessClassificationMailet,name=&lt;mailet name&gt;
+ */
+public interface ClassificationMetricsMXBean {
+
+    LatencySnapshot getMimeParsingLatency();
+
+    LatencySnapshot getHtmlToTextLatency();
+
+    LatencySnapshot getSerializationLatency();
+
+    LatencySnapshot getConnectionAcquisitionLatency();
+
+    LatencySnapshot getRemoteCallLatency();
+
+    LatencySnapshot getResponseParsingLatency();
+
+    LatencySnapshot getHeaderAttachmentLatency();
+
+    LatencySnapshot getLocalClassificationLatency();
+
+    long getSuccessCount();
+
+    long getFailureCount();
+
+    long getTimeoutCount();
+
+    long getParseErrorCount();
+
+    long getSkippedCount();
+
+    int getInFlightRequests();
+
+    long getDeferredQueueDepth();
+
+    long getDeferredLagMs();
+
+    long getCacheHitCount();
+
+    long getCacheMissCount();
+
+    long getCacheEvictionCount();
+
+    /**
+     * CLOSED, OPEN or HALF_OPEN, DISABLED when no circuit breaker is configured.
+     */
+    String getCircuitBreakerState();
+
+    long getCircuitBreakerOpenings();
+
+    long getCircuitBreakerNotPermittedCalls();
+
+    long getCoalescedCount();
+}
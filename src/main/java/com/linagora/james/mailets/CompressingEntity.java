@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Compresses the wrapped entity while it is written to the connection, without keeping a copy of either the
+ * plain or the compressed body.
+ *
+ * As for {@link StreamingJsonEntity}, the non blocking client reads {@link #getContent()} instead, which
+ * buffers the compressed bytes.
+ */
+class CompressingEntity extends HttpEntityWrapper {
+
+    private final RequestCompression.Algorithm algorithm;
+
+    CompressingEntity(HttpEntity wrappedEntity, RequestCompression.Algorithm algorithm) {
+        super(wrappedEntity);
+        this.algorithm = algorithm;
+    }
+
+    @Override
+    public Header getContentEncoding() {
+        return new BasicHeader(HttpHeaders.CONTENT_ENCODING, algorithm.getValue());
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isChunked() {
+        return true;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        writeTo(content);
+        return new ByteArrayInputStream(content.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        try (DeflaterOutputStream compressingStream = algorithm.compressing(new NonClosingOutputStream(outputStream))) {
+            wrappedEntity.writeTo(compressingStream);
+        }
+        outputStream.flush();
+    }
+
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        NonClosingOutputStream(OutputStream outputStream) {
+            super(outputStream);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            out.write(bytes, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Objects;
+import java.util.Optional;
+
+import com.google.common.base.Preconditions;
+
+public class ConnectionPoolConfiguration {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 200;
+    public static final int DEFAULT_MAX_PER_ROUTE = 100;
+    public static final int DEFAULT_KEEP_ALIVE_MS = 30000;
+    public static final int DEFAULT_IDLE_EVICT_MS = 30000;
+    public static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT_MS = 5000;
+    public static final int DEFAULT_VALIDATE_AFTER_INACTIVITY_MS = 2000;
+
+    public static final ConnectionPoolConfiguration DEFAULT = builder().build();
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private Optional<Integer> maxConnections = Optional.empty();
+        private Optional<Integer> maxPerRoute = Optional.empty();
+        private Optional<Integer> keepAliveMs = Optional.empty();
+        private Optional<Integer> idleEvictMs = Optional.empty();
+        private Optional<Integer> connectionRequestTimeoutMs = Optional.empty();
+        private Optional<Integer> validateAfterInactivityMs = Optional.empty();
+
+        public Builder maxConnections(Optional<Integer> maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        public Builder maxPerRoute(Optional<Integer> maxPerRoute) {
+            this.maxPerRoute = maxPerRoute;
+            return this;
+        }
+
+        public Builder keepAliveMs(Optional<Integer> keepAliveMs) {
+            this.keepAliveMs = keepAliveMs;
+            return this;
+        }
+
+        public Builder idleEvictMs(Optional<Integer> idleEvictMs) {
+            this.idleEvictMs = idleEvictMs;
+            return this;
+        }
+
+        public Builder connectionRequestTimeoutMs(Optional<Integer> connectionRequestTimeoutMs) {
+            this.connectionRequestTimeoutMs = connectionRequestTimeoutMs;
+            return this;
+        }
+
+        public Builder validateAfterInactivityMs(Optional<Integer> validateAfterInactivityMs) {
+            this.validateAfterInactivityMs = validateAfterInactivityMs;
+            return this;
+        }
+
+        public ConnectionPoolConfiguration build() {
+            int maxConnections = this.maxConnections.orElse(DEFAULT_MAX_CONNECTIONS);
+            int maxPerRoute = this.maxPerRoute.orElse(Math.min(DEFAULT_MAX_PER_ROUTE, maxConnections));
+            Preconditions.checkState(maxPerRoute <= maxConnections, "maxPerRoute can not exceed maxConnections");
+
+            return new ConnectionPoolConfiguration(maxConnections,
+                maxPerRoute,
+                keepAliveMs.orElse(DEFAULT_KEEP_ALIVE_MS),
+                idleEvictMs.orElse(DEFAULT_IDLE_EVICT_MS),
+                connectionRequestTimeoutMs.orElse(DEFAULT_CONNECTION_REQUEST_TIMEOUT_MS),
+                validateAfterInactivityMs.orElse(DEFAULT_VALIDATE_AFTER_INACTIVITY_MS));
+        }
+    }
+
+    private final int maxConnections;
+    private final int maxPerRoute;
+    private final int keepAliveMs;
+    private final int idleEvictMs;
+    private final int connectionRequestTimeoutMs;
+    private final int validateAfterInactivityMs;
+
+    private ConnectionPoolConfiguration(int maxConnections, int maxPerRoute, int keepAliveMs, int idleEvictMs, int connectionRequestTimeoutMs, int validateAfterInactivityMs) {
+        this.maxConnections = maxConnections;
+        this.maxPerRoute = maxPerRoute;
+        this.keepAliveMs = keepAliveMs;
+        this.idleEvictMs = idleEvictMs;
+        this.connectionRequestTimeoutMs = connectionRequestTimeoutMs;
+        this.validateAfterInactivityMs = validateAfterInactivityMs;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public int getKeepAliveMs() {
+        return keepAliveMs;
+    }
+
+    public int getIdleEvictMs() {
+        return idleEvictMs;
+    }
+
+    public int getConnectionRequestTimeoutMs() {
+        return connectionRequestTimeoutMs;
+    }
+
+    public int getValidateAfterInactivityMs() {
+        return validateAfterInactivityMs;
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+        if (o instanceof ConnectionPoolConfiguration) {
+            ConnectionPoolConfiguration that = (ConnectionPoolConfiguration) o;
+
+            return Objects.equals(this.maxConnections, that.maxConnections)
+                && Objects.equals(this.maxPerRoute, that.maxPerRoute)
+                && Objects.equals(this.keepAliveMs, that.keepAliveMs)
+                && Objects.equals(this.idleEvictMs, that.idleEvictMs)
+                && Objects.equals(this.connectionRequestTimeoutMs, that.connectionRequestTimeoutMs)
+                && Objects.equals(this.validateAfterInactivityMs, that.validateAfterInactivityMs);
+        }
+        return false;
+    }
+
+    @Override
+    public final int hashCode() {
+        return Objects.hash(maxConnections, maxPerRoute, keepAliveMs, idleEvictMs, connectionRequestTimeoutMs, validateAfterInactivityMs);
+    }
+}
@@ -0,0 +1,117 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+
+import com.google.common.collect.ImmutableList;
+import com.linagora.james.mailets.json.WireFormat;
+
+/**
+ * A classification request journaled by a {@link GuessClassificationMailet} in deferred mode: the serialized
+ * request body, with the recipients to classify it for and the keys of the mail it was built from.
+ *
+ * Records start with a format version, and store the wire format by its configuration value rather than its
+ * ordinal, so that journals written by a previous version stay readable.
+ */
+public class DeferredClassification {
+
+    private static final int FORMAT_VERSION = 1;
+
+    static DeferredClassification fromBytes(byte[] record) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+        int formatVersion = input.readUnsignedByte();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported deferred classification format " + formatVersion);
+        }
+        String mailName = input.readUTF();
+        String messageId = input.readUTF();
+        int recipientCount = input.readInt();
+        ImmutableList.Builder<String> recipients = ImmutableList.builder();
+        for (int i = 0; i < recipientCount; i++) {
+            recipients.add(input.readUTF());
+        }
+        String wireFormatValue = input.readUTF();
+        WireFormat wireFormat = WireFormat.parse(wireFormatValue)
+            .orElseThrow(() -> new IOException("Unknown wire format " + wireFormatValue));
+        byte[] requestBody = new byte[input.readInt()];
+        input.readFully(requestBody);
+        return new DeferredClassification(mailName, messageId, recipients.build(), wireFormat, requestBody);
+    }
+
+    private final String mailName;
+    private final String messageId;
+    private final List<String> recipients;
+    private final WireFormat wireFormat;
+    private final byte[] requestBody;
+
+    DeferredClassification(String mailName, String messageId, List<String> recipients, WireFormat wireFormat, byte[] requestBody) {
+        this.mailName = mailName;
+        this.messageId = messageId;
+        this.recipients = recipients;
+        this.wireFormat = wireFormat;
+        this.requestBody = requestBody;
+    }
+
+    public String getMailName() {
+        return mailName;
+    }
+
+    /**
+     * The Message-ID header of the mail, empty when it has none.
+     */
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    byte[] getRequestBody() {
+        return requestBody;
+    }
+
+    byte[] toBytes() throws IOException {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(requestBody.length + 256);
+        DataOutputStream output = new DataOutputStream(record);
+        output.writeByte(FORMAT_VERSION);
+        output.writeUTF(mailName);
+        output.writeUTF(messageId);
+        output.writeInt(recipients.size());
+        for (String recipient : recipients) {
+            output.writeUTF(recipient);
+        }
+        output.writeUTF(wireFormat.getValue());
+        output.writeInt(requestBody.length);
+        output.write(requestBody);
+        output.flush();
+        return record.toByteArray();
+    }
+}
@@ -0,0 +1,287 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Classifies mails out of band: {@link DeferredClassification} are appended to a {@link ClassificationJournal}, which
+ * a background thread drains by batches of batchSize records. The records of a batch are classified concurrently by
+ * workerCount workers, and their guesses given to the {@link DeferredGuessesHandler}. The batch is acknowledged once
+ * each of its records was attempted once.
+ *
+ * Failed records are appended to a separate retry journal, so that they neither hold the batch they come from nor
+ * are classified again after a restart once succeeded. A second background thread drains the retry journal, waiting
+ * for each record to be due: records are retried maxRetries times, waiting retryDelayInMs then twice longer after
+ * each failure, before being dropped.
+ */
+class DeferredClassifier implements Closeable {
+
+    @FunctionalInterface
+    interface Classifier {
+        Map<String, String> classify(DeferredClassification classification) throws Exception;
+    }
+
+    private static class Retry {
+        static Retry fromBytes(byte[] record) throws IOException {
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+            int attempt = input.readInt();
+            long dueAtInMs = input.readLong();
+            byte[] classification = new byte[input.readInt()];
+            input.readFully(classification);
+            return new Retry(attempt, dueAtInMs, DeferredClassification.fromBytes(classification));
+        }
+
+        private final int attempt;
+        private final long dueAtInMs;
+        private final DeferredClassification classification;
+
+        Retry(int attempt, long dueAtInMs, DeferredClassification classification) {
+            this.attempt = attempt;
+            this.dueAtInMs = dueAtInMs;
+            this.classification = classification;
+        }
+
+        byte[] toBytes() throws IOException {
+            byte[] serializedClassification = classification.toBytes();
+            ByteArrayOutputStream record = new ByteArrayOutputStream(serializedClassification.length + Integer.BYTES + Long.BYTES + Integer.BYTES);
+            DataOutputStream output = new DataOutputStream(record);
+            output.writeInt(attempt);
+            output.writeLong(dueAtInMs);
+            output.writeInt(serializedClassification.length);
+            output.write(serializedClassification);
+            output.flush();
+            return record.toByteArray();
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DeferredClassifier.class);
+    private static final long IDLE_POLL_INTERVAL_IN_MS = 100;
+    private static final int MAX_BACKOFF_SHIFT = 16;
+    private static final long CLOSE_TIMEOUT_IN_MS = 5000;
+
+    private final ClassificationJournal journal;
+    private final ClassificationJournal retryJournal;
+    private final Classifier classifier;
+    private final DeferredGuessesHandler guessesHandler;
+    private final int batchSize;
+    private final int maxRetries;
+    private final int retryDelayInMs;
+    private final Clock clock;
+    private final ExecutorService drainers;
+    private final ExecutorService workers;
+    private volatile boolean closed;
+
+    DeferredClassifier(ClassificationJournal journal, ClassificationJournal retryJournal, Classifier classifier, DeferredGuessesHandler guessesHandler,
+                       int workerCount, int batchSize, int maxRetries, int retryDelayInMs, Clock clock) {
+        this.journal = journal;
+        this.retryJournal = retryJournal;
+        this.classifier = classifier;
+        this.guessesHandler = guessesHandler;
+        this.batchSize = batchSize;
+        this.maxRetries = maxRetries;
+        this.retryDelayInMs = retryDelayInMs;
+        this.clock = clock;
+        this.drainers = Executors.newFixedThreadPool(2, new ThreadFactoryBuilder()
+            .setNameFormat("deferred-classification-drainer-%d")
+            .setDaemon(true)
+            .build());
+        this.workers = Executors.newFixedThreadPool(workerCount, new ThreadFactoryBuilder()
+            .setNameFormat("deferred-classification-worker-%d")
+            .setDaemon(true)
+            .build());
+        this.drainers.execute(() -> drain(journal, false));
+        this.drainers.execute(() -> drain(retryJournal, true));
+    }
+
+    void enqueue(DeferredClassification classification) throws IOException {
+        journal.append(classification.toBytes());
+    }
+
+    /**
+     * The number of records waiting for their first attempt or for a retry.
+     */
+    long queueDepth() {
+        return journal.depth() + retryJournal.depth();
+    }
+
+    long lagInMs() {
+        return Math.max(journal.lagInMs(), retryJournal.lagInMs());
+    }
+
+    boolean isTerminated() {
+        return drainers.isTerminated() && workers.isTerminated();
+    }
+
+    private void drain(ClassificationJournal source, boolean retries) {
+        while (!closed) {
+            try {
+                ClassificationJournal.Batch batch = source.poll(batchSize);
+                if (batch.isEmpty()) {
+                    Thread.sleep(IDLE_POLL_INTERVAL_IN_MS);
+                    continue;
+                }
+                if (processAll(batch, retries) && !closed) {
+                    source.acknowledge(batch);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                if (!closed) {
+                    LOGGER.error("Error while draining the classification journal", e);
+                }
+                if (!pauseAfterFailure()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits interruptibly for the records of the batch, so that closing the classifier does not leave the drainer
+     * blocked on records the workers will never run. Records not processed yet are then cancelled.
+     */
+    private boolean processAll(ClassificationJournal.Batch batch, boolean retries) throws InterruptedException {
+        List<CompletableFuture<Void>> processedRecords = new ArrayList<>();
+        try {
+            for (byte[] record : batch.getRecords()) {
+                if (retries) {
+                    submitRetry(record).ifPresent(processedRecords::add);
+                } else {
+                    submitFirstAttempt(record).ifPresent(processedRecords::add);
+                }
+            }
+            CompletableFuture.allOf(processedRecords.toArray(new CompletableFuture<?>[processedRecords.size()])).get();
+            return true;
+        } catch (InterruptedException e) {
+            processedRecords.forEach(processedRecord -> processedRecord.cancel(true));
+            throw e;
+        } catch (ExecutionException e) {
+            LOGGER.error("Error while processing deferred classifications", e.getCause());
+            return false;
+        }
+    }
+
+    private Optional<CompletableFuture<Void>> submitFirstAttempt(byte[] record) {
+        try {
+            DeferredClassification classification = DeferredClassification.fromBytes(record);
+            return Optional.of(CompletableFuture.runAsync(() -> attempt(classification, 0), workers));
+        } catch (IOException e) {
+            LOGGER.error("Dropping an unreadable deferred classification", e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Retries are appended in about the order they are due, hence waited for one after the other.
+     */
+    private Optional<CompletableFuture<Void>> submitRetry(byte[] record) throws InterruptedException {
+        Retry retry;
+        try {
+            retry = Retry.fromBytes(record);
+        } catch (IOException e) {
+            LOGGER.error("Dropping an unreadable deferred classification retry", e);
+            return Optional.empty();
+        }
+        long delayInMs = retry.dueAtInMs - clock.millis();
+        if (delayInMs > 0) {
+            Thread.sleep(delayInMs);
+        }
+        return Optional.of(CompletableFuture.runAsync(() -> attempt(retry.classification, retry.attempt), workers));
+    }
+
+    /**
+     * Avoids spinning, and flooding the logs, while the journal keeps failing.
+     */
+    private boolean pauseAfterFailure() {
+        try {
+            Thread.sleep(IDLE_POLL_INTERVAL_IN_MS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void attempt(DeferredClassification classification, int attempt) {
+        try {
+            guessesHandler.handle(classification, classifier.classify(classification));
+        } catch (Exception e) {
+            if (attempt >= maxRetries) {
+                LOGGER.error("Dropping the deferred classification of {} after {} retries", classification.getMailName(), maxRetries, e);
+                return;
+            }
+            LOGGER.warn("Deferred classification of {} failed, retrying", classification.getMailName(), e);
+            scheduleRetry(classification, attempt);
+        }
+    }
+
+    private void scheduleRetry(DeferredClassification classification, int attempt) {
+        long dueAtInMs = clock.millis() + ((long) retryDelayInMs << Math.min(attempt, MAX_BACKOFF_SHIFT));
+        try {
+            retryJournal.append(new Retry(attempt + 1, dueAtInMs, classification).toBytes());
+        } catch (IOException e) {
+            LOGGER.error("Dropping the deferred classification of {}: it can not be journaled for a retry", classification.getMailName(), e);
+        }
+    }
+
+    /**
+     * Interrupts the drainers first, and only stops the workers once they exited, so that they are never left waiting
+     * for records dropped by the workers.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        drainers.shutdownNow();
+        try {
+            if (!drainers.awaitTermination(CLOSE_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("The deferred classification drainers did not stop within {} ms", CLOSE_TIMEOUT_IN_MS);
+            }
+            workers.shutdownNow();
+            if (!workers.awaitTermination(CLOSE_TIMEOUT_IN_MS, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("The deferred classification workers did not stop within {} ms", CLOSE_TIMEOUT_IN_MS);
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        journal.close();
+        retryJournal.close();
+    }
+}
@@ -0,0 +1,34 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import java.util.Map;
+
+/**
+ * Applies the classification guesses of a mail classified in deferred mode, once it has left the mailet container.
+ *
+ * Implementations are given to the {@link GuessClassificationMailet} by class name, and need a public no-argument
+ * constructor. Guesses are the per recipient JSON values otherwise set in the classification header. Failing
+ * handlers are retried like failed classifications.
+ */
+public interface DeferredGuessesHandler {
+
+    void handle(DeferredClassification classification, Map<String, String> guesses) throws Exception;
+}
@@ -18,24 +18,41 @@
 
 package com.linagora.james.mailets;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Clock;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import javax.mail.MessagingException;
 import javax.mail.internet.AddressException;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
+import org.apache.http.NameValuePair;
 import org.apache.http.auth.UsernamePasswordCredentials;
-import org.apache.http.client.fluent.Executor;
-import org.apache.http.client.fluent.Request;
 import org.apache.http.client.utils.URIBuilder;
-import org.apache.http.entity.ContentType;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.apache.http.message.BasicNameValuePair;
 import org.apache.mailet.Mail;
 import org.apache.mailet.MailAddress;
 import org.apache.mailet.MailetException;
@@ -44,16 +61,25 @@ import org.apache.mailet.base.GenericMailet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.steveash.guavate.Guavate;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Splitter;
 import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
 import com.google.common.primitives.Ints;
-import com.linagora.james.mailets.json.ClassificationGuess;
-import com.linagora.james.mailets.json.ClassificationGuesses;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.linagora.james.mailets.json.ClassificationBatchEntry;
+import com.linagora.james.mailets.json.ClassificationGuessesParser;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
 import com.linagora.james.mailets.json.ClassificationRequestBodySerializer;
+import com.linagora.james.mailets.json.HtmlToTextConverter;
+import com.linagora.james.mailets.json.TextBudget;
 import com.linagora.james.mailets.json.UUIDGenerator;
+import com.linagora.james.mailets.json.WireFormat;
 
 /**
  * This mailet adds a header to the mail which specify the guess classification of this message.
@@ -63,15 +89,66 @@ import com.linagora.james.mailets.json.UUIDGenerator;
  * <pre>
  * <code>
  * &lt;mailet match="All" class="GuessClassificationMailet"&gt;
- *    &lt;serviceUrl&gt; <i>The URL of the classification webservice</i> &lt;/serviceUrl&gt;
+ *    &lt;serviceUrl&gt; <i>The URL of the classification webservice. A comma separated list of URLs sharing the same path can be given to balance the requests over several replicas.</i> &lt;/serviceUrl&gt;
  *    &lt;serviceUsername&gt; <i>The username to use for authentication with the classification webservice</i> &lt;/serviceUsername&gt;
  *    &lt;servicePassword&gt; <i>The password to use for authentication with the classification webservice</i> &lt;/servicePassword&gt;
  *    &lt;headerName&gt; <i>The classification message header name, default=X-Classification-Guess</i> &lt;/headerName&gt;
- *    &lt;threadCount&gt; <i>The number of threads used for the timeout</i> &lt;/threadCount&gt;
+ *    &lt;threadCount&gt; <i>The number of I/O threads of the non blocking HTTP client. If specified, the classification API is called asynchronously, otherwise a blocking client is used.</i> &lt;/threadCount&gt;
+ *    &lt;maxConnections&gt; <i>Blocking mode only: the maximum number of pooled connections, default=200</i> &lt;/maxConnections&gt;
+ *    &lt;maxPerRoute&gt; <i>Blocking mode only: the maximum number of pooled connections to the classification webservice, default=100</i> &lt;/maxPerRoute&gt;
+ *    &lt;keepAliveMs&gt; <i>Blocking mode only: how long an idle connection is kept alive when the server does not specify a shorter duration, default=30000</i> &lt;/keepAliveMs&gt;
+ *    &lt;idleEvictMs&gt; <i>Blocking mode only: idle connections older than this are evicted from the pool, default=30000</i> &lt;/idleEvictMs&gt;
+ *    &lt;connectionRequestTimeoutMs&gt; <i>Blocking mode only: how long to wait for a connection from the pool, default=5000</i> &lt;/connectionRequestTimeoutMs&gt;
+ *    &lt;validateAfterInactivityMs&gt; <i>Blocking mode only: pooled connections inactive for longer are validated before being reused, default=2000</i> &lt;/validateAfterInactivityMs&gt;
+ *    &lt;maxInFlightRequests&gt; <i>Asynchronous mode only: the maximum number of pending requests. Classification is skipped for the mails exceeding it, default=100</i> &lt;/maxInFlightRequests&gt;
+ *    &lt;loadBalancingStrategy&gt; <i>Several serviceUrl only: leastOutstanding sends requests to the replica with the fewest pending requests, ewma to the one with the lowest recent latency, default=leastOutstanding</i> &lt;/loadBalancingStrategy&gt;
+ *    &lt;healthCheckIntervalMs&gt; <i>Several serviceUrl only: how often each replica is checked with an authenticated GET of its serviceUrl, only 2xx responses passing the check, default=10000</i> &lt;/healthCheckIntervalMs&gt;
+ *    &lt;healthCheckTimeoutMs&gt; <i>Several serviceUrl only: how long a replica has to answer a health check, default=1000</i> &lt;/healthCheckTimeoutMs&gt;
+ *    &lt;ejectAfterFailures&gt; <i>Several serviceUrl only: the number of consecutive failed requests ejecting a replica, default=5</i> &lt;/ejectAfterFailures&gt;
+ *    &lt;ejectionDurationMs&gt; <i>Several serviceUrl only: how long an ejected replica receives no request, unless it passes a health check, default=30000</i> &lt;/ejectionDurationMs&gt;
+ *    &lt;batchServiceUrl&gt; <i>The URL of the batch classification webservice, on the same host than serviceUrl. If specified, classification requests are grouped and sent as a JSON array to this URL, which answers a JSON array of classification guesses in the same order. At most threadCount batches, or maxConnections in blocking mode, are sent at once; the mails of the batches that can not even be queued behind them are not classified.</i> &lt;/batchServiceUrl&gt;
+ *    &lt;batchSize&gt; <i>Batch mode only: the maximum number of mails classified by a single request, default=10</i> &lt;/batchSize&gt;
+ *    &lt;batchDelayInMs&gt; <i>Batch mode only: how long a mail waits for others to be batched with, default=20</i> &lt;/batchDelayInMs&gt;
+ *    &lt;maxTextChars&gt; <i>The maximum number of characters of the text sent to the classification webservice. Longer texts are truncated, which is reported by the textBodyTruncated field of the request. If not specified, unlimited.</i> &lt;/maxTextChars&gt;
+ *    &lt;maxHtmlBytes&gt; <i>The maximum number of decoded bytes read from the html body before converting it to text. If not specified, unlimited.</i> &lt;/maxHtmlBytes&gt;
+ *    &lt;cacheMaxEntries&gt; <i>If specified, classification guesses are cached by content and recipient, keeping at most this number of entries. Can not be combined with cacheMaxBytes.</i> &lt;/cacheMaxEntries&gt;
+ *    &lt;cacheMaxBytes&gt; <i>If specified, classification guesses are cached by content and recipient, keeping at most this estimated number of bytes. Can not be combined with cacheMaxEntries.</i> &lt;/cacheMaxBytes&gt;
+ *    &lt;cacheTtlInMs&gt; <i>How long a cached classification guess is kept, default=3600000</i> &lt;/cacheTtlInMs&gt;
+ *    &lt;circuitBreakerEnabled&gt; <i>If true, classification is skipped without calling the webservice while it fails or is too slow, default=false</i> &lt;/circuitBreakerEnabled&gt;
+ *    &lt;circuitBreakerWindowSize&gt; <i>Circuit breaker only: the number of calls whose outcome is used to compute the failure and slow call rates, default=100</i> &lt;/circuitBreakerWindowSize&gt;
+ *    &lt;circuitBreakerMinimumCalls&gt; <i>Circuit breaker only: the number of calls to record before computing the rates, default=20</i> &lt;/circuitBreakerMinimumCalls&gt;
+ *    &lt;circuitBreakerFailureRateThreshold&gt; <i>Circuit breaker only: the percentage of failed calls opening the breaker, default=50</i> &lt;/circuitBreakerFailureRateThreshold&gt;
+ *    &lt;circuitBreakerSlowCallRateThreshold&gt; <i>Circuit breaker only: the percentage of slow calls opening the breaker, default=100</i> &lt;/circuitBreakerSlowCallRateThreshold&gt;
+ *    &lt;circuitBreakerSlowCallDurationMs&gt; <i>Circuit breaker only: calls lasting longer are slow, default=5000</i> &lt;/circuitBreakerSlowCallDurationMs&gt;
+ *    &lt;circuitBreakerOpenDurationMs&gt; <i>Circuit breaker only: how long the breaker stays open before probing the webservice again, default=30000</i> &lt;/circuitBreakerOpenDurationMs&gt;
+ *    &lt;circuitBreakerHalfOpenProbes&gt; <i>Circuit breaker only: the number of probe calls deciding whether the breaker closes again, default=5</i> &lt;/circuitBreakerHalfOpenProbes&gt;
+ *    &lt;requestCompression&gt; <i>If specified, gzip or deflate, request bodies whose estimated size is above requestCompressionThresholdInBytes are compressed with this algorithm. Compressed responses are always accepted.</i> &lt;/requestCompression&gt;
+ *    &lt;requestCompressionThresholdInBytes&gt; <i>Request compression only: the estimated size above which request bodies are compressed, default=8192</i> &lt;/requestCompressionThresholdInBytes&gt;
+ *    &lt;wireFormat&gt; <i>The format of classification requests: json, smile or cbor. Responses are read in the format given by their Content-Type. Requests fall back to json when the webservice answers 415 Unsupported Media Type, default=json</i> &lt;/wireFormat&gt;
+ *    &lt;recipientsLocation&gt; <i>Where the recipients to classify are given to the webservice: query adds a recipients query parameter per recipient, body sends {"recipients":[...],"request":{...}} like the entries of batch requests, default=query</i> &lt;/recipientsLocation&gt;
+ *    &lt;recipientsChunkSize&gt; <i>The maximum number of recipients classified by a single request. The recipients of a mail are split into chunks of this size, classified in parallel, default=100</i> &lt;/recipientsChunkSize&gt;
+ *    &lt;recipientsChunkThreadCount&gt; <i>Blocking mode only: the number of threads sending the requests of chunked recipient lists, the blocking client otherwise sending them one after the other on the calling thread, default=4</i> &lt;/recipientsChunkThreadCount&gt;
+ *    &lt;localRecipientsOnly&gt; <i>If true, only the recipients delivered by this server are classified, and mails without any are not sent to the webservice, default=false</i> &lt;/localRecipientsOnly&gt;
+ *    &lt;coalesceRequests&gt; <i>If true, mails with the same content and recipients classified at the same time share a single call to the webservice, default=false</i> &lt;/coalesceRequests&gt;
+ *    &lt;localDomainsCacheTtlInMs&gt; <i>Local recipients only: how long whether a domain is local is remembered, default=60000</i> &lt;/localDomainsCacheTtlInMs&gt;
+ *    &lt;localModelFile&gt; <i>If specified, the path of a naive Bayes model file, see NaiveBayesModel, used to guess mailboxes in process, without calling the webservice</i> &lt;/localModelFile&gt;
+ *    &lt;localClassifierMode&gt; <i>Local model only: fallback uses the local model when the webservice fails, times out or is skipped by the circuit breaker, primary always uses it instead of the webservice, default=fallback</i> &lt;/localClassifierMode&gt;
+ *    &lt;htmlToText&gt; <i>How html bodies are converted to text: jsoup builds a DOM of the whole body, streaming strips the tags in a single pass and stops once maxTextChars is exceeded, default=jsoup</i> &lt;/htmlToText&gt;
+ *    &lt;uuidStrategy&gt; <i>How the messageId of classification requests is generated: secureRandom, threadLocalRandom, timeOrdered or deterministic. Deterministic ones derive from the Message-ID and the name of the mail, so that retries of a mail are idempotent, default=secureRandom</i> &lt;/uuidStrategy&gt;
+ *    &lt;deferredJournalDirectory&gt; <i>If specified, mails are not classified while processed: their classification request is appended to a journal in this directory, and mails continue without waiting. Background workers drain the journal and give the guesses to the deferredGuessesHandler. The journal survives restarts. Failed classifications are retried from a separate journal, in its retries subdirectory.</i> &lt;/deferredJournalDirectory&gt;
+ *    &lt;deferredJournalSegmentBytes&gt; <i>Deferred mode only: the size of the memory-mapped files of the journal, bounding the size of a classification request, default=67108864</i> &lt;/deferredJournalSegmentBytes&gt;
+ *    &lt;deferredWorkerCount&gt; <i>Deferred mode only: the number of concurrent classifications, default=4</i> &lt;/deferredWorkerCount&gt;
+ *    &lt;deferredBatchSize&gt; <i>Deferred mode only: the number of journaled requests drained at once, default=16</i> &lt;/deferredBatchSize&gt;
+ *    &lt;deferredMaxRetries&gt; <i>Deferred mode only: how many times a failed classification is retried before being dropped, 0 dropping it at the first failure, default=5</i> &lt;/deferredMaxRetries&gt;
+ *    &lt;deferredRetryDelayInMs&gt; <i>Deferred mode only: the delay before the first retry, doubled after each failure, default=1000</i> &lt;/deferredRetryDelayInMs&gt;
+ *    &lt;deferredGuessesHandler&gt; <i>Deferred mode only: the class name of the DeferredGuessesHandler applying the guesses, default=com.linagora.james.mailets.LoggingDeferredGuessesHandler</i> &lt;/deferredGuessesHandler&gt;
  *    &lt;timeoutInMs&gt; <i>The timeout in milliseconds the code will wait for answer of the prediction API. If not specified, infinite.</i> &lt;/timeoutInMs&gt;
  * &lt;/mailet&gt;
  * </code>
  * </pre>
+ *
+ * The latency of each classification stage, the number of successful, failed, timed out and skipped
+ * classifications, and the depth and lag of the deferred classification journal, are exposed through JMX under com.linagora.james.mailets:type=GuessClassificationMailet,name=&lt;mailet name&gt;
  * 
  * Sample Configuration:
  * 
@@ -99,16 +176,105 @@ public class GuessClassificationMailet extends GenericMailet {
     static final String HEADER_NAME = "headerName";
     static final String TIMEOUT_IN_MS = "timeoutInMs";
     static final String THREAD_COUNT = "threadCount";
+    static final String BATCH_SERVICE_URL = "batchServiceUrl";
+    static final String BATCH_SIZE = "batchSize";
+    static final int BATCH_SIZE_DEFAULT_VALUE = 10;
+    static final String BATCH_DELAY_IN_MS = "batchDelayInMs";
+    static final int BATCH_DELAY_IN_MS_DEFAULT_VALUE = 20;
+    static final String MAX_IN_FLIGHT_REQUESTS = "maxInFlightRequests";
+    static final int MAX_IN_FLIGHT_REQUESTS_DEFAULT_VALUE = 100;
+    static final String MAX_CONNECTIONS = "maxConnections";
+    static final String MAX_PER_ROUTE = "maxPerRoute";
+    static final String KEEP_ALIVE_MS = "keepAliveMs";
+    static final String IDLE_EVICT_MS = "idleEvictMs";
+    static final String CONNECTION_REQUEST_TIMEOUT_MS = "connectionRequestTimeoutMs";
+    static final String VALIDATE_AFTER_INACTIVITY_MS = "validateAfterInactivityMs";
+    static final String MAX_TEXT_CHARS = "maxTextChars";
+    static final String MAX_HTML_BYTES = "maxHtmlBytes";
+    static final String CACHE_MAX_ENTRIES = "cacheMaxEntries";
+    static final String CACHE_MAX_BYTES = "cacheMaxBytes";
+    static final String CACHE_TTL_IN_MS = "cacheTtlInMs";
+    static final int CACHE_TTL_IN_MS_DEFAULT_VALUE = Ints.checkedCast(TimeUnit.HOURS.toMillis(1));
+    static final String CIRCUIT_BREAKER_ENABLED = "circuitBreakerEnabled";
+    static final String CIRCUIT_BREAKER_WINDOW_SIZE = "circuitBreakerWindowSize";
+    static final String CIRCUIT_BREAKER_MINIMUM_CALLS = "circuitBreakerMinimumCalls";
+    static final String CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD = "circuitBreakerFailureRateThreshold";
+    static final String CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD = "circuitBreakerSlowCallRateThreshold";
+    static final String CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS = "circuitBreakerSlowCallDurationMs";
+    static final String CIRCUIT_BREAKER_OPEN_DURATION_MS = "circuitBreakerOpenDurationMs";
+    static final String CIRCUIT_BREAKER_HALF_OPEN_PROBES = "circuitBreakerHalfOpenProbes";
+    static final String LOAD_BALANCING_STRATEGY = "loadBalancingStrategy";
+    static final String HEALTH_CHECK_INTERVAL_MS = "healthCheckIntervalMs";
+    static final String HEALTH_CHECK_TIMEOUT_MS = "healthCheckTimeoutMs";
+    static final String EJECT_AFTER_FAILURES = "ejectAfterFailures";
+    static final String EJECTION_DURATION_MS = "ejectionDurationMs";
+    static final String REQUEST_COMPRESSION = "requestCompression";
+    static final String REQUEST_COMPRESSION_THRESHOLD_IN_BYTES = "requestCompressionThresholdInBytes";
+    static final String WIRE_FORMAT = "wireFormat";
+    static final String UUID_STRATEGY = "uuidStrategy";
+    static final String HTML_TO_TEXT = "htmlToText";
+    static final String RECIPIENTS_LOCATION = "recipientsLocation";
+    static final String RECIPIENTS_CHUNK_SIZE = "recipientsChunkSize";
+    static final int RECIPIENTS_CHUNK_SIZE_DEFAULT_VALUE = 100;
+    static final String RECIPIENTS_CHUNK_THREAD_COUNT = "recipientsChunkThreadCount";
+    static final int RECIPIENTS_CHUNK_THREAD_COUNT_DEFAULT_VALUE = 4;
+    static final String LOCAL_RECIPIENTS_ONLY = "localRecipientsOnly";
+    static final String COALESCE_REQUESTS = "coalesceRequests";
+    static final String LOCAL_MODEL_FILE = "localModelFile";
+    static final String LOCAL_CLASSIFIER_MODE = "localClassifierMode";
+    static final String LOCAL_DOMAINS_CACHE_TTL_IN_MS = "localDomainsCacheTtlInMs";
+    static final int LOCAL_DOMAINS_CACHE_TTL_IN_MS_DEFAULT_VALUE = Ints.checkedCast(TimeUnit.MINUTES.toMillis(1));
+    static final String DEFERRED_JOURNAL_DIRECTORY = "deferredJournalDirectory";
+    static final String DEFERRED_JOURNAL_SEGMENT_BYTES = "deferredJournalSegmentBytes";
+    static final int DEFERRED_JOURNAL_SEGMENT_BYTES_DEFAULT_VALUE = 64 * 1024 * 1024;
+    static final String DEFERRED_WORKER_COUNT = "deferredWorkerCount";
+    static final int DEFERRED_WORKER_COUNT_DEFAULT_VALUE = 4;
+    static final String DEFERRED_BATCH_SIZE = "deferredBatchSize";
+    static final int DEFERRED_BATCH_SIZE_DEFAULT_VALUE = 16;
+    static final String DEFERRED_MAX_RETRIES = "deferredMaxRetries";
+    static final int DEFERRED_MAX_RETRIES_DEFAULT_VALUE = 5;
+    static final String DEFERRED_RETRY_DELAY_IN_MS = "deferredRetryDelayInMs";
+    static final int DEFERRED_RETRY_DELAY_IN_MS_DEFAULT_VALUE = 1000;
+    static final String DEFERRED_GUESSES_HANDLER = "deferredGuessesHandler";
+    private static final String DEFERRED_RETRY_JOURNAL_DIRECTORY = "retries";
     static final String HEADER_NAME_DEFAULT_VALUE = "X-Classification-Guess";
+    private static final String RECIPIENTS_QUERY_PARAMETER = "recipients";
 
     @VisibleForTesting String serviceUrl;
+    @VisibleForTesting List<String> serviceUrls;
+    @VisibleForTesting URI serviceUri;
+    private String serviceUriQueryPrefix;
     @VisibleForTesting String serviceUsername;
     @VisibleForTesting String servicePassword;
     @VisibleForTesting String headerName;
     @VisibleForTesting Optional<Integer> timeoutInMs;
-    private final UUIDGenerator uuidGenerator;
-    private final ObjectMapper objectMapper;
-    private Executor executor;
+    @VisibleForTesting Optional<Integer> threadCount;
+    @VisibleForTesting int maxInFlightRequests;
+    @VisibleForTesting ConnectionPoolConfiguration connectionPoolConfiguration;
+    @VisibleForTesting Optional<String> batchServiceUrl;
+    @VisibleForTesting int batchSize;
+    @VisibleForTesting int batchDelayInMs;
+    @VisibleForTesting TextBudget textBudget;
+    @VisibleForTesting HtmlToTextConverter htmlToTextConverter;
+    @VisibleForTesting RecipientsLocation recipientsLocation;
+    @VisibleForTesting int recipientsChunkSize;
+    @VisibleForTesting Optional<ExecutorService> chunkExecutor;
+    @VisibleForTesting Optional<LocalRecipientFilter> localRecipientFilter;
+    @VisibleForTesting Optional<LocalClassifier> localClassifier;
+    @VisibleForTesting LocalClassifier.Mode localClassifierMode;
+    @VisibleForTesting Optional<CircuitBreakerConfiguration> circuitBreakerConfiguration;
+    @VisibleForTesting LoadBalancingConfiguration loadBalancingConfiguration;
+    @VisibleForTesting Optional<RequestCompression> requestCompression;
+    @VisibleForTesting WireFormatNegotiation wireFormatNegotiation;
+    @VisibleForTesting UUIDGenerator uuidGenerator;
+    private final Ticker ticker;
+    private final ClassificationGuessesParser classificationGuessesParser;
+    @VisibleForTesting ClassificationClient classificationClient;
+    @VisibleForTesting Optional<ClassificationBatcher> classificationBatcher;
+    @VisibleForTesting Optional<ClassificationCache> classificationCache;
+    @VisibleForTesting Optional<ClassificationCoalescer> classificationCoalescer;
+    @VisibleForTesting Optional<DeferredClassifier> deferredClassifier;
+    @VisibleForTesting ClassificationMetrics metrics;
 
     public GuessClassificationMailet() {
         this(new UUIDGenerator());
@@ -116,22 +282,60 @@ public class GuessClassificationMailet extends GenericMailet {
 
     @VisibleForTesting
     GuessClassificationMailet(UUIDGenerator uuidGenerator) {
+        this(uuidGenerator, Ticker.systemTicker());
+    }
+
+    @VisibleForTesting
+    GuessClassificationMailet(UUIDGenerator uuidGenerator, Ticker ticker) {
         this.uuidGenerator = uuidGenerator;
-        this.objectMapper = new ObjectMapper();
+        this.ticker = ticker;
+        this.classificationGuessesParser = new ClassificationGuessesParser();
     }
 
     @Override
     public void init() throws MessagingException {
         LOGGER.debug("init GuessClassificationMailet");
-        timeoutInMs = parseTimeout();
+        timeoutInMs = parseStrictlyPositiveInteger(TIMEOUT_IN_MS);
+        threadCount = parseStrictlyPositiveInteger(THREAD_COUNT);
+        maxInFlightRequests = parseStrictlyPositiveInteger(MAX_IN_FLIGHT_REQUESTS).orElse(MAX_IN_FLIGHT_REQUESTS_DEFAULT_VALUE);
+        connectionPoolConfiguration = parseConnectionPoolConfiguration();
+        circuitBreakerConfiguration = parseCircuitBreakerConfiguration();
+        loadBalancingConfiguration = parseLoadBalancingConfiguration();
+        requestCompression = parseRequestCompression();
+        wireFormatNegotiation = new WireFormatNegotiation(parseWireFormat());
+        uuidGenerator = parseUUIDStrategy()
+            .map(UUIDGenerator::of)
+            .orElse(uuidGenerator);
+        batchSize = parseStrictlyPositiveInteger(BATCH_SIZE).orElse(BATCH_SIZE_DEFAULT_VALUE);
+        batchDelayInMs = parseStrictlyPositiveInteger(BATCH_DELAY_IN_MS).orElse(BATCH_DELAY_IN_MS_DEFAULT_VALUE);
+        textBudget = TextBudget.builder()
+            .maxTextChars(parseStrictlyPositiveInteger(MAX_TEXT_CHARS))
+            .maxHtmlBytes(parseStrictlyPositiveInteger(MAX_HTML_BYTES))
+            .build();
+        htmlToTextConverter = HtmlToTextConverter.of(parseHtmlToTextStrategy());
+        recipientsLocation = parseRecipientsLocation();
+        recipientsChunkSize = parseStrictlyPositiveInteger(RECIPIENTS_CHUNK_SIZE).orElse(RECIPIENTS_CHUNK_SIZE_DEFAULT_VALUE);
+        localRecipientFilter = createLocalRecipientFilter();
+        localClassifierMode = parseLocalClassifierMode();
+        localClassifier = createLocalClassifier();
 
-        serviceUrl = getInitParameter(SERVICE_URL);
+        serviceUrls = Splitter.on(',')
+            .trimResults()
+            .omitEmptyStrings()
+            .splitToList(Strings.nullToEmpty(getInitParameter(SERVICE_URL)));
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("serviceUrl value: " + serviceUrl);
+            LOGGER.debug("serviceUrl value: " + serviceUrls);
         }
-        if (Strings.isNullOrEmpty(serviceUrl)) {
+        if (serviceUrls.isEmpty()) {
             throw new MailetException("'serviceUrl' is mandatory");
         }
+        serviceUrl = serviceUrls.get(0);
+        try {
+            serviceUri = new URI(serviceUrl);
+            serviceUriQueryPrefix = queryPrefix(serviceUri);
+        } catch (URISyntaxException e) {
+            throw new MailetException("invalid 'serviceUrl'", e);
+        }
 
         serviceUsername = getInitParameter(SERVICE_USERNAME);
         if (LOGGER.isDebugEnabled()) {
@@ -154,32 +358,352 @@ public class GuessClassificationMailet extends GenericMailet {
             throw new MailetException("'headerName' is mandatory");
         }
 
-        executor = createHttpExecutor();
+        batchServiceUrl = Optional.ofNullable(getInitParameter(BATCH_SERVICE_URL))
+            .filter(value -> !Strings.isNullOrEmpty(value));
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("batchServiceUrl value: " + batchServiceUrl);
+        }
+
+        metrics = new ClassificationMetrics(ticker);
+        classificationClient = createClassificationClient();
+        classificationBatcher = createClassificationBatcher();
+        chunkExecutor = createChunkExecutor();
+        classificationCache = createClassificationCache();
+        classificationCache.ifPresent(metrics::monitorClassificationCache);
+        classificationCoalescer = createClassificationCoalescer();
+        classificationCoalescer.ifPresent(metrics::monitorClassificationCoalescer);
+        deferredClassifier = createDeferredClassifier();
+        deferredClassifier.ifPresent(metrics::monitorDeferredClassifier);
+        metrics.register(getMailetName());
+    }
+
+    /**
+     * The service URL followed by the separator of the recipients query parameters, so that appending them to each
+     * request does not need to parse the service URL again.
+     */
+    private String queryPrefix(URI uri) throws URISyntaxException {
+        URI uriWithoutFragment = new URIBuilder(uri).setFragment(null).build();
+        if (Strings.isNullOrEmpty(uriWithoutFragment.getRawQuery())) {
+            return uriWithoutFragment.toString().replaceFirst("\\?$", "") + "?";
+        }
+        return uriWithoutFragment.toString() + "&";
+    }
+
+    private Optional<LocalRecipientFilter> createLocalRecipientFilter() throws MessagingException {
+        int localDomainsCacheTtlInMs = parseStrictlyPositiveInteger(LOCAL_DOMAINS_CACHE_TTL_IN_MS).orElse(LOCAL_DOMAINS_CACHE_TTL_IN_MS_DEFAULT_VALUE);
+        if (!getInitParameter(LOCAL_RECIPIENTS_ONLY, false)) {
+            return Optional.empty();
+        }
+        return Optional.of(new LocalRecipientFilter(getMailetContext(), localDomainsCacheTtlInMs, ticker));
     }
 
-    private Executor createHttpExecutor() throws MailetException {
+    private Optional<LocalClassifier> createLocalClassifier() throws MessagingException {
+        Optional<String> modelFile = Optional.ofNullable(getInitParameter(LOCAL_MODEL_FILE))
+            .filter(value -> !Strings.isNullOrEmpty(value));
+        if (!modelFile.isPresent()) {
+            return Optional.empty();
+        }
         try {
-            URIBuilder uriBuilder = new URIBuilder(serviceUrl);
-            HttpHost host = new HttpHost(uriBuilder.getHost(), uriBuilder.getPort(), uriBuilder.getScheme());
+            return Optional.of(LocalClassifier.load(Paths.get(modelFile.get())));
+        } catch (IOException e) {
+            throw new MailetException("Can not load the local classification model " + modelFile.get(), e);
+        }
+    }
 
-            return Executor.newInstance()
-                .authPreemptive(host)
-                .auth(host, new UsernamePasswordCredentials(serviceUsername, servicePassword));
+    private Optional<ClassificationCache> createClassificationCache() throws MessagingException {
+        Optional<Integer> cacheMaxEntries = parseStrictlyPositiveInteger(CACHE_MAX_ENTRIES);
+        Optional<Integer> cacheMaxBytes = parseStrictlyPositiveInteger(CACHE_MAX_BYTES);
+        int cacheTtlInMs = parseStrictlyPositiveInteger(CACHE_TTL_IN_MS).orElse(CACHE_TTL_IN_MS_DEFAULT_VALUE);
+        if (cacheMaxEntries.isPresent() && cacheMaxBytes.isPresent()) {
+            throw new MailetException("'cacheMaxEntries' and 'cacheMaxBytes' can not be both specified");
+        }
+        if (cacheMaxEntries.isPresent()) {
+            return Optional.of(ClassificationCache.sizedByEntries(cacheMaxEntries.get(), cacheTtlInMs, ticker));
+        }
+        if (cacheMaxBytes.isPresent()) {
+            return Optional.of(ClassificationCache.sizedByBytes(cacheMaxBytes.get(), cacheTtlInMs, ticker));
+        }
+        return Optional.empty();
+    }
+
+    /**
+     * The blocking client sends a request on the calling thread and returns a completed future, so chunks would
+     * otherwise be classified one after the other. The asynchronous client and the batcher do not need it.
+     */
+    private Optional<ExecutorService> createChunkExecutor() throws MessagingException {
+        int chunkThreadCount = parseStrictlyPositiveInteger(RECIPIENTS_CHUNK_THREAD_COUNT).orElse(RECIPIENTS_CHUNK_THREAD_COUNT_DEFAULT_VALUE);
+        if (threadCount.isPresent() || classificationBatcher.isPresent()) {
+            return Optional.empty();
+        }
+        return Optional.of(Executors.newFixedThreadPool(chunkThreadCount, new ThreadFactoryBuilder()
+            .setNameFormat("classification-chunk-%d")
+            .setDaemon(true)
+            .build()));
+    }
+
+    private Optional<ClassificationCoalescer> createClassificationCoalescer() {
+        if (!getInitParameter(COALESCE_REQUESTS, false)) {
+            return Optional.empty();
+        }
+        return Optional.of(new ClassificationCoalescer());
+    }
+
+    private Optional<DeferredClassifier> createDeferredClassifier() throws MessagingException {
+        Optional<String> journalDirectory = Optional.ofNullable(getInitParameter(DEFERRED_JOURNAL_DIRECTORY))
+            .filter(value -> !Strings.isNullOrEmpty(value));
+        if (!journalDirectory.isPresent()) {
+            return Optional.empty();
+        }
+        int segmentSizeInBytes = parseStrictlyPositiveInteger(DEFERRED_JOURNAL_SEGMENT_BYTES).orElse(DEFERRED_JOURNAL_SEGMENT_BYTES_DEFAULT_VALUE);
+        int workerCount = parseStrictlyPositiveInteger(DEFERRED_WORKER_COUNT).orElse(DEFERRED_WORKER_COUNT_DEFAULT_VALUE);
+        int deferredBatchSize = parseStrictlyPositiveInteger(DEFERRED_BATCH_SIZE).orElse(DEFERRED_BATCH_SIZE_DEFAULT_VALUE);
+        int maxRetries = parsePositiveInteger(DEFERRED_MAX_RETRIES).orElse(DEFERRED_MAX_RETRIES_DEFAULT_VALUE);
+        int retryDelayInMs = parseStrictlyPositiveInteger(DEFERRED_RETRY_DELAY_IN_MS).orElse(DEFERRED_RETRY_DELAY_IN_MS_DEFAULT_VALUE);
+        DeferredGuessesHandler guessesHandler = createDeferredGuessesHandler();
+        try {
+            Path journalPath = Paths.get(journalDirectory.get());
+            ClassificationJournal journal = ClassificationJournal.open(journalPath, segmentSizeInBytes, Clock.systemUTC());
+            ClassificationJournal retryJournal = ClassificationJournal.open(journalPath.resolve(DEFERRED_RETRY_JOURNAL_DIRECTORY), segmentSizeInBytes, Clock.systemUTC());
+            return Optional.of(new DeferredClassifier(journal, retryJournal, this::classifyDeferred, guessesHandler, workerCount, deferredBatchSize,
+                maxRetries, retryDelayInMs, Clock.systemUTC()));
+        } catch (IOException e) {
+            throw new MailetException("Can not open the deferred classification journal in " + journalDirectory.get(), e);
+        }
+    }
+
+    private DeferredGuessesHandler createDeferredGuessesHandler() throws MailetException {
+        String className = getInitParameter(DEFERRED_GUESSES_HANDLER, LoggingDeferredGuessesHandler.class.getName());
+        try {
+            return Class.forName(className, true, getClass().getClassLoader())
+                .asSubclass(DeferredGuessesHandler.class)
+                .newInstance();
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new MailetException("Invalid " + DEFERRED_GUESSES_HANDLER + ". Got " + className, e);
+        }
+    }
+
+    private Optional<ClassificationBatcher> createClassificationBatcher() throws MailetException {
+        if (!batchServiceUrl.isPresent()) {
+            return Optional.empty();
+        }
+        try {
+            URI batchServiceUri = new URI(batchServiceUrl.get());
+            if (!Objects.equals(batchServiceUri.getHost(), serviceUri.getHost())
+                    || batchServiceUri.getPort() != serviceUri.getPort()
+                    || !Objects.equals(batchServiceUri.getScheme(), serviceUri.getScheme())) {
+                throw new MailetException("'batchServiceUrl' should be on the same host than 'serviceUrl'");
+            }
+            int senderCount = threadCount.orElse(connectionPoolConfiguration.getMaxConnections());
+            return Optional.of(new ClassificationBatcher(classificationClient, batchServiceUri, batchSize, batchDelayInMs, senderCount,
+                requestCompression, wireFormatNegotiation));
+        } catch (URISyntaxException e) {
+            throw new MailetException("invalid 'batchServiceUrl'", e);
+        }
+    }
+
+    private ClassificationClient createClassificationClient() throws MailetException {
+        try {
+            UsernamePasswordCredentials credentials = new UsernamePasswordCredentials(serviceUsername, servicePassword);
+            ClassificationClient classificationClient = createLoadBalancedClassificationClient(credentials);
+            if (circuitBreakerConfiguration.isPresent()) {
+                CircuitBreaker circuitBreaker = new CircuitBreaker(circuitBreakerConfiguration.get(), ticker);
+                metrics.monitorCircuitBreaker(circuitBreaker);
+                return new CircuitBreakingClassificationClient(classificationClient, circuitBreaker);
+            }
+            return classificationClient;
         } catch (URISyntaxException e) {
             throw new MailetException("invalid 'serviceUrl'", e);
         }
     }
 
-    private Optional<Integer> parseTimeout() throws MessagingException {
+    private ClassificationClient createLoadBalancedClassificationClient(UsernamePasswordCredentials credentials) throws URISyntaxException, MailetException {
+        if (serviceUrls.size() == 1) {
+            return createHttpClassificationClient(host(serviceUri), credentials);
+        }
+        String path = serviceUri.getPath();
+        ImmutableList.Builder<LoadBalancedClassificationClient.Replica> replicas = ImmutableList.builder();
+        for (String replicaUrl : serviceUrls) {
+            URI replicaUri = new URI(replicaUrl);
+            if (!Objects.equals(path, replicaUri.getPath())) {
+                throw new MailetException("All 'serviceUrl' should share the same path");
+            }
+            replicas.add(new LoadBalancedClassificationClient.Replica(replicaUri, createHttpClassificationClient(host(replicaUri), credentials)));
+        }
+        return new LoadBalancedClassificationClient(replicas.build(), loadBalancingConfiguration, ticker);
+    }
+
+    private HttpHost host(URI uri) {
+        return new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+    }
+
+    private ClassificationClient createHttpClassificationClient(HttpHost host, UsernamePasswordCredentials credentials) {
+        if (threadCount.isPresent()) {
+            return new AsyncClassificationClient(host, credentials, threadCount.get(), maxInFlightRequests, timeoutInMs.orElse(DEFAULT_TIME));
+        }
+        return new BlockingClassificationClient(host, credentials, connectionPoolConfiguration, timeoutInMs.orElse(DEFAULT_TIME), metrics);
+    }
+
+    private ConnectionPoolConfiguration parseConnectionPoolConfiguration() throws MessagingException {
+        try {
+            return ConnectionPoolConfiguration.builder()
+                .maxConnections(parseStrictlyPositiveInteger(MAX_CONNECTIONS))
+                .maxPerRoute(parseStrictlyPositiveInteger(MAX_PER_ROUTE))
+                .keepAliveMs(parseStrictlyPositiveInteger(KEEP_ALIVE_MS))
+                .idleEvictMs(parseStrictlyPositiveInteger(IDLE_EVICT_MS))
+                .connectionRequestTimeoutMs(parseStrictlyPositiveInteger(CONNECTION_REQUEST_TIMEOUT_MS))
+                .validateAfterInactivityMs(parseStrictlyPositiveInteger(VALIDATE_AFTER_INACTIVITY_MS))
+                .build();
+        } catch (IllegalStateException e) {
+            throw new MessagingException("Invalid connection pool configuration: " + e.getMessage());
+        }
+    }
+
+    private Optional<CircuitBreakerConfiguration> parseCircuitBreakerConfiguration() throws MessagingException {
+        if (!getInitParameter(CIRCUIT_BREAKER_ENABLED, false)) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(CircuitBreakerConfiguration.builder()
+                .windowSize(parseStrictlyPositiveInteger(CIRCUIT_BREAKER_WINDOW_SIZE))
+                .minimumCalls(parseStrictlyPositiveInteger(CIRCUIT_BREAKER_MINIMUM_CALLS))
+                .failureRateThreshold(parseStrictlyPositiveInteger(CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD))
+                .slowCallRateThreshold(parseStrictlyPositiveInteger(CIRCUIT_BREAKER_SLOW_CALL_RATE_THRESHOLD))
+                .slowCallDurationMs(parseStrictlyPositiveInteger(CIRCUIT_BREAKER_SLOW_CALL_DURATION_MS))
+                .openDurationMs(parseStrictlyPositiveInteger(CIRCUIT_BREAKER_OPEN_DURATION_MS))
+                .halfOpenProbes(parseStrictlyPositiveInteger(CIRCUIT_BREAKER_HALF_OPEN_PROBES))
+                .build());
+        } catch (IllegalStateException e) {
+            throw new MessagingException("Invalid circuit breaker configuration: " + e.getMessage());
+        }
+    }
+
+    private LoadBalancingConfiguration parseLoadBalancingConfiguration() throws MessagingException {
+        Optional<String> strategy = Optional.ofNullable(getInitParameter(LOAD_BALANCING_STRATEGY));
+        Optional<LoadBalancingConfiguration.Strategy> parsedStrategy = strategy.flatMap(LoadBalancingConfiguration.Strategy::parse);
+        if (strategy.isPresent() && !parsedStrategy.isPresent()) {
+            throw new MailetException("Unknown " + LOAD_BALANCING_STRATEGY + ". Got " + strategy.get());
+        }
+        return LoadBalancingConfiguration.builder()
+            .strategy(parsedStrategy)
+            .healthCheckIntervalMs(parseStrictlyPositiveInteger(HEALTH_CHECK_INTERVAL_MS))
+            .healthCheckTimeoutMs(parseStrictlyPositiveInteger(HEALTH_CHECK_TIMEOUT_MS))
+            .ejectAfterFailures(parseStrictlyPositiveInteger(EJECT_AFTER_FAILURES))
+            .ejectionDurationMs(parseStrictlyPositiveInteger(EJECTION_DURATION_MS))
+            .build();
+    }
+
+    private WireFormat parseWireFormat() throws MessagingException {
+        Optional<String> wireFormat = Optional.ofNullable(getInitParameter(WIRE_FORMAT))
+            .filter(value -> !Strings.isNullOrEmpty(value));
+        Optional<WireFormat> parsedWireFormat = wireFormat.flatMap(WireFormat::parse);
+        if (wireFormat.isPresent() && !parsedWireFormat.isPresent()) {
+            throw new MailetException("Unknown " + WIRE_FORMAT + ". Got " + wireFormat.get());
+        }
+        return parsedWireFormat.orElse(WireFormat.JSON);
+    }
+
+    private Optional<UUIDGenerator.Strategy> parseUUIDStrategy() throws MessagingException {
+        Optional<String> strategy = Optional.ofNullable(getInitParameter(UUID_STRATEGY))
+            .filter(value -> !Strings.isNullOrEmpty(value));
+        Optional<UUIDGenerator.Strategy> parsedStrategy = strategy.flatMap(UUIDGenerator.Strategy::parse);
+        if (strategy.isPresent() && !parsedStrategy.isPresent()) {
+            throw new MailetException("Unknown " + UUID_STRATEGY + ". Got " + strategy.get());
+        }
+        return parsedStrategy;
+    }
+
+    private HtmlToTextConverter.Strategy parseHtmlToTextStrategy() throws MessagingException {
+        Optional<String> strategy = Optional.ofNullable(getInitParameter(HTML_TO_TEXT))
+            .filter(value -> !Strings.isNullOrEmpty(value));
+        Optional<HtmlToTextConverter.Strategy> parsedStrategy = strategy.flatMap(HtmlToTextConverter.Strategy::parse);
+        if (strategy.isPresent() && !parsedStrategy.isPresent()) {
+            throw new MailetException("Unknown " + HTML_TO_TEXT + ". Got " + strategy.get());
+        }
+        return parsedStrategy.orElse(HtmlToTextConverter.Strategy.JSOUP);
+    }
+
+    private RecipientsLocation parseRecipientsLocation() throws MessagingException {
+        Optional<String> location = Optional.ofNullable(getInitParameter(RECIPIENTS_LOCATION))
+            .filter(value -> !Strings.isNullOrEmpty(value));
+        Optional<RecipientsLocation> parsedLocation = location.flatMap(RecipientsLocation::parse);
+        if (location.isPresent() && !parsedLocation.isPresent()) {
+            throw new MailetException("Unknown " + RECIPIENTS_LOCATION + ". Got " + location.get());
+        }
+        return parsedLocation.orElse(RecipientsLocation.QUERY);
+    }
+
+    private LocalClassifier.Mode parseLocalClassifierMode() throws MessagingException {
+        Optional<String> mode = Optional.ofNullable(getInitParameter(LOCAL_CLASSIFIER_MODE))
+            .filter(value -> !Strings.isNullOrEmpty(value));
+        Optional<LocalClassifier.Mode> parsedMode = mode.flatMap(LocalClassifier.Mode::parse);
+        if (mode.isPresent() && !parsedMode.isPresent()) {
+            throw new MailetException("Unknown " + LOCAL_CLASSIFIER_MODE + ". Got " + mode.get());
+        }
+        return parsedMode.orElse(LocalClassifier.Mode.FALLBACK);
+    }
+
+    private Optional<RequestCompression> parseRequestCompression() throws MessagingException {
+        Optional<String> algorithm = Optional.ofNullable(getInitParameter(REQUEST_COMPRESSION))
+            .filter(value -> !Strings.isNullOrEmpty(value));
+        if (!algorithm.isPresent()) {
+            return Optional.empty();
+        }
+        Optional<RequestCompression.Algorithm> parsedAlgorithm = RequestCompression.Algorithm.parse(algorithm.get());
+        if (!parsedAlgorithm.isPresent()) {
+            throw new MailetException("Unknown " + REQUEST_COMPRESSION + ". Got " + algorithm.get());
+        }
+        return Optional.of(RequestCompression.builder()
+            .algorithm(parsedAlgorithm)
+            .thresholdInBytes(parseStrictlyPositiveInteger(REQUEST_COMPRESSION_THRESHOLD_IN_BYTES))
+            .build());
+    }
+
+    private Optional<Integer> parsePositiveInteger(String parameterName) throws MessagingException {
         try {
-            Optional<Integer> result = Optional.ofNullable(getInitParameter(TIMEOUT_IN_MS))
+            Optional<Integer> result = Optional.ofNullable(getInitParameter(parameterName))
+                .map(Integer::valueOf);
+            if (result.filter(value -> value < 0).isPresent()) {
+                throw new MessagingException("Negative value for " + parameterName + ". Got " + getInitParameter(parameterName));
+            }
+            return result;
+        } catch (NumberFormatException e) {
+            throw new MessagingException("Expecting " + parameterName + " to be a positive integer. Got " + getInitParameter(parameterName));
+        }
+    }
+
+    private Optional<Integer> parseStrictlyPositiveInteger(String parameterName) throws MessagingException {
+        try {
+            Optional<Integer> result = Optional.ofNullable(getInitParameter(parameterName))
                 .map(Integer::valueOf);
             if (result.filter(value -> value < 1).isPresent()) {
-                throw new MessagingException("Non strictly positive timeout for " + TIMEOUT_IN_MS + ". Got " + getInitParameter(TIMEOUT_IN_MS));
+                throw new MessagingException("Non strictly positive value for " + parameterName + ". Got " + getInitParameter(parameterName));
             }
             return result;
         } catch (NumberFormatException e) {
-            throw new MessagingException("Expecting " + TIMEOUT_IN_MS + " to be a strictly positive integer. Got " + getInitParameter(TIMEOUT_IN_MS));
+            throw new MessagingException("Expecting " + parameterName + " to be a strictly positive integer. Got " + getInitParameter(parameterName));
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if (metrics != null) {
+            metrics.unregister();
+        }
+        if (deferredClassifier != null) {
+            deferredClassifier.ifPresent(DeferredClassifier::close);
+        }
+        if (chunkExecutor != null) {
+            chunkExecutor.ifPresent(ExecutorService::shutdownNow);
+        }
+        try {
+            if (classificationBatcher != null) {
+                classificationBatcher.ifPresent(ClassificationBatcher::close);
+            }
+            if (classificationClient != null) {
+                classificationClient.close();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error while closing the classification client", e);
         }
     }
 
@@ -190,59 +714,333 @@ public class GuessClassificationMailet extends GenericMailet {
 
     @Override
     public void service(Mail mail) throws MessagingException {
+        Collection<MailAddress> recipients = recipientsToClassify(mail);
+        if (recipients.isEmpty()) {
+            metrics.recordSkipped();
+            LOGGER.debug("Classification skipped for {}: no recipient to classify", mail.getName());
+            return;
+        }
+        if (localClassifier.isPresent() && localClassifierMode == LocalClassifier.Mode.PRIMARY) {
+            classifyLocally(mail, recipients, localClassifier.get());
+            return;
+        }
+        if (deferredClassifier.isPresent()) {
+            deferClassification(mail, recipients, deferredClassifier.get());
+            return;
+        }
+        ClassificationRequestBody requestBody = null;
+        CompletableFuture<Map<String, String>> classificationGuesses = null;
         try {
-            String classificationGuess = executor.execute(
-                    Request.Post(serviceUrlWithQueryParameters(mail.getRecipients()))
-                            .socketTimeout(timeoutInMs.orElse(DEFAULT_TIME))
-                            .bodyString(asJson(mail), ContentType.APPLICATION_JSON))
-                    .returnContent().asString(StandardCharsets.UTF_8);
-            addHeaders(mail, classificationGuess);
+            requestBody = requestBody(mail);
+            classificationGuesses = classify(requestBody, recipients);
+            Map<String, String> guesses = classificationGuesses.get(timeoutInMs.orElse(DEFAULT_TIME), TimeUnit.MILLISECONDS);
+            long headerAttachmentStart = metrics.start();
+            addHeaders(mail, guesses);
+            metrics.record(ClassificationMetrics.Stage.HEADER_ATTACHMENT, headerAttachmentStart);
+            metrics.recordSuccess();
+        } catch (ExecutionException e) {
+            wireFormatNegotiation.onFailure(e.getCause());
+            metrics.recordFailure(e.getCause());
+            if (e.getCause() instanceof CircuitBreakerOpenException) {
+                LOGGER.debug("Classification skipped for {}: {}", mail.getName(), e.getCause().getMessage());
+            } else {
+                LOGGER.error("Exception while calling Classification API", e);
+            }
+            fallBackToLocalClassifier(mail, requestBody, recipients);
         } catch (Exception e) {
+            Optional.ofNullable(classificationGuesses).ifPresent(future -> future.cancel(true));
+            metrics.recordFailure(e);
             LOGGER.error("Exception while calling Classification API", e);
+            fallBackToLocalClassifier(mail, requestBody, recipients);
+        }
+    }
+
+    private void fallBackToLocalClassifier(Mail mail, ClassificationRequestBody requestBody, Collection<MailAddress> recipients) {
+        if (localClassifier.isPresent() && requestBody != null) {
+            try {
+                addLocalGuesses(mail, requestBody, recipients, localClassifier.get());
+            } catch (IOException e) {
+                LOGGER.error("Exception while classifying {} locally", mail.getName(), e);
+            }
+        }
+    }
+
+    private void classifyLocally(Mail mail, Collection<MailAddress> recipients, LocalClassifier localClassifier) {
+        try {
+            addLocalGuesses(mail, requestBody(mail), recipients, localClassifier);
+            metrics.recordSuccess();
+        } catch (MessagingException | IOException e) {
+            metrics.recordFailure(e);
+            LOGGER.error("Exception while classifying {} locally", mail.getName(), e);
+        }
+    }
+
+    private void addLocalGuesses(Mail mail, ClassificationRequestBody requestBody, Collection<MailAddress> recipients,
+                                 LocalClassifier localClassifier) throws IOException {
+        long localClassificationStart = metrics.start();
+        localClassifier.classify(requestBody, recipients, (recipient, guess) -> addRecipientHeader(mail, recipient, guess));
+        metrics.record(ClassificationMetrics.Stage.LOCAL_CLASSIFICATION, localClassificationStart);
+    }
+
+    private Collection<MailAddress> recipientsToClassify(Mail mail) {
+        if (!localRecipientFilter.isPresent()) {
+            return mail.getRecipients();
+        }
+        return localRecipientFilter.get().localRecipients(mail.getRecipients());
+    }
+
+    private void deferClassification(Mail mail, Collection<MailAddress> recipients, DeferredClassifier deferredClassifier) {
+        try {
+            ClassificationRequestBody requestBody = requestBody(mail);
+            WireFormat wireFormat = wireFormatNegotiation.getWireFormat();
+            String messageId = Strings.nullToEmpty(mail.getMessage().getMessageID());
+            for (List<MailAddress> recipientsChunk : Iterables.partition(recipients, recipientsChunkSize)) {
+                List<String> chunkRecipients = asStrings(recipientsChunk);
+                ByteArrayOutputStream serializedRequestBody = new ByteArrayOutputStream();
+                long serializationStart = metrics.start();
+                write(requestBody, chunkRecipients, wireFormat, serializedRequestBody);
+                metrics.record(ClassificationMetrics.Stage.SERIALIZATION, serializationStart);
+                deferredClassifier.enqueue(new DeferredClassification(mail.getName(), messageId, chunkRecipients, wireFormat,
+                    serializedRequestBody.toByteArray()));
+            }
+        } catch (Exception e) {
+            metrics.recordFailure(e);
+            LOGGER.error("Exception while deferring the classification of {}", mail.getName(), e);
+        }
+    }
+
+    private Map<String, String> classifyDeferred(DeferredClassification classification) throws Exception {
+        List<MailAddress> recipients = new ArrayList<>();
+        for (String recipient : classification.getRecipients()) {
+            recipients.add(new MailAddress(recipient));
+        }
+        HttpEntity requestBody = new StreamingJsonEntity(outputStream -> outputStream.write(classification.getRequestBody()), classification.getWireFormat());
+        return classificationClient.classify(serviceUri(recipients), requestBody, this::parseTimedClassificationGuesses)
+            .get(timeoutInMs.orElse(DEFAULT_TIME), TimeUnit.MILLISECONDS);
+    }
+
+    private CompletableFuture<Map<String, String>> classify(ClassificationRequestBody requestBody, Collection<MailAddress> recipients) throws URISyntaxException {
+        if (!classificationCache.isPresent() && !classificationCoalescer.isPresent()) {
+            return classifyInChunks(requestBody, recipients);
+        }
+        HashCode contentHash = ClassificationCache.contentHash(requestBody);
+        if (!classificationCache.isPresent()) {
+            return classifyCoalesced(contentHash, requestBody, recipients);
+        }
+        return classifyCachingResults(classificationCache.get(), contentHash, requestBody, recipients);
+    }
+
+    private CompletableFuture<Map<String, String>> classifyCachingResults(ClassificationCache cache, HashCode contentHash, ClassificationRequestBody requestBody,
+                                                                                       Collection<MailAddress> recipients) throws URISyntaxException {
+        Map<String, String> classificationGuesses = new HashMap<>();
+        List<MailAddress> uncachedRecipients = new ArrayList<>();
+        for (MailAddress recipient : recipients) {
+            Optional<String> cachedGuess = cache.get(contentHash, recipient.asString());
+            if (cachedGuess.isPresent()) {
+                classificationGuesses.put(recipient.asString(), cachedGuess.get());
+            } else {
+                uncachedRecipients.add(recipient);
+            }
+        }
+        if (uncachedRecipients.isEmpty()) {
+            return CompletableFuture.completedFuture(classificationGuesses);
+        }
+        CompletableFuture<Map<String, String>> uncachedGuesses = classifyCoalesced(contentHash, requestBody, uncachedRecipients);
+        CompletableFuture<Map<String, String>> mergedGuesses = uncachedGuesses
+            .thenApply(guesses -> {
+                guesses.forEach((recipient, guess) -> cache.put(contentHash, recipient, guess));
+                classificationGuesses.putAll(guesses);
+                return classificationGuesses;
+            });
+        mergedGuesses.whenComplete((guesses, e) -> {
+            if (mergedGuesses.isCancelled()) {
+                uncachedGuesses.cancel(true);
+            }
+        });
+        return mergedGuesses;
+    }
+
+    /**
+     * Concurrent classifications of the same content for the same recipients share a single call, each caller still
+     * waiting for it within its own timeout.
+     */
+    private CompletableFuture<Map<String, String>> classifyCoalesced(HashCode contentHash, ClassificationRequestBody requestBody,
+                                                                     Collection<MailAddress> recipients) throws URISyntaxException {
+        if (!classificationCoalescer.isPresent()) {
+            return classifyInChunks(requestBody, recipients);
+        }
+        return classificationCoalescer.get().classify(contentHash, recipients, () -> classifyInChunks(requestBody, recipients));
+    }
+
+    /**
+     * Large recipient lists are split into chunks classified in parallel, whose guesses are merged once all of them
+     * are received. With the blocking client, chunks are sent by the chunk executor, so that the calling thread only
+     * waits for them within its timeout.
+     */
+    private CompletableFuture<Map<String, String>> classifyInChunks(ClassificationRequestBody requestBody, Collection<MailAddress> recipients) throws URISyntaxException {
+        if (recipients.size() <= recipientsChunkSize) {
+            return classifyChunk(requestBody, recipients);
+        }
+        List<CompletableFuture<Map<String, String>>> chunks = new ArrayList<>();
+        for (List<MailAddress> recipientsChunk : Iterables.partition(recipients, recipientsChunkSize)) {
+            chunks.add(classifyChunk(requestBody, recipientsChunk, chunkExecutor));
+        }
+        CompletableFuture<Map<String, String>> classificationGuesses = CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[chunks.size()]))
+            .thenApply(any -> {
+                Map<String, String> mergedGuesses = new HashMap<>();
+                chunks.forEach(chunk -> mergedGuesses.putAll(chunk.join()));
+                return mergedGuesses;
+            });
+        classificationGuesses.whenComplete((guesses, e) -> {
+            if (classificationGuesses.isCancelled()) {
+                chunks.forEach(chunk -> chunk.cancel(true));
+            }
+        });
+        return classificationGuesses;
+    }
+
+    private CompletableFuture<Map<String, String>> classifyChunk(ClassificationRequestBody requestBody, Collection<MailAddress> recipients,
+                                                                 Optional<ExecutorService> executor) throws URISyntaxException {
+        if (!executor.isPresent()) {
+            return classifyChunk(requestBody, recipients);
+        }
+        CompletableFuture<Map<String, String>> classificationGuesses = new CompletableFuture<>();
+        Future<?> task = executor.get().submit(() -> {
+            try {
+                classifyChunk(requestBody, recipients)
+                    .whenComplete((guesses, e) -> {
+                        if (e != null) {
+                            classificationGuesses.completeExceptionally(e);
+                        } else {
+                            classificationGuesses.complete(guesses);
+                        }
+                    });
+            } catch (URISyntaxException | RuntimeException e) {
+                classificationGuesses.completeExceptionally(e);
+            }
+        });
+        classificationGuesses.whenComplete((guesses, e) -> {
+            if (classificationGuesses.isCancelled()) {
+                task.cancel(true);
+            }
+        });
+        return classificationGuesses;
+    }
+
+    private CompletableFuture<Map<String, String>> classifyChunk(ClassificationRequestBody requestBody, Collection<MailAddress> recipients) throws URISyntaxException {
+        long remoteCallStart = metrics.start();
+        metrics.requestStarted();
+        CompletableFuture<Map<String, String>> classificationGuesses = callClassificationApi(requestBody, recipients);
+        classificationGuesses.whenComplete((guesses, e) -> {
+            metrics.requestCompleted();
+            metrics.record(ClassificationMetrics.Stage.REMOTE_CALL, remoteCallStart);
+        });
+        return classificationGuesses;
+    }
+
+    private CompletableFuture<Map<String, String>> callClassificationApi(ClassificationRequestBody requestBody, Collection<MailAddress> recipients) throws URISyntaxException {
+        if (classificationBatcher.isPresent()) {
+            ClassificationBatchEntry batchEntry = new ClassificationBatchEntry(asStrings(recipients), requestBody);
+            return classificationBatcher.get()
+                .classify(batchEntry, timeoutInMs.orElse(DEFAULT_TIME));
+        }
+        return classificationClient.classify(serviceUri(recipients), httpEntity(requestBody, recipients), this::parseTimedClassificationGuesses);
+    }
+
+    private HttpEntity httpEntity(ClassificationRequestBody requestBody, Collection<MailAddress> recipients) {
+        WireFormat wireFormat = wireFormatNegotiation.getWireFormat();
+        HttpEntity entity = new StreamingJsonEntity(outputStream -> {
+            long serializationStart = metrics.start();
+            write(requestBody, asStrings(recipients), wireFormat, outputStream);
+            metrics.record(ClassificationMetrics.Stage.SERIALIZATION, serializationStart);
+        }, wireFormat);
+        return requestCompression
+            .map(compression -> compression.compressIfAboveThreshold(entity, RequestCompression.estimatedSizeInBytes(requestBody)))
+            .orElse(entity);
+    }
+
+    private Map<String, String> parseTimedClassificationGuesses(InputStream responseBody, WireFormat wireFormat) throws IOException {
+        long responseParsingStart = metrics.start();
+        try {
+            return parseClassificationGuesses(responseBody, wireFormat);
+        } finally {
+            metrics.record(ClassificationMetrics.Stage.RESPONSE_PARSING, responseParsingStart);
         }
     }
+
+    private Map<String, String> parseClassificationGuesses(InputStream responseBody, WireFormat wireFormat) throws IOException {
+        Map<String, String> classificationGuesses = new HashMap<>();
+        classificationGuessesParser.parse(responseBody, wireFormat, classificationGuesses::put);
+        return classificationGuesses;
+    }
     
-    private URI serviceUrlWithQueryParameters(Collection<MailAddress> recipients) throws URISyntaxException {
-        URIBuilder uriBuilder = new URIBuilder(serviceUrl);
-        recipients.forEach(address -> uriBuilder.addParameter("recipients", address.asString()));
-        return uriBuilder.build();
+    private void write(ClassificationRequestBody requestBody, List<String> recipients, WireFormat wireFormat, OutputStream outputStream) throws IOException {
+        if (recipientsLocation == RecipientsLocation.BODY) {
+            ClassificationRequestBodySerializer.write(new ClassificationBatchEntry(recipients, requestBody), wireFormat, outputStream);
+        } else {
+            ClassificationRequestBodySerializer.write(requestBody, wireFormat, outputStream);
+        }
     }
 
-    private String asJson(Mail mail) throws MessagingException, IOException {
-        String jsonAsString = new ClassificationRequestBodySerializer(mail, uuidGenerator).toJsonAsString();
+    private URI serviceUri(Collection<MailAddress> recipients) throws URISyntaxException {
+        if (recipientsLocation == RecipientsLocation.BODY || recipients.isEmpty()) {
+            return serviceUri;
+        }
+        List<NameValuePair> parameters = recipients.stream()
+            .map(address -> new BasicNameValuePair(RECIPIENTS_QUERY_PARAMETER, address.asString()))
+            .collect(Guavate.toImmutableList());
+        return new URI(serviceUriQueryPrefix + URLEncodedUtils.format(parameters, StandardCharsets.UTF_8));
+    }
+
+    private List<String> asStrings(Collection<MailAddress> recipients) {
+        return recipients.stream()
+            .map(MailAddress::asString)
+            .collect(Guavate.toImmutableList());
+    }
+
+    private ClassificationRequestBody requestBody(Mail mail) throws MessagingException, IOException {
+        ClassificationRequestBody requestBody = new ClassificationRequestBodySerializer(mail, uuidGenerator, textBudget, htmlToTextConverter, metrics.extractionListener(), ticker).toRequestBody();
         if (LOGGER.isDebugEnabled()) {
-            LOGGER.debug("Request body: " + jsonAsString);
+            LOGGER.debug("Request body: " + ClassificationRequestBodySerializer.toJsonAsString(requestBody));
         }
-        return jsonAsString;
+        return requestBody;
     }
 
     @VisibleForTesting void addHeaders(Mail mail, String classificationGuesses) {
-        Optional.ofNullable(classificationGuesses)
-            .map(this::extractClassificationGuessesPart)
-            .orElse(ImmutableMap.of())
-            .entrySet()
+        addHeaders(mail, extractClassificationGuessesPart(classificationGuesses));
+    }
+
+    private void addHeaders(Mail mail, Map<String, String> classificationGuesses) {
+        classificationGuesses.entrySet()
             .forEach(entry -> addRecipientHeader(mail, entry));
     }
 
-    private Map<String, ClassificationGuess> extractClassificationGuessesPart(String classificationGuesses) {
+    private Map<String, String> extractClassificationGuessesPart(String classificationGuesses) {
+        if (classificationGuesses == null) {
+            return ImmutableMap.of();
+        }
         try {
-            return objectMapper.readValue(classificationGuesses, ClassificationGuesses.class).getResults();
+            return parseClassificationGuesses(new ByteArrayInputStream(classificationGuesses.getBytes(StandardCharsets.UTF_8)), WireFormat.JSON);
         } catch (IOException e) {
             LOGGER.error("Error occurred while deserializing classification guesses: " + classificationGuesses, e);
             return ImmutableMap.of();
         }
     }
 
-    private void addRecipientHeader(Mail mail, Map.Entry<String, ClassificationGuess> entry) {
+    private void addRecipientHeader(Mail mail, Map.Entry<String, String> entry) {
         try {
-            mail.addSpecificHeaderForRecipient(
-                    PerRecipientHeaders.Header.builder()
-                        .name(headerName)
-                        .value(objectMapper.writeValueAsString(entry.getValue()))
-                        .build(),
-                    new MailAddress(entry.getKey()));
-        } catch (AddressException | JsonProcessingException e) {
+            addRecipientHeader(mail, new MailAddress(entry.getKey()), entry.getValue());
+        } catch (AddressException e) {
             LOGGER.error("Failed serializing " + headerName + " for " + entry.getKey() + " : " + entry.getValue(), e);
         }
     }
+
+    private void addRecipientHeader(Mail mail, MailAddress recipient, String classificationGuess) {
+        mail.addSpecificHeaderForRecipient(
+                PerRecipientHeaders.Header.builder()
+                    .name(headerName)
+                    .value(classificationGuess)
+                    .build(),
+                recipient);
+    }
 }
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import java.util.Arrays;
+
+/**
+ * The words of a text hashed into a bounded feature space, kept as feature indices in a reusable buffer, so
+ * that neither the words nor their hashes are ever allocated.
+ *
+ * Words are runs of letters or digits of at least two characters, lower cased. Subject words are hashed with
+ * another seed than body words, so that the same word weighs differently in both.
+ */
+class HashedFeatures {
+
+    static final int SUBJECT_SEED = 0x811c9dc5;
+    static final int BODY_SEED = 0x050c5d1f;
+
+    private static final int FNV_PRIME = 0x01000193;
+    private static final int MIN_WORD_LENGTH = 2;
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private int[] indices;
+    private int size;
+
+    HashedFeatures() {
+        this.indices = new int[INITIAL_CAPACITY];
+        this.size = 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int position) {
+        return indices[position];
+    }
+
+    void addWords(CharSequence text, int seed, int featureMask) {
+        int hash = seed;
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char character = text.charAt(i);
+            if (Character.isLetterOrDigit(character)) {
+                hash = (hash ^ Character.toLowerCase(character)) * FNV_PRIME;
+                length++;
+            } else {
+                addWord(hash, length, featureMask);
+                hash = seed;
+                length = 0;
+            }
+        }
+        addWord(hash, length, featureMask);
+    }
+
+    private void addWord(int hash, int length, int featureMask) {
+        if (length < MIN_WORD_LENGTH) {
+            return;
+        }
+        if (size == indices.length) {
+            indices = Arrays.copyOf(indices, size * 2);
+        }
+        indices[size++] = mix(hash) & featureMask;
+    }
+
+    /**
+     * FNV-1a leaves the low bits, used as feature index, poorly distributed: this is the finalizer of MurmurHash3.
+     */
+    private static int mix(int hash) {
+        int mixed = hash;
+        mixed ^= mixed >>> 16;
+        mixed *= 0x85ebca6b;
+        mixed ^= mixed >>> 13;
+        mixed *= 0xc2b2ae35;
+        mixed ^= mixed >>> 16;
+        return mixed;
+    }
+}
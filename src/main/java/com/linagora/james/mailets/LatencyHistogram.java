@@ -0,0 +1,75 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Count based latency histogram: percentiles, mean and max are computed over the last windowSize recorded
+ * durations, while the count covers every recorded duration.
+ */
+class LatencyHistogram {
+
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final long[] durationsInNanos;
+    private int recordedDurations;
+    private int nextDuration;
+    private long count;
+
+    LatencyHistogram(int windowSize) {
+        this.durationsInNanos = new long[windowSize];
+    }
+
+    synchronized void record(long durationInNanos) {
+        durationsInNanos[nextDuration] = durationInNanos;
+        nextDuration = (nextDuration + 1) % durationsInNanos.length;
+        recordedDurations = Math.min(recordedDurations + 1, durationsInNanos.length);
+        count++;
+    }
+
+    LatencySnapshot snapshot() {
+        long[] sortedDurations;
+        long count;
+        synchronized (this) {
+            sortedDurations = Arrays.copyOf(durationsInNanos, recordedDurations);
+            count = this.count;
+        }
+        if (sortedDurations.length == 0) {
+            return new LatencySnapshot(count, 0, 0, 0, 0, 0);
+        }
+        Arrays.sort(sortedDurations);
+        return new LatencySnapshot(count,
+            toMillis(Arrays.stream(sortedDurations).average().orElse(0)),
+            toMillis(percentile(sortedDurations, 0.5)),
+            toMillis(percentile(sortedDurations, 0.99)),
+            toMillis(percentile(sortedDurations, 0.999)),
+            toMillis(sortedDurations[sortedDurations.length - 1]));
+    }
+
+    private long percentile(long[] sortedDurations, double quantile) {
+        int index = (int) Math.ceil(quantile * sortedDurations.length) - 1;
+        return sortedDurations[Math.max(0, index)];
+    }
+
+    private double toMillis(double durationInNanos) {
+        return durationInNanos / NANOS_PER_MILLI;
+    }
+}
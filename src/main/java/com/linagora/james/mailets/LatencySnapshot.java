@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Latencies of a stage, in milliseconds, exposed as composite data by {@link ClassificationMetricsMXBean}.
+ */
+public class LatencySnapshot {
+
+    private final long count;
+    private final double meanMs;
+    private final double p50Ms;
+    private final double p99Ms;
+    private final double p999Ms;
+    private final double maxMs;
+
+    @ConstructorProperties({"count", "meanMs", "p50Ms", "p99Ms", "p999Ms", "maxMs"})
+    public LatencySnapshot(long count, double meanMs, double p50Ms, double p99Ms, double p999Ms, double maxMs) {
+        this.count = count;
+        this.meanMs = meanMs;
+        this.p50Ms = p50Ms;
+        this.p99Ms = p99Ms;
+        this.p999Ms = p999Ms;
+        this.maxMs = maxMs;
+    }
+
+    public long getCount() {
+        return count;
+    }
+
+    public double getMeanMs() {
+        return meanMs;
+    }
+
+    public double getP50Ms() {
+        return p50Ms;
+    }
+
+    public double getP99Ms() {
+        return p99Ms;
+    }
+
+    public double getP999Ms() {
+        return p999Ms;
+    }
+
+    public double getMaxMs() {
+        return maxMs;
+    }
+}
@@ -0,0 +1,341 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.apache.http.HttpEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Spreads classification requests over several replicas of the classification webservice, each one having
+ * its own client.
+ *
+ * Requests are sent to the available replica with the fewest outstanding requests, or with the lowest
+ * latency EWMA weighted by its outstanding requests. Replicas without any latency yet are expected to be as fast as
+ * the mean of the others, and failed requests count as twice slower than expected. A replica failing
+ * ejectAfterFailures requests in a row, or failing a health check, is ejected for ejectionDurationMs. Health checks
+ * run every healthCheckIntervalMs, in parallel and for at most healthCheckTimeoutMs, and bring back ejected replicas
+ * as soon as they answer. When every replica is ejected, all of them are used again.
+ *
+ * The path and query of requested URIs are kept, only their scheme, host and port are the ones of the replica.
+ */
+class LoadBalancedClassificationClient implements ClassificationClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadBalancedClassificationClient.class);
+    private static final double EWMA_DECAY = 0.3;
+    private static final double FAILURE_LATENCY_PENALTY = 2;
+
+    @FunctionalInterface
+    interface HealthCheck {
+        boolean isAlive(Replica replica, int timeoutInMs) throws IOException;
+    }
+
+    static class Replica {
+        private final URI serviceUri;
+        private final String uriPrefix;
+        private final ClassificationClient classificationClient;
+        private final AtomicInteger outstandingRequests;
+        private boolean sampled;
+        private double ewmaLatencyInNanos;
+        private int consecutiveFailures;
+        private long ejectedUntilInNanos;
+        private boolean ejected;
+
+        Replica(URI serviceUri, ClassificationClient classificationClient) {
+            this.serviceUri = serviceUri;
+            this.uriPrefix = serviceUri.getScheme() + "://" + serviceUri.getRawAuthority();
+            this.classificationClient = classificationClient;
+            this.outstandingRequests = new AtomicInteger();
+        }
+
+        URI getServiceUri() {
+            return serviceUri;
+        }
+
+        int getOutstandingRequests() {
+            return outstandingRequests.get();
+        }
+
+        boolean isAlive(int timeoutInMs) throws IOException {
+            return classificationClient.isAlive(serviceUri, timeoutInMs);
+        }
+
+        /**
+         * The given uri, with the scheme, host and port of this replica.
+         */
+        URI resolve(URI uri) throws URISyntaxException {
+            StringBuilder replicaUri = new StringBuilder(uriPrefix).append(uri.getRawPath());
+            if (uri.getRawQuery() != null) {
+                replicaUri.append('?').append(uri.getRawQuery());
+            }
+            return new URI(replicaUri.toString());
+        }
+
+        synchronized boolean isSampled() {
+            return sampled;
+        }
+
+        synchronized double getEwmaLatencyInNanos() {
+            return ewmaLatencyInNanos;
+        }
+
+        synchronized boolean isEjected(long nowInNanos) {
+            return ejected && nowInNanos - ejectedUntilInNanos < 0;
+        }
+
+        synchronized void recordLatency(double latencyInNanos) {
+            if (!sampled) {
+                ewmaLatencyInNanos = latencyInNanos;
+                sampled = true;
+            } else {
+                ewmaLatencyInNanos += EWMA_DECAY * (latencyInNanos - ewmaLatencyInNanos);
+            }
+        }
+
+        synchronized boolean recordFailure(int ejectAfterFailures, long nowInNanos, long ejectionDurationInNanos) {
+            consecutiveFailures++;
+            if (consecutiveFailures >= ejectAfterFailures && !isEjected(nowInNanos)) {
+                eject(nowInNanos + ejectionDurationInNanos);
+                return true;
+            }
+            return false;
+        }
+
+        synchronized void eject(long ejectedUntilInNanos) {
+            this.ejected = true;
+            this.ejectedUntilInNanos = ejectedUntilInNanos;
+        }
+
+        synchronized boolean reinstate() {
+            boolean wasEjected = ejected;
+            ejected = false;
+            consecutiveFailures = 0;
+            return wasEjected;
+        }
+    }
+
+    private final List<Replica> replicas;
+    private final LoadBalancingConfiguration configuration;
+    private final HealthCheck healthCheck;
+    private final Ticker ticker;
+    private final AtomicInteger nextReplica;
+    private final ScheduledExecutorService healthCheckScheduler;
+    private final ExecutorService healthCheckExecutor;
+
+    LoadBalancedClassificationClient(List<Replica> replicas, LoadBalancingConfiguration configuration, Ticker ticker) {
+        this(replicas, configuration, Replica::isAlive, ticker);
+    }
+
+    LoadBalancedClassificationClient(List<Replica> replicas, LoadBalancingConfiguration configuration, HealthCheck healthCheck, Ticker ticker) {
+        this.replicas = ImmutableList.copyOf(replicas);
+        this.configuration = configuration;
+        this.healthCheck = healthCheck;
+        this.ticker = ticker;
+        this.nextReplica = new AtomicInteger();
+        this.healthCheckScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+            .setNameFormat("classification-health-check-scheduler-%d")
+            .setDaemon(true)
+            .build());
+        this.healthCheckExecutor = Executors.newFixedThreadPool(this.replicas.size(), new ThreadFactoryBuilder()
+            .setNameFormat("classification-health-check-%d")
+            .setDaemon(true)
+            .build());
+        this.healthCheckScheduler.scheduleWithFixedDelay(this::runHealthChecks,
+            configuration.getHealthCheckIntervalMs(), configuration.getHealthCheckIntervalMs(), TimeUnit.MILLISECONDS);
+    }
+
+    @VisibleForTesting List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    @Override
+    public <T> CompletableFuture<T> classify(URI uri, HttpEntity requestBody, ResponseParser<T> responseParser) {
+        Replica replica = chooseReplica();
+        URI replicaUri;
+        try {
+            replicaUri = replica.resolve(uri);
+        } catch (URISyntaxException e) {
+            CompletableFuture<T> result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        replica.outstandingRequests.incrementAndGet();
+        long start = ticker.read();
+        CompletableFuture<T> result = replica.classificationClient.classify(replicaUri, requestBody, responseParser);
+        result.whenComplete((response, exception) -> {
+            replica.outstandingRequests.decrementAndGet();
+            long latencyInNanos = ticker.read() - start;
+            if (exception == null) {
+                replica.recordLatency(latencyInNanos);
+                replica.reinstate();
+                return;
+            }
+            replica.recordLatency(Math.max(latencyInNanos, FAILURE_LATENCY_PENALTY * expectedLatencyInNanos(replica, meanLatencyInNanos())));
+            if (replica.recordFailure(configuration.getEjectAfterFailures(), ticker.read(), ejectionDurationInNanos())) {
+                LOGGER.warn("Ejecting classification replica {} after {} consecutive failures", replica.serviceUri, configuration.getEjectAfterFailures());
+            }
+        });
+        return result;
+    }
+
+    private Replica chooseReplica() {
+        long now = ticker.read();
+        List<Replica> available = replicas.stream()
+            .filter(replica -> !replica.isEjected(now))
+            .collect(Collectors.toList());
+        if (available.isEmpty()) {
+            available = replicas;
+        }
+        double meanLatencyInNanos = meanLatencyInNanos();
+        int start = Math.floorMod(nextReplica.getAndIncrement(), available.size());
+        Replica chosen = available.get(start);
+        double chosenLoad = load(chosen, meanLatencyInNanos);
+        for (int i = 1; i < available.size(); i++) {
+            Replica candidate = available.get((start + i) % available.size());
+            double candidateLoad = load(candidate, meanLatencyInNanos);
+            if (candidateLoad < chosenLoad) {
+                chosen = candidate;
+                chosenLoad = candidateLoad;
+            }
+        }
+        return chosen;
+    }
+
+    private double load(Replica replica, double meanLatencyInNanos) {
+        if (configuration.getStrategy() == LoadBalancingConfiguration.Strategy.EWMA) {
+            return expectedLatencyInNanos(replica, meanLatencyInNanos) * (replica.getOutstandingRequests() + 1);
+        }
+        return replica.getOutstandingRequests();
+    }
+
+    /**
+     * A replica without any latency yet, for instance a new one, would otherwise look infinitely fast and receive
+     * all the requests.
+     */
+    private double expectedLatencyInNanos(Replica replica, double meanLatencyInNanos) {
+        if (replica.isSampled()) {
+            return replica.getEwmaLatencyInNanos();
+        }
+        return meanLatencyInNanos;
+    }
+
+    private double meanLatencyInNanos() {
+        return replicas.stream()
+            .filter(Replica::isSampled)
+            .mapToDouble(Replica::getEwmaLatencyInNanos)
+            .average()
+            .orElse(0);
+    }
+
+    private long ejectionDurationInNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(configuration.getEjectionDurationMs());
+    }
+
+    /**
+     * Checks all the replicas at once, so that a replica not answering does not delay the checks of the others.
+     */
+    @VisibleForTesting void runHealthChecks() {
+        int timeoutInMs = configuration.getHealthCheckTimeoutMs();
+        List<Future<Boolean>> healthChecks = replicas.stream()
+            .map(replica -> healthCheckExecutor.submit(() -> healthCheck.isAlive(replica, timeoutInMs)))
+            .collect(Collectors.toList());
+        long deadlineInNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutInMs);
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get(i);
+            if (isAlive(healthChecks.get(i), deadlineInNanos)) {
+                if (replica.reinstate()) {
+                    LOGGER.info("Classification replica {} is back", replica.serviceUri);
+                }
+            } else {
+                replica.eject(ticker.read() + ejectionDurationInNanos());
+                LOGGER.warn("Ejecting classification replica {} after a failed health check", replica.serviceUri);
+            }
+        }
+    }
+
+    private boolean isAlive(Future<Boolean> healthCheck, long deadlineInNanos) {
+        try {
+            return healthCheck.get(Math.max(0, deadlineInNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            healthCheck.cancel(true);
+            return false;
+        } catch (InterruptedException e) {
+            healthCheck.cancel(true);
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Alive as long as one of the replicas is.
+     */
+    @Override
+    public boolean isAlive(URI uri, int timeoutInMs) throws IOException {
+        for (Replica replica : replicas) {
+            try {
+                if (replica.classificationClient.isAlive(replica.resolve(uri), timeoutInMs)) {
+                    return true;
+                }
+            } catch (IOException | URISyntaxException e) {
+                LOGGER.debug("Classification replica {} is not alive", replica.serviceUri, e);
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        healthCheckScheduler.shutdownNow();
+        healthCheckExecutor.shutdownNow();
+        IOException closeFailure = null;
+        for (Replica replica : replicas) {
+            try {
+                replica.classificationClient.close();
+            } catch (IOException e) {
+                closeFailure = e;
+            }
+        }
+        if (closeFailure != null) {
+            throw closeFailure;
+        }
+    }
+}
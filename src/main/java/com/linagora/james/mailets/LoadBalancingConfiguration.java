@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Optional;
+
+import com.google.common.base.Preconditions;
+
+public class LoadBalancingConfiguration {
+
+    public enum Strategy {
+        LEAST_OUTSTANDING("leastOutstanding"),
+        EWMA("ewma");
+
+        public static Optional<Strategy> parse(String value) {
+            return Arrays.stream(values())
+                .filter(strategy -> strategy.value.equalsIgnoreCase(value))
+                .findFirst();
+        }
+
+        private final String value;
+
+        Strategy(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+
+    public static final Strategy DEFAULT_STRATEGY = Strategy.LEAST_OUTSTANDING;
+    public static final int DEFAULT_HEALTH_CHECK_INTERVAL_MS = 10000;
+    public static final int DEFAULT_HEALTH_CHECK_TIMEOUT_MS = 1000;
+    public static final int DEFAULT_EJECT_AFTER_FAILURES = 5;
+    public static final int DEFAULT_EJECTION_DURATION_MS = 30000;
+
+    public static final LoadBalancingConfiguration DEFAULT = builder().build();
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private Optional<Strategy> strategy = Optional.empty();
+        private Optional<Integer> healthCheckIntervalMs = Optional.empty();
+        private Optional<Integer> healthCheckTimeoutMs = Optional.empty();
+        private Optional<Integer> ejectAfterFailures = Optional.empty();
+        private Optional<Integer> ejectionDurationMs = Optional.empty();
+
+        public Builder strategy(Optional<Strategy> strategy) {
+            this.strategy = strategy;
+            return this;
+        }
+
+        public Builder healthCheckIntervalMs(Optional<Integer> healthCheckIntervalMs) {
+            this.healthCheckIntervalMs = healthCheckIntervalMs;
+            return this;
+        }
+
+        public Builder healthCheckTimeoutMs(Optional<Integer> healthCheckTimeoutMs) {
+            this.healthCheckTimeoutMs = healthCheckTimeoutMs;
+            return this;
+        }
+
+        public Builder ejectAfterFailures(Optional<Integer> ejectAfterFailures) {
+            this.ejectAfterFailures = ejectAfterFailures;
+            return this;
+        }
+
+        public Builder ejectionDurationMs(Optional<Integer> ejectionDurationMs) {
+            this.ejectionDurationMs = ejectionDurationMs;
+            return this;
+        }
+
+        public LoadBalancingConfiguration build() {
+            int healthCheckIntervalMs = this.healthCheckIntervalMs.orElse(DEFAULT_HEALTH_CHECK_INTERVAL_MS);
+            int healthCheckTimeoutMs = this.healthCheckTimeoutMs.orElse(DEFAULT_HEALTH_CHECK_TIMEOUT_MS);
+            int ejectAfterFailures = this.ejectAfterFailures.orElse(DEFAULT_EJECT_AFTER_FAILURES);
+            int ejectionDurationMs = this.ejectionDurationMs.orElse(DEFAULT_EJECTION_DURATION_MS);
+            Preconditions.checkState(healthCheckIntervalMs > 0, "healthCheckIntervalMs should be strictly positive");
+            Preconditions.checkState(healthCheckTimeoutMs > 0, "healthCheckTimeoutMs should be strictly positive");
+            Preconditions.checkState(ejectAfterFailures > 0, "ejectAfterFailures should be strictly positive");
+            Preconditions.checkState(ejectionDurationMs > 0, "ejectionDurationMs should be strictly positive");
+
+            return new LoadBalancingConfiguration(strategy.orElse(DEFAULT_STRATEGY), healthCheckIntervalMs, healthCheckTimeoutMs, ejectAfterFailures,
+                ejectionDurationMs);
+        }
+    }
+
+    private final Strategy strategy;
+    private final int healthCheckIntervalMs;
+    private final int healthCheckTimeoutMs;
+    private final int ejectAfterFailures;
+    private final int ejectionDurationMs;
+
+    private LoadBalancingConfiguration(Strategy strategy, int healthCheckIntervalMs, int healthCheckTimeoutMs, int ejectAfterFailures,
+                                       int ejectionDurationMs) {
+        this.strategy = strategy;
+        this.healthCheckIntervalMs = healthCheckIntervalMs;
+        this.healthCheckTimeoutMs = healthCheckTimeoutMs;
+        this.ejectAfterFailures = ejectAfterFailures;
+        this.ejectionDurationMs = ejectionDurationMs;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    public int getHealthCheckIntervalMs() {
+        return healthCheckIntervalMs;
+    }
+
+    public int getHealthCheckTimeoutMs() {
+        return healthCheckTimeoutMs;
+    }
+
+    public int getEjectAfterFailures() {
+        return ejectAfterFailures;
+    }
+
+    public int getEjectionDurationMs() {
+        return ejectionDurationMs;
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+        if (o instanceof LoadBalancingConfiguration) {
+            LoadBalancingConfiguration that = (LoadBalancingConfiguration) o;
+
+            return Objects.equals(this.strategy, that.strategy)
+                && Objects.equals(this.healthCheckIntervalMs, that.healthCheckIntervalMs)
+                && Objects.equals(this.healthCheckTimeoutMs, that.healthCheckTimeoutMs)
+                && Objects.equals(this.ejectAfterFailures, that.ejectAfterFailures)
+                && Objects.equals(this.ejectionDurationMs, that.ejectionDurationMs);
+        }
+        return false;
+    }
+
+    @Override
+    public final int hashCode() {
+        return Objects.hash(strategy, healthCheckIntervalMs, healthCheckTimeoutMs, ejectAfterFailures, ejectionDurationMs);
+    }
+}
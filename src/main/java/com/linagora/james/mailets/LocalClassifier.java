@@ -0,0 +1,184 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Optional;
+
+import org.apache.mailet.MailAddress;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+
+/**
+ * Guesses the mailbox of each recipient in process with a {@link NaiveBayesModel}, without calling the
+ * classification webservice, either as a fallback when it fails or instead of it.
+ *
+ * The words of a mail are hashed once for all its recipients. Hashing and scoring work on per thread buffers, and
+ * allocate nothing once these buffers have grown to the size of the largest mails. Guesses are written by a per
+ * thread generator and handed to a {@link GuessHandler} as they are made: the only allocation per recipient is the
+ * guess itself. The confidence of a guess is the probability of the guessed mailbox among the mailboxes of the
+ * recipient, as a percentage.
+ */
+class LocalClassifier {
+
+    public enum Mode {
+        FALLBACK("fallback"),
+        PRIMARY("primary");
+
+        public static Optional<Mode> parse(String value) {
+            return Arrays.stream(values())
+                .filter(mode -> mode.value.equalsIgnoreCase(value))
+                .findFirst();
+        }
+
+        private final String value;
+
+        Mode(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+
+    @FunctionalInterface
+    interface GuessHandler {
+        void handle(MailAddress recipient, String classificationGuess);
+    }
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory().setRootValueSeparator(null);
+    private static final double PERCENT = 100;
+    private static final long CONFIDENCE_SCALE = 1_000_000;
+    private static final int MAX_CONFIDENCE_LENGTH = 16;
+
+    private static class Scratch {
+        private final HashedFeatures features;
+        private final double[] scores;
+        private final CharArrayWriter guess;
+        private final JsonGenerator generator;
+        private final char[] confidence;
+
+        private Scratch(int maxMailboxCount) {
+            this.features = new HashedFeatures();
+            this.scores = new double[maxMailboxCount];
+            this.guess = new CharArrayWriter();
+            try {
+                this.generator = JSON_FACTORY.createGenerator(guess);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            this.confidence = new char[MAX_CONFIDENCE_LENGTH];
+        }
+    }
+
+    static LocalClassifier load(Path modelFile) throws IOException {
+        return new LocalClassifier(NaiveBayesModel.read(modelFile));
+    }
+
+    private final NaiveBayesModel model;
+    private final ThreadLocal<Scratch> scratches;
+
+    LocalClassifier(NaiveBayesModel model) {
+        this.model = model;
+        this.scratches = ThreadLocal.withInitial(() -> new Scratch(model.maxMailboxCount()));
+    }
+
+    /**
+     * Recipients without table, nor default one, are not handed any guess.
+     */
+    void classify(ClassificationRequestBody requestBody, Collection<MailAddress> recipients, GuessHandler guessHandler) throws IOException {
+        Scratch scratch = scratches.get();
+        extractFeatures(requestBody, scratch.features);
+        for (MailAddress recipient : recipients) {
+            NaiveBayesModel.UserTable table = model.table(recipient.getLocalPart(), recipient.getDomain());
+            if (table != null) {
+                guessHandler.handle(recipient, guess(table, scratch));
+            }
+        }
+    }
+
+    private void extractFeatures(ClassificationRequestBody requestBody, HashedFeatures features) {
+        int featureMask = model.featureMask();
+        features.clear();
+        for (String subject : requestBody.getSubject()) {
+            features.addWords(subject, HashedFeatures.SUBJECT_SEED, featureMask);
+        }
+        features.addWords(Strings.nullToEmpty(requestBody.getTextBody()), HashedFeatures.BODY_SEED, featureMask);
+    }
+
+    private String guess(NaiveBayesModel.UserTable table, Scratch scratch) throws IOException {
+        int best = model.score(table, scratch.features, scratch.scores);
+        int confidenceLength = formatConfidence(confidence(scratch.scores, table.mailboxCount(), best), scratch.confidence);
+        JsonGenerator generator = scratch.generator;
+        generator.writeStartObject();
+        generator.writeStringField("mailboxId", table.mailboxId(best));
+        generator.writeStringField("mailboxName", table.mailboxName(best));
+        generator.writeFieldName("confidence");
+        generator.writeRawValue(scratch.confidence, 0, confidenceLength);
+        generator.writeEndObject();
+        generator.flush();
+        String guess = scratch.guess.toString();
+        scratch.guess.reset();
+        return guess;
+    }
+
+    /**
+     * Log probabilities of long mails are far below the smallest double: they are shifted by the best one before
+     * being exponentiated.
+     */
+    private double confidence(double[] scores, int mailboxCount, int best) {
+        double sum = 0;
+        for (int mailbox = 0; mailbox < mailboxCount; mailbox++) {
+            sum += Math.exp(scores[mailbox] - scores[best]);
+        }
+        return PERCENT / sum;
+    }
+
+    /**
+     * Writes the confidence, between 0 and {@link #PERCENT}, with six decimals into buffer without going through
+     * {@link Double#toString(double)}, and returns its length.
+     */
+    @VisibleForTesting static int formatConfidence(double confidence, char[] buffer) {
+        long scaled = Math.round(confidence * CONFIDENCE_SCALE);
+        long integerPart = scaled / CONFIDENCE_SCALE;
+        long fractionalPart = scaled % CONFIDENCE_SCALE;
+        int integerDigits = integerPart >= 100 ? 3 : integerPart >= 10 ? 2 : 1;
+        for (int i = integerDigits - 1; i >= 0; i--) {
+            buffer[i] = (char) ('0' + integerPart % 10);
+            integerPart /= 10;
+        }
+        int length = integerDigits;
+        buffer[length++] = '.';
+        for (long divisor = CONFIDENCE_SCALE / 10; divisor > 0; divisor /= 10) {
+            buffer[length++] = (char) ('0' + fractionalPart / divisor % 10);
+        }
+        return length;
+    }
+}
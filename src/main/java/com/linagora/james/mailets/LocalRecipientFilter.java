@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.MailetContext;
+
+import com.github.steveash.guavate.Guavate;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+
+/**
+ * Keeps the recipients delivered by this server, as guessing the mailbox of remote recipients is useless.
+ *
+ * Whether a domain is local is remembered for ttlInMs, so that the domain list is not looked up again for each
+ * recipient of each relayed mail. Recipients of local domains are then checked with {@link MailetContext#isLocalEmail}.
+ */
+class LocalRecipientFilter {
+
+    private static final int MAX_CACHED_DOMAINS = 10000;
+
+    private final MailetContext mailetContext;
+    private final LoadingCache<String, Boolean> localDomains;
+
+    LocalRecipientFilter(MailetContext mailetContext, long ttlInMs, Ticker ticker) {
+        this.mailetContext = mailetContext;
+        this.localDomains = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CACHED_DOMAINS)
+            .expireAfterWrite(ttlInMs, TimeUnit.MILLISECONDS)
+            .ticker(ticker)
+            .build(CacheLoader.from(mailetContext::isLocalServer));
+    }
+
+    List<MailAddress> localRecipients(Collection<MailAddress> recipients) {
+        return recipients.stream()
+            .filter(this::isLocal)
+            .collect(Guavate.toImmutableList());
+    }
+
+    private boolean isLocal(MailAddress recipient) {
+        return localDomains.getUnchecked(recipient.getDomain().toLowerCase(Locale.US))
+            && mailetContext.isLocalEmail(recipient);
+    }
+}
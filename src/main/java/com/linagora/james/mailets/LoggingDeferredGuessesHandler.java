@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The default {@link DeferredGuessesHandler}: logs the classification guesses of each mail.
+ */
+public class LoggingDeferredGuessesHandler implements DeferredGuessesHandler {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoggingDeferredGuessesHandler.class);
+
+    @Override
+    public void handle(DeferredClassification classification, Map<String, String> guesses) {
+        LOGGER.info("Classification guesses of {} ({}): {}", classification.getMailName(), classification.getMessageId(), guesses);
+    }
+}
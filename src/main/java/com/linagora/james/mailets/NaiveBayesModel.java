@@ -0,0 +1,439 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A multinomial naive Bayes model guessing the mailbox of a mail from the hashed words of its subject and text
+ * body, see {@link HashedFeatures}.
+ *
+ * Each user has its own table, holding the log prior of each of its mailboxes, and the log likelihood of each
+ * feature in each mailbox. The table of {@link #DEFAULT_USER} is used for users without their own one.
+ *
+ * A user only ever sees a small part of the feature space: its table is sparse. Features unseen during the training
+ * of the user share the smoothed log likelihood of each mailbox, and only the other ones are stored, as a sorted
+ * array of features and a primitive array of their log likelihoods, feature after feature. A table weighs
+ * 4 * (mailboxCount + 1) * seenFeatureCount bytes.
+ *
+ * Users are matched ignoring case, without building nor lower casing their address.
+ *
+ * Models are produced by a {@link Trainer}, and stored in a binary file:
+ * <pre>
+ * int magic, int version, int featureBits, int userCount
+ * for each user: UTF user, int mailboxCount,
+ *     for each mailbox: UTF mailboxId, UTF mailboxName, float logPrior
+ *     float[mailboxCount * 2^featureBits] logLikelihoods, mailbox after mailbox
+ * </pre>
+ * Tables are made sparse while being read, one at a time.
+ */
+public class NaiveBayesModel {
+
+    public static final String DEFAULT_USER = "*";
+    static final int MAX_FEATURE_BITS = 24;
+
+    private static final int MAGIC = 0x4c4e4231;
+    private static final int VERSION = 1;
+    private static final int FLOAT_CHUNK_SIZE = 8192;
+
+    static class UserTable {
+
+        /**
+         * The smoothed log likelihood of the features unseen in a mailbox is the smallest of its row.
+         */
+        private static UserTable fromDense(String[] mailboxIds, String[] mailboxNames, float[] logPriors, float[] denseLogLikelihoods,
+                                           int featureBits) {
+            int mailboxCount = logPriors.length;
+            int featureCount = 1 << featureBits;
+            float[] unseenLogLikelihoods = new float[mailboxCount];
+            for (int mailbox = 0; mailbox < mailboxCount; mailbox++) {
+                float min = Float.POSITIVE_INFINITY;
+                for (int feature = 0; feature < featureCount; feature++) {
+                    min = Math.min(min, denseLogLikelihoods[(mailbox << featureBits) + feature]);
+                }
+                unseenLogLikelihoods[mailbox] = min;
+            }
+            int[] seenFeatures = new int[featureCount];
+            int seenFeatureCount = 0;
+            for (int feature = 0; feature < featureCount; feature++) {
+                for (int mailbox = 0; mailbox < mailboxCount; mailbox++) {
+                    if (denseLogLikelihoods[(mailbox << featureBits) + feature] != unseenLogLikelihoods[mailbox]) {
+                        seenFeatures[seenFeatureCount++] = feature;
+                        break;
+                    }
+                }
+            }
+            float[] logLikelihoods = new float[seenFeatureCount * mailboxCount];
+            for (int row = 0; row < seenFeatureCount; row++) {
+                for (int mailbox = 0; mailbox < mailboxCount; mailbox++) {
+                    logLikelihoods[row * mailboxCount + mailbox] = denseLogLikelihoods[(mailbox << featureBits) + seenFeatures[row]];
+                }
+            }
+            return new UserTable(mailboxIds, mailboxNames, logPriors, unseenLogLikelihoods, Arrays.copyOf(seenFeatures, seenFeatureCount),
+                logLikelihoods);
+        }
+
+        private final String[] mailboxIds;
+        private final String[] mailboxNames;
+        private final float[] logPriors;
+        private final float[] unseenLogLikelihoods;
+        private final int[] seenFeatures;
+        private final float[] logLikelihoods;
+
+        private UserTable(String[] mailboxIds, String[] mailboxNames, float[] logPriors, float[] unseenLogLikelihoods, int[] seenFeatures,
+                          float[] logLikelihoods) {
+            this.mailboxIds = mailboxIds;
+            this.mailboxNames = mailboxNames;
+            this.logPriors = logPriors;
+            this.unseenLogLikelihoods = unseenLogLikelihoods;
+            this.seenFeatures = seenFeatures;
+            this.logLikelihoods = logLikelihoods;
+        }
+
+        int mailboxCount() {
+            return logPriors.length;
+        }
+
+        String mailboxId(int mailbox) {
+            return mailboxIds[mailbox];
+        }
+
+        String mailboxName(int mailbox) {
+            return mailboxNames[mailbox];
+        }
+
+        @VisibleForTesting int seenFeatureCount() {
+            return seenFeatures.length;
+        }
+
+        private void denseRow(int mailbox, float[] row) {
+            Arrays.fill(row, unseenLogLikelihoods[mailbox]);
+            for (int seenFeature = 0; seenFeature < seenFeatures.length; seenFeature++) {
+                row[seenFeatures[seenFeature]] = logLikelihoods[seenFeature * mailboxCount() + mailbox];
+            }
+        }
+    }
+
+    public static class Trainer {
+
+        private static class MailboxCounts {
+            private final String mailboxName;
+            private final int[] featureCounts;
+            private long totalCount;
+            private int mailCount;
+
+            private MailboxCounts(String mailboxName, int featureCount) {
+                this.mailboxName = mailboxName;
+                this.featureCounts = new int[featureCount];
+            }
+        }
+
+        private final int featureBits;
+        private final Map<String, Map<String, MailboxCounts>> counts;
+        private final HashedFeatures features;
+
+        private Trainer(int featureBits) {
+            Preconditions.checkArgument(featureBits > 0 && featureBits <= MAX_FEATURE_BITS,
+                "'featureBits' should be between 1 and %s", MAX_FEATURE_BITS);
+            this.featureBits = featureBits;
+            this.counts = new LinkedHashMap<>();
+            this.features = new HashedFeatures();
+        }
+
+        public Trainer learn(String user, String mailboxId, String mailboxName, List<String> subject, String textBody) {
+            int featureMask = (1 << featureBits) - 1;
+            features.clear();
+            subject.forEach(subjectPart -> features.addWords(subjectPart, HashedFeatures.SUBJECT_SEED, featureMask));
+            features.addWords(Strings.nullToEmpty(textBody), HashedFeatures.BODY_SEED, featureMask);
+
+            MailboxCounts mailboxCounts = counts.computeIfAbsent(normalize(user), any -> new LinkedHashMap<>())
+                .computeIfAbsent(mailboxId, any -> new MailboxCounts(mailboxName, 1 << featureBits));
+            for (int i = 0; i < features.size(); i++) {
+                mailboxCounts.featureCounts[features.get(i)]++;
+            }
+            mailboxCounts.totalCount += features.size();
+            mailboxCounts.mailCount++;
+            return this;
+        }
+
+        /**
+         * Likelihoods are smoothed by adding one occurrence of each feature to each mailbox.
+         */
+        public NaiveBayesModel build() {
+            int featureCount = 1 << featureBits;
+            ImmutableMap.Builder<String, UserTable> tables = ImmutableMap.builder();
+            counts.forEach((user, mailboxes) -> {
+                int mailboxCount = mailboxes.size();
+                String[] mailboxIds = new String[mailboxCount];
+                String[] mailboxNames = new String[mailboxCount];
+                float[] logPriors = new float[mailboxCount];
+                float[] logLikelihoods = new float[mailboxCount * featureCount];
+                double userMailCount = mailboxes.values().stream().mapToInt(mailboxCounts -> mailboxCounts.mailCount).sum();
+                int mailbox = 0;
+                for (Map.Entry<String, MailboxCounts> entry : mailboxes.entrySet()) {
+                    MailboxCounts mailboxCounts = entry.getValue();
+                    mailboxIds[mailbox] = entry.getKey();
+                    mailboxNames[mailbox] = mailboxCounts.mailboxName;
+                    logPriors[mailbox] = (float) Math.log(mailboxCounts.mailCount / userMailCount);
+                    double smoothedTotalCount = mailboxCounts.totalCount + featureCount;
+                    for (int feature = 0; feature < featureCount; feature++) {
+                        logLikelihoods[mailbox * featureCount + feature] = (float) Math.log((mailboxCounts.featureCounts[feature] + 1) / smoothedTotalCount);
+                    }
+                    mailbox++;
+                }
+                tables.put(user, UserTable.fromDense(mailboxIds, mailboxNames, logPriors, logLikelihoods, featureBits));
+            });
+            return new NaiveBayesModel(featureBits, tables.build());
+        }
+    }
+
+    public static Trainer trainer(int featureBits) {
+        return new Trainer(featureBits);
+    }
+
+    public static NaiveBayesModel read(Path modelFile) throws IOException {
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(Files.newInputStream(modelFile)))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException(modelFile + " is not a classification model");
+            }
+            int version = input.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported classification model version. Got " + version);
+            }
+            int featureBits = input.readInt();
+            if (featureBits < 1 || featureBits > MAX_FEATURE_BITS) {
+                throw new IOException("Invalid classification model feature bits. Got " + featureBits);
+            }
+            int userCount = input.readInt();
+            ImmutableMap.Builder<String, UserTable> tables = ImmutableMap.builder();
+            for (int user = 0; user < userCount; user++) {
+                String userName = input.readUTF();
+                tables.put(normalize(userName), readTable(input, featureBits));
+            }
+            return new NaiveBayesModel(featureBits, tables.build());
+        }
+    }
+
+    private static UserTable readTable(DataInputStream input, int featureBits) throws IOException {
+        int mailboxCount = input.readInt();
+        if (mailboxCount < 1 || ((long) mailboxCount << featureBits) > Integer.MAX_VALUE / Float.BYTES) {
+            throw new IOException("Invalid classification model mailbox count. Got " + mailboxCount);
+        }
+        String[] mailboxIds = new String[mailboxCount];
+        String[] mailboxNames = new String[mailboxCount];
+        float[] logPriors = new float[mailboxCount];
+        for (int mailbox = 0; mailbox < mailboxCount; mailbox++) {
+            mailboxIds[mailbox] = input.readUTF();
+            mailboxNames[mailbox] = input.readUTF();
+            logPriors[mailbox] = input.readFloat();
+        }
+        float[] logLikelihoods = new float[mailboxCount << featureBits];
+        byte[] chunk = new byte[FLOAT_CHUNK_SIZE * Float.BYTES];
+        for (int offset = 0; offset < logLikelihoods.length; offset += FLOAT_CHUNK_SIZE) {
+            int length = Math.min(FLOAT_CHUNK_SIZE, logLikelihoods.length - offset);
+            input.readFully(chunk, 0, length * Float.BYTES);
+            ByteBuffer.wrap(chunk, 0, length * Float.BYTES).asFloatBuffer().get(logLikelihoods, offset, length);
+        }
+        return UserTable.fromDense(mailboxIds, mailboxNames, logPriors, logLikelihoods, featureBits);
+    }
+
+    /**
+     * Lower cases users char by char, the way {@link #table(String, String)} compares them.
+     */
+    private static String normalize(String user) {
+        char[] characters = user.toCharArray();
+        for (int i = 0; i < characters.length; i++) {
+            characters[i] = Character.toLowerCase(characters[i]);
+        }
+        return new String(characters);
+    }
+
+    private final int featureBits;
+    private final Map<String, UserTable> tables;
+    private final String[] users;
+    private final UserTable[] userTables;
+    private final UserTable defaultTable;
+    private final int maxMailboxCount;
+
+    private NaiveBayesModel(int featureBits, Map<String, UserTable> tables) {
+        this.featureBits = featureBits;
+        this.tables = tables;
+        int capacity = Integer.highestOneBit(Math.max(1, tables.size()) * 2);
+        this.users = new String[capacity];
+        this.userTables = new UserTable[capacity];
+        tables.forEach((user, table) -> {
+            int slot = slot(user.hashCode());
+            while (users[slot] != null) {
+                slot = (slot + 1) & (users.length - 1);
+            }
+            users[slot] = user;
+            userTables[slot] = table;
+        });
+        this.defaultTable = tables.get(DEFAULT_USER);
+        this.maxMailboxCount = tables.values().stream()
+            .mapToInt(UserTable::mailboxCount)
+            .max()
+            .orElse(0);
+    }
+
+    public void write(Path modelFile) throws IOException {
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(modelFile)))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(featureBits);
+            output.writeInt(tables.size());
+            for (Map.Entry<String, UserTable> entry : tables.entrySet()) {
+                output.writeUTF(entry.getKey());
+                writeTable(output, entry.getValue());
+            }
+        }
+    }
+
+    private void writeTable(DataOutputStream output, UserTable table) throws IOException {
+        output.writeInt(table.mailboxCount());
+        for (int mailbox = 0; mailbox < table.mailboxCount(); mailbox++) {
+            output.writeUTF(table.mailboxIds[mailbox]);
+            output.writeUTF(table.mailboxNames[mailbox]);
+            output.writeFloat(table.logPriors[mailbox]);
+        }
+        ByteBuffer chunk = ByteBuffer.allocate(FLOAT_CHUNK_SIZE * Float.BYTES);
+        float[] row = new float[1 << featureBits];
+        for (int mailbox = 0; mailbox < table.mailboxCount(); mailbox++) {
+            table.denseRow(mailbox, row);
+            for (int offset = 0; offset < row.length; offset += FLOAT_CHUNK_SIZE) {
+                int length = Math.min(FLOAT_CHUNK_SIZE, row.length - offset);
+                chunk.clear();
+                chunk.asFloatBuffer().put(row, offset, length);
+                output.write(chunk.array(), 0, length * Float.BYTES);
+            }
+        }
+    }
+
+    int featureMask() {
+        return (1 << featureBits) - 1;
+    }
+
+    int maxMailboxCount() {
+        return maxMailboxCount;
+    }
+
+    UserTable table(String user) {
+        return table(user, null);
+    }
+
+    /**
+     * The table of localPart@domain, or the one of {@link #DEFAULT_USER} when it has none, null when neither exists.
+     * Without domain, localPart is the whole user.
+     */
+    UserTable table(String localPart, String domain) {
+        for (int slot = slot(hash(localPart, domain)); users[slot] != null; slot = (slot + 1) & (users.length - 1)) {
+            if (matches(users[slot], localPart, domain)) {
+                return userTables[slot];
+            }
+        }
+        return defaultTable;
+    }
+
+    private int slot(int hash) {
+        return (hash ^ (hash >>> 16)) & (users.length - 1);
+    }
+
+    /**
+     * The {@link String#hashCode()} of the normalized user.
+     */
+    private int hash(String localPart, String domain) {
+        int hash = hash(0, localPart);
+        if (domain == null) {
+            return hash;
+        }
+        return hash(31 * hash + '@', domain);
+    }
+
+    private int hash(int hash, String part) {
+        for (int i = 0; i < part.length(); i++) {
+            hash = 31 * hash + Character.toLowerCase(part.charAt(i));
+        }
+        return hash;
+    }
+
+    private boolean matches(String user, String localPart, String domain) {
+        if (domain == null) {
+            return user.length() == localPart.length() && matchesAt(user, 0, localPart);
+        }
+        return user.length() == localPart.length() + 1 + domain.length()
+            && matchesAt(user, 0, localPart)
+            && user.charAt(localPart.length()) == '@'
+            && matchesAt(user, localPart.length() + 1, domain);
+    }
+
+    private boolean matchesAt(String user, int offset, String part) {
+        for (int i = 0; i < part.length(); i++) {
+            if (user.charAt(offset + i) != Character.toLowerCase(part.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the log probability of each mailbox of the table into scores, and returns the most probable one.
+     *
+     * Every feature is first scored as unseen, then the features seen by the user are corrected with their own log
+     * likelihood.
+     */
+    int score(UserTable table, HashedFeatures features, double[] scores) {
+        int mailboxCount = table.mailboxCount();
+        for (int mailbox = 0; mailbox < mailboxCount; mailbox++) {
+            scores[mailbox] = table.logPriors[mailbox] + (double) features.size() * table.unseenLogLikelihoods[mailbox];
+        }
+        for (int i = 0; i < features.size(); i++) {
+            int row = Arrays.binarySearch(table.seenFeatures, features.get(i));
+            if (row >= 0) {
+                int offset = row * mailboxCount;
+                for (int mailbox = 0; mailbox < mailboxCount; mailbox++) {
+                    scores[mailbox] += (double) table.logLikelihoods[offset + mailbox] - table.unseenLogLikelihoods[mailbox];
+                }
+            }
+        }
+        int best = 0;
+        for (int mailbox = 1; mailbox < mailboxCount; mailbox++) {
+            if (scores[mailbox] > scores[best]) {
+                best = mailbox;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,50 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+/**
+ * Where the recipients to classify are given to the classification webservice.
+ *
+ * QUERY adds a recipients query parameter per recipient. BODY sends the same {"recipients":[...],"request":{...}}
+ * object than the entries of batch requests, keeping the URL short whatever the number of recipients.
+ */
+public enum RecipientsLocation {
+    QUERY("query"),
+    BODY("body");
+
+    public static Optional<RecipientsLocation> parse(String value) {
+        return Arrays.stream(values())
+            .filter(location -> location.value.equalsIgnoreCase(value))
+            .findFirst();
+    }
+
+    private final String value;
+
+    RecipientsLocation(String value) {
+        this.value = value;
+    }
+
+    public String getValue() {
+        return value;
+    }
+}
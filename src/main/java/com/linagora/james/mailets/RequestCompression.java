@@ -0,0 +1,158 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.HttpEntity;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Strings;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+
+/**
+ * Compresses the request bodies whose estimated size is above thresholdInBytes.
+ *
+ * The size of a streamed body is only known once written, while the Content-Encoding header is sent before
+ * it, hence the estimation.
+ */
+public class RequestCompression {
+
+    public enum Algorithm {
+        GZIP("gzip") {
+            @Override
+            DeflaterOutputStream compressing(OutputStream outputStream) throws IOException {
+                return new GZIPOutputStream(outputStream, BUFFER_SIZE);
+            }
+        },
+        DEFLATE("deflate") {
+            @Override
+            DeflaterOutputStream compressing(OutputStream outputStream) {
+                return new DeflaterOutputStream(outputStream);
+            }
+        };
+
+        private static final int BUFFER_SIZE = 8192;
+
+        public static Optional<Algorithm> parse(String value) {
+            return Arrays.stream(values())
+                .filter(algorithm -> algorithm.value.equalsIgnoreCase(value))
+                .findFirst();
+        }
+
+        private final String value;
+
+        Algorithm(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        abstract DeflaterOutputStream compressing(OutputStream outputStream) throws IOException;
+    }
+
+    private static final int ESTIMATED_ENVELOPE_SIZE_IN_BYTES = 512;
+
+    public static final Algorithm DEFAULT_ALGORITHM = Algorithm.GZIP;
+    public static final int DEFAULT_THRESHOLD_IN_BYTES = 8192;
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private Optional<Algorithm> algorithm = Optional.empty();
+        private Optional<Integer> thresholdInBytes = Optional.empty();
+
+        public Builder algorithm(Optional<Algorithm> algorithm) {
+            this.algorithm = algorithm;
+            return this;
+        }
+
+        public Builder thresholdInBytes(Optional<Integer> thresholdInBytes) {
+            this.thresholdInBytes = thresholdInBytes;
+            return this;
+        }
+
+        public RequestCompression build() {
+            int thresholdInBytes = this.thresholdInBytes.orElse(DEFAULT_THRESHOLD_IN_BYTES);
+            Preconditions.checkState(thresholdInBytes >= 0, "thresholdInBytes should be positive");
+
+            return new RequestCompression(algorithm.orElse(DEFAULT_ALGORITHM), thresholdInBytes);
+        }
+    }
+
+    private final Algorithm algorithm;
+    private final int thresholdInBytes;
+
+    private RequestCompression(Algorithm algorithm, int thresholdInBytes) {
+        this.algorithm = algorithm;
+        this.thresholdInBytes = thresholdInBytes;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    public int getThresholdInBytes() {
+        return thresholdInBytes;
+    }
+
+    /**
+     * The text body and the subject make most of a request body, other fields are accounted for by a constant.
+     */
+    static long estimatedSizeInBytes(ClassificationRequestBody requestBody) {
+        return ESTIMATED_ENVELOPE_SIZE_IN_BYTES
+            + Strings.nullToEmpty(requestBody.getTextBody()).length()
+            + requestBody.getSubject().stream()
+                .mapToInt(String::length)
+                .sum();
+    }
+
+    HttpEntity compressIfAboveThreshold(HttpEntity entity, long estimatedSizeInBytes) {
+        if (estimatedSizeInBytes > thresholdInBytes) {
+            return new CompressingEntity(entity, algorithm);
+        }
+        return entity;
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+        if (o instanceof RequestCompression) {
+            RequestCompression that = (RequestCompression) o;
+
+            return Objects.equals(this.algorithm, that.algorithm)
+                && Objects.equals(this.thresholdInBytes, that.thresholdInBytes);
+        }
+        return false;
+    }
+
+    @Override
+    public final int hashCode() {
+        return Objects.hash(algorithm, thresholdInBytes);
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.util.EntityUtils;
+
+import com.linagora.james.mailets.json.WireFormat;
+
+/**
+ * Reads the body of a classification response straight from the response stream, in the {@link WireFormat}
+ * given by its Content-Type. Responses without a known Content-Type are read as JSON.
+ */
+@FunctionalInterface
+interface ResponseParser<T> {
+
+    static WireFormat wireFormatOf(HttpEntity entity) {
+        return Optional.ofNullable(entity.getContentType())
+            .map(contentType -> ContentType.parse(contentType.getValue()).getMimeType())
+            .flatMap(WireFormat::fromMimeType)
+            .orElse(WireFormat.JSON);
+    }
+
+    T parse(InputStream responseBody, WireFormat wireFormat) throws IOException;
+
+    default T parseResponse(HttpResponse response) throws IOException {
+        StatusLine statusLine = response.getStatusLine();
+        HttpEntity entity = response.getEntity();
+        if (statusLine.getStatusCode() >= 300) {
+            EntityUtils.consume(entity);
+            throw new HttpResponseException(statusLine.getStatusCode(), statusLine.getReasonPhrase());
+        }
+        if (entity == null) {
+            throw new ClientProtocolException("Response contains no content");
+        }
+        try (InputStream responseBody = entity.getContent()) {
+            return parse(responseBody, wireFormatOf(entity));
+        }
+    }
+}
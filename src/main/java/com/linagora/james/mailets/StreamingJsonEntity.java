@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import com.linagora.james.mailets.json.WireFormat;
+
+/**
+ * Entity serializing its JSON, or binary {@link WireFormat}, content straight to the connection, using chunked transfer encoding, so that
+ * no in memory copy of the request body is made by the blocking client.
+ *
+ * The non blocking client can not write to an OutputStream and reads {@link #getContent()} instead, which
+ * buffers the serialized bytes.
+ */
+class StreamingJsonEntity extends AbstractHttpEntity {
+
+    @FunctionalInterface
+    interface JsonWriter {
+        void write(OutputStream outputStream) throws IOException;
+    }
+
+    private final JsonWriter jsonWriter;
+
+    StreamingJsonEntity(JsonWriter jsonWriter) {
+        this(jsonWriter, WireFormat.JSON);
+    }
+
+    StreamingJsonEntity(JsonWriter jsonWriter, WireFormat wireFormat) {
+        this.jsonWriter = jsonWriter;
+        setContentType(contentType(wireFormat).toString());
+        setChunked(true);
+    }
+
+    private static ContentType contentType(WireFormat wireFormat) {
+        if (wireFormat == WireFormat.JSON) {
+            return ContentType.APPLICATION_JSON;
+        }
+        return ContentType.create(wireFormat.getMimeType());
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        jsonWriter.write(content);
+        return new ByteArrayInputStream(content.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        jsonWriter.write(outputStream);
+        outputStream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
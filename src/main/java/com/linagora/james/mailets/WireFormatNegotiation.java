@@ -0,0 +1,57 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import org.apache.http.HttpStatus;
+import org.apache.http.client.HttpResponseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.linagora.james.mailets.json.WireFormat;
+
+/**
+ * Holds the wire format of classification requests. It starts with the configured one, and falls back to
+ * JSON for good once the classification service rejects it as an unsupported media type.
+ */
+class WireFormatNegotiation {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WireFormatNegotiation.class);
+
+    private volatile WireFormat wireFormat;
+
+    WireFormatNegotiation(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+    }
+
+    WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    void onFailure(Throwable failure) {
+        if (wireFormat != WireFormat.JSON && isUnsupportedMediaType(failure)) {
+            LOGGER.warn("Classification service does not accept {} requests, falling back to JSON", wireFormat.getValue());
+            wireFormat = WireFormat.JSON;
+        }
+    }
+
+    private boolean isUnsupportedMediaType(Throwable failure) {
+        return failure instanceof HttpResponseException
+            && ((HttpResponseException) failure).getStatusCode() == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE;
+    }
+}
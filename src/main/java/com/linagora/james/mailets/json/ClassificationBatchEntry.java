@@ -0,0 +1,40 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import java.util.List;
+
+public class ClassificationBatchEntry {
+
+    private final List<String> recipients;
+    private final ClassificationRequestBody request;
+
+    public ClassificationBatchEntry(List<String> recipients, ClassificationRequestBody request) {
+        this.recipients = recipients;
+        this.request = request;
+    }
+
+    public List<String> getRecipients() {
+        return recipients;
+    }
+
+    public ClassificationRequestBody getRequest() {
+        return request;
+    }
+}
@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.steveash.guavate.Guavate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Reads classification responses straight from their stream, handing each entry of "results" to a
+ * {@link ResultHandler} as soon as it is read.
+ *
+ * Entries are handed in their serialized form, ready to be used as a header value: they are validated
+ * against the mandatory fields of {@link ClassificationGuess}, but not bound to it. The confidence is kept
+ * as written by the classification service, and the serialized forms are cached, so that identical guesses
+ * shared by many recipients are only serialized once.
+ *
+ * The "errors" part is only read, and logged, when debug logging is enabled. It is skipped otherwise.
+ *
+ * Responses can be read in any {@link WireFormat}, serialized guesses are always JSON.
+ */
+public class ClassificationGuessesParser {
+
+    public static final int DEFAULT_SERIALIZED_GUESSES_CACHE_SIZE = 1000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ClassificationGuessesParser.class);
+    private static final String RESULTS = "results";
+    private static final String ERRORS = "errors";
+    private static final String MAILBOX_ID = "mailboxId";
+    private static final String MAILBOX_NAME = "mailboxName";
+    private static final String CONFIDENCE = "confidence";
+
+    private static class SerializedGuessKey {
+        private final String mailboxId;
+        private final String mailboxName;
+        private final String confidence;
+
+        SerializedGuessKey(String mailboxId, String mailboxName, String confidence) {
+            this.mailboxId = mailboxId;
+            this.mailboxName = mailboxName;
+            this.confidence = confidence;
+        }
+
+        @Override
+        public final boolean equals(Object o) {
+            if (o instanceof SerializedGuessKey) {
+                SerializedGuessKey that = (SerializedGuessKey) o;
+
+                return Objects.equals(this.mailboxId, that.mailboxId)
+                    && Objects.equals(this.mailboxName, that.mailboxName)
+                    && Objects.equals(this.confidence, that.confidence);
+            }
+            return false;
+        }
+
+        @Override
+        public final int hashCode() {
+            return Objects.hash(mailboxId, mailboxName, confidence);
+        }
+    }
+
+    @FunctionalInterface
+    public interface ResultHandler {
+        void handle(String recipient, String serializedGuess) throws IOException;
+    }
+
+    @FunctionalInterface
+    public interface BatchResultHandler {
+        ResultHandler forEntry(int index) throws IOException;
+    }
+
+    private final ObjectMapper objectMapper;
+    private final Map<WireFormat, JsonFactory> factories;
+    private final Cache<SerializedGuessKey, String> serializedGuesses;
+
+    public ClassificationGuessesParser() {
+        this(DEFAULT_SERIALIZED_GUESSES_CACHE_SIZE);
+    }
+
+    public ClassificationGuessesParser(int serializedGuessesCacheSize) {
+        this.objectMapper = new ObjectMapper();
+        this.factories = Arrays.stream(WireFormat.values())
+            .collect(Guavate.toImmutableMap(Function.identity(), WireFormat::createFactory));
+        this.serializedGuesses = CacheBuilder.newBuilder()
+            .maximumSize(serializedGuessesCacheSize)
+            .build();
+    }
+
+    /**
+     * Parses a single classification response: {"results":{...},"errors":{...}}
+     */
+    public void parse(InputStream inputStream, ResultHandler resultHandler) throws IOException {
+        parse(inputStream, WireFormat.JSON, resultHandler);
+    }
+
+    public void parse(InputStream inputStream, WireFormat wireFormat, ResultHandler resultHandler) throws IOException {
+        try (JsonParser parser = factories.get(wireFormat).createParser(inputStream)) {
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            parseGuesses(parser, resultHandler);
+        }
+    }
+
+    /**
+     * Parses a batch classification response, a JSON array of classification responses, and returns the
+     * number of responses it contained.
+     */
+    public int parseBatch(InputStream inputStream, BatchResultHandler batchResultHandler) throws IOException {
+        return parseBatch(inputStream, WireFormat.JSON, batchResultHandler);
+    }
+
+    public int parseBatch(InputStream inputStream, WireFormat wireFormat, BatchResultHandler batchResultHandler) throws IOException {
+        try (JsonParser parser = factories.get(wireFormat).createParser(inputStream)) {
+            expect(parser, parser.nextToken(), JsonToken.START_ARRAY);
+            int index = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                expect(parser, parser.getCurrentToken(), JsonToken.START_OBJECT);
+                parseGuesses(parser, batchResultHandler.forEntry(index));
+                index++;
+            }
+            return index;
+        }
+    }
+
+    private void parseGuesses(JsonParser parser, ResultHandler resultHandler) throws IOException {
+        boolean hasResults = false;
+        boolean hasErrors = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (fieldName.equals(RESULTS)) {
+                expect(parser, value, JsonToken.START_OBJECT);
+                parseResults(parser, resultHandler);
+                hasResults = true;
+            } else if (fieldName.equals(ERRORS)) {
+                logErrors(parser);
+                hasErrors = true;
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (!hasResults || !hasErrors) {
+            throw new JsonParseException("'results' and 'errors' are mandatory", parser.getCurrentLocation());
+        }
+    }
+
+    private void parseResults(JsonParser parser, ResultHandler resultHandler) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String recipient = parser.getCurrentName();
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+            resultHandler.handle(recipient, readSerializedGuess(parser, recipient));
+        }
+    }
+
+    private String readSerializedGuess(JsonParser parser, String recipient) throws IOException {
+        String mailboxId = null;
+        String mailboxName = null;
+        String confidence = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (fieldName.equals(MAILBOX_ID)) {
+                expect(parser, value, JsonToken.VALUE_STRING);
+                mailboxId = parser.getText();
+            } else if (fieldName.equals(MAILBOX_NAME)) {
+                expect(parser, value, JsonToken.VALUE_STRING);
+                mailboxName = parser.getText();
+            } else if (fieldName.equals(CONFIDENCE)) {
+                if (!value.isNumeric()) {
+                    throw new JsonParseException("Expecting a number for " + CONFIDENCE + " but got " + value, parser.getCurrentLocation());
+                }
+                confidence = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        if (mailboxId == null || mailboxName == null || confidence == null) {
+            throw new JsonParseException("'mailboxId', 'mailboxName' and 'confidence' are mandatory for " + recipient, parser.getCurrentLocation());
+        }
+        return serializedGuess(new SerializedGuessKey(mailboxId, mailboxName, confidence));
+    }
+
+    private String serializedGuess(SerializedGuessKey key) throws IOException {
+        String serializedGuess = serializedGuesses.getIfPresent(key);
+        if (serializedGuess == null) {
+            serializedGuess = serialize(key);
+            serializedGuesses.put(key, serializedGuess);
+        }
+        return serializedGuess;
+    }
+
+    private String serialize(SerializedGuessKey key) throws IOException {
+        StringWriter writer = new StringWriter();
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(writer)) {
+            generator.writeStartObject();
+            generator.writeStringField(MAILBOX_ID, key.mailboxId);
+            generator.writeStringField(MAILBOX_NAME, key.mailboxName);
+            generator.writeFieldName(CONFIDENCE);
+            generator.writeNumber(key.confidence);
+            generator.writeEndObject();
+        }
+        return writer.toString();
+    }
+
+    private void logErrors(JsonParser parser) throws IOException {
+        if (LOGGER.isDebugEnabled()) {
+            JsonNode errors = objectMapper.readTree(parser);
+            LOGGER.debug("Classification errors: {}", errors);
+        } else {
+            parser.skipChildren();
+        }
+    }
+
+    private void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws JsonParseException {
+        if (actual != expected) {
+            throw new JsonParseException("Expecting " + expected + " but got " + actual, parser.getCurrentLocation());
+        }
+    }
+}
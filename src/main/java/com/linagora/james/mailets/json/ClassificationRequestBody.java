@@ -17,8 +17,6 @@
  *******************************************************************************/
 package com.linagora.james.mailets.json;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.time.Instant;
 import java.util.List;
@@ -28,66 +26,66 @@ import java.util.UUID;
 import javax.mail.MessagingException;
 import javax.mail.internet.MimeMessage;
 
-import org.apache.james.jmap.utils.JsoupHtmlTextExtractor;
-import org.apache.james.mime4j.dom.Message;
-import org.apache.james.mime4j.stream.MimeConfig;
-import org.apache.james.util.mime.MessageContentExtractor;
-import org.apache.james.util.mime.MessageContentExtractor.MessageContent;
 import org.apache.mailet.Mail;
 
 import com.google.common.base.Strings;
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.linagora.james.mailets.json.StreamingMessageContentExtractor.ExtractedContent;
 
 public class ClassificationRequestBody {
-    private static final MimeConfig MIME_ENTITY_CONFIG = MimeConfig.custom()
-        .setMaxContentLen(-1)
-        .setMaxHeaderCount(-1)
-        .setMaxHeaderLen(-1)
-        .setMaxLineLen(-1)
-        .build();
-    private static final JsoupHtmlTextExtractor jsoupHtmlTextExtractor = new JsoupHtmlTextExtractor();
-
     public static ClassificationRequestBody from(Mail mail, UUID messageId) throws MessagingException, IOException {
+        return from(mail, messageId, TextBudget.UNLIMITED);
+    }
+
+    public static ClassificationRequestBody from(Mail mail, UUID messageId, TextBudget textBudget) throws MessagingException, IOException {
+        return from(mail, messageId, textBudget, ExtractionListener.NONE);
+    }
+
+    public static ClassificationRequestBody from(Mail mail, UUID messageId, TextBudget textBudget, ExtractionListener extractionListener) throws MessagingException, IOException {
+        return from(mail, messageId, textBudget, HtmlToTextConverter.JSOUP, extractionListener, Ticker.systemTicker());
+    }
+
+    public static ClassificationRequestBody from(Mail mail, UUID messageId, TextBudget textBudget, HtmlToTextConverter htmlToTextConverter,
+                                                 ExtractionListener extractionListener, Ticker ticker) throws MessagingException, IOException {
         MimeMessage message = mail.getMessage();
-        
-        return new ClassificationRequestBody(messageId,
+        long extractionStart = ticker.read();
+        ExtractedContent extractedContent = new StreamingMessageContentExtractor(textBudget).extract(message);
+        long conversionStart = ticker.read();
+        String mainTextContent = mainTextContent(extractedContent, htmlToTextConverter, textBudget).orElse("");
+        String textBody = textBudget.limitText(mainTextContent);
+        long headersStart = ticker.read();
+        extractionListener.htmlConvertedToText(headersStart - conversionStart);
+
+        ClassificationRequestBody requestBody = new ClassificationRequestBody(messageId,
                 Emailers.from(message.getFrom()),
                 Recipients.from(message),
                 ImmutableList.of(Optional.ofNullable(message.getSubject()).orElse("")),
-                retrieveTextPart(mail),
+                textBody,
+                textBody.length() < mainTextContent.length() || isMainTextContentTruncated(extractedContent),
                 Optional.ofNullable(message.getSentDate()).map(x -> x.toInstant()));
+        extractionListener.mimeParsed(conversionStart - extractionStart + ticker.read() - headersStart);
+        return requestBody;
     }
 
-    private static String retrieveTextPart(Mail mail) throws IOException, MessagingException {
-        MessageContent messageContent = new MessageContentExtractor()
-                .extract(toMime4jMessage(mail));
-        return mainTextContent(messageContent).orElse("");
-    }
-
-    private static Message toMime4jMessage(Mail mail) throws IOException, MessagingException {
-        ByteArrayOutputStream rawMessage = new ByteArrayOutputStream(getSanitizedMailSize(mail));
-        mail.getMessage().writeTo(rawMessage);
-
-        return Message.Builder.of()
-                .use(MIME_ENTITY_CONFIG)
-                .parse(new ByteArrayInputStream(rawMessage.toByteArray()))
-                .build();
+    private static Optional<String> mainTextContent(ExtractedContent extractedContent, HtmlToTextConverter htmlToTextConverter, TextBudget textBudget) {
+        return nonEmptyHtmlBody(extractedContent)
+            .map(htmlBody -> htmlToTextConverter.toPlainText(htmlBody, textBudget))
+            .map(Optional::of)
+            .filter(Optional::isPresent)
+            .orElse(extractedContent.getTextBody());
     }
 
-    private static int getSanitizedMailSize(Mail mail) throws MessagingException {
-        if (mail.getMessageSize() > 0) {
-            return Long.valueOf(mail.getMessageSize()).intValue();
+    private static boolean isMainTextContentTruncated(ExtractedContent extractedContent) {
+        if (nonEmptyHtmlBody(extractedContent).isPresent()) {
+            return extractedContent.isHtmlBodyTruncated();
         }
-        return 0;
+        return extractedContent.isTextBodyTruncated();
     }
 
-    private static Optional<String> mainTextContent(MessageContent messageContent) {
-        return messageContent.getHtmlBody()
-            .filter(s -> !Strings.isNullOrEmpty(s))
-            .map(jsoupHtmlTextExtractor::toPlainText)
-            .map(Optional::of)
-            .filter(Optional::isPresent)
-            .orElse(messageContent.getTextBody());
+    private static Optional<String> nonEmptyHtmlBody(ExtractedContent extractedContent) {
+        return extractedContent.getHtmlBody()
+            .filter(s -> !Strings.isNullOrEmpty(s));
     }
 
     private final UUID messageId;
@@ -95,14 +93,16 @@ public class ClassificationRequestBody {
     private final Recipients recipients;
     private final List<String> subject;
     private final String textBody;
+    private final boolean textBodyTruncated;
     private final Optional<Instant> date;
 
-    private ClassificationRequestBody(UUID messageId, List<Emailer> from, Recipients recipients, List<String> subject, String textBody, Optional<Instant> date) {
+    private ClassificationRequestBody(UUID messageId, List<Emailer> from, Recipients recipients, List<String> subject, String textBody, boolean textBodyTruncated, Optional<Instant> date) {
         this.messageId = messageId;
         this.from = from;
         this.recipients = recipients;
         this.subject = subject;
         this.textBody = textBody;
+        this.textBodyTruncated = textBodyTruncated;
         this.date = date;
     }
 
@@ -126,6 +126,10 @@ public class ClassificationRequestBody {
         return textBody;
     }
 
+    public boolean isTextBodyTruncated() {
+        return textBodyTruncated;
+    }
+
     public Optional<Instant> getDate() {
         return date;
     }
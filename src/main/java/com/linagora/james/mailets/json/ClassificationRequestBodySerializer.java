@@ -18,34 +18,121 @@
 package com.linagora.james.mailets.json;
 
 import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
 
 import javax.mail.MessagingException;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.std.ToStringSerializer;
 import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
 import org.apache.mailet.Mail;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.steveash.guavate.Guavate;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
 
 public class ClassificationRequestBodySerializer {
 
-    private static final ObjectMapper mapper = new ObjectMapper()
-        .registerModules(new JavaTimeModule(), new Jdk8Module())
-        .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+    private static final Map<WireFormat, ObjectMapper> mappers = Arrays.stream(WireFormat.values())
+        .collect(Guavate.toImmutableMap(Function.identity(), ClassificationRequestBodySerializer::createMapper));
+    private static final ObjectMapper mapper = mappers.get(WireFormat.JSON);
+
+    private static ObjectMapper createMapper(WireFormat wireFormat) {
+        return new ObjectMapper(wireFormat.createFactory())
+            .registerModules(new JavaTimeModule(), new Jdk8Module(), uuidAsStringModule())
+            .configure(SerializationFeature.WRITE_DATES_AS_TIMESTAMPS, false);
+    }
+
+    /**
+     * Binary formats would otherwise write UUIDs as 16 raw bytes, while the classification service expects the
+     * same messageId whatever the format.
+     */
+    private static SimpleModule uuidAsStringModule() {
+        return new SimpleModule().addSerializer(UUID.class, ToStringSerializer.instance);
+    }
 
     private final Mail mail;
     private final UUIDGenerator uuidGenerator;
+    private final TextBudget textBudget;
+    private final HtmlToTextConverter htmlToTextConverter;
+    private final ExtractionListener extractionListener;
+    private final Ticker ticker;
 
     public ClassificationRequestBodySerializer(Mail mail, UUIDGenerator uuidGenerator) {
+        this(mail, uuidGenerator, TextBudget.UNLIMITED);
+    }
+
+    public ClassificationRequestBodySerializer(Mail mail, UUIDGenerator uuidGenerator, TextBudget textBudget) {
+        this(mail, uuidGenerator, textBudget, ExtractionListener.NONE);
+    }
+
+    public ClassificationRequestBodySerializer(Mail mail, UUIDGenerator uuidGenerator, TextBudget textBudget, ExtractionListener extractionListener) {
+        this(mail, uuidGenerator, textBudget, HtmlToTextConverter.JSOUP, extractionListener, Ticker.systemTicker());
+    }
+
+    public ClassificationRequestBodySerializer(Mail mail, UUIDGenerator uuidGenerator, TextBudget textBudget, HtmlToTextConverter htmlToTextConverter,
+                                               ExtractionListener extractionListener, Ticker ticker) {
         Preconditions.checkNotNull(mail, "'mail' is mandatory");
         Preconditions.checkNotNull(uuidGenerator, "'uuidGenerator' is mandatory");
+        Preconditions.checkNotNull(textBudget, "'textBudget' is mandatory");
+        Preconditions.checkNotNull(htmlToTextConverter, "'htmlToTextConverter' is mandatory");
+        Preconditions.checkNotNull(extractionListener, "'extractionListener' is mandatory");
+        Preconditions.checkNotNull(ticker, "'ticker' is mandatory");
         this.mail = mail;
         this.uuidGenerator = uuidGenerator;
+        this.textBudget = textBudget;
+        this.htmlToTextConverter = htmlToTextConverter;
+        this.extractionListener = extractionListener;
+        this.ticker = ticker;
+    }
+
+    public static void writeJson(ClassificationRequestBody requestBody, OutputStream outputStream) throws IOException {
+        write(requestBody, WireFormat.JSON, outputStream);
+    }
+
+    public static void writeJson(List<ClassificationBatchEntry> batch, OutputStream outputStream) throws IOException {
+        write(batch, WireFormat.JSON, outputStream);
+    }
+
+    public static void write(ClassificationRequestBody requestBody, WireFormat wireFormat, OutputStream outputStream) throws IOException {
+        writeValue(requestBody, wireFormat, outputStream);
+    }
+
+    public static void write(ClassificationBatchEntry entry, WireFormat wireFormat, OutputStream outputStream) throws IOException {
+        writeValue(entry, wireFormat, outputStream);
+    }
+
+    public static void write(List<ClassificationBatchEntry> batch, WireFormat wireFormat, OutputStream outputStream) throws IOException {
+        writeValue(batch, wireFormat, outputStream);
+    }
+
+    private static void writeValue(Object value, WireFormat wireFormat, OutputStream outputStream) throws IOException {
+        ObjectMapper wireFormatMapper = mappers.get(wireFormat);
+        try (JsonGenerator generator = wireFormatMapper.getFactory().createGenerator(outputStream, JsonEncoding.UTF8)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            wireFormatMapper.writeValue(generator, value);
+        }
+    }
+
+    public static String toJsonAsString(ClassificationRequestBody requestBody) throws IOException {
+        return mapper.writeValueAsString(requestBody);
+    }
+
+    public ClassificationRequestBody toRequestBody() throws MessagingException, IOException {
+        return ClassificationRequestBody.from(mail, uuidGenerator.generate(mail), textBudget, htmlToTextConverter, extractionListener, ticker);
     }
 
     public String toJsonAsString() throws MessagingException, IOException {
-        return mapper.writeValueAsString(ClassificationRequestBody.from(mail, uuidGenerator.random()));
+        return toJsonAsString(toRequestBody());
     }
 }
@@ -0,0 +1,42 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+/**
+ * Gets the durations of the steps of {@link ClassificationRequestBody#from}.
+ *
+ * MIME parsing covers the extraction of the bodies and the parsing of the headers, html to text the conversion
+ * of the html body, if any.
+ */
+public interface ExtractionListener {
+
+    ExtractionListener NONE = new ExtractionListener() {
+        @Override
+        public void mimeParsed(long durationInNanos) {
+        }
+
+        @Override
+        public void htmlConvertedToText(long durationInNanos) {
+        }
+    };
+
+    void mimeParsed(long durationInNanos);
+
+    void htmlConvertedToText(long durationInNanos);
+}
@@ -0,0 +1,79 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets.json;
+
+import java.util.Arrays;
+import java.util.Optional;
+
+import org.apache.james.jmap.utils.JsoupHtmlTextExtractor;
+
+/**
+ * Converts the html body of a message to the text sent to the classification API.
+ *
+ * The default converter relies on Jsoup, which builds a DOM of the whole html body. The streaming one strips the
+ * tags in a single pass, and stops once the text exceeds the {@link TextBudget}.
+ */
+public interface HtmlToTextConverter {
+
+    enum Strategy {
+        JSOUP("jsoup"),
+        STREAMING("streaming");
+
+        public static Optional<Strategy> parse(String value) {
+            return Arrays.stream(values())
+                .filter(strategy -> strategy.value.equalsIgnoreCase(value))
+                .findFirst();
+        }
+
+        private final String value;
+
+        Strategy(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+
+    HtmlToTextConverter JSOUP = new HtmlToTextConverter() {
+        private final JsoupHtmlTextExtractor jsoupHtmlTextExtractor = new JsoupHtmlTextExtractor();
+
+        @Override
+        public String toPlainText(String html, TextBudget textBudget) {
+            return jsoupHtmlTextExtractor.toPlainText(html);
+        }
+    };
+
+    static HtmlToTextConverter of(Strategy strategy) {
+        switch (strategy) {
+            case STREAMING:
+                return new StreamingHtmlToTextConverter();
+            default:
+                return JSOUP;
+        }
+    }
+
+    /**
+     * Returns the text of the given html. When the text exceeds the maxTextChars of the {@link TextBudget},
+     * converters can return any longer prefix of it.
+     */
+    String toPlainText(String html, TextBudget textBudget);
+}
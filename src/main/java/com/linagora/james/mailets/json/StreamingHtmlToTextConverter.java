@@ -0,0 +1,220 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets.json;
+
+import java.util.Locale;
+
+import org.jsoup.parser.Parser;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * Strips the tags of an html document in a single pass, without building a DOM.
+ *
+ * Text is kept as is once its entities are decoded. The content of script, style and title elements, and comments,
+ * are skipped. br elements are converted to a line break, and block level elements start and end on a new line.
+ *
+ * The conversion stops as soon as the text exceeds the maxTextChars of the {@link TextBudget}.
+ */
+class StreamingHtmlToTextConverter implements HtmlToTextConverter {
+
+    private static final ImmutableSet<String> SKIPPED_CONTENT_ELEMENTS = ImmutableSet.of("script", "style", "title");
+    private static final ImmutableSet<String> BLOCK_ELEMENTS = ImmutableSet.of(
+        "address", "article", "aside", "blockquote", "center", "dd", "div", "dl", "dt", "fieldset", "figcaption",
+        "figure", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hr", "li", "main", "nav", "ol",
+        "p", "pre", "section", "table", "tbody", "td", "tfoot", "th", "thead", "tr", "ul");
+    private static final ImmutableMap<String, String> COMMON_ENTITIES = ImmutableMap.<String, String>builder()
+        .put("amp", "&")
+        .put("lt", "<")
+        .put("gt", ">")
+        .put("quot", "\"")
+        .put("apos", "'")
+        .put("nbsp", "\u00A0")
+        .build();
+    private static final String BR_ELEMENT = "br";
+    private static final String COMMENT_START = "<!--";
+    private static final String COMMENT_END = "-->";
+    private static final char LINE_BREAK = '\n';
+    private static final int MAX_ENTITY_NAME_LENGTH = 32;
+    private static final int REPLACEMENT_CHARACTER = 0xFFFD;
+
+    @Override
+    public String toPlainText(String html, TextBudget textBudget) {
+        int maxLength = textBudget.getMaxTextChars()
+            .map(maxTextChars -> maxTextChars + 1)
+            .orElse(Integer.MAX_VALUE);
+        StringBuilder text = new StringBuilder();
+        int position = 0;
+        while (position < html.length() && text.length() < maxLength) {
+            char current = html.charAt(position);
+            if (current == '<') {
+                position = readMarkup(html, position, text);
+            } else if (current == '&') {
+                position = readEntity(html, position, text);
+            } else {
+                text.append(current);
+                position++;
+            }
+        }
+        return text.toString();
+    }
+
+    private int readMarkup(String html, int position, StringBuilder text) {
+        if (html.startsWith(COMMENT_START, position)) {
+            return skipPast(html, COMMENT_END, position + COMMENT_START.length());
+        }
+        if (html.startsWith("<!", position) || html.startsWith("<?", position)) {
+            return skipPast(html, ">", position);
+        }
+        boolean endTag = html.startsWith("</", position);
+        int nameStart = endTag ? position + 2 : position + 1;
+        int nameEnd = nameStart;
+        while (nameEnd < html.length() && Character.isLetterOrDigit(html.charAt(nameEnd))) {
+            nameEnd++;
+        }
+        if (nameEnd == nameStart) {
+            text.append('<');
+            return position + 1;
+        }
+        String name = html.substring(nameStart, nameEnd).toLowerCase(Locale.US);
+        int tagEnd = endOfTag(html, nameEnd);
+        if (!endTag && SKIPPED_CONTENT_ELEMENTS.contains(name)) {
+            return skipElementContent(html, name, tagEnd);
+        }
+        if (name.equals(BR_ELEMENT)) {
+            text.append(LINE_BREAK);
+        } else if (BLOCK_ELEMENTS.contains(name)) {
+            startNewLine(text);
+        }
+        return tagEnd;
+    }
+
+    /**
+     * A quote left open would otherwise hide the rest of the document: the tag then ends at the first &gt; following
+     * the quote.
+     */
+    private int endOfTag(String html, int position) {
+        char quote = 0;
+        int firstQuotedTagEnd = -1;
+        for (int i = position; i < html.length(); i++) {
+            char current = html.charAt(i);
+            if (quote != 0) {
+                if (current == quote) {
+                    quote = 0;
+                } else if (current == '>' && firstQuotedTagEnd < 0) {
+                    firstQuotedTagEnd = i + 1;
+                }
+            } else if (current == '"' || current == '\'') {
+                quote = current;
+                firstQuotedTagEnd = -1;
+            } else if (current == '>') {
+                return i + 1;
+            }
+        }
+        if (quote != 0 && firstQuotedTagEnd >= 0) {
+            return firstQuotedTagEnd;
+        }
+        return html.length();
+    }
+
+    private int skipElementContent(String html, String name, int position) {
+        for (int i = html.indexOf("</", position); i >= 0; i = html.indexOf("</", i + 2)) {
+            int nameEnd = i + 2 + name.length();
+            if (html.regionMatches(true, i + 2, name, 0, name.length()) && isEndOfTagName(html, nameEnd)) {
+                return endOfTag(html, nameEnd);
+            }
+        }
+        return html.length();
+    }
+
+    private boolean isEndOfTagName(String html, int position) {
+        if (position >= html.length()) {
+            return true;
+        }
+        char current = html.charAt(position);
+        return current == '>' || current == '/' || Character.isWhitespace(current);
+    }
+
+    private int skipPast(String html, String delimiter, int position) {
+        int delimiterStart = html.indexOf(delimiter, position);
+        if (delimiterStart < 0) {
+            return html.length();
+        }
+        return delimiterStart + delimiter.length();
+    }
+
+    private void startNewLine(StringBuilder text) {
+        if (text.length() > 0 && text.charAt(text.length() - 1) != LINE_BREAK) {
+            text.append(LINE_BREAK);
+        }
+    }
+
+    private int readEntity(String html, int position, StringBuilder text) {
+        int semicolon = indexOfEntityEnd(html, position);
+        if (semicolon < 0) {
+            text.append('&');
+            return position + 1;
+        }
+        if (html.charAt(position + 1) == '#') {
+            return readNumericEntity(html, position, semicolon, text);
+        }
+        String name = html.substring(position + 1, semicolon);
+        String decoded = COMMON_ENTITIES.get(name);
+        if (decoded == null) {
+            decoded = Parser.unescapeEntities(html.substring(position, semicolon + 1), false);
+        }
+        text.append(decoded);
+        return semicolon + 1;
+    }
+
+    /**
+     * Only looks for the semicolon within MAX_ENTITY_NAME_LENGTH characters, so that documents full of ampersands are
+     * still converted in linear time.
+     */
+    private int indexOfEntityEnd(String html, int position) {
+        int searchEnd = Math.min(html.length(), position + MAX_ENTITY_NAME_LENGTH + 1);
+        for (int i = position + 1; i < searchEnd; i++) {
+            if (html.charAt(i) == ';') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int readNumericEntity(String html, int position, int semicolon, StringBuilder text) {
+        boolean hexadecimal = position + 2 < semicolon && (html.charAt(position + 2) == 'x' || html.charAt(position + 2) == 'X');
+        int digitsStart = hexadecimal ? position + 3 : position + 2;
+        try {
+            int codePoint = Integer.parseInt(html.substring(digitsStart, semicolon), hexadecimal ? 16 : 10);
+            text.appendCodePoint(isValidCodePoint(codePoint) ? codePoint : REPLACEMENT_CHARACTER);
+            return semicolon + 1;
+        } catch (NumberFormatException e) {
+            text.append('&');
+            return position + 1;
+        }
+    }
+
+    private boolean isValidCodePoint(int codePoint) {
+        return codePoint > 0
+            && Character.isValidCodePoint(codePoint)
+            && !(codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE);
+    }
+}
@@ -0,0 +1,289 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+package com.linagora.james.mailets.json;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Optional;
+
+import javax.mail.MessagingException;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.james.mime4j.Charsets;
+import org.apache.james.mime4j.MimeException;
+import org.apache.james.mime4j.codec.DecodeMonitor;
+import org.apache.james.mime4j.message.DefaultBodyDescriptorBuilder;
+import org.apache.james.mime4j.message.MaximalBodyDescriptor;
+import org.apache.james.mime4j.parser.AbstractContentHandler;
+import org.apache.james.mime4j.parser.MimeStreamParser;
+import org.apache.james.mime4j.stream.BodyDescriptor;
+import org.apache.james.mime4j.stream.MimeConfig;
+import org.apache.james.mime4j.stream.MimeTokenStream;
+import org.apache.james.mime4j.stream.RecursionMode;
+import org.apache.james.mime4j.util.CharsetUtil;
+import org.apache.james.util.mime.MessageContentExtractor;
+
+import com.google.common.base.Joiner;
+import com.google.common.io.ByteStreams;
+
+/**
+ * Extracts the text and html bodies of a message the way {@link MessageContentExtractor} does, but in a single
+ * pass over the raw message, without building a mime4j DOM.
+ *
+ * Only the selected text/plain and text/html parts are decoded, up to the given {@link TextBudget}, and parsing
+ * stops as soon as no other part can be selected. Whether a part is selected only depends on its Content-Type and
+ * Content-Disposition headers: the base64 or quoted-printable content of the other parts, including attached
+ * messages, is skipped without being decoded.
+ */
+public class StreamingMessageContentExtractor {
+
+    public static class ExtractedContent {
+        private final Optional<String> textBody;
+        private final Optional<String> htmlBody;
+        private final boolean textBodyTruncated;
+        private final boolean htmlBodyTruncated;
+
+        public ExtractedContent(Optional<String> textBody, Optional<String> htmlBody, boolean textBodyTruncated, boolean htmlBodyTruncated) {
+            this.textBody = textBody;
+            this.htmlBody = htmlBody;
+            this.textBodyTruncated = textBodyTruncated;
+            this.htmlBodyTruncated = htmlBodyTruncated;
+        }
+
+        public Optional<String> getTextBody() {
+            return textBody;
+        }
+
+        public Optional<String> getHtmlBody() {
+            return htmlBody;
+        }
+
+        public boolean isTextBodyTruncated() {
+            return textBodyTruncated;
+        }
+
+        public boolean isHtmlBodyTruncated() {
+            return htmlBodyTruncated;
+        }
+    }
+
+    private static final MimeConfig MIME_ENTITY_CONFIG = MimeConfig.custom()
+        .setMaxContentLen(-1)
+        .setMaxHeaderCount(-1)
+        .setMaxHeaderLen(-1)
+        .setMaxLineLen(-1)
+        .build();
+    private static final String CRLF = "\r\n";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final TextBudget textBudget;
+
+    public StreamingMessageContentExtractor() {
+        this(TextBudget.UNLIMITED);
+    }
+
+    public StreamingMessageContentExtractor(TextBudget textBudget) {
+        this.textBudget = textBudget;
+    }
+
+    public ExtractedContent extract(MimeMessage message) throws IOException, MessagingException {
+        try (InputStream inputStream = asInputStream(message)) {
+            return extract(inputStream);
+        }
+    }
+
+    public ExtractedContent extract(InputStream message) throws IOException {
+        MimeTokenStream tokenStream = new MimeTokenStream(MIME_ENTITY_CONFIG, DecodeMonitor.SILENT, new DefaultBodyDescriptorBuilder());
+        tokenStream.setRecursionMode(RecursionMode.M_NO_RECURSE);
+        MimeStreamParser parser = new MimeStreamParser(tokenStream);
+        parser.setContentDecoding(true);
+        TextPartsHandler handler = new TextPartsHandler(textBudget);
+        parser.setContentHandler(handler);
+        try {
+            parser.parse(message);
+        } catch (NothingElseToSelectException e) {
+            // Remaining parts are left unread
+        } catch (MimeException e) {
+            throw new IOException(e);
+        }
+        return new ExtractedContent(handler.textBody, handler.htmlBody, handler.textBodyTruncated, handler.htmlBodyTruncated);
+    }
+
+    private InputStream asInputStream(MimeMessage message) throws IOException, MessagingException {
+        InputStream rawBody;
+        try {
+            rawBody = message.getRawInputStream();
+        } catch (MessagingException e) {
+            return writtenMessage(message);
+        }
+        String headers = Joiner.on(CRLF).join(Collections.list(message.getAllHeaderLines()));
+        return new SequenceInputStream(
+            new ByteArrayInputStream((headers + CRLF + CRLF).getBytes(StandardCharsets.UTF_8)),
+            rawBody);
+    }
+
+    /**
+     * Messages built in memory have no raw content until written.
+     */
+    private InputStream writtenMessage(MimeMessage message) throws IOException, MessagingException {
+        ByteArrayOutputStream rawMessage = new ByteArrayOutputStream();
+        message.writeTo(rawMessage);
+        return new ByteArrayInputStream(rawMessage.toByteArray());
+    }
+
+    /**
+     * Aborts parsing once the selected parts are read. {@link MimeStreamParser#stop()} does not fit here: it truncates
+     * the underlying buffer, and the parser then keeps failing to read the headers of the following parts.
+     */
+    private static class NothingElseToSelectException extends MimeException {
+        NothingElseToSelectException() {
+            super("Nothing else to select");
+        }
+    }
+
+    private static class Multipart {
+        private final boolean alternative;
+        private boolean hasContent;
+
+        Multipart(boolean alternative) {
+            this.alternative = alternative;
+        }
+    }
+
+    private static class TextPartsHandler extends AbstractContentHandler {
+        private final TextBudget textBudget;
+        private final Deque<Multipart> multiparts;
+        private Optional<String> textBody;
+        private Optional<String> htmlBody;
+        private boolean textBodyTruncated;
+        private boolean htmlBodyTruncated;
+
+        TextPartsHandler(TextBudget textBudget) {
+            this.textBudget = textBudget;
+            this.multiparts = new ArrayDeque<>();
+            this.textBody = Optional.empty();
+            this.htmlBody = Optional.empty();
+        }
+
+        @Override
+        public void startMultipart(BodyDescriptor bodyDescriptor) {
+            multiparts.push(new Multipart(MessageContentExtractor.MULTIPART_ALTERNATIVE.equals(bodyDescriptor.getMimeType())));
+        }
+
+        @Override
+        public void endMultipart() throws MimeException {
+            Multipart multipart = multiparts.pop();
+            if (multipart.hasContent && !multiparts.isEmpty()) {
+                multiparts.peek().hasContent = true;
+            }
+            stopWhenNothingElseCanBeSelected();
+        }
+
+        /**
+         * The content of parts which are not selected is left unread, hence is not decoded.
+         */
+        @Override
+        public void body(BodyDescriptor bodyDescriptor, InputStream inputStream) throws MimeException, IOException {
+            String mimeType = bodyDescriptor.getMimeType();
+            if (MessageContentExtractor.TEXT_PLAIN.equals(mimeType) && !textBody.isPresent() && isSelectable(bodyDescriptor)) {
+                textBody = Optional.of(readText(charset(bodyDescriptor.getCharset()), inputStream));
+                markContentFound();
+            } else if (MessageContentExtractor.TEXT_HTML.equals(mimeType) && !htmlBody.isPresent() && isSelectable(bodyDescriptor)) {
+                htmlBody = Optional.of(readHtml(charset(bodyDescriptor.getCharset()), inputStream));
+                markContentFound();
+            }
+        }
+
+        private boolean isSelectable(BodyDescriptor bodyDescriptor) {
+            if (multiparts.isEmpty()) {
+                return true;
+            }
+            boolean contentAlreadySelected = multiparts.stream()
+                .anyMatch(multipart -> !multipart.alternative && multipart.hasContent);
+            return !contentAlreadySelected && isReadable((MaximalBodyDescriptor) bodyDescriptor);
+        }
+
+        private boolean isReadable(MaximalBodyDescriptor bodyDescriptor) {
+            String dispositionType = bodyDescriptor.getContentDispositionType();
+            return dispositionType == null
+                || (dispositionType.equals("inline") && bodyDescriptor.getContentId() == null);
+        }
+
+        private void markContentFound() throws MimeException {
+            if (!multiparts.isEmpty()) {
+                multiparts.peek().hasContent = true;
+            }
+            stopWhenNothingElseCanBeSelected();
+        }
+
+        private void stopWhenNothingElseCanBeSelected() throws MimeException {
+            boolean rootContentSelected = Optional.ofNullable(multiparts.peekLast())
+                .map(root -> !root.alternative && root.hasContent)
+                .orElse(false);
+            if ((textBody.isPresent() && htmlBody.isPresent()) || rootContentSelected) {
+                throw new NothingElseToSelectException();
+            }
+        }
+
+        private String readText(Charset charset, InputStream inputStream) throws IOException {
+            if (!textBudget.getMaxTextChars().isPresent()) {
+                return IOUtils.toString(inputStream, charset);
+            }
+            int maxTextChars = textBudget.getMaxTextChars().get();
+            Reader reader = new InputStreamReader(inputStream, charset);
+            StringBuilder text = new StringBuilder();
+            char[] buffer = new char[BUFFER_SIZE];
+            int read = 0;
+            while (text.length() <= maxTextChars && read != -1) {
+                read = reader.read(buffer, 0, Math.min(buffer.length, maxTextChars + 1 - text.length()));
+                if (read > 0) {
+                    text.append(buffer, 0, read);
+                }
+            }
+            textBodyTruncated = text.length() > maxTextChars;
+            return textBudget.limitText(text.toString());
+        }
+
+        private String readHtml(Charset charset, InputStream inputStream) throws IOException {
+            if (!textBudget.getMaxHtmlBytes().isPresent()) {
+                return IOUtils.toString(inputStream, charset);
+            }
+            int maxHtmlBytes = textBudget.getMaxHtmlBytes().get();
+            byte[] html = ByteStreams.toByteArray(ByteStreams.limit(inputStream, maxHtmlBytes + 1L));
+            htmlBodyTruncated = html.length > maxHtmlBytes;
+            return new String(html, 0, Math.min(html.length, maxHtmlBytes), charset);
+        }
+
+        private Charset charset(String charset) {
+            return Optional.ofNullable(charset)
+                .map(CharsetUtil::lookup)
+                .orElse(Charsets.DEFAULT_CHARSET);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import java.util.Objects;
+import java.util.Optional;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Bounds the amount of content read from a message: at most maxHtmlBytes decoded bytes of its html body, and
+ * maxTextChars characters of its text body and of the text sent to the classification API.
+ */
+public class TextBudget {
+
+    public static final TextBudget UNLIMITED = builder().build();
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private Optional<Integer> maxTextChars = Optional.empty();
+        private Optional<Integer> maxHtmlBytes = Optional.empty();
+
+        public Builder maxTextChars(Optional<Integer> maxTextChars) {
+            this.maxTextChars = maxTextChars;
+            return this;
+        }
+
+        public Builder maxHtmlBytes(Optional<Integer> maxHtmlBytes) {
+            this.maxHtmlBytes = maxHtmlBytes;
+            return this;
+        }
+
+        public TextBudget build() {
+            Preconditions.checkState(maxTextChars.map(value -> value > 0).orElse(true), "'maxTextChars' should be strictly positive");
+            Preconditions.checkState(maxHtmlBytes.map(value -> value > 0).orElse(true), "'maxHtmlBytes' should be strictly positive");
+            return new TextBudget(maxTextChars, maxHtmlBytes);
+        }
+    }
+
+    private final Optional<Integer> maxTextChars;
+    private final Optional<Integer> maxHtmlBytes;
+
+    private TextBudget(Optional<Integer> maxTextChars, Optional<Integer> maxHtmlBytes) {
+        this.maxTextChars = maxTextChars;
+        this.maxHtmlBytes = maxHtmlBytes;
+    }
+
+    public Optional<Integer> getMaxTextChars() {
+        return maxTextChars;
+    }
+
+    public Optional<Integer> getMaxHtmlBytes() {
+        return maxHtmlBytes;
+    }
+
+    public boolean exceedsMaxTextChars(String text) {
+        return maxTextChars.map(max -> text.length() > max).orElse(false);
+    }
+
+    /**
+     * Never splits a surrogate pair: a text cut right after a high surrogate loses it too.
+     */
+    public String limitText(String text) {
+        if (exceedsMaxTextChars(text)) {
+            int end = maxTextChars.get();
+            if (end > 0 && Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            return text.substring(0, end);
+        }
+        return text;
+    }
+
+    @Override
+    public final boolean equals(Object o) {
+        if (o instanceof TextBudget) {
+            TextBudget that = (TextBudget) o;
+
+            return Objects.equals(this.maxTextChars, that.maxTextChars)
+                && Objects.equals(this.maxHtmlBytes, that.maxHtmlBytes);
+        }
+        return false;
+    }
+
+    @Override
+    public final int hashCode() {
+        return Objects.hash(maxTextChars, maxHtmlBytes);
+    }
+}
@@ -15,13 +15,132 @@
  * You should have received a copy of the GNU Affero General Public License    *
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
  *******************************************************************************/
+
 package com.linagora.james.mailets.json;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.Arrays;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.mail.MessagingException;
+
+import org.apache.mailet.Mail;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
 
+/**
+ * Generates the messageId of classification requests. It only correlates a request with its response, hence does not
+ * need to be unpredictable.
+ *
+ * The default generator relies on {@link UUID#randomUUID()}, whose shared SecureRandom contends under high thread
+ * counts. The other {@link Strategy} avoid it.
+ */
 public class UUIDGenerator {
 
+    public enum Strategy {
+        SECURE_RANDOM("secureRandom"),
+        THREAD_LOCAL_RANDOM("threadLocalRandom"),
+        TIME_ORDERED("timeOrdered"),
+        DETERMINISTIC("deterministic");
+
+        public static Optional<Strategy> parse(String value) {
+            return Arrays.stream(values())
+                .filter(strategy -> strategy.value.equalsIgnoreCase(value))
+                .findFirst();
+        }
+
+        private final String value;
+
+        Strategy(String value) {
+            this.value = value;
+        }
+
+        public String getValue() {
+            return value;
+        }
+    }
+
+    public static UUIDGenerator of(Strategy strategy) {
+        switch (strategy) {
+            case THREAD_LOCAL_RANDOM:
+                return new ThreadLocalRandomUUIDGenerator();
+            case TIME_ORDERED:
+                return new TimeOrderedUUIDGenerator(Clock.systemUTC());
+            case DETERMINISTIC:
+                return new DeterministicUUIDGenerator();
+            default:
+                return new UUIDGenerator();
+        }
+    }
+
+    private static final long VERSION_MASK = 0xF000L;
+    private static final long VARIANT_MASK = 0x3FFFFFFFFFFFFFFFL;
+    private static final long IETF_VARIANT = 0x8000000000000000L;
+
+    private static UUID uuid(long mostSigBits, long leastSigBits, int version) {
+        return new UUID((mostSigBits & ~VERSION_MASK) | ((long) version << 12),
+            (leastSigBits & VARIANT_MASK) | IETF_VARIANT);
+    }
+
     public UUID random() {
         return UUID.randomUUID();
     }
+
+    public UUID generate(Mail mail) throws MessagingException {
+        return random();
+    }
+
+    /**
+     * Random version 4 UUIDs, drawn from the random generator of the calling thread.
+     */
+    static class ThreadLocalRandomUUIDGenerator extends UUIDGenerator {
+        private static final int VERSION = 4;
+
+        @Override
+        public UUID random() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            return uuid(random.nextLong(), random.nextLong(), VERSION);
+        }
+    }
+
+    /**
+     * Version 7 UUIDs: the 48 most significant bits hold the Unix time in milliseconds, the others are random,
+     * so that UUIDs sort by creation time.
+     */
+    static class TimeOrderedUUIDGenerator extends UUIDGenerator {
+        private static final int VERSION = 7;
+        private static final int TIMESTAMP_SHIFT = 16;
+
+        private final Clock clock;
+
+        @VisibleForTesting TimeOrderedUUIDGenerator(Clock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public UUID random() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long mostSigBits = (clock.millis() << TIMESTAMP_SHIFT) | (random.nextLong() & 0xFFFFL);
+            return uuid(mostSigBits, random.nextLong(), VERSION);
+        }
+    }
+
+    /**
+     * Name based UUIDs derived from the Message-ID and the name of the mail, so that retries of the same mail
+     * send the same messageId. Mails without Message-ID only rely on their name.
+     */
+    static class DeterministicUUIDGenerator extends ThreadLocalRandomUUIDGenerator {
+        private static final char SEPARATOR = '\0';
+
+        @Override
+        public UUID generate(Mail mail) throws MessagingException {
+            String messageId = Strings.nullToEmpty(mail.getMessage().getMessageID());
+            String name = Strings.nullToEmpty(mail.getName());
+            return UUID.nameUUIDFromBytes((messageId + SEPARATOR + name).getBytes(StandardCharsets.UTF_8));
+        }
+    }
 }
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Formats in which classification requests and responses can be exchanged. The binary ones avoid escaping
+ * the text bodies and validating UTF-8, JSON remains the format every classification service understands.
+ */
+public enum WireFormat {
+    JSON("json", "application/json", JsonFactory::new),
+    SMILE("smile", "application/x-jackson-smile", SmileFactory::new),
+    CBOR("cbor", "application/cbor", CBORFactory::new);
+
+    private static final String JSON_FALLBACK = ", application/json;q=0.5";
+
+    public static Optional<WireFormat> parse(String value) {
+        return Arrays.stream(values())
+            .filter(wireFormat -> wireFormat.value.equalsIgnoreCase(value))
+            .findFirst();
+    }
+
+    public static Optional<WireFormat> fromMimeType(String mimeType) {
+        return Arrays.stream(values())
+            .filter(wireFormat -> wireFormat.mimeType.equalsIgnoreCase(mimeType))
+            .findFirst();
+    }
+
+    private final String value;
+    private final String mimeType;
+    private final Supplier<JsonFactory> factorySupplier;
+
+    WireFormat(String value, String mimeType, Supplier<JsonFactory> factorySupplier) {
+        this.value = value;
+        this.mimeType = mimeType;
+        this.factorySupplier = factorySupplier;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    /**
+     * The Accept header of requests sent in this format: responses in the same format are preferred, JSON is
+     * accepted as a fallback.
+     */
+    public String getAcceptHeader() {
+        if (this == JSON) {
+            return mimeType;
+        }
+        return mimeType + JSON_FALLBACK;
+    }
+
+    public JsonFactory createFactory() {
+        return factorySupplier.get();
+    }
+}
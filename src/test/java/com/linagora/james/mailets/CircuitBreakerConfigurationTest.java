@@ -0,0 +1,81 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Optional;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import nl.jqno.equalsverifier.EqualsVerifier;
+
+public class CircuitBreakerConfigurationTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void shouldImplementBeanContract() {
+        EqualsVerifier.forClass(CircuitBreakerConfiguration.class).verify();
+    }
+
+    @Test
+    public void buildShouldUseDefaultValuesWhenNotGiven() {
+        CircuitBreakerConfiguration configuration = CircuitBreakerConfiguration.builder().build();
+
+        assertThat(configuration.getWindowSize()).isEqualTo(CircuitBreakerConfiguration.DEFAULT_WINDOW_SIZE);
+        assertThat(configuration.getMinimumCalls()).isEqualTo(CircuitBreakerConfiguration.DEFAULT_MINIMUM_CALLS);
+        assertThat(configuration.getFailureRateThreshold()).isEqualTo(CircuitBreakerConfiguration.DEFAULT_FAILURE_RATE_THRESHOLD);
+        assertThat(configuration.getSlowCallRateThreshold()).isEqualTo(CircuitBreakerConfiguration.DEFAULT_SLOW_CALL_RATE_THRESHOLD);
+        assertThat(configuration.getSlowCallDurationMs()).isEqualTo(CircuitBreakerConfiguration.DEFAULT_SLOW_CALL_DURATION_MS);
+        assertThat(configuration.getOpenDurationMs()).isEqualTo(CircuitBreakerConfiguration.DEFAULT_OPEN_DURATION_MS);
+        assertThat(configuration.getHalfOpenProbes()).isEqualTo(CircuitBreakerConfiguration.DEFAULT_HALF_OPEN_PROBES);
+    }
+
+    @Test
+    public void minimumCallsShouldDefaultToWindowSizeWhenLowerThanDefault() {
+        CircuitBreakerConfiguration configuration = CircuitBreakerConfiguration.builder()
+            .windowSize(Optional.of(10))
+            .build();
+
+        assertThat(configuration.getMinimumCalls()).isEqualTo(10);
+    }
+
+    @Test
+    public void buildShouldThrowWhenMinimumCallsExceedsWindowSize() {
+        expectedException.expect(IllegalStateException.class);
+
+        CircuitBreakerConfiguration.builder()
+            .windowSize(Optional.of(10))
+            .minimumCalls(Optional.of(11))
+            .build();
+    }
+
+    @Test
+    public void buildShouldThrowWhenFailureRateThresholdExceeds100() {
+        expectedException.expect(IllegalStateException.class);
+
+        CircuitBreakerConfiguration.builder()
+            .failureRateThreshold(Optional.of(101))
+            .build();
+    }
+}
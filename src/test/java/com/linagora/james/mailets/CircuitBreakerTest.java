@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private static final int OPEN_DURATION_MS = 1000;
+    private static final int SLOW_CALL_DURATION_MS = 100;
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final CircuitBreaker testee = new CircuitBreaker(CircuitBreakerConfiguration.builder()
+            .windowSize(Optional.of(4))
+            .minimumCalls(Optional.of(4))
+            .failureRateThreshold(Optional.of(50))
+            .slowCallRateThreshold(Optional.of(50))
+            .slowCallDurationMs(Optional.of(SLOW_CALL_DURATION_MS))
+            .openDurationMs(Optional.of(OPEN_DURATION_MS))
+            .halfOpenProbes(Optional.of(2))
+            .build(),
+        ticker);
+
+    private void recordCalls(int count, boolean failed) {
+        for (int i = 0; i < count; i++) {
+            assertThat(testee.tryAcquirePermission()).isTrue();
+            testee.recordCall(testee.startCall(), failed);
+        }
+    }
+
+    private void recordSlowCall() {
+        assertThat(testee.tryAcquirePermission()).isTrue();
+        CircuitBreaker.Call call = testee.startCall();
+        ticker.advance(SLOW_CALL_DURATION_MS, TimeUnit.MILLISECONDS);
+        testee.recordCall(call, false);
+    }
+
+    @Test
+    public void circuitBreakerShouldBeClosedInitially() {
+        assertThat(testee.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(testee.tryAcquirePermission()).isTrue();
+    }
+
+    @Test
+    public void circuitBreakerShouldStayClosedBeforeMinimumCalls() {
+        recordCalls(3, true);
+
+        assertThat(testee.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void circuitBreakerShouldStayClosedWhenFailureRateIsBelowThreshold() {
+        recordCalls(3, false);
+        recordCalls(1, true);
+
+        assertThat(testee.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void circuitBreakerShouldOpenWhenFailureRateReachesThreshold() {
+        recordCalls(2, false);
+        recordCalls(2, true);
+
+        assertThat(testee.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(testee.getOpenings()).isEqualTo(1);
+    }
+
+    @Test
+    public void circuitBreakerShouldOpenWhenSlowCallRateReachesThreshold() {
+        recordCalls(2, false);
+        recordSlowCall();
+        recordSlowCall();
+
+        assertThat(testee.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+    }
+
+    @Test
+    public void circuitBreakerShouldOnlyConsiderTheLastCallsOfTheWindow() {
+        recordCalls(1, true);
+        recordCalls(4, false);
+        recordCalls(1, true);
+
+        assertThat(testee.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void openCircuitBreakerShouldNotPermitCalls() {
+        recordCalls(4, true);
+
+        assertThat(testee.tryAcquirePermission()).isFalse();
+        assertThat(testee.getNotPermittedCalls()).isEqualTo(1);
+    }
+
+    @Test
+    public void circuitBreakerShouldBecomeHalfOpenAfterOpenDuration() {
+        recordCalls(4, true);
+
+        ticker.advance(OPEN_DURATION_MS, TimeUnit.MILLISECONDS);
+
+        assertThat(testee.tryAcquirePermission()).isTrue();
+        assertThat(testee.getState()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+    }
+
+    @Test
+    public void halfOpenCircuitBreakerShouldOnlyPermitProbes() {
+        recordCalls(4, true);
+        ticker.advance(OPEN_DURATION_MS, TimeUnit.MILLISECONDS);
+
+        assertThat(testee.tryAcquirePermission()).isTrue();
+        assertThat(testee.tryAcquirePermission()).isTrue();
+        assertThat(testee.tryAcquirePermission()).isFalse();
+    }
+
+    @Test
+    public void halfOpenCircuitBreakerShouldCloseWhenProbesSucceed() {
+        recordCalls(4, true);
+        ticker.advance(OPEN_DURATION_MS, TimeUnit.MILLISECONDS);
+
+        recordCalls(2, false);
+
+        assertThat(testee.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(testee.tryAcquirePermission()).isTrue();
+    }
+
+    @Test
+    public void callsStartedBeforeATransitionShouldBeIgnored() {
+        assertThat(testee.tryAcquirePermission()).isTrue();
+        CircuitBreaker.Call staleCall = testee.startCall();
+        recordCalls(4, true);
+        ticker.advance(OPEN_DURATION_MS, TimeUnit.MILLISECONDS);
+
+        recordCalls(1, false);
+        testee.recordCall(staleCall, true);
+        recordCalls(1, false);
+
+        assertThat(testee.getState()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void ignoredCallsShouldGiveTheirProbeBack() {
+        recordCalls(4, true);
+        ticker.advance(OPEN_DURATION_MS, TimeUnit.MILLISECONDS);
+        assertThat(testee.tryAcquirePermission()).isTrue();
+        CircuitBreaker.Call ignoredCall = testee.startCall();
+        assertThat(testee.tryAcquirePermission()).isTrue();
+
+        testee.ignoreCall(ignoredCall);
+
+        assertThat(testee.tryAcquirePermission()).isTrue();
+    }
+
+    @Test
+    public void halfOpenCircuitBreakerShouldOpenAgainWhenProbesFail() {
+        recordCalls(4, true);
+        ticker.advance(OPEN_DURATION_MS, TimeUnit.MILLISECONDS);
+
+        recordCalls(2, true);
+
+        assertThat(testee.getState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(testee.getOpenings()).isEqualTo(2);
+    }
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static net.javacrumbs.jsonunit.fluent.JsonFluentAssert.assertThatJson;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.CoreMatchers.instanceOf;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.linagora.james.mailets.json.ClassificationBatchEntry;
+import com.linagora.james.mailets.json.ClassificationRequestBodySerializer;
+import com.linagora.james.mailets.json.FakeUUIDGenerator;
+import com.linagora.james.mailets.json.WireFormat;
+
+public class ClassificationBatcherTest {
+
+    private static final int TIMEOUT_IN_MS = 10000;
+    private static final int SENDER_COUNT = 4;
+    private static final String GUESSES = "{\"results\":{" +
+        "\"%s\":{" +
+        "    \"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"," +
+        "    \"mailboxName\":\"JAMES\"," +
+        "    \"confidence\":50.07615280151367}" +
+        "}," +
+        "\"errors\":{}}";
+
+    private static class RecordingClassificationClient implements ClassificationClient {
+        private final List<String> requests = new CopyOnWriteArrayList<>();
+        private final CompletableFuture<String> response;
+
+        RecordingClassificationClient(CompletableFuture<String> response) {
+            this.response = response;
+        }
+
+        @Override
+        public <T> CompletableFuture<T> classify(URI uri, HttpEntity requestBody, ResponseParser<T> responseParser) {
+            try {
+                requests.add(EntityUtils.toString(requestBody));
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+            return response.thenApply(body -> {
+                try {
+                    return responseParser.parse(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)), WireFormat.JSON);
+                } catch (IOException e) {
+                    throw Throwables.propagate(e);
+                }
+            });
+        }
+
+        @Override
+        public boolean isAlive(URI uri, int timeoutInMs) {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ClassificationBatcher testee;
+
+    @After
+    public void tearDown() {
+        testee.close();
+    }
+
+    @Test
+    public void classifyShouldSendASingleRequestWhenBatchSizeIsReached() throws Exception {
+        RecordingClassificationClient client = new RecordingClassificationClient(CompletableFuture.completedFuture(
+            "[" + String.format(GUESSES, "to1@james.org") + "," + String.format(GUESSES, "to2@james.org") + "]"));
+        testee = new ClassificationBatcher(client, new URI("http://localhost/batch"), 2, TIMEOUT_IN_MS, SENDER_COUNT);
+
+        CompletableFuture<Map<String, String>> first = testee.classify(entry("to1@james.org"), TIMEOUT_IN_MS);
+        CompletableFuture<Map<String, String>> second = testee.classify(entry("to2@james.org"), TIMEOUT_IN_MS);
+
+        assertThat(first.get(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS)).containsOnlyKeys("to1@james.org");
+        assertThat(second.get(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS)).containsOnlyKeys("to2@james.org");
+        assertThat(client.requests).hasSize(1);
+    }
+
+    @Test
+    public void classifyShouldSendTheRecipientsAndTheRequestOfEachMail() throws Exception {
+        RecordingClassificationClient client = new RecordingClassificationClient(CompletableFuture.completedFuture(
+            "[" + String.format(GUESSES, "to1@james.org") + "]"));
+        testee = new ClassificationBatcher(client, new URI("http://localhost/batch"), 1, TIMEOUT_IN_MS, SENDER_COUNT);
+
+        testee.classify(entry("to1@james.org"), TIMEOUT_IN_MS).get(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+
+        assertThatJson(client.requests.get(0)).isEqualTo("[{" +
+            "\"recipients\":[\"to1@james.org\"]," +
+            "\"request\":{\"messageId\":\"524e4f85-2d2f-4927-ab98-bd7a2f689773\"," +
+                "\"from\":[]," +
+                "\"recipients\":{\"to\":[],\"cc\":[],\"bcc\":[]}," +
+                "\"subject\":[\"\"]," +
+                "\"textBody\":\"body\"," +
+                "\"textBodyTruncated\":false," +
+                "\"date\":null}" +
+            "}]");
+    }
+
+    @Test
+    public void classifyShouldSendPendingRequestsAfterBatchDelay() throws Exception {
+        RecordingClassificationClient client = new RecordingClassificationClient(CompletableFuture.completedFuture(
+            "[" + String.format(GUESSES, "to1@james.org") + "]"));
+        testee = new ClassificationBatcher(client, new URI("http://localhost/batch"), 10, 10, SENDER_COUNT);
+
+        assertThat(testee.classify(entry("to1@james.org"), TIMEOUT_IN_MS).get(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS))
+            .containsOnlyKeys("to1@james.org");
+    }
+
+    @Test
+    public void classifyShouldFailWhenTimeoutExpiresBeforeTheBatchIsSent() throws Exception {
+        RecordingClassificationClient client = new RecordingClassificationClient(CompletableFuture.completedFuture("[]"));
+        testee = new ClassificationBatcher(client, new URI("http://localhost/batch"), 10, 200, SENDER_COUNT);
+
+        CompletableFuture<Map<String, String>> result = testee.classify(entry("to1@james.org"), 10);
+
+        expectedException.expect(ExecutionException.class);
+        expectedException.expectCause(instanceOf(TimeoutException.class));
+        try {
+            result.get(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+        } finally {
+            assertThat(client.requests).isEmpty();
+        }
+    }
+
+    @Test
+    public void classifyShouldFailEveryMailOfTheBatchWhenTheRequestFails() throws Exception {
+        CompletableFuture<String> response = new CompletableFuture<>();
+        response.completeExceptionally(new RuntimeException("failure"));
+        testee = new ClassificationBatcher(new RecordingClassificationClient(response), new URI("http://localhost/batch"), 2, TIMEOUT_IN_MS, SENDER_COUNT);
+
+        CompletableFuture<Map<String, String>> first = testee.classify(entry("to1@james.org"), TIMEOUT_IN_MS);
+        CompletableFuture<Map<String, String>> second = testee.classify(entry("to2@james.org"), TIMEOUT_IN_MS);
+
+        assertThat(awaitFailure(first)).isTrue();
+        assertThat(awaitFailure(second)).isTrue();
+    }
+
+    @Test
+    public void classifyShouldFailMailsMissingFromTheResponse() throws Exception {
+        RecordingClassificationClient client = new RecordingClassificationClient(CompletableFuture.completedFuture(
+            "[" + String.format(GUESSES, "to1@james.org") + "]"));
+        testee = new ClassificationBatcher(client, new URI("http://localhost/batch"), 2, TIMEOUT_IN_MS, SENDER_COUNT);
+
+        CompletableFuture<Map<String, String>> first = testee.classify(entry("to1@james.org"), TIMEOUT_IN_MS);
+        CompletableFuture<Map<String, String>> second = testee.classify(entry("to2@james.org"), TIMEOUT_IN_MS);
+
+        assertThat(first.get(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS)).containsOnlyKeys("to1@james.org");
+        assertThat(awaitFailure(second)).isTrue();
+    }
+
+    @Test
+    public void classifyShouldFailBatchesExceedingTheSenderQueue() throws Exception {
+        CountDownLatch requestStarted = new CountDownLatch(1);
+        CountDownLatch releaseRequest = new CountDownLatch(1);
+        ClassificationClient blockingClient = new RecordingClassificationClient(CompletableFuture.completedFuture("[]")) {
+            @Override
+            public <T> CompletableFuture<T> classify(URI uri, HttpEntity requestBody, ResponseParser<T> responseParser) {
+                requestStarted.countDown();
+                Uninterruptibles.awaitUninterruptibly(releaseRequest);
+                return super.classify(uri, requestBody, responseParser);
+            }
+        };
+        testee = new ClassificationBatcher(blockingClient, new URI("http://localhost/batch"), 1, TIMEOUT_IN_MS, 1);
+
+        testee.classify(entry("to1@james.org"), TIMEOUT_IN_MS);
+        requestStarted.await(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+        testee.classify(entry("to2@james.org"), TIMEOUT_IN_MS);
+        CompletableFuture<Map<String, String>> rejected = testee.classify(entry("to3@james.org"), TIMEOUT_IN_MS);
+        releaseRequest.countDown();
+
+        expectedException.expect(ExecutionException.class);
+        expectedException.expectCause(instanceOf(RejectedExecutionException.class));
+        rejected.get(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean awaitFailure(CompletableFuture<Map<String, String>> future) throws Exception {
+        try {
+            future.get(TIMEOUT_IN_MS, TimeUnit.MILLISECONDS);
+            return false;
+        } catch (ExecutionException e) {
+            return true;
+        }
+    }
+
+    private ClassificationBatchEntry entry(String recipient) throws Exception {
+        FakeMail mail = FakeMail.from(MimeMessageBuilder.mimeMessageBuilder()
+            .setText("body")
+            .build());
+        return new ClassificationBatchEntry(ImmutableList.of(recipient),
+            new ClassificationRequestBodySerializer(mail, new FakeUUIDGenerator()).toRequestBody());
+    }
+}
@@ -0,0 +1,155 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import javax.mail.internet.InternetAddress;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.junit.Test;
+
+import com.google.common.hash.HashCode;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+import com.linagora.james.mailets.json.ClassificationRequestBodySerializer;
+import com.linagora.james.mailets.json.FakeUUIDGenerator;
+
+public class ClassificationCacheTest {
+
+    private static final long TTL_IN_MS = 1000;
+    private static final String GUESS = "{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}";
+
+    private final FakeTicker ticker = new FakeTicker();
+
+    private ClassificationRequestBody requestBody(String from, String subject, String text) throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .addFrom(new InternetAddress(from))
+            .setSubject(subject)
+            .setText(text)
+            .build();
+        return new ClassificationRequestBodySerializer(FakeMail.from(message), new FakeUUIDGenerator()).toRequestBody();
+    }
+
+    @Test
+    public void getShouldReturnEmptyWhenNotCached() throws Exception {
+        ClassificationCache testee = ClassificationCache.sizedByEntries(10, TTL_IN_MS, ticker);
+        HashCode contentHash = ClassificationCache.contentHash(requestBody("from@james.org", "subject", "body"));
+
+        assertThat(testee.get(contentHash, "to@james.org")).isEmpty();
+        assertThat(testee.missCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void getShouldReturnCachedGuess() throws Exception {
+        ClassificationCache testee = ClassificationCache.sizedByEntries(10, TTL_IN_MS, ticker);
+        HashCode contentHash = ClassificationCache.contentHash(requestBody("from@james.org", "subject", "body"));
+
+        testee.put(contentHash, "to@james.org", GUESS);
+
+        assertThat(testee.get(contentHash, "to@james.org")).contains(GUESS);
+        assertThat(testee.hitCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void getShouldNotReturnGuessOfAnotherRecipient() throws Exception {
+        ClassificationCache testee = ClassificationCache.sizedByEntries(10, TTL_IN_MS, ticker);
+        HashCode contentHash = ClassificationCache.contentHash(requestBody("from@james.org", "subject", "body"));
+
+        testee.put(contentHash, "to@james.org", GUESS);
+
+        assertThat(testee.get(contentHash, "other@james.org")).isEmpty();
+    }
+
+    @Test
+    public void contentHashShouldIgnoreWhitespacesAndSenderCase() throws Exception {
+        ClassificationCache testee = ClassificationCache.sizedByEntries(10, TTL_IN_MS, ticker);
+
+        assertThat(ClassificationCache.contentHash(requestBody("From@James.org", " my  subject ", "this is\r\n my body")))
+            .isEqualTo(ClassificationCache.contentHash(requestBody("from@james.org", "my subject", "this is my body")));
+    }
+
+    @Test
+    public void contentHashShouldDependOnTheSender() throws Exception {
+        ClassificationCache testee = ClassificationCache.sizedByEntries(10, TTL_IN_MS, ticker);
+
+        assertThat(ClassificationCache.contentHash(requestBody("from@james.org", "subject", "body")))
+            .isNotEqualTo(ClassificationCache.contentHash(requestBody("other@james.org", "subject", "body")));
+    }
+
+    @Test
+    public void contentHashShouldDependOnTheSubject() throws Exception {
+        ClassificationCache testee = ClassificationCache.sizedByEntries(10, TTL_IN_MS, ticker);
+
+        assertThat(ClassificationCache.contentHash(requestBody("from@james.org", "subject", "body")))
+            .isNotEqualTo(ClassificationCache.contentHash(requestBody("from@james.org", "other subject", "body")));
+    }
+
+    @Test
+    public void contentHashShouldDependOnTheTextBody() throws Exception {
+        ClassificationCache testee = ClassificationCache.sizedByEntries(10, TTL_IN_MS, ticker);
+
+        assertThat(ClassificationCache.contentHash(requestBody("from@james.org", "subject", "body")))
+            .isNotEqualTo(ClassificationCache.contentHash(requestBody("from@james.org", "subject", "other body")));
+    }
+
+    @Test
+    public void entriesShouldExpireAfterTtl() throws Exception {
+        ClassificationCache testee = ClassificationCache.sizedByEntries(10, TTL_IN_MS, ticker);
+        HashCode contentHash = ClassificationCache.contentHash(requestBody("from@james.org", "subject", "body"));
+        testee.put(contentHash, "to@james.org", GUESS);
+
+        ticker.advance(TTL_IN_MS, TimeUnit.MILLISECONDS);
+
+        assertThat(testee.get(contentHash, "to@james.org")).isEmpty();
+        assertThat(testee.evictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void sizedByEntriesShouldEvictWhenFull() throws Exception {
+        ClassificationCache testee = ClassificationCache.sizedByEntries(1, TTL_IN_MS, ticker);
+        HashCode contentHash = ClassificationCache.contentHash(requestBody("from@james.org", "subject", "body"));
+
+        testee.put(contentHash, "to1@james.org", GUESS);
+        testee.put(contentHash, "to2@james.org", GUESS);
+
+        assertThat(testee.get(contentHash, "to1@james.org")).isEmpty();
+        assertThat(testee.get(contentHash, "to2@james.org")).contains(GUESS);
+        assertThat(testee.evictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void sizedByBytesShouldEvictWhenFull() throws Exception {
+        ClassificationCache testee = ClassificationCache.sizedByBytes(2500, TTL_IN_MS, ticker);
+        HashCode contentHash = ClassificationCache.contentHash(requestBody("from@james.org", "subject", "body"));
+
+        IntStream.range(0, 100)
+            .forEach(i -> testee.put(contentHash, "to" + i + "@james.org", GUESS));
+
+        long cachedEntries = IntStream.range(0, 100)
+            .filter(i -> testee.get(contentHash, "to" + i + "@james.org").isPresent())
+            .count();
+        assertThat(cachedEntries).isLessThanOrEqualTo(10);
+        assertThat(testee.evictionCount()).isEqualTo(100 - cachedEntries);
+    }
+}
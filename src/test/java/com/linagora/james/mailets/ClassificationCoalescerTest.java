@@ -0,0 +1,213 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.net.URISyntaxException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.mailet.MailAddress;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+
+public class ClassificationCoalescerTest {
+
+    private static final HashCode CONTENT_HASH = HashCode.fromInt(1);
+    private static final HashCode OTHER_CONTENT_HASH = HashCode.fromInt(2);
+    private static final Map<String, String> GUESSES = ImmutableMap.of("to@james.org", "{\"mailboxName\":\"JAMES\"}");
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ClassificationCoalescer testee;
+    private AtomicInteger callCount;
+    private CompletableFuture<Map<String, String>> call;
+
+    @Before
+    public void setUp() {
+        testee = new ClassificationCoalescer();
+        callCount = new AtomicInteger();
+        call = new CompletableFuture<>();
+    }
+
+    private CompletableFuture<Map<String, String>> classify(HashCode contentHash, String... recipients) throws Exception {
+        ImmutableList.Builder<MailAddress> mailAddresses = ImmutableList.builder();
+        for (String recipient : recipients) {
+            mailAddresses.add(new MailAddress(recipient));
+        }
+        return testee.classify(contentHash, mailAddresses.build(), () -> {
+            callCount.incrementAndGet();
+            return call;
+        });
+    }
+
+    @Test
+    public void classifyShouldShareTheCallOfConcurrentIdenticalClassifications() throws Exception {
+        CompletableFuture<Map<String, String>> first = classify(CONTENT_HASH, "to@james.org");
+        CompletableFuture<Map<String, String>> second = classify(CONTENT_HASH, "to@james.org");
+
+        call.complete(GUESSES);
+
+        assertThat(callCount.get()).isEqualTo(1);
+        assertThat(first.get()).isEqualTo(GUESSES);
+        assertThat(second.get()).isEqualTo(GUESSES);
+    }
+
+    @Test
+    public void classifyShouldShareTheCallWhateverTheOrderOfRecipients() throws Exception {
+        classify(CONTENT_HASH, "to@james.org", "other@james.org");
+        classify(CONTENT_HASH, "other@james.org", "to@james.org");
+
+        assertThat(callCount.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void classifyShouldNotShareTheCallOfDifferentRecipients() throws Exception {
+        classify(CONTENT_HASH, "to@james.org");
+        classify(CONTENT_HASH, "other@james.org");
+
+        assertThat(callCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void classifyShouldNotShareTheCallOfDifferentContents() throws Exception {
+        classify(CONTENT_HASH, "to@james.org");
+        classify(OTHER_CONTENT_HASH, "to@james.org");
+
+        assertThat(callCount.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void classifyShouldCallAgainOnceTheSharedCallIsCompleted() throws Exception {
+        classify(CONTENT_HASH, "to@james.org");
+        call.complete(GUESSES);
+
+        classify(CONTENT_HASH, "to@james.org");
+
+        assertThat(callCount.get()).isEqualTo(2);
+        assertThat(testee.inFlightCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void classifyShouldFailEveryCallerWhenTheSharedCallFails() throws Exception {
+        CompletableFuture<Map<String, String>> first = classify(CONTENT_HASH, "to@james.org");
+        CompletableFuture<Map<String, String>> second = classify(CONTENT_HASH, "to@james.org");
+
+        call.completeExceptionally(new RuntimeException("failure"));
+
+        assertThat(first.isCompletedExceptionally()).isTrue();
+        expectedException.expect(ExecutionException.class);
+        second.get();
+    }
+
+    @Test
+    public void classifyShouldNotKeepTheClassificationInFlightWhenTheCallThrows() throws Exception {
+        try {
+            testee.classify(CONTENT_HASH, ImmutableList.of(new MailAddress("to@james.org")), () -> {
+                throw new URISyntaxException("invalid", "reason");
+            });
+        } catch (URISyntaxException e) {
+            // expected
+        }
+
+        assertThat(testee.inFlightCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void cancellingACallerShouldNotAffectTheOthers() throws Exception {
+        CompletableFuture<Map<String, String>> first = classify(CONTENT_HASH, "to@james.org");
+        CompletableFuture<Map<String, String>> second = classify(CONTENT_HASH, "to@james.org");
+
+        second.cancel(true);
+        call.complete(GUESSES);
+
+        assertThat(call.isCancelled()).isFalse();
+        assertThat(first.get()).isEqualTo(GUESSES);
+    }
+
+    @Test
+    public void cancellingEveryCallerShouldCancelTheSharedCall() throws Exception {
+        List<CompletableFuture<Map<String, String>>> callers = ImmutableList.of(
+            classify(CONTENT_HASH, "to@james.org"),
+            classify(CONTENT_HASH, "to@james.org"));
+
+        callers.forEach(caller -> caller.cancel(true));
+
+        assertThat(call.isCancelled()).isTrue();
+        assertThat(testee.inFlightCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void classifyShouldNotJoinAClassificationEveryCallerGaveUp() throws Exception {
+        call = new CompletableFuture<Map<String, String>>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return false;
+            }
+        };
+        List<CompletableFuture<Map<String, String>>> callers = ImmutableList.of(
+            classify(CONTENT_HASH, "to@james.org"),
+            classify(CONTENT_HASH, "to@james.org"));
+        callers.forEach(caller -> caller.cancel(true));
+        assertThat(testee.inFlightCount()).isEqualTo(0);
+
+        call = new CompletableFuture<>();
+        CompletableFuture<Map<String, String>> newCaller = classify(CONTENT_HASH, "to@james.org");
+        call.complete(GUESSES);
+
+        assertThat(callCount.get()).isEqualTo(2);
+        assertThat(newCaller.get()).isEqualTo(GUESSES);
+    }
+
+    @Test
+    public void classifyShouldCancelTheCallWhenFollowersGaveUpBeforeItStarted() throws Exception {
+        List<MailAddress> recipients = ImmutableList.of(new MailAddress("to@james.org"));
+        CompletableFuture<Map<String, String>> leader = testee.classify(CONTENT_HASH, recipients, () -> {
+            testee.classify(CONTENT_HASH, recipients, () -> call).cancel(true);
+            return call;
+        });
+        assertThat(call.isCancelled()).isFalse();
+
+        leader.cancel(true);
+
+        assertThat(call.isCancelled()).isTrue();
+        assertThat(testee.inFlightCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void coalescedCountShouldCountTheCallersSharingACall() throws Exception {
+        classify(CONTENT_HASH, "to@james.org");
+        classify(CONTENT_HASH, "to@james.org");
+        classify(CONTENT_HASH, "to@james.org");
+        classify(OTHER_CONTENT_HASH, "to@james.org");
+
+        assertThat(testee.coalescedCount()).isEqualTo(2);
+    }
+}
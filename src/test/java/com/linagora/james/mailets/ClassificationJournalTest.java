@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.steveash.guavate.Guavate;
+
+public class ClassificationJournalTest {
+
+    private static final int SEGMENT_SIZE_IN_BYTES = 4096;
+
+    private static class MutableClock extends Clock {
+        private Instant instant = Instant.parse("2017-07-03T08:15:00Z");
+
+        void advanceMillis(long millis) {
+            instant = instant.plusMillis(millis);
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return this;
+        }
+
+        @Override
+        public Instant instant() {
+            return instant;
+        }
+    }
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private Path directory;
+    private MutableClock clock;
+    private ClassificationJournal testee;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = temporaryFolder.getRoot().toPath().resolve("journal");
+        clock = new MutableClock();
+        testee = ClassificationJournal.open(directory, SEGMENT_SIZE_IN_BYTES, clock);
+    }
+
+    @After
+    public void tearDown() {
+        testee.close();
+    }
+
+    private ClassificationJournal reopen() throws IOException {
+        testee.close();
+        testee = ClassificationJournal.open(directory, SEGMENT_SIZE_IN_BYTES, clock);
+        return testee;
+    }
+
+    private byte[] record(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private List<String> asStrings(ClassificationJournal.Batch batch) {
+        return batch.getRecords().stream()
+            .map(record -> new String(record, StandardCharsets.UTF_8))
+            .collect(Guavate.toImmutableList());
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".journal")).count();
+        }
+    }
+
+    @Test
+    public void pollShouldReturnAnEmptyBatchWhenNothingIsAppended() throws Exception {
+        assertThat(testee.poll(10).isEmpty()).isTrue();
+    }
+
+    @Test
+    public void pollShouldReturnAppendedRecordsInOrder() throws Exception {
+        testee.append(record("1"));
+        testee.append(record("2"));
+
+        assertThat(asStrings(testee.poll(10))).containsExactly("1", "2");
+    }
+
+    @Test
+    public void pollShouldReturnAtMostMaxRecords() throws Exception {
+        testee.append(record("1"));
+        testee.append(record("2"));
+        testee.append(record("3"));
+
+        assertThat(asStrings(testee.poll(2))).containsExactly("1", "2");
+        assertThat(asStrings(testee.poll(2))).containsExactly("3");
+    }
+
+    @Test
+    public void depthShouldCountRecordsNotAcknowledged() throws Exception {
+        testee.append(record("1"));
+        testee.append(record("2"));
+        testee.append(record("3"));
+
+        testee.acknowledge(testee.poll(2));
+
+        assertThat(testee.depth()).isEqualTo(1);
+    }
+
+    @Test
+    public void lagShouldBeZeroWhenEmpty() throws Exception {
+        assertThat(testee.lagInMs()).isEqualTo(0);
+    }
+
+    @Test
+    public void lagShouldBeTheAgeOfTheOldestRecordNotAcknowledged() throws Exception {
+        testee.append(record("1"));
+        clock.advanceMillis(100);
+        testee.append(record("2"));
+        clock.advanceMillis(50);
+
+        assertThat(testee.lagInMs()).isEqualTo(150);
+        testee.acknowledge(testee.poll(1));
+        assertThat(testee.lagInMs()).isEqualTo(50);
+    }
+
+    @Test
+    public void reopenShouldPollRecordsNotAcknowledgedAgain() throws Exception {
+        testee.append(record("1"));
+        testee.append(record("2"));
+        testee.acknowledge(testee.poll(1));
+        testee.poll(1);
+
+        reopen();
+
+        assertThat(testee.depth()).isEqualTo(1);
+        assertThat(asStrings(testee.poll(10))).containsExactly("2");
+    }
+
+    @Test
+    public void reopenShouldKeepAppendingAfterExistingRecords() throws Exception {
+        testee.append(record("1"));
+
+        reopen().append(record("2"));
+
+        assertThat(asStrings(testee.poll(10))).containsExactly("1", "2");
+    }
+
+    @Test
+    public void appendShouldRollToANewSegmentWhenFull() throws Exception {
+        byte[] largeRecord = new byte[SEGMENT_SIZE_IN_BYTES / 2];
+        testee.append(largeRecord);
+        testee.append(largeRecord);
+        testee.append(record("3"));
+
+        assertThat(segmentCount()).isEqualTo(2);
+        assertThat(testee.poll(10).getRecords()).hasSize(3);
+    }
+
+    @Test
+    public void acknowledgeShouldDeleteConsumedSegments() throws Exception {
+        byte[] largeRecord = new byte[SEGMENT_SIZE_IN_BYTES / 2];
+        testee.append(largeRecord);
+        testee.append(largeRecord);
+        testee.append(largeRecord);
+
+        testee.acknowledge(testee.poll(3));
+
+        assertThat(segmentCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void reopenShouldPollRecordsOfSeveralSegments() throws Exception {
+        byte[] largeRecord = new byte[SEGMENT_SIZE_IN_BYTES / 2];
+        testee.append(largeRecord);
+        testee.append(largeRecord);
+        testee.append(record("3"));
+        testee.acknowledge(testee.poll(1));
+
+        reopen();
+
+        assertThat(testee.depth()).isEqualTo(2);
+        assertThat(testee.poll(10).getRecords()).hasSize(2);
+    }
+
+    @Test
+    public void appendShouldRejectRecordsLargerThanASegment() throws Exception {
+        expectedException.expect(IOException.class);
+
+        testee.append(new byte[SEGMENT_SIZE_IN_BYTES]);
+    }
+
+    @Test
+    public void reopenShouldDiscardCorruptedRecords() throws Exception {
+        testee.append(record("1"));
+        testee.append(record("2"));
+        testee.close();
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.filter(file -> file.getFileName().toString().endsWith(".journal")).findFirst().get();
+        }
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            int secondRecordPayload = ClassificationJournal.HEADER_SIZE + 1 + ClassificationJournal.HEADER_SIZE;
+            channel.write(ByteBuffer.wrap(record("X")), secondRecordPayload);
+        }
+
+        reopen().append(record("3"));
+
+        assertThat(asStrings(testee.poll(10))).containsExactly("1", "3");
+    }
+}
@@ -0,0 +1,224 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.lang.management.ManagementFactory;
+import java.net.SocketTimeoutException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.google.common.hash.HashCode;
+import com.linagora.james.mailets.ClassificationMetrics.Stage;
+
+public class ClassificationMetricsTest {
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final ClassificationMetrics testee = new ClassificationMetrics(ticker, 100);
+
+    @After
+    public void tearDown() {
+        testee.unregister();
+    }
+
+    private void recordRemoteCall(long durationInMs) {
+        long start = testee.start();
+        ticker.advance(durationInMs, TimeUnit.MILLISECONDS);
+        testee.record(Stage.REMOTE_CALL, start);
+    }
+
+    @Test
+    public void latencyShouldBeEmptyInitially() {
+        LatencySnapshot latency = testee.getRemoteCallLatency();
+
+        assertThat(latency.getCount()).isEqualTo(0);
+        assertThat(latency.getP99Ms()).isEqualTo(0);
+    }
+
+    @Test
+    public void latencyShouldComputePercentilesOfRecordedDurations() {
+        for (int durationInMs = 1; durationInMs <= 100; durationInMs++) {
+            recordRemoteCall(durationInMs);
+        }
+
+        LatencySnapshot latency = testee.getRemoteCallLatency();
+
+        assertThat(latency.getCount()).isEqualTo(100);
+        assertThat(latency.getMeanMs()).isEqualTo(50.5);
+        assertThat(latency.getP50Ms()).isEqualTo(50);
+        assertThat(latency.getP99Ms()).isEqualTo(99);
+        assertThat(latency.getP999Ms()).isEqualTo(100);
+        assertThat(latency.getMaxMs()).isEqualTo(100);
+    }
+
+    @Test
+    public void latencyShouldOnlyKeepTheLastDurationsOfTheWindow() {
+        recordRemoteCall(1000);
+        for (int i = 0; i < 100; i++) {
+            recordRemoteCall(10);
+        }
+
+        LatencySnapshot latency = testee.getRemoteCallLatency();
+
+        assertThat(latency.getCount()).isEqualTo(101);
+        assertThat(latency.getMaxMs()).isEqualTo(10);
+    }
+
+    @Test
+    public void stagesShouldBeRecordedIndependently() {
+        recordRemoteCall(10);
+
+        assertThat(testee.getRemoteCallLatency().getCount()).isEqualTo(1);
+        assertThat(testee.getSerializationLatency().getCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void p999ShouldDifferFromTheMaxWithTheDefaultWindowSize() {
+        ClassificationMetrics metrics = new ClassificationMetrics(ticker);
+        for (int i = 0; i < 9990; i++) {
+            long start = metrics.start();
+            ticker.advance(1, TimeUnit.MILLISECONDS);
+            metrics.record(Stage.REMOTE_CALL, start);
+        }
+        for (int i = 0; i < 10; i++) {
+            long start = metrics.start();
+            ticker.advance(100, TimeUnit.MILLISECONDS);
+            metrics.record(Stage.REMOTE_CALL, start);
+        }
+
+        LatencySnapshot latency = metrics.getRemoteCallLatency();
+
+        assertThat(latency.getP999Ms()).isEqualTo(1);
+        assertThat(latency.getMaxMs()).isEqualTo(100);
+    }
+
+    @Test
+    public void extractionListenerShouldRecordMimeParsingAndHtmlToText() {
+        testee.extractionListener().mimeParsed(TimeUnit.MILLISECONDS.toNanos(3));
+        testee.extractionListener().htmlConvertedToText(TimeUnit.MILLISECONDS.toNanos(5));
+
+        assertThat(testee.getMimeParsingLatency().getMaxMs()).isEqualTo(3);
+        assertThat(testee.getHtmlToTextLatency().getMaxMs()).isEqualTo(5);
+    }
+
+    @Test
+    public void recordFailureShouldCountOutcomesByCause() {
+        testee.recordFailure(new SocketTimeoutException());
+        testee.recordFailure(new JsonParseException("invalid", null));
+        testee.recordFailure(new CircuitBreakerOpenException());
+        testee.recordFailure(new IllegalStateException());
+        testee.recordSuccess();
+
+        assertThat(testee.getTimeoutCount()).isEqualTo(1);
+        assertThat(testee.getParseErrorCount()).isEqualTo(1);
+        assertThat(testee.getSkippedCount()).isEqualTo(1);
+        assertThat(testee.getFailureCount()).isEqualTo(1);
+        assertThat(testee.getSuccessCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void inFlightRequestsShouldTrackPendingRequests() {
+        testee.requestStarted();
+        testee.requestStarted();
+        testee.requestCompleted();
+
+        assertThat(testee.getInFlightRequests()).isEqualTo(1);
+    }
+
+    @Test
+    public void cacheCountersShouldBeZeroWhenNoCacheIsMonitored() {
+        assertThat(testee.getCacheHitCount()).isEqualTo(0);
+        assertThat(testee.getCacheMissCount()).isEqualTo(0);
+        assertThat(testee.getCacheEvictionCount()).isEqualTo(0);
+    }
+
+    @Test
+    public void cacheCountersShouldReportTheMonitoredCache() {
+        ClassificationCache cache = ClassificationCache.sizedByEntries(1, TimeUnit.HOURS.toMillis(1), new FakeTicker());
+        HashCode contentHash = HashCode.fromInt(1);
+        testee.monitorClassificationCache(cache);
+
+        cache.put(contentHash, "user1@james.org", "guess");
+        cache.get(contentHash, "user1@james.org");
+        cache.get(contentHash, "user2@james.org");
+        cache.put(contentHash, "user2@james.org", "guess");
+
+        assertThat(testee.getCacheHitCount()).isEqualTo(1);
+        assertThat(testee.getCacheMissCount()).isEqualTo(1);
+        assertThat(testee.getCacheEvictionCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void circuitBreakerStateShouldBeDisabledWhenNoCircuitBreakerIsMonitored() {
+        assertThat(testee.getCircuitBreakerState()).isEqualTo(ClassificationMetrics.CIRCUIT_BREAKER_DISABLED);
+        assertThat(testee.getCircuitBreakerOpenings()).isEqualTo(0);
+        assertThat(testee.getCircuitBreakerNotPermittedCalls()).isEqualTo(0);
+    }
+
+    @Test
+    public void circuitBreakerMetricsShouldReportTheMonitoredCircuitBreaker() {
+        CircuitBreaker circuitBreaker = new CircuitBreaker(CircuitBreakerConfiguration.builder()
+                .windowSize(Optional.of(1))
+                .minimumCalls(Optional.of(1))
+                .build(),
+            new FakeTicker());
+        testee.monitorCircuitBreaker(circuitBreaker);
+
+        circuitBreaker.tryAcquirePermission();
+        circuitBreaker.recordCall(circuitBreaker.startCall(), true);
+        circuitBreaker.tryAcquirePermission();
+
+        assertThat(testee.getCircuitBreakerState()).isEqualTo("OPEN");
+        assertThat(testee.getCircuitBreakerOpenings()).isEqualTo(1);
+        assertThat(testee.getCircuitBreakerNotPermittedCalls()).isEqualTo(1);
+    }
+
+    @Test
+    public void registerShouldExposeMetricsThroughJmx() throws Exception {
+        recordRemoteCall(42);
+        testee.recordSuccess();
+
+        testee.register("my mailet");
+
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName objectName = new ObjectName("com.linagora.james.mailets:type=GuessClassificationMailet,name=\"my mailet\"");
+        assertThat(mBeanServer.getAttribute(objectName, "SuccessCount")).isEqualTo(1L);
+        assertThat(((CompositeData) mBeanServer.getAttribute(objectName, "RemoteCallLatency")).get("p50Ms")).isEqualTo(42.0);
+    }
+
+    @Test
+    public void unregisterShouldRemoveTheMBean() throws Exception {
+        testee.register("my mailet");
+
+        testee.unregister();
+
+        assertThat(ManagementFactory.getPlatformMBeanServer()
+            .isRegistered(new ObjectName("com.linagora.james.mailets:type=GuessClassificationMailet,name=\"my mailet\"")))
+            .isFalse();
+    }
+}
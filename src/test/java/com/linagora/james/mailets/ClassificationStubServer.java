@@ -0,0 +1,263 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.github.steveash.guavate.Guavate;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.linagora.james.mailets.json.WireFormat;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local classification service answering a guess for every recipient, in any of the supported wire formats.
+ *
+ * Requests in other formats are rejected with 415 Unsupported Media Type. Responses use the format of the
+ * request when the Accept header allows it, JSON otherwise.
+ *
+ * Requests are handled concurrently, and can be delayed to observe how many of them are pending at once, or to
+ * mimic the latency of the real service in benchmarks. Benchmarks also pad responses with an ignored "padding" field,
+ * and stop recording requests so that they do not pile up in memory.
+ */
+public class ClassificationStubServer implements AutoCloseable {
+
+    public static final String MAILBOX_ID = "cfe49390-f391-11e6-88e7-ddd22b16a7b9";
+    public static final String MAILBOX_NAME = "JAMES";
+    public static final double CONFIDENCE = 50.07615280151367;
+    private static final int BACKLOG = 1024;
+
+    public static class RecordedRequest {
+        private final String path;
+        private final String contentType;
+        private final String accept;
+        private final JsonNode body;
+
+        RecordedRequest(String path, String contentType, String accept, JsonNode body) {
+            this.path = path;
+            this.contentType = contentType;
+            this.accept = accept;
+            this.body = body;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public String getAccept() {
+            return accept;
+        }
+
+        public JsonNode getBody() {
+            return body;
+        }
+    }
+
+    public static ClassificationStubServer speaking(WireFormat... wireFormats) throws IOException {
+        return new ClassificationStubServer(ImmutableSet.copyOf(wireFormats));
+    }
+
+    private final Set<WireFormat> supportedWireFormats;
+    private final Map<WireFormat, ObjectMapper> mappers;
+    private final List<RecordedRequest> recordedRequests;
+    private final List<String> responseContentTypes;
+    private final AtomicInteger pendingRequests;
+    private final AtomicInteger maxPendingRequests;
+    private final ExecutorService executor;
+    private final HttpServer httpServer;
+    private volatile long responseDelayInMs;
+    private volatile String responsePadding;
+    private volatile boolean recording;
+
+    private ClassificationStubServer(Set<WireFormat> supportedWireFormats) throws IOException {
+        this.supportedWireFormats = supportedWireFormats;
+        this.mappers = Arrays.stream(WireFormat.values())
+            .collect(Guavate.toImmutableMap(Function.identity(), wireFormat -> new ObjectMapper(wireFormat.createFactory())));
+        this.recordedRequests = new CopyOnWriteArrayList<>();
+        this.responseContentTypes = new CopyOnWriteArrayList<>();
+        this.pendingRequests = new AtomicInteger();
+        this.maxPendingRequests = new AtomicInteger();
+        this.responsePadding = "";
+        this.recording = true;
+        this.executor = Executors.newCachedThreadPool();
+        this.httpServer = HttpServer.create(new InetSocketAddress("localhost", 0), BACKLOG);
+        this.httpServer.createContext("/", this::handle);
+        this.httpServer.setExecutor(executor);
+        this.httpServer.start();
+    }
+
+    public int getPort() {
+        return httpServer.getAddress().getPort();
+    }
+
+    public List<RecordedRequest> getRecordedRequests() {
+        return recordedRequests;
+    }
+
+    public List<String> getResponseContentTypes() {
+        return responseContentTypes;
+    }
+
+    public ClassificationStubServer respondingAfter(long delayInMs) {
+        this.responseDelayInMs = delayInMs;
+        return this;
+    }
+
+    public ClassificationStubServer paddingResponsesWith(int paddingInBytes) {
+        this.responsePadding = Strings.repeat("x", paddingInBytes);
+        return this;
+    }
+
+    public ClassificationStubServer notRecordingRequests() {
+        this.recording = false;
+        return this;
+    }
+
+    public int getMaxPendingRequests() {
+        return maxPendingRequests.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        maxPendingRequests.accumulateAndGet(pendingRequests.incrementAndGet(), Math::max);
+        try {
+            delay();
+            String contentType = Optional.ofNullable(exchange.getRequestHeaders().getFirst("Content-Type")).orElse("");
+            Optional<WireFormat> requestWireFormat = WireFormat.fromMimeType(mimeType(contentType))
+                .filter(supportedWireFormats::contains);
+            if (!requestWireFormat.isPresent()) {
+                exchange.sendResponseHeaders(415, -1);
+                return;
+            }
+            String accept = Optional.ofNullable(exchange.getRequestHeaders().getFirst("Accept")).orElse("");
+            JsonNode body = mappers.get(requestWireFormat.get()).readTree(exchange.getRequestBody());
+            if (recording) {
+                recordedRequests.add(new RecordedRequest(exchange.getRequestURI().getPath(), contentType, accept, body));
+            }
+
+            WireFormat responseWireFormat = responseWireFormat(requestWireFormat.get(), accept);
+            byte[] response = mappers.get(responseWireFormat).writeValueAsBytes(responseBody(exchange, body));
+            exchange.getResponseHeaders().add("Content-Type", responseWireFormat.getMimeType());
+            if (recording) {
+                responseContentTypes.add(responseWireFormat.getMimeType());
+            }
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(response);
+            }
+        } finally {
+            pendingRequests.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private void delay() {
+        if (responseDelayInMs == 0) {
+            return;
+        }
+        try {
+            TimeUnit.MILLISECONDS.sleep(responseDelayInMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String mimeType(String contentType) {
+        return Splitter.on(';').trimResults().split(contentType).iterator().next();
+    }
+
+    private WireFormat responseWireFormat(WireFormat requestWireFormat, String accept) {
+        boolean accepted = Splitter.on(',').trimResults().splitToList(accept).stream()
+            .map(this::mimeType)
+            .anyMatch(requestWireFormat.getMimeType()::equalsIgnoreCase);
+        if (accepted) {
+            return requestWireFormat;
+        }
+        return WireFormat.JSON;
+    }
+
+    private JsonNode responseBody(HttpExchange exchange, JsonNode body) {
+        if (body.isArray()) {
+            ArrayNode batchResponse = JsonNodeFactory.instance.arrayNode();
+            body.forEach(entry -> batchResponse.add(guesses(recipients(entry))));
+            return batchResponse;
+        }
+        if (body.has("request")) {
+            return guesses(recipients(body));
+        }
+        List<String> recipients = URLEncodedUtils.parse(exchange.getRequestURI(), "UTF-8").stream()
+            .filter(parameter -> parameter.getName().equals("recipients"))
+            .map(NameValuePair::getValue)
+            .collect(Guavate.toImmutableList());
+        return guesses(recipients);
+    }
+
+    private List<String> recipients(JsonNode entry) {
+        List<String> recipients = new ArrayList<>();
+        entry.get("recipients").forEach(recipient -> recipients.add(recipient.asText()));
+        return recipients;
+    }
+
+    private ObjectNode guesses(List<String> recipients) {
+        ObjectNode response = JsonNodeFactory.instance.objectNode();
+        ObjectNode results = response.putObject("results");
+        recipients.forEach(recipient -> results.putObject(recipient)
+            .put("mailboxId", MAILBOX_ID)
+            .put("mailboxName", MAILBOX_NAME)
+            .put("confidence", CONFIDENCE));
+        response.putObject("errors");
+        if (!responsePadding.isEmpty()) {
+            response.put("padding", responsePadding);
+        }
+        return response;
+    }
+
+    @Override
+    public void close() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.ContentType;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+public class CompressingEntityTest {
+
+    private static final String JSON = "{\"key\":\"" + Strings.repeat("éééààà", 1000) + "\"}";
+
+    private final StreamingJsonEntity entity = new StreamingJsonEntity(outputStream -> outputStream.write(JSON.getBytes(StandardCharsets.UTF_8)));
+
+    @Test
+    public void entityShouldBeChunkedAndKeepItsContentType() {
+        CompressingEntity testee = new CompressingEntity(entity, RequestCompression.Algorithm.GZIP);
+
+        assertThat(testee.isChunked()).isTrue();
+        assertThat(testee.getContentLength()).isEqualTo(-1);
+        assertThat(testee.getContentType().getValue()).isEqualTo(ContentType.APPLICATION_JSON.toString());
+    }
+
+    @Test
+    public void entityShouldHaveTheContentEncodingOfItsAlgorithm() {
+        assertThat(new CompressingEntity(entity, RequestCompression.Algorithm.GZIP).getContentEncoding().getValue()).isEqualTo("gzip");
+        assertThat(new CompressingEntity(entity, RequestCompression.Algorithm.DEFLATE).getContentEncoding().getValue()).isEqualTo("deflate");
+    }
+
+    @Test
+    public void writeToShouldWriteGzippedContent() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        new CompressingEntity(entity, RequestCompression.Algorithm.GZIP).writeTo(outputStream);
+
+        assertThat(outputStream.size()).isLessThan(JSON.length());
+        assertThat(asString(new GZIPInputStream(new ByteArrayInputStream(outputStream.toByteArray())))).isEqualTo(JSON);
+    }
+
+    @Test
+    public void writeToShouldWriteDeflatedContent() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        new CompressingEntity(entity, RequestCompression.Algorithm.DEFLATE).writeTo(outputStream);
+
+        assertThat(asString(new InflaterInputStream(new ByteArrayInputStream(outputStream.toByteArray())))).isEqualTo(JSON);
+    }
+
+    @Test
+    public void writeToShouldNotCloseTheOutputStream() throws Exception {
+        ClosingAwareOutputStream outputStream = new ClosingAwareOutputStream();
+
+        new CompressingEntity(entity, RequestCompression.Algorithm.GZIP).writeTo(outputStream);
+
+        assertThat(outputStream.closed).isFalse();
+    }
+
+    @Test
+    public void getContentShouldReturnTheCompressedContent() throws Exception {
+        InputStream content = new CompressingEntity(entity, RequestCompression.Algorithm.GZIP).getContent();
+
+        assertThat(asString(new GZIPInputStream(content))).isEqualTo(JSON);
+    }
+
+    private String asString(InputStream inputStream) throws IOException {
+        return IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+    }
+
+    private static class ClosingAwareOutputStream extends ByteArrayOutputStream {
+        private boolean closed = false;
+
+        @Override
+        public void close() throws IOException {
+            closed = true;
+            super.close();
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Optional;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import nl.jqno.equalsverifier.EqualsVerifier;
+
+public class ConnectionPoolConfigurationTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void shouldImplementBeanContract() {
+        EqualsVerifier.forClass(ConnectionPoolConfiguration.class).verify();
+    }
+
+    @Test
+    public void buildShouldUseDefaultValuesWhenNotGiven() {
+        ConnectionPoolConfiguration configuration = ConnectionPoolConfiguration.builder().build();
+
+        assertThat(configuration.getMaxConnections()).isEqualTo(ConnectionPoolConfiguration.DEFAULT_MAX_CONNECTIONS);
+        assertThat(configuration.getMaxPerRoute()).isEqualTo(ConnectionPoolConfiguration.DEFAULT_MAX_PER_ROUTE);
+        assertThat(configuration.getKeepAliveMs()).isEqualTo(ConnectionPoolConfiguration.DEFAULT_KEEP_ALIVE_MS);
+        assertThat(configuration.getIdleEvictMs()).isEqualTo(ConnectionPoolConfiguration.DEFAULT_IDLE_EVICT_MS);
+        assertThat(configuration.getConnectionRequestTimeoutMs()).isEqualTo(ConnectionPoolConfiguration.DEFAULT_CONNECTION_REQUEST_TIMEOUT_MS);
+        assertThat(configuration.getValidateAfterInactivityMs()).isEqualTo(ConnectionPoolConfiguration.DEFAULT_VALIDATE_AFTER_INACTIVITY_MS);
+    }
+
+    @Test
+    public void maxPerRouteShouldDefaultToMaxConnectionsWhenLowerThanDefault() {
+        ConnectionPoolConfiguration configuration = ConnectionPoolConfiguration.builder()
+            .maxConnections(Optional.of(10))
+            .build();
+
+        assertThat(configuration.getMaxPerRoute()).isEqualTo(10);
+    }
+
+    @Test
+    public void buildShouldThrowWhenMaxPerRouteExceedsMaxConnections() {
+        expectedException.expect(IllegalStateException.class);
+
+        ConnectionPoolConfiguration.builder()
+            .maxConnections(Optional.of(10))
+            .maxPerRoute(Optional.of(11))
+            .build();
+    }
+}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.jayway.awaitility.Awaitility;
+import com.jayway.awaitility.Duration;
+import com.linagora.james.mailets.json.WireFormat;
+
+public class DeferredClassifierTest {
+
+    private static final int SEGMENT_SIZE_IN_BYTES = 65536;
+    private static final int WORKER_COUNT = 2;
+    private static final int BATCH_SIZE = 4;
+    private static final int MAX_RETRIES = 2;
+    private static final int RETRY_DELAY_IN_MS = 1;
+    private static final Map<String, String> GUESSES = ImmutableMap.of("to@james.org", "{\"mailboxName\":\"JAMES\"}");
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private final List<DeferredClassification> handledClassifications = new CopyOnWriteArrayList<>();
+    private DeferredClassifier testee;
+
+    @After
+    public void tearDown() {
+        if (testee != null) {
+            testee.close();
+        }
+    }
+
+    private DeferredClassifier deferredClassifier(DeferredClassifier.Classifier classifier) throws IOException {
+        return deferredClassifier(classifier, MAX_RETRIES, RETRY_DELAY_IN_MS);
+    }
+
+    private DeferredClassifier deferredClassifier(DeferredClassifier.Classifier classifier, int maxRetries, int retryDelayInMs) throws IOException {
+        ClassificationJournal journal = ClassificationJournal.open(temporaryFolder.getRoot().toPath(), SEGMENT_SIZE_IN_BYTES, Clock.systemUTC());
+        return deferredClassifier(journal, classifier, maxRetries, retryDelayInMs);
+    }
+
+    private DeferredClassifier deferredClassifier(ClassificationJournal journal, DeferredClassifier.Classifier classifier, int maxRetries,
+                                                  int retryDelayInMs) throws IOException {
+        ClassificationJournal retryJournal = ClassificationJournal.open(temporaryFolder.getRoot().toPath().resolve("retries"),
+            SEGMENT_SIZE_IN_BYTES, Clock.systemUTC());
+        testee = new DeferredClassifier(journal, retryJournal, classifier,
+            (classification, guesses) -> handledClassifications.add(classification),
+            WORKER_COUNT, BATCH_SIZE, maxRetries, retryDelayInMs, Clock.systemUTC());
+        return testee;
+    }
+
+    private DeferredClassification classification(String mailName) {
+        return new DeferredClassification(mailName, "<" + mailName + "@james.org>", ImmutableList.of("to@james.org"),
+            WireFormat.JSON, "{}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void enqueuedClassificationsShouldBeHandled() throws Exception {
+        DeferredClassifier testee = deferredClassifier(classification -> GUESSES);
+
+        for (int i = 0; i < 10; i++) {
+            testee.enqueue(classification("mail" + i));
+        }
+
+        Awaitility.await().atMost(Duration.TEN_SECONDS).until(() -> handledClassifications.size() == 10);
+        assertThat(handledClassifications.stream().map(DeferredClassification::getMailName))
+            .containsOnly("mail0", "mail1", "mail2", "mail3", "mail4", "mail5", "mail6", "mail7", "mail8", "mail9");
+        Awaitility.await().atMost(Duration.TEN_SECONDS).until(() -> testee.queueDepth() == 0);
+    }
+
+    @Test
+    public void failedClassificationsShouldBeRetried() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        DeferredClassifier testee = deferredClassifier(classification -> {
+            if (attempts.incrementAndGet() <= MAX_RETRIES) {
+                throw new IOException("failure");
+            }
+            return GUESSES;
+        });
+
+        testee.enqueue(classification("mail"));
+
+        Awaitility.await().atMost(Duration.TEN_SECONDS).until(() -> handledClassifications.size() == 1);
+        assertThat(attempts.get()).isEqualTo(MAX_RETRIES + 1);
+    }
+
+    @Test
+    public void classificationsShouldBeDroppedAfterMaxRetries() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        DeferredClassifier testee = deferredClassifier(classification -> {
+            attempts.incrementAndGet();
+            throw new IOException("failure");
+        });
+
+        testee.enqueue(classification("mail"));
+
+        Awaitility.await().atMost(Duration.TEN_SECONDS).until(() -> testee.queueDepth() == 0);
+        assertThat(attempts.get()).isEqualTo(MAX_RETRIES + 1);
+        assertThat(handledClassifications).isEmpty();
+    }
+
+    @Test
+    public void failingClassificationsShouldNotHoldTheOthers() throws Exception {
+        DeferredClassifier testee = deferredClassifier(classification -> {
+                if (classification.getMailName().equals("failing")) {
+                    throw new IOException("failure");
+                }
+                return GUESSES;
+            },
+            MAX_RETRIES, (int) TimeUnit.MINUTES.toMillis(1));
+
+        testee.enqueue(classification("failing"));
+        testee.enqueue(classification("mail1"));
+        testee.enqueue(classification("mail2"));
+
+        Awaitility.await().atMost(Duration.TEN_SECONDS).until(() -> handledClassifications.size() == 2);
+        Awaitility.await().atMost(Duration.TEN_SECONDS).until(() -> testee.queueDepth() == 1);
+        testee.enqueue(classification("mail3"));
+        Awaitility.await().atMost(Duration.TEN_SECONDS).until(() -> handledClassifications.size() == 3);
+    }
+
+    @Test
+    public void closeShouldStopTheDrainerWhileRecordsArePending() throws Exception {
+        CountDownLatch classificationStarted = new CountDownLatch(1);
+        DeferredClassifier testee = deferredClassifier(classification -> {
+            classificationStarted.countDown();
+            Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            return GUESSES;
+        });
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            testee.enqueue(classification("mail" + i));
+        }
+        classificationStarted.await(10, TimeUnit.SECONDS);
+
+        testee.close();
+
+        assertThat(testee.isTerminated()).isTrue();
+        assertThat(handledClassifications).isEmpty();
+    }
+
+    @Test
+    public void classificationsShouldNotBeRetriedWhenMaxRetriesIsZero() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        DeferredClassifier testee = deferredClassifier(classification -> {
+                attempts.incrementAndGet();
+                throw new IOException("failure");
+            },
+            0, RETRY_DELAY_IN_MS);
+
+        testee.enqueue(classification("mail"));
+
+        Awaitility.await().atMost(Duration.TEN_SECONDS).until(() -> testee.queueDepth() == 0);
+        assertThat(attempts.get()).isEqualTo(1);
+        assertThat(handledClassifications).isEmpty();
+    }
+
+    @Test
+    public void drainShouldPauseWhileTheJournalKeepsFailing() throws Exception {
+        ClassificationJournal journal = mock(ClassificationJournal.class);
+        AtomicInteger polls = new AtomicInteger();
+        when(journal.poll(anyInt())).thenAnswer(invocation -> {
+            polls.incrementAndGet();
+            throw new IOException("failure");
+        });
+        deferredClassifier(journal, classification -> GUESSES, MAX_RETRIES, RETRY_DELAY_IN_MS);
+
+        Thread.sleep(500);
+
+        assertThat(polls.get()).isBetween(1, 10);
+    }
+
+    @Test
+    public void deferredClassificationShouldStoreTheWireFormatByValue() throws Exception {
+        DeferredClassification classification = new DeferredClassification("mail", "<mail@james.org>", ImmutableList.of("to@james.org"),
+            WireFormat.CBOR, "{}".getBytes(StandardCharsets.UTF_8));
+
+        assertThat(new String(classification.toBytes(), StandardCharsets.UTF_8)).contains(WireFormat.CBOR.getValue());
+        assertThat(DeferredClassification.fromBytes(classification.toBytes()).getWireFormat()).isEqualTo(WireFormat.CBOR);
+    }
+
+    @Test
+    public void fromBytesShouldRejectUnknownFormatVersions() throws Exception {
+        byte[] record = classification("mail").toBytes();
+        record[0] = 0;
+
+        expectedException.expect(IOException.class);
+
+        DeferredClassification.fromBytes(record);
+    }
+
+    @Test
+    public void deferredClassificationShouldSurviveSerialization() throws Exception {
+        DeferredClassification classification = classification("mail");
+
+        DeferredClassification deserialized = DeferredClassification.fromBytes(classification.toBytes());
+
+        assertThat(deserialized.getMailName()).isEqualTo("mail");
+        assertThat(deserialized.getMessageId()).isEqualTo("<mail@james.org>");
+        assertThat(deserialized.getRecipients()).containsExactly("to@james.org");
+        assertThat(deserialized.getWireFormat()).isEqualTo(WireFormat.JSON);
+        assertThat(deserialized.getRequestBody()).isEqualTo(classification.getRequestBody());
+    }
+}
@@ -0,0 +1,258 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class LoadBalancedClassificationClientTest {
+
+    private static final int EJECTION_DURATION_MS = 1000;
+    private static final int HEALTH_CHECK_TIMEOUT_MS = 100;
+
+    private static class ControlledClassificationClient implements ClassificationClient {
+        private final List<URI> requestedUris = new ArrayList<>();
+        private final List<CompletableFuture<Void>> pendingResponses = new ArrayList<>();
+
+        @Override
+        public <T> CompletableFuture<T> classify(URI uri, HttpEntity requestBody, ResponseParser<T> responseParser) {
+            CompletableFuture<Void> response = new CompletableFuture<>();
+            requestedUris.add(uri);
+            pendingResponses.add(response);
+            return response.thenApply(any -> null);
+        }
+
+        void succeedAll() {
+            pendingResponses.forEach(response -> response.complete(null));
+        }
+
+        void failAll() {
+            pendingResponses.forEach(response -> response.completeExceptionally(new RuntimeException()));
+        }
+
+        @Override
+        public boolean isAlive(URI uri, int timeoutInMs) {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final FakeTicker ticker = new FakeTicker();
+    private final ControlledClassificationClient firstClient = new ControlledClassificationClient();
+    private final ControlledClassificationClient secondClient = new ControlledClassificationClient();
+    private final Set<URI> deadReplicas = new HashSet<>();
+    private final Set<URI> hangingReplicas = new HashSet<>();
+    private LoadBalancedClassificationClient testee;
+
+    private LoadBalancedClassificationClient testee(LoadBalancingConfiguration.Strategy strategy) throws Exception {
+        testee = new LoadBalancedClassificationClient(
+            ImmutableList.of(
+                new LoadBalancedClassificationClient.Replica(new URI("http://first:9000/predict"), firstClient),
+                new LoadBalancedClassificationClient.Replica(new URI("http://second:9000/predict"), secondClient)),
+            LoadBalancingConfiguration.builder()
+                .strategy(Optional.of(strategy))
+                .healthCheckIntervalMs(Optional.of(Integer.MAX_VALUE))
+                .healthCheckTimeoutMs(Optional.of(HEALTH_CHECK_TIMEOUT_MS))
+                .ejectAfterFailures(Optional.of(2))
+                .ejectionDurationMs(Optional.of(EJECTION_DURATION_MS))
+                .build(),
+            (replica, timeoutInMs) -> isAlive(replica.getServiceUri()),
+            ticker);
+        return testee;
+    }
+
+    private boolean isAlive(URI serviceUri) {
+        if (hangingReplicas.contains(serviceUri)) {
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return !deadReplicas.contains(serviceUri);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (testee != null) {
+            testee.close();
+        }
+    }
+
+    private void classify(int times) throws Exception {
+        for (int i = 0; i < times; i++) {
+            testee.classify(new URI("http://first:9000/predict?recipients=to@james.org"), new StringEntity("{}"), (responseBody, wireFormat) -> null);
+        }
+    }
+
+    @Test
+    public void classifyShouldSendTheRequestToTheReplicaHost() throws Exception {
+        testee(LoadBalancingConfiguration.Strategy.LEAST_OUTSTANDING);
+
+        classify(2);
+
+        assertThat(firstClient.requestedUris).containsExactly(new URI("http://first:9000/predict?recipients=to@james.org"));
+        assertThat(secondClient.requestedUris).containsExactly(new URI("http://second:9000/predict?recipients=to@james.org"));
+    }
+
+    @Test
+    public void leastOutstandingShouldPreferTheReplicaWithFewerPendingRequests() throws Exception {
+        testee(LoadBalancingConfiguration.Strategy.LEAST_OUTSTANDING);
+        classify(2);
+        firstClient.succeedAll();
+
+        classify(1);
+
+        assertThat(firstClient.requestedUris).hasSize(2);
+        assertThat(secondClient.requestedUris).hasSize(1);
+    }
+
+    @Test
+    public void ewmaShouldPreferTheFastestReplica() throws Exception {
+        testee(LoadBalancingConfiguration.Strategy.EWMA);
+        classify(2);
+        ticker.advance(10, TimeUnit.MILLISECONDS);
+        firstClient.succeedAll();
+        ticker.advance(100, TimeUnit.MILLISECONDS);
+        secondClient.succeedAll();
+
+        classify(4);
+
+        assertThat(firstClient.requestedUris).hasSize(5);
+        assertThat(secondClient.requestedUris).hasSize(1);
+    }
+
+    @Test
+    public void ewmaShouldExpectReplicasWithoutLatencyToBeAsFastAsTheOthers() throws Exception {
+        testee(LoadBalancingConfiguration.Strategy.EWMA);
+        classify(2);
+        ticker.advance(10, TimeUnit.MILLISECONDS);
+        firstClient.succeedAll();
+
+        classify(3);
+
+        assertThat(firstClient.requestedUris).hasSize(3);
+        assertThat(secondClient.requestedUris).hasSize(2);
+    }
+
+    @Test
+    public void ewmaShouldPenalizeFailedRequests() throws Exception {
+        testee(LoadBalancingConfiguration.Strategy.EWMA);
+        classify(2);
+        ticker.advance(10, TimeUnit.MILLISECONDS);
+        firstClient.succeedAll();
+        secondClient.failAll();
+
+        assertThat(testee.getReplicas().get(1).getEwmaLatencyInNanos()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(20));
+    }
+
+    @Test
+    public void replicaShouldBeEjectedAfterConsecutiveFailures() throws Exception {
+        testee(LoadBalancingConfiguration.Strategy.LEAST_OUTSTANDING);
+        classify(4);
+        secondClient.failAll();
+        firstClient.succeedAll();
+
+        classify(3);
+
+        assertThat(firstClient.requestedUris).hasSize(5);
+        assertThat(secondClient.requestedUris).hasSize(2);
+    }
+
+    @Test
+    public void ejectedReplicaShouldReceiveRequestsAgainAfterEjectionDuration() throws Exception {
+        testee(LoadBalancingConfiguration.Strategy.LEAST_OUTSTANDING);
+        classify(4);
+        secondClient.failAll();
+        firstClient.succeedAll();
+
+        ticker.advance(EJECTION_DURATION_MS, TimeUnit.MILLISECONDS);
+        classify(2);
+
+        assertThat(secondClient.requestedUris).hasSize(3);
+    }
+
+    @Test
+    public void failedHealthCheckShouldEjectTheReplica() throws Exception {
+        testee(LoadBalancingConfiguration.Strategy.LEAST_OUTSTANDING);
+        deadReplicas.add(new URI("http://second:9000/predict"));
+
+        testee.runHealthChecks();
+        classify(2);
+
+        assertThat(firstClient.requestedUris).hasSize(2);
+        assertThat(secondClient.requestedUris).isEmpty();
+    }
+
+    @Test
+    public void healthCheckNotAnsweringInTimeShouldEjectTheReplica() throws Exception {
+        testee(LoadBalancingConfiguration.Strategy.LEAST_OUTSTANDING);
+        hangingReplicas.add(new URI("http://second:9000/predict"));
+
+        testee.runHealthChecks();
+        classify(2);
+
+        assertThat(firstClient.requestedUris).hasSize(2);
+        assertThat(secondClient.requestedUris).isEmpty();
+    }
+
+    @Test
+    public void successfulHealthCheckShouldBringBackTheReplica() throws Exception {
+        testee(LoadBalancingConfiguration.Strategy.LEAST_OUTSTANDING);
+        deadReplicas.add(new URI("http://second:9000/predict"));
+        testee.runHealthChecks();
+        deadReplicas.clear();
+
+        testee.runHealthChecks();
+        classify(2);
+
+        assertThat(secondClient.requestedUris).hasSize(1);
+    }
+
+    @Test
+    public void allReplicasShouldBeUsedWhenAllAreEjected() throws Exception {
+        testee(LoadBalancingConfiguration.Strategy.LEAST_OUTSTANDING);
+        deadReplicas.add(new URI("http://first:9000/predict"));
+        deadReplicas.add(new URI("http://second:9000/predict"));
+        testee.runHealthChecks();
+
+        classify(2);
+
+        assertThat(firstClient.requestedUris).hasSize(1);
+        assertThat(secondClient.requestedUris).hasSize(1);
+    }
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+import nl.jqno.equalsverifier.EqualsVerifier;
+
+public class LoadBalancingConfigurationTest {
+
+    @Test
+    public void shouldImplementBeanContract() {
+        EqualsVerifier.forClass(LoadBalancingConfiguration.class).verify();
+    }
+
+    @Test
+    public void buildShouldUseDefaultValuesWhenNotGiven() {
+        LoadBalancingConfiguration configuration = LoadBalancingConfiguration.builder().build();
+
+        assertThat(configuration.getStrategy()).isEqualTo(LoadBalancingConfiguration.DEFAULT_STRATEGY);
+        assertThat(configuration.getHealthCheckIntervalMs()).isEqualTo(LoadBalancingConfiguration.DEFAULT_HEALTH_CHECK_INTERVAL_MS);
+        assertThat(configuration.getHealthCheckTimeoutMs()).isEqualTo(LoadBalancingConfiguration.DEFAULT_HEALTH_CHECK_TIMEOUT_MS);
+        assertThat(configuration.getEjectAfterFailures()).isEqualTo(LoadBalancingConfiguration.DEFAULT_EJECT_AFTER_FAILURES);
+        assertThat(configuration.getEjectionDurationMs()).isEqualTo(LoadBalancingConfiguration.DEFAULT_EJECTION_DURATION_MS);
+    }
+
+    @Test
+    public void strategyParseShouldIgnoreCase() {
+        assertThat(LoadBalancingConfiguration.Strategy.parse("EWMA")).contains(LoadBalancingConfiguration.Strategy.EWMA);
+        assertThat(LoadBalancingConfiguration.Strategy.parse("leastoutstanding")).contains(LoadBalancingConfiguration.Strategy.LEAST_OUTSTANDING);
+    }
+
+    @Test
+    public void strategyParseShouldReturnEmptyWhenUnknown() {
+        assertThat(LoadBalancingConfiguration.Strategy.parse("random")).isEmpty();
+    }
+}
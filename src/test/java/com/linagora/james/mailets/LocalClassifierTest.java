@@ -0,0 +1,127 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.base.test.FakeMail;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.linagora.james.mailets.json.ClassificationRequestBody;
+
+public class LocalClassifierTest {
+
+    private static final int FEATURE_BITS = 12;
+
+    private ClassificationRequestBody requestBody(String subject, String textBody) throws Exception {
+        return ClassificationRequestBody.from(FakeMail.builder()
+                .mimeMessage(MimeMessageBuilder.mimeMessageBuilder()
+                    .setSubject(subject)
+                    .setText(textBody)
+                    .build())
+                .recipients(new MailAddress("user@james.org"))
+                .build(),
+            UUID.randomUUID());
+    }
+
+    private Map<String, String> classify(LocalClassifier testee, ClassificationRequestBody requestBody, MailAddress... recipients) throws Exception {
+        Map<String, String> guesses = new HashMap<>();
+        testee.classify(requestBody, ImmutableList.copyOf(recipients), (recipient, guess) -> guesses.put(recipient.asString(), guess));
+        return guesses;
+    }
+
+    @Test
+    public void modeParseShouldIgnoreCase() {
+        assertThat(LocalClassifier.Mode.parse("PRIMARY")).contains(LocalClassifier.Mode.PRIMARY);
+    }
+
+    @Test
+    public void classifyShouldSerializeGuessesLikeTheClassificationWebservice() throws Exception {
+        LocalClassifier testee = new LocalClassifier(NaiveBayesModelTest.trainedFor(NaiveBayesModel.trainer(FEATURE_BITS), "user@james.org").build());
+
+        Map<String, String> guesses = classify(testee, requestBody("New invoice", "Your invoice is overdue"),
+            new MailAddress("user@james.org"));
+
+        JsonNode guess = new ObjectMapper().readTree(guesses.get("user@james.org"));
+        assertThat(guess.get("mailboxId").asText()).isEqualTo("invoices-id");
+        assertThat(guess.get("mailboxName").asText()).isEqualTo("Invoices");
+        assertThat(guess.get("confidence").asDouble()).isGreaterThan(50).isLessThanOrEqualTo(100);
+    }
+
+    @Test
+    public void classifyShouldGuessEachRecipientWithItsOwnTable() throws Exception {
+        NaiveBayesModel.Trainer trainer = NaiveBayesModelTest.trainedFor(NaiveBayesModel.trainer(FEATURE_BITS), "user@james.org")
+            .learn("other@james.org", "work-id", "Work", ImmutableList.of("Invoice"), "Invoice of the customer");
+        LocalClassifier testee = new LocalClassifier(trainer.build());
+
+        Map<String, String> guesses = classify(testee, requestBody("New invoice", "Your invoice is overdue"),
+            new MailAddress("user@james.org"), new MailAddress("other@james.org"));
+
+        assertThat(new ObjectMapper().readTree(guesses.get("user@james.org")).get("mailboxName").asText()).isEqualTo("Invoices");
+        assertThat(new ObjectMapper().readTree(guesses.get("other@james.org")).get("mailboxName").asText()).isEqualTo("Work");
+    }
+
+    @Test
+    public void classifyShouldNotGuessRecipientsWithoutTable() throws Exception {
+        LocalClassifier testee = new LocalClassifier(NaiveBayesModelTest.trainedFor(NaiveBayesModel.trainer(FEATURE_BITS), "user@james.org").build());
+
+        Map<String, String> guesses = classify(testee, requestBody("New invoice", "Your invoice is overdue"),
+            new MailAddress("other@james.org"));
+
+        assertThat(guesses).isEmpty();
+    }
+
+    @Test
+    public void classifyShouldMatchRecipientsIgnoringCase() throws Exception {
+        LocalClassifier testee = new LocalClassifier(NaiveBayesModelTest.trainedFor(NaiveBayesModel.trainer(FEATURE_BITS), "user@james.org").build());
+
+        Map<String, String> guesses = classify(testee, requestBody("New invoice", "Your invoice is overdue"),
+            new MailAddress("USER@James.ORG"));
+
+        assertThat(new ObjectMapper().readTree(guesses.get("USER@James.ORG")).get("mailboxName").asText()).isEqualTo("Invoices");
+    }
+
+    @Test
+    public void formatConfidenceShouldWriteSixDecimals() {
+        char[] buffer = new char[16];
+
+        int length = LocalClassifier.formatConfidence(42.1234567, buffer);
+
+        assertThat(new String(buffer, 0, length)).isEqualTo("42.123457");
+    }
+
+    @Test
+    public void formatConfidenceShouldWriteFullConfidence() {
+        char[] buffer = new char[16];
+
+        int length = LocalClassifier.formatConfidence(100, buffer);
+
+        assertThat(new String(buffer, 0, length)).isEqualTo("100.000000");
+    }
+}
@@ -0,0 +1,94 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.mailet.MailAddress;
+import org.apache.mailet.MailetContext;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class LocalRecipientFilterTest {
+
+    private static final long TTL_IN_MS = 1000;
+
+    private MailetContext mailetContext;
+    private FakeTicker ticker;
+    private LocalRecipientFilter testee;
+
+    @Before
+    public void setUp() {
+        mailetContext = mock(MailetContext.class);
+        when(mailetContext.isLocalServer("james.org")).thenReturn(true);
+        when(mailetContext.isLocalServer("remote.org")).thenReturn(false);
+        when(mailetContext.isLocalEmail(any(MailAddress.class))).thenReturn(true);
+        ticker = new FakeTicker();
+        testee = new LocalRecipientFilter(mailetContext, TTL_IN_MS, ticker);
+    }
+
+    @Test
+    public void localRecipientsShouldFilterOutRecipientsOfRemoteDomains() throws Exception {
+        assertThat(testee.localRecipients(ImmutableList.of(new MailAddress("user@james.org"), new MailAddress("user@remote.org"))))
+            .containsExactly(new MailAddress("user@james.org"));
+    }
+
+    @Test
+    public void localRecipientsShouldFilterOutUnknownUsersOfLocalDomains() throws Exception {
+        when(mailetContext.isLocalEmail(new MailAddress("unknown@james.org"))).thenReturn(false);
+
+        assertThat(testee.localRecipients(ImmutableList.of(new MailAddress("user@james.org"), new MailAddress("unknown@james.org"))))
+            .containsExactly(new MailAddress("user@james.org"));
+    }
+
+    @Test
+    public void localRecipientsShouldNotCheckTheUsersOfRemoteDomains() throws Exception {
+        testee.localRecipients(ImmutableList.of(new MailAddress("user@remote.org")));
+
+        verify(mailetContext, times(0)).isLocalEmail(any(MailAddress.class));
+    }
+
+    @Test
+    public void localRecipientsShouldLookUpEachDomainOnce() throws Exception {
+        testee.localRecipients(ImmutableList.of(new MailAddress("user1@remote.org"), new MailAddress("user2@remote.org")));
+        testee.localRecipients(ImmutableList.of(new MailAddress("user3@REMOTE.org")));
+
+        verify(mailetContext, times(1)).isLocalServer("remote.org");
+    }
+
+    @Test
+    public void localRecipientsShouldLookUpDomainsAgainOnceExpired() throws Exception {
+        testee.localRecipients(ImmutableList.of(new MailAddress("user@remote.org")));
+        ticker.advance(TTL_IN_MS + 1, TimeUnit.MILLISECONDS);
+        when(mailetContext.isLocalServer("remote.org")).thenReturn(true);
+
+        assertThat(testee.localRecipients(ImmutableList.of(new MailAddress("user@remote.org"))))
+            .containsExactly(new MailAddress("user@remote.org"));
+    }
+}
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.common.collect.ImmutableList;
+
+public class NaiveBayesModelTest {
+
+    private static final int FEATURE_BITS = 12;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    static NaiveBayesModel.Trainer trainedFor(NaiveBayesModel.Trainer trainer, String user) {
+        return trainer
+            .learn(user, "invoices-id", "Invoices", ImmutableList.of("Your invoice"), "Please find attached your invoice, to be paid before the end of the month")
+            .learn(user, "invoices-id", "Invoices", ImmutableList.of("Invoice overdue"), "The payment of this invoice is overdue")
+            .learn(user, "friends-id", "Friends", ImmutableList.of("Party tonight"), "Come to the party with your friends tonight")
+            .learn(user, "friends-id", "Friends", ImmutableList.of("Holidays"), "See you at the beach, friends");
+    }
+
+    private int guess(NaiveBayesModel model, String user, String subject, String textBody) {
+        HashedFeatures features = new HashedFeatures();
+        features.addWords(subject, HashedFeatures.SUBJECT_SEED, model.featureMask());
+        features.addWords(textBody, HashedFeatures.BODY_SEED, model.featureMask());
+        NaiveBayesModel.UserTable table = model.table(user);
+        return model.score(table, features, new double[model.maxMailboxCount()]);
+    }
+
+    private String guessedMailboxName(NaiveBayesModel model, String user, String subject, String textBody) {
+        return model.table(user).mailboxName(guess(model, user, subject, textBody));
+    }
+
+    @Test
+    public void scoreShouldGuessTheMailboxOfTheClosestMails() {
+        NaiveBayesModel model = trainedFor(NaiveBayesModel.trainer(FEATURE_BITS), "user@james.org").build();
+
+        assertThat(guessedMailboxName(model, "user@james.org", "New invoice", "Your invoice is overdue")).isEqualTo("Invoices");
+        assertThat(guessedMailboxName(model, "user@james.org", "Beach party", "Friends, come tonight")).isEqualTo("Friends");
+    }
+
+    @Test
+    public void scoreShouldIgnoreCase() {
+        NaiveBayesModel model = trainedFor(NaiveBayesModel.trainer(FEATURE_BITS), "user@james.org").build();
+
+        assertThat(guessedMailboxName(model, "user@james.org", "INVOICE", "OVERDUE PAYMENT")).isEqualTo("Invoices");
+    }
+
+    @Test
+    public void tableShouldIgnoreTheCaseOfUsers() {
+        NaiveBayesModel model = trainedFor(NaiveBayesModel.trainer(FEATURE_BITS), "user@james.org").build();
+
+        assertThat(model.table("USER@james.org")).isNotNull();
+    }
+
+    @Test
+    public void tableShouldFallBackToTheDefaultUser() {
+        NaiveBayesModel model = trainedFor(NaiveBayesModel.trainer(FEATURE_BITS), NaiveBayesModel.DEFAULT_USER).build();
+
+        assertThat(model.table("other@james.org")).isNotNull();
+    }
+
+    @Test
+    public void tableShouldBeNullWhenNoTableMatches() {
+        NaiveBayesModel model = trainedFor(NaiveBayesModel.trainer(FEATURE_BITS), "user@james.org").build();
+
+        assertThat(model.table("other@james.org")).isNull();
+    }
+
+    @Test
+    public void tableShouldMatchTheLocalPartAndDomainOfUsersIgnoringCase() {
+        NaiveBayesModel model = trainedFor(NaiveBayesModel.trainer(FEATURE_BITS), "user@james.org").build();
+
+        assertThat(model.table("USER", "James.org")).isSameAs(model.table("user@james.org"));
+        assertThat(model.table("user", "other.org")).isNull();
+    }
+
+    @Test
+    public void tableShouldOnlyHoldTheFeaturesSeenByTheUser() {
+        NaiveBayesModel model = trainedFor(NaiveBayesModel.trainer(FEATURE_BITS), "user@james.org").build();
+
+        assertThat(model.table("user@james.org").seenFeatureCount()).isPositive().isLessThan(1 << FEATURE_BITS);
+    }
+
+    @Test
+    public void readShouldReturnTheWrittenModel() throws Exception {
+        NaiveBayesModel model = trainedFor(NaiveBayesModel.trainer(FEATURE_BITS), "user@james.org").build();
+        Path modelFile = temporaryFolder.newFile().toPath();
+
+        model.write(modelFile);
+        NaiveBayesModel readModel = NaiveBayesModel.read(modelFile);
+
+        HashedFeatures features = new HashedFeatures();
+        features.addWords("Your invoice is overdue", HashedFeatures.BODY_SEED, model.featureMask());
+        double[] scores = new double[model.maxMailboxCount()];
+        double[] readScores = new double[readModel.maxMailboxCount()];
+        model.score(model.table("user@james.org"), features, scores);
+        readModel.score(readModel.table("user@james.org"), features, readScores);
+        assertThat(readScores).containsExactly(scores);
+        assertThat(readModel.table("user@james.org").mailboxName(0)).isEqualTo("Invoices");
+    }
+
+    @Test
+    public void readShouldThrowWhenTheFileIsNotAModel() throws Exception {
+        Path modelFile = temporaryFolder.newFile().toPath();
+        Files.write(modelFile, "not a model".getBytes(StandardCharsets.UTF_8));
+
+        expectedException.expect(IOException.class);
+
+        NaiveBayesModel.read(modelFile);
+    }
+
+    @Test
+    public void trainerShouldThrowWhenFeatureBitsIsTooLarge() {
+        expectedException.expect(IllegalArgumentException.class);
+
+        NaiveBayesModel.trainer(NaiveBayesModel.MAX_FEATURE_BITS + 1);
+    }
+}
@@ -0,0 +1,93 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Optional;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import nl.jqno.equalsverifier.EqualsVerifier;
+
+public class RequestCompressionTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void shouldImplementBeanContract() {
+        EqualsVerifier.forClass(RequestCompression.class).verify();
+    }
+
+    @Test
+    public void buildShouldUseDefaultValuesWhenNotGiven() {
+        RequestCompression requestCompression = RequestCompression.builder().build();
+
+        assertThat(requestCompression.getAlgorithm()).isEqualTo(RequestCompression.DEFAULT_ALGORITHM);
+        assertThat(requestCompression.getThresholdInBytes()).isEqualTo(RequestCompression.DEFAULT_THRESHOLD_IN_BYTES);
+    }
+
+    @Test
+    public void buildShouldThrowWhenNegativeThreshold() {
+        expectedException.expect(IllegalStateException.class);
+
+        RequestCompression.builder()
+            .thresholdInBytes(Optional.of(-1))
+            .build();
+    }
+
+    @Test
+    public void algorithmParseShouldIgnoreCase() {
+        assertThat(RequestCompression.Algorithm.parse("GZIP")).contains(RequestCompression.Algorithm.GZIP);
+        assertThat(RequestCompression.Algorithm.parse("Deflate")).contains(RequestCompression.Algorithm.DEFLATE);
+    }
+
+    @Test
+    public void algorithmParseShouldReturnEmptyWhenUnknown() {
+        assertThat(RequestCompression.Algorithm.parse("brotli")).isEmpty();
+    }
+
+    @Test
+    public void compressIfAboveThresholdShouldKeepSmallEntities() throws Exception {
+        HttpEntity entity = new StringEntity("{}");
+
+        assertThat(RequestCompression.builder()
+                .thresholdInBytes(Optional.of(100))
+                .build()
+                .compressIfAboveThreshold(entity, 100))
+            .isSameAs(entity);
+    }
+
+    @Test
+    public void compressIfAboveThresholdShouldCompressLargeEntities() throws Exception {
+        HttpEntity compressedEntity = RequestCompression.builder()
+            .algorithm(Optional.of(RequestCompression.Algorithm.DEFLATE))
+            .thresholdInBytes(Optional.of(100))
+            .build()
+            .compressIfAboveThreshold(new StringEntity("{}"), 101);
+
+        assertThat(compressedEntity).isInstanceOf(CompressingEntity.class);
+        assertThat(compressedEntity.getContentEncoding().getValue()).isEqualTo("deflate");
+    }
+}
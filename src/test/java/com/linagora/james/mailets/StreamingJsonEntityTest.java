@@ -0,0 +1,89 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.ContentType;
+import org.junit.Test;
+
+public class StreamingJsonEntityTest {
+
+    private static final String JSON = "{\"key\":\"éééààà\"}";
+
+    private final StreamingJsonEntity testee = new StreamingJsonEntity(outputStream -> outputStream.write(JSON.getBytes(StandardCharsets.UTF_8)));
+
+    @Test
+    public void entityShouldBeChunked() {
+        assertThat(testee.isChunked()).isTrue();
+        assertThat(testee.getContentLength()).isEqualTo(-1);
+    }
+
+    @Test
+    public void entityShouldBeRepeatable() {
+        assertThat(testee.isRepeatable()).isTrue();
+        assertThat(testee.isStreaming()).isFalse();
+    }
+
+    @Test
+    public void entityShouldHaveJsonContentType() {
+        assertThat(testee.getContentType().getValue()).isEqualTo(ContentType.APPLICATION_JSON.toString());
+    }
+
+    @Test
+    public void writeToShouldWriteTheJson() throws Exception {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        testee.writeTo(outputStream);
+
+        assertThat(new String(outputStream.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(JSON);
+    }
+
+    @Test
+    public void writeToShouldNotCloseTheOutputStream() throws Exception {
+        ClosingAwareOutputStream outputStream = new ClosingAwareOutputStream();
+
+        testee.writeTo(outputStream);
+
+        assertThat(outputStream.closed).isFalse();
+    }
+
+    @Test
+    public void getContentShouldReturnTheJson() throws Exception {
+        assertThat(IOUtils.toString(testee.getContent(), StandardCharsets.UTF_8)).isEqualTo(JSON);
+    }
+
+    private static class ClosingAwareOutputStream extends OutputStream {
+        private boolean closed = false;
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.IOException;
+
+import org.apache.http.client.HttpResponseException;
+import org.junit.Test;
+
+import com.linagora.james.mailets.json.WireFormat;
+
+public class WireFormatNegotiationTest {
+
+    @Test
+    public void getWireFormatShouldReturnTheConfiguredOne() {
+        assertThat(new WireFormatNegotiation(WireFormat.SMILE).getWireFormat()).isEqualTo(WireFormat.SMILE);
+    }
+
+    @Test
+    public void onFailureShouldFallBackToJsonWhenUnsupportedMediaType() {
+        WireFormatNegotiation testee = new WireFormatNegotiation(WireFormat.SMILE);
+
+        testee.onFailure(new HttpResponseException(415, "Unsupported Media Type"));
+
+        assertThat(testee.getWireFormat()).isEqualTo(WireFormat.JSON);
+    }
+
+    @Test
+    public void onFailureShouldKeepTheWireFormatWhenOtherErrorStatus() {
+        WireFormatNegotiation testee = new WireFormatNegotiation(WireFormat.CBOR);
+
+        testee.onFailure(new HttpResponseException(500, "Internal Server Error"));
+
+        assertThat(testee.getWireFormat()).isEqualTo(WireFormat.CBOR);
+    }
+
+    @Test
+    public void onFailureShouldKeepTheWireFormatWhenOtherFailure() {
+        WireFormatNegotiation testee = new WireFormatNegotiation(WireFormat.CBOR);
+
+        testee.onFailure(new IOException());
+
+        assertThat(testee.getWireFormat()).isEqualTo(WireFormat.CBOR);
+    }
+}
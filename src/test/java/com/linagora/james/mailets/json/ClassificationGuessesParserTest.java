@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+
+public class ClassificationGuessesParserTest {
+
+    private static final String GUESS = "{" +
+        "    \"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"," +
+        "    \"mailboxName\":\"JAMES\"," +
+        "    \"confidence\":50.07615280151367}";
+    private static final String SERIALIZED_GUESS = "{\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\",\"mailboxName\":\"JAMES\",\"confidence\":50.07615280151367}";
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    private ClassificationGuessesParser testee = new ClassificationGuessesParser();
+
+    @Test
+    public void parseShouldHandEveryResultInOrder() throws Exception {
+        Map<String, String> results = new LinkedHashMap<>();
+
+        testee.parse(stream("{\"results\":{\"user1@james.org\":" + GUESS + ",\"user2@james.org\":" + GUESS + "},\"errors\":{}}"), results::put);
+
+        assertThat(results).containsExactly(
+            entry("user1@james.org"),
+            entry("user2@james.org"));
+    }
+
+    @Test
+    public void parseShouldSkipErrors() throws Exception {
+        Map<String, String> results = new LinkedHashMap<>();
+
+        testee.parse(stream("{\"errors\":{\"user2@james.org\":{\"exception\":\"this is an exception\",\"value\":[1, {\"a\":2}]}}," +
+            "\"results\":{\"user1@james.org\":" + GUESS + "}}"), results::put);
+
+        assertThat(results).containsExactly(entry("user1@james.org"));
+    }
+
+    @Test
+    public void parseShouldIgnoreUnknownFields() throws Exception {
+        Map<String, String> results = new LinkedHashMap<>();
+
+        testee.parse(stream("{\"version\":{\"model\":3},\"results\":{\"user1@james.org\":" + GUESS + "},\"errors\":{}}"), results::put);
+
+        assertThat(results).containsExactly(entry("user1@james.org"));
+    }
+
+    @Test
+    public void parseShouldIgnoreUnknownFieldsOfAGuess() throws Exception {
+        Map<String, String> results = new LinkedHashMap<>();
+
+        testee.parse(stream("{\"results\":{\"user1@james.org\":{" +
+            "\"model\":{\"version\":3}," +
+            "\"confidence\":50.07615280151367," +
+            "\"mailboxName\":\"JAMES\"," +
+            "\"mailboxId\":\"cfe49390-f391-11e6-88e7-ddd22b16a7b9\"}},\"errors\":{}}"), results::put);
+
+        assertThat(results).containsExactly(entry("user1@james.org"));
+    }
+
+    @Test
+    public void parseShouldKeepTheConfidenceAsWritten() throws Exception {
+        Map<String, String> results = new LinkedHashMap<>();
+
+        testee.parse(stream("{\"results\":{\"user1@james.org\":{" +
+            "\"mailboxId\":\"1\",\"mailboxName\":\"JAMES\",\"confidence\":1.50E+1}},\"errors\":{}}"), results::put);
+
+        assertThat(results).containsEntry("user1@james.org", "{\"mailboxId\":\"1\",\"mailboxName\":\"JAMES\",\"confidence\":1.50E+1}");
+    }
+
+    @Test
+    public void parseShouldEscapeStringsOfTheSerializedGuess() throws Exception {
+        Map<String, String> results = new LinkedHashMap<>();
+
+        testee.parse(stream("{\"results\":{\"user1@james.org\":{" +
+            "\"mailboxId\":\"1\",\"mailboxName\":\"\\\"quoted\\\" \\u00e9\",\"confidence\":1}},\"errors\":{}}"), results::put);
+
+        assertThat(results).containsEntry("user1@james.org", "{\"mailboxId\":\"1\",\"mailboxName\":\"\\\"quoted\\\" \u00e9\",\"confidence\":1}");
+    }
+
+    @Test
+    public void parseShouldShareTheSerializedFormOfIdenticalGuesses() throws Exception {
+        Map<String, String> results = new LinkedHashMap<>();
+
+        testee.parse(stream("{\"results\":{\"user1@james.org\":" + GUESS + ",\"user2@james.org\":" + GUESS + "},\"errors\":{}}"), results::put);
+
+        assertThat(results.get("user1@james.org")).isSameAs(results.get("user2@james.org"));
+    }
+
+    @Test
+    public void parseShouldFailWhenAGuessMissesAMandatoryField() throws Exception {
+        expectedException.expect(JsonParseException.class);
+
+        testee.parse(stream("{\"results\":{\"user1@james.org\":{\"mailboxId\":\"1\",\"confidence\":1}},\"errors\":{}}"), (recipient, guess) -> { });
+    }
+
+    @Test
+    public void parseShouldFailWhenConfidenceIsNotANumber() throws Exception {
+        expectedException.expect(JsonParseException.class);
+
+        testee.parse(stream("{\"results\":{\"user1@james.org\":{" +
+            "\"mailboxId\":\"1\",\"mailboxName\":\"JAMES\",\"confidence\":\"high\"}},\"errors\":{}}"), (recipient, guess) -> { });
+    }
+
+    @Test
+    public void parseShouldReadBinaryWireFormats() throws Exception {
+        String json = "{\"results\":{\"user1@james.org\":" + GUESS + "},\"errors\":{\"user2@james.org\":{\"message\":\"error\"}}}";
+        for (WireFormat wireFormat : ImmutableList.of(WireFormat.SMILE, WireFormat.CBOR)) {
+            Map<String, String> results = new LinkedHashMap<>();
+
+            testee.parse(new ByteArrayInputStream(encode(json, wireFormat)), wireFormat, results::put);
+
+            assertThat(results).containsExactly(entry("user1@james.org"));
+        }
+    }
+
+    @Test
+    public void parseBatchShouldReadBinaryWireFormats() throws Exception {
+        String json = "[{\"results\":{\"user1@james.org\":" + GUESS + "},\"errors\":{}}]";
+        for (WireFormat wireFormat : ImmutableList.of(WireFormat.SMILE, WireFormat.CBOR)) {
+            Map<String, String> results = new LinkedHashMap<>();
+
+            int count = testee.parseBatch(new ByteArrayInputStream(encode(json, wireFormat)), wireFormat, index -> results::put);
+
+            assertThat(count).isEqualTo(1);
+            assertThat(results).containsExactly(entry("user1@james.org"));
+        }
+    }
+
+    @Test
+    public void parseShouldFailWhenResultsAreMissing() throws Exception {
+        expectedException.expect(JsonParseException.class);
+
+        testee.parse(stream("{\"errors\":{}}"), (recipient, guess) -> { });
+    }
+
+    @Test
+    public void parseShouldFailWhenErrorsAreMissing() throws Exception {
+        expectedException.expect(JsonParseException.class);
+
+        testee.parse(stream("{\"results\":{}}"), (recipient, guess) -> { });
+    }
+
+    @Test
+    public void parseShouldFailWhenNotAnObject() throws Exception {
+        expectedException.expect(JsonParseException.class);
+
+        testee.parse(stream("[]"), (recipient, guess) -> { });
+    }
+
+    @Test
+    public void parseBatchShouldHandEachResponseToItsEntry() throws Exception {
+        List<Map<String, String>> results = new ArrayList<>();
+
+        int count = testee.parseBatch(stream("[" +
+                "{\"results\":{\"user1@james.org\":" + GUESS + "},\"errors\":{}}," +
+                "{\"results\":{\"user2@james.org\":" + GUESS + "},\"errors\":{}}" +
+            "]"),
+            index -> {
+                Map<String, String> entryResults = new LinkedHashMap<>();
+                results.add(entryResults);
+                return entryResults::put;
+            });
+
+        assertThat(count).isEqualTo(2);
+        assertThat(results.get(0)).containsExactly(entry("user1@james.org"));
+        assertThat(results.get(1)).containsExactly(entry("user2@james.org"));
+    }
+
+    @Test
+    public void parseBatchShouldReturnZeroWhenEmptyArray() throws Exception {
+        assertThat(testee.parseBatch(stream("[]"), index -> (recipient, guess) -> { })).isEqualTo(0);
+    }
+
+    private byte[] encode(String json, WireFormat wireFormat) throws IOException {
+        return new ObjectMapper(wireFormat.createFactory()).writeValueAsBytes(new ObjectMapper().readTree(json));
+    }
+
+    private InputStream stream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private Map.Entry<String, String> entry(String recipient) {
+        return new AbstractMap.SimpleEntry<>(recipient, SERIALIZED_GUESS);
+    }
+}
@@ -18,6 +18,13 @@
 package com.linagora.james.mailets.json;
 
 import static net.javacrumbs.jsonunit.fluent.JsonFluentAssert.assertThatJson;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.mail.internet.InternetAddress;
 import javax.mail.internet.MimeMessage;
@@ -28,6 +35,10 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Ticker;
+
 public class ClassificationRequestBodySerializerTest {
 
     @Rule
@@ -62,6 +73,7 @@ public class ClassificationRequestBodySerializerTest {
                 "\"recipients\":{\"to\":[],\"cc\":[],\"bcc\":[]}," +
                 "\"subject\":[\"\"]," +
                 "\"textBody\":\"\"," +
+                "\"textBodyTruncated\":false," +
                 "\"date\":\"2017-05-24T13:23:11Z\"}");
     }
 
@@ -99,7 +111,8 @@ public class ClassificationRequestBodySerializerTest {
                 "             {\"name\":null,\"address\":\"bcc3@james.org\"}]}," +
                 "\"subject\":[\"my subject\"]," +
                 "\"date\":\"2017-05-24T13:23:11Z\"," +
-                "\"textBody\":\"this is my body\"}");
+                "\"textBody\":\"this is my body\"," +
+                "\"textBodyTruncated\":false}");
     }
 
     @Test
@@ -122,7 +135,8 @@ public class ClassificationRequestBodySerializerTest {
                 "\"recipients\":{\"to\":[],\"cc\":[],\"bcc\":[]}," +
                 "\"subject\":[\"\"]," +
                 "\"date\":\"2017-05-24T13:23:11Z\"," +
-                "\"textBody\":\"this is my body\"}");
+                "\"textBody\":\"this is my body\"," +
+                "\"textBodyTruncated\":false}");
     }
 
     @Test
@@ -147,7 +161,8 @@ public class ClassificationRequestBodySerializerTest {
                 "\"recipients\":{\"to\":[],\"cc\":[],\"bcc\":[]}," +
                 "\"subject\":[\"\"]," +
                 "\"date\":\"2017-05-24T13:23:11Z\"," +
-                "\"textBody\":\"this is my body\\n\\n\"}");
+                "\"textBody\":\"this is my body\\n\\n\"," +
+                "\"textBodyTruncated\":false}");
     }
 
     @Test
@@ -172,7 +187,8 @@ public class ClassificationRequestBodySerializerTest {
                 "\"recipients\":{\"to\":[],\"cc\":[],\"bcc\":[]}," +
                 "\"subject\":[\"\"]," +
                 "\"date\":\"2017-05-24T13:23:11Z\"," +
-                "\"textBody\":\"\"}");
+                "\"textBody\":\"\"," +
+                "\"textBodyTruncated\":false}");
     }
 
     @Test
@@ -189,7 +205,8 @@ public class ClassificationRequestBodySerializerTest {
             "\"recipients\":{\"to\":[],\"cc\":[],\"bcc\":[]}," +
             "\"subject\":[\"\"]," +
             "\"date\": null," +
-            "\"textBody\":\"\"}");
+            "\"textBody\":\"\"," +
+            "\"textBodyTruncated\":false}");
     }
 
     @Test
@@ -208,6 +225,132 @@ public class ClassificationRequestBodySerializerTest {
             "\"recipients\":{\"to\":[],\"cc\":[],\"bcc\":[]}," +
             "\"subject\":[\"\"]," +
             "\"date\": null," +
-            "\"textBody\":\"\"}");
+            "\"textBody\":\"\"," +
+            "\"textBodyTruncated\":false}");
+    }
+
+    @Test
+    public void writeJsonShouldProduceTheSameJsonThanToJsonAsString() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .addFrom(new InternetAddress("from@james.org", "From"))
+            .addToRecipient(new InternetAddress("to@james.org"))
+            .setSubject("my subject")
+            .setText("éééééààààà")
+            .addHeader("Date", "Wed, 24 May 2017 06:23:11 -0700")
+            .build();
+        ClassificationRequestBodySerializer testee = new ClassificationRequestBodySerializer(FakeMail.from(message), new FakeUUIDGenerator());
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        ClassificationRequestBodySerializer.writeJson(testee.toRequestBody(), outputStream);
+
+        assertThat(new String(outputStream.toByteArray(), StandardCharsets.UTF_8)).isEqualTo(testee.toJsonAsString());
+    }
+
+    @Test
+    public void writeShouldProduceTheSameTreeInEveryWireFormat() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .addFrom(new InternetAddress("from@james.org", "From"))
+            .addToRecipient(new InternetAddress("to@james.org"))
+            .setSubject("my subject")
+            .setText("éééééààààà")
+            .addHeader("Date", "Wed, 24 May 2017 06:23:11 -0700")
+            .build();
+        ClassificationRequestBodySerializer testee = new ClassificationRequestBodySerializer(FakeMail.from(message), new FakeUUIDGenerator());
+        ClassificationRequestBody requestBody = testee.toRequestBody();
+        JsonNode expected = new ObjectMapper().readTree(testee.toJsonAsString());
+
+        for (WireFormat wireFormat : WireFormat.values()) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            ClassificationRequestBodySerializer.write(requestBody, wireFormat, outputStream);
+
+            assertThat(new ObjectMapper(wireFormat.createFactory()).readTree(outputStream.toByteArray())).isEqualTo(expected);
+        }
+    }
+
+    @Test
+    public void toJsonAsStringShouldTruncateTextBodyToMaxTextChars() throws Exception {
+        FakeMail mail = FakeMail.from(
+            MimeMessageBuilder.mimeMessageBuilder()
+                .addHeader("Date", "Wed, 24 May 2017 06:23:11 -0700")
+                .setText("this is my body")
+                .build());
+
+        ClassificationRequestBodySerializer testee = new ClassificationRequestBodySerializer(mail, new FakeUUIDGenerator(),
+            TextBudget.builder().maxTextChars(Optional.of(7)).build());
+
+        assertThatJson(testee.toJsonAsString()).isEqualTo("{\"messageId\":\"524e4f85-2d2f-4927-ab98-bd7a2f689773\"," +
+            "\"from\":[]," +
+            "\"recipients\":{\"to\":[],\"cc\":[],\"bcc\":[]}," +
+            "\"subject\":[\"\"]," +
+            "\"date\":\"2017-05-24T13:23:11Z\"," +
+            "\"textBody\":\"this is\"," +
+            "\"textBodyTruncated\":true}");
+    }
+
+    @Test
+    public void toJsonAsStringShouldMarkTextBodyAsTruncatedWhenHtmlExceedsMaxHtmlBytes() throws Exception {
+        FakeMail mail = FakeMail.from(
+            MimeMessageBuilder.mimeMessageBuilder()
+                .setMultipartWithBodyParts(MimeMessageBuilder.bodyPartBuilder()
+                    .data("<p>this is my body</p>")
+                    .type("text/html")
+                    .build())
+                .build());
+
+        ClassificationRequestBodySerializer testee = new ClassificationRequestBodySerializer(mail, new FakeUUIDGenerator(),
+            TextBudget.builder().maxHtmlBytes(Optional.of(10)).build());
+        ClassificationRequestBody requestBody = testee.toRequestBody();
+
+        assertThat(requestBody.getTextBody().trim()).isEqualTo("this is");
+        assertThat(requestBody.isTextBodyTruncated()).isTrue();
+    }
+
+    @Test
+    public void toRequestBodyShouldNotMarkTextBodyAsTruncatedWhenWithinBudget() throws Exception {
+        FakeMail mail = FakeMail.from(
+            MimeMessageBuilder.mimeMessageBuilder()
+                .setText("this is my body")
+                .build());
+
+        ClassificationRequestBodySerializer testee = new ClassificationRequestBodySerializer(mail, new FakeUUIDGenerator(),
+            TextBudget.builder().maxTextChars(Optional.of(100)).maxHtmlBytes(Optional.of(100)).build());
+        ClassificationRequestBody requestBody = testee.toRequestBody();
+
+        assertThat(requestBody.getTextBody()).isEqualTo("this is my body");
+        assertThat(requestBody.isTextBodyTruncated()).isFalse();
+    }
+
+    @Test
+    public void toRequestBodyShouldTimeExtractionWithTheGivenTicker() throws Exception {
+        FakeMail mail = FakeMail.from(
+            MimeMessageBuilder.mimeMessageBuilder()
+                .setText("this is my body")
+                .build());
+        AtomicLong nanos = new AtomicLong();
+        Ticker ticker = new Ticker() {
+            @Override
+            public long read() {
+                return nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        };
+        AtomicLong mimeParsingNanos = new AtomicLong();
+        AtomicLong htmlConversionNanos = new AtomicLong();
+        ExtractionListener extractionListener = new ExtractionListener() {
+            @Override
+            public void mimeParsed(long durationInNanos) {
+                mimeParsingNanos.set(durationInNanos);
+            }
+
+            @Override
+            public void htmlConvertedToText(long durationInNanos) {
+                htmlConversionNanos.set(durationInNanos);
+            }
+        };
+
+        new ClassificationRequestBodySerializer(mail, new FakeUUIDGenerator(), TextBudget.UNLIMITED, HtmlToTextConverter.JSOUP,
+            extractionListener, ticker).toRequestBody();
+
+        assertThat(mimeParsingNanos.get()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(2));
+        assertThat(htmlConversionNanos.get()).isEqualTo(TimeUnit.MILLISECONDS.toNanos(1));
     }
 }
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+
+package com.linagora.james.mailets.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Optional;
+
+import org.apache.james.jmap.utils.JsoupHtmlTextExtractor;
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+
+public class StreamingHtmlToTextConverterTest {
+
+    private static final ImmutableList<String> CORPUS = ImmutableList.of(
+        "<p>Caf&eacute; &amp; cr&#232;me &lt;br&gt; for 5&#x20AC;&nbsp;only</p>",
+        "<html>\n" +
+            "<head>\n" +
+            "<title>Newsletter</title>\n" +
+            "<style type=\"text/css\">td { color: red; }</style>\n" +
+            "<script>var html = '<div>hidden</div>';</script>\n" +
+            "</head>\n" +
+            "<body>\n" +
+            "<table>\n" +
+            "  <tr>\n" +
+            "    <td>\n" +
+            "      <table>\n" +
+            "        <tr>\n" +
+            "          <td>Nested cell</td>\n" +
+            "          <td><b>Bold</b> and <i>italic</i></td>\n" +
+            "        </tr>\n" +
+            "      </table>\n" +
+            "    </td>\n" +
+            "  </tr>\n" +
+            "</table>\n" +
+            "</body>\n" +
+            "</html>",
+        "<div>Before<!-- a <b>commented</b> part --> after</div>\n<!--[if mso]><div>Outlook</div><![endif]-->",
+        "<a title=\"a > b\" href=\"http://james.org/?a=1&amp;b=2\">Link</a> 1 < 2 & 3 > 2",
+        "<DIV>Upper case</DIV>\n<SCRIPT type=\"text/javascript\">document.write(\"<p>\");</SCRIPT>\n<Style>p {}</Style> done",
+        "<!DOCTYPE html>\n<h1>Title</h1>\nFirst line<br/>Second line<br>Third line\n<p>Unknown &foo; entity</p>");
+
+    private static String normalizeWhitespaces(String text) {
+        return text.replaceAll("\\s+", " ").trim();
+    }
+
+    private final StreamingHtmlToTextConverter testee = new StreamingHtmlToTextConverter();
+
+    @Test
+    public void toPlainTextShouldMatchJsoupOnTheCorpusUpToWhitespaces() {
+        JsoupHtmlTextExtractor jsoupHtmlTextExtractor = new JsoupHtmlTextExtractor();
+
+        CORPUS.forEach(html -> assertThat(normalizeWhitespaces(testee.toPlainText(html, TextBudget.UNLIMITED)))
+            .as(html)
+            .isEqualTo(normalizeWhitespaces(jsoupHtmlTextExtractor.toPlainText(html))));
+    }
+
+    @Test
+    public void toPlainTextShouldDecodeEntities() {
+        assertThat(testee.toPlainText("&lt;&eacute;&#233;&#xE9;&#XE9;&nbsp;&amp;", TextBudget.UNLIMITED))
+            .isEqualTo("<éééé\u00A0&");
+    }
+
+    @Test
+    public void toPlainTextShouldKeepUnknownEntities() {
+        assertThat(testee.toPlainText("&foo; &#xZZ; & ;", TextBudget.UNLIMITED))
+            .isEqualTo("&foo; &#xZZ; & ;");
+    }
+
+    @Test
+    public void toPlainTextShouldReplaceInvalidCodePoints() {
+        assertThat(testee.toPlainText("&#0;&#xD800;&#x110000;", TextBudget.UNLIMITED))
+            .isEqualTo("\uFFFD\uFFFD\uFFFD");
+    }
+
+    @Test
+    public void toPlainTextShouldSkipScriptAndStyleContent() {
+        assertThat(testee.toPlainText("a<script>if (b < c) {}</script>b<style>p { }</STYLE>c", TextBudget.UNLIMITED))
+            .isEqualTo("abc");
+    }
+
+    @Test
+    public void toPlainTextShouldSkipComments() {
+        assertThat(testee.toPlainText("a<!-- <p>b</p> -->c", TextBudget.UNLIMITED))
+            .isEqualTo("ac");
+    }
+
+    @Test
+    public void toPlainTextShouldConvertBrToLineBreaks() {
+        assertThat(testee.toPlainText("a<br>b<br/>c", TextBudget.UNLIMITED))
+            .isEqualTo("a\nb\nc");
+    }
+
+    @Test
+    public void toPlainTextShouldStartBlockElementsOnANewLine() {
+        assertThat(testee.toPlainText("<div>a</div><div><p>b</p></div><span>c</span>", TextBudget.UNLIMITED))
+            .isEqualTo("a\nb\nc");
+    }
+
+    @Test
+    public void toPlainTextShouldIgnoreGreaterThanInQuotedAttributes() {
+        assertThat(testee.toPlainText("<a title='x > y'>a</a>", TextBudget.UNLIMITED))
+            .isEqualTo("a");
+    }
+
+    @Test
+    public void toPlainTextShouldEndTagsWithAnUnbalancedQuoteAtTheFirstGreaterThan() {
+        assertThat(testee.toPlainText("<a title=\"x>a</a><p>b</p>c", TextBudget.UNLIMITED))
+            .isEqualTo("a\nb\nc");
+    }
+
+    @Test
+    public void toPlainTextShouldNotEndSkippedContentOnLongerTagNames() {
+        assertThat(testee.toPlainText("a<script>b</scriptx>c</script >d", TextBudget.UNLIMITED))
+            .isEqualTo("ad");
+    }
+
+    @Test
+    public void toPlainTextShouldKeepAmpersandsWithoutANearbySemicolon() {
+        String ampersands = Strings.repeat("&", 100000);
+
+        assertThat(testee.toPlainText(ampersands + ";", TextBudget.UNLIMITED))
+            .isEqualTo(ampersands + ";");
+    }
+
+    @Test
+    public void toPlainTextShouldIgnoreUnterminatedTags() {
+        assertThat(testee.toPlainText("a<div class=\"b", TextBudget.UNLIMITED))
+            .isEqualTo("a");
+    }
+
+    @Test
+    public void toPlainTextShouldStopOnceTheTextBudgetIsExceeded() {
+        TextBudget textBudget = TextBudget.builder()
+            .maxTextChars(Optional.of(10))
+            .build();
+        String text = Strings.repeat("0123456789", 100);
+
+        assertThat(testee.toPlainText("<p>" + text + "</p>", textBudget))
+            .hasSize(11)
+            .isEqualTo(text.substring(0, 11));
+    }
+}
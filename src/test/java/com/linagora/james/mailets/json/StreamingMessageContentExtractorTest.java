@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Optional;
+import java.util.Properties;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.james.mime4j.dom.Message;
+import org.apache.james.util.mime.MessageContentExtractor;
+import org.apache.james.util.mime.MessageContentExtractor.MessageContent;
+import org.apache.mailet.base.test.MimeMessageBuilder;
+import org.junit.Test;
+
+import com.linagora.james.mailets.json.StreamingMessageContentExtractor.ExtractedContent;
+
+public class StreamingMessageContentExtractorTest {
+
+    private static final String BOUNDARY_HEADER = "Content-Type: multipart/%s; boundary=\"%s\"\r\n";
+
+    private final StreamingMessageContentExtractor testee = new StreamingMessageContentExtractor();
+
+    private MimeMessage mimeMessage(String rawMessage) throws Exception {
+        return new MimeMessage(Session.getDefaultInstance(new Properties()),
+            new ByteArrayInputStream(rawMessage.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private MessageContent domExtraction(String rawMessage) throws Exception {
+        return new MessageContentExtractor().extract(Message.Builder.of()
+            .parse(new ByteArrayInputStream(rawMessage.getBytes(StandardCharsets.UTF_8)))
+            .build());
+    }
+
+    private void assertSameExtractionThanDom(String rawMessage) throws Exception {
+        MessageContent expected = domExtraction(rawMessage);
+        ExtractedContent actual = testee.extract(mimeMessage(rawMessage));
+
+        assertThat(actual.getTextBody()).isEqualTo(expected.getTextBody());
+        assertThat(actual.getHtmlBody()).isEqualTo(expected.getHtmlBody());
+    }
+
+    private String part(String contentType, String extraHeaders, String body) {
+        return "Content-Type: " + contentType + "\r\n" + extraHeaders + "\r\n" + body + "\r\n";
+    }
+
+    private String multipart(String subType, String boundary, String... parts) {
+        StringBuilder builder = new StringBuilder(String.format(BOUNDARY_HEADER, subType, boundary)).append("\r\n");
+        for (String part : parts) {
+            builder.append("--").append(boundary).append("\r\n").append(part);
+        }
+        return builder.append("--").append(boundary).append("--\r\n").toString();
+    }
+
+    private String message(String body) {
+        return "Subject: test\r\nMIME-Version: 1.0\r\n" + body;
+    }
+
+    @Test
+    public void extractShouldReturnTextBodyOfSimpleTextMessage() throws Exception {
+        String rawMessage = message(part("text/plain; charset=UTF-8", "", "text content"));
+
+        ExtractedContent messageContent = testee.extract(mimeMessage(rawMessage));
+
+        assertThat(messageContent.getTextBody().map(String::trim)).contains("text content");
+        assertThat(messageContent.getHtmlBody()).isEmpty();
+        assertSameExtractionThanDom(rawMessage);
+    }
+
+    @Test
+    public void extractShouldReturnHtmlBodyOfSimpleHtmlMessage() throws Exception {
+        assertSameExtractionThanDom(message(part("text/html; charset=UTF-8", "", "<b>html</b>")));
+    }
+
+    @Test
+    public void extractShouldReturnBothBodiesOfAlternative() throws Exception {
+        String rawMessage = message(multipart("alternative", "alt",
+            part("text/plain", "", "text content"),
+            part("text/html", "", "<b>html</b>")));
+
+        ExtractedContent messageContent = testee.extract(mimeMessage(rawMessage));
+
+        assertThat(messageContent.getTextBody().map(String::trim)).contains("text content");
+        assertThat(messageContent.getHtmlBody().map(String::trim)).contains("<b>html</b>");
+        assertSameExtractionThanDom(rawMessage);
+    }
+
+    @Test
+    public void extractShouldIgnoreAttachments() throws Exception {
+        assertSameExtractionThanDom(message(multipart("mixed", "mix",
+            part("text/plain", "", "text content"),
+            part("text/plain", "Content-Disposition: attachment; filename=\"a.txt\"\r\n", "attached"),
+            part("application/octet-stream", "Content-Transfer-Encoding: base64\r\n", "AAECAw=="))));
+    }
+
+    @Test
+    public void extractShouldOnlyKeepFirstContentOfMixed() throws Exception {
+        assertSameExtractionThanDom(message(multipart("mixed", "mix",
+            part("text/plain", "", "first"),
+            part("text/html", "", "<p>second</p>"))));
+    }
+
+    @Test
+    public void extractShouldIgnoreAttachedTextBeforeContent() throws Exception {
+        assertSameExtractionThanDom(message(multipart("mixed", "mix",
+            part("text/plain", "Content-Disposition: attachment\r\n", "attached"),
+            part("text/plain", "", "content"))));
+    }
+
+    @Test
+    public void extractShouldHandleInlineParts() throws Exception {
+        assertSameExtractionThanDom(message(multipart("mixed", "mix",
+            part("text/html", "Content-Disposition: inline\r\nContent-ID: <cid@james.org>\r\n", "<p>embedded</p>"),
+            part("text/plain", "Content-Disposition: inline\r\n", "inline"))));
+    }
+
+    @Test
+    public void extractShouldHandleNestedAlternativeInRelated() throws Exception {
+        assertSameExtractionThanDom(message(multipart("mixed", "mix",
+            multipart("related", "rel",
+                multipart("alternative", "alt",
+                    part("text/plain", "", "text content"),
+                    part("text/html", "", "<b>html</b>")),
+                part("image/png", "Content-ID: <img@james.org>\r\nContent-Transfer-Encoding: base64\r\n", "AAECAw==")),
+            part("text/plain", "Content-Disposition: attachment\r\n", "attached"))));
+    }
+
+    @Test
+    public void extractShouldIgnoreAttachmentsFollowingSelectedAlternative() throws Exception {
+        assertSameExtractionThanDom(message(multipart("mixed", "mix",
+            multipart("alternative", "alt",
+                part("text/plain", "", "text content"),
+                part("text/html", "", "<b>html</b>")),
+            part("application/pdf", "Content-Disposition: attachment\r\nContent-Transfer-Encoding: base64\r\n", "AAECAw=="),
+            part("text/plain", "Content-Disposition: attachment\r\n", "attached"))));
+    }
+
+    @Test
+    public void extractShouldIgnoreTextOfAttachedMessages() throws Exception {
+        assertSameExtractionThanDom(message(multipart("mixed", "mix",
+            part("message/rfc822", "", message(part("text/plain", "", "forwarded"))),
+            part("text/plain", "", "content"))));
+    }
+
+    @Test
+    public void extractShouldIgnoreEncodedAttachedMessages() throws Exception {
+        String attachedMessage = Base64.getMimeEncoder().encodeToString(
+            message(part("text/html", "", "<p>forwarded</p>")).getBytes(StandardCharsets.UTF_8));
+
+        assertSameExtractionThanDom(message(multipart("mixed", "mix",
+            part("message/rfc822", "Content-Transfer-Encoding: base64\r\n", attachedMessage),
+            part("text/plain", "", "content"))));
+    }
+
+    @Test
+    public void extractShouldDecodeTransferEncodingAndCharset() throws Exception {
+        String rawMessage = message(multipart("alternative", "alt",
+            part("text/plain; charset=ISO-8859-1", "Content-Transfer-Encoding: quoted-printable\r\n", "caf=E9"),
+            part("text/html; charset=UTF-8", "Content-Transfer-Encoding: base64\r\n", "PHA+Y2Fmw6k8L3A+")));
+
+        ExtractedContent messageContent = testee.extract(mimeMessage(rawMessage));
+
+        assertThat(messageContent.getTextBody().map(String::trim)).contains("café");
+        assertThat(messageContent.getHtmlBody().map(String::trim)).contains("<p>café</p>");
+        assertSameExtractionThanDom(rawMessage);
+    }
+
+    @Test
+    public void extractShouldWorkOnMessagesBuiltInMemory() throws Exception {
+        MimeMessage message = MimeMessageBuilder.mimeMessageBuilder()
+            .setText("in memory")
+            .build();
+
+        assertThat(testee.extract(message).getTextBody()).isEqualTo(Optional.of("in memory"));
+    }
+
+    @Test
+    public void extractShouldTruncateTextBodyToMaxTextChars() throws Exception {
+        StreamingMessageContentExtractor testee = new StreamingMessageContentExtractor(TextBudget.builder()
+            .maxTextChars(Optional.of(4))
+            .build());
+
+        ExtractedContent messageContent = testee.extract(mimeMessage(message(part("text/plain", "", "text content"))));
+
+        assertThat(messageContent.getTextBody()).contains("text");
+        assertThat(messageContent.isTextBodyTruncated()).isTrue();
+    }
+
+    @Test
+    public void extractShouldNotMarkTextBodyAsTruncatedWhenWithinBudget() throws Exception {
+        StreamingMessageContentExtractor testee = new StreamingMessageContentExtractor(TextBudget.builder()
+            .maxTextChars(Optional.of(100))
+            .build());
+
+        ExtractedContent messageContent = testee.extract(mimeMessage(message(part("text/plain", "", "text content"))));
+
+        assertThat(messageContent.getTextBody().map(String::trim)).contains("text content");
+        assertThat(messageContent.isTextBodyTruncated()).isFalse();
+    }
+
+    @Test
+    public void extractShouldTruncateHtmlBodyToMaxHtmlBytes() throws Exception {
+        StreamingMessageContentExtractor testee = new StreamingMessageContentExtractor(TextBudget.builder()
+            .maxHtmlBytes(Optional.of(8))
+            .build());
+
+        ExtractedContent messageContent = testee.extract(mimeMessage(message(multipart("alternative", "alt",
+            part("text/plain", "", "text content"),
+            part("text/html", "", "<b>html</b>")))));
+
+        assertThat(messageContent.getHtmlBody()).contains("<b>html<");
+        assertThat(messageContent.isHtmlBodyTruncated()).isTrue();
+        assertThat(messageContent.getTextBody().map(String::trim)).contains("text content");
+        assertThat(messageContent.isTextBodyTruncated()).isFalse();
+    }
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.Optional;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import nl.jqno.equalsverifier.EqualsVerifier;
+
+public class TextBudgetTest {
+
+    @Rule
+    public ExpectedException expectedException = ExpectedException.none();
+
+    @Test
+    public void shouldImplementBeanContract() {
+        EqualsVerifier.forClass(TextBudget.class).verify();
+    }
+
+    @Test
+    public void buildShouldThrowWhenMaxTextCharsIsNotStrictlyPositive() {
+        expectedException.expect(IllegalStateException.class);
+
+        TextBudget.builder()
+            .maxTextChars(Optional.of(0))
+            .build();
+    }
+
+    @Test
+    public void buildShouldThrowWhenMaxHtmlBytesIsNotStrictlyPositive() {
+        expectedException.expect(IllegalStateException.class);
+
+        TextBudget.builder()
+            .maxHtmlBytes(Optional.of(-1))
+            .build();
+    }
+
+    @Test
+    public void limitTextShouldKeepTextWithinBudget() {
+        TextBudget textBudget = TextBudget.builder()
+            .maxTextChars(Optional.of(4))
+            .build();
+
+        assertThat(textBudget.limitText("text")).isEqualTo("text");
+    }
+
+    @Test
+    public void limitTextShouldTruncateTextExceedingBudget() {
+        TextBudget textBudget = TextBudget.builder()
+            .maxTextChars(Optional.of(4))
+            .build();
+
+        assertThat(textBudget.limitText("text content")).isEqualTo("text");
+    }
+
+    @Test
+    public void limitTextShouldNotSplitSurrogatePairs() {
+        TextBudget textBudget = TextBudget.builder()
+            .maxTextChars(Optional.of(5))
+            .build();
+
+        assertThat(textBudget.limitText("text\uD83D\uDE00 content")).isEqualTo("text");
+    }
+
+    @Test
+    public void limitTextShouldKeepSurrogatePairsWithinBudget() {
+        TextBudget textBudget = TextBudget.builder()
+            .maxTextChars(Optional.of(6))
+            .build();
+
+        assertThat(textBudget.limitText("text\uD83D\uDE00 content")).isEqualTo("text\uD83D\uDE00");
+    }
+
+    @Test
+    public void limitTextShouldNotTruncateWhenUnlimited() {
+        assertThat(TextBudget.UNLIMITED.limitText("text content")).isEqualTo("text content");
+    }
+}
@@ -0,0 +1,130 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Properties;
+import java.util.UUID;
+
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+
+import org.apache.mailet.Mail;
+import org.apache.mailet.base.test.FakeMail;
+import org.junit.Test;
+
+public class UUIDGeneratorTest {
+
+    private static final int IETF_VARIANT = 2;
+
+    private Mail mail(String name, String messageId) throws Exception {
+        return FakeMail.builder()
+            .name(name)
+            .mimeMessage(new MimeMessage(Session.getDefaultInstance(new Properties()),
+                new ByteArrayInputStream(("Message-ID: " + messageId + "\r\n\r\nbody").getBytes(StandardCharsets.UTF_8))))
+            .build();
+    }
+
+    @Test
+    public void parseShouldIgnoreCase() {
+        assertThat(UUIDGenerator.Strategy.parse("THREADLOCALRANDOM")).contains(UUIDGenerator.Strategy.THREAD_LOCAL_RANDOM);
+    }
+
+    @Test
+    public void parseShouldReturnEmptyWhenUnknown() {
+        assertThat(UUIDGenerator.Strategy.parse("sequential")).isEmpty();
+    }
+
+    @Test
+    public void threadLocalRandomShouldGenerateVersion4UUIDs() {
+        UUID uuid = UUIDGenerator.of(UUIDGenerator.Strategy.THREAD_LOCAL_RANDOM).random();
+
+        assertThat(uuid.version()).isEqualTo(4);
+        assertThat(uuid.variant()).isEqualTo(IETF_VARIANT);
+    }
+
+    @Test
+    public void threadLocalRandomShouldGenerateDistinctUUIDs() {
+        UUIDGenerator testee = UUIDGenerator.of(UUIDGenerator.Strategy.THREAD_LOCAL_RANDOM);
+
+        assertThat(testee.random()).isNotEqualTo(testee.random());
+    }
+
+    @Test
+    public void timeOrderedShouldGenerateVersion7UUIDs() {
+        UUID uuid = UUIDGenerator.of(UUIDGenerator.Strategy.TIME_ORDERED).random();
+
+        assertThat(uuid.version()).isEqualTo(7);
+        assertThat(uuid.variant()).isEqualTo(IETF_VARIANT);
+    }
+
+    @Test
+    public void timeOrderedShouldStartWithTheTimestamp() {
+        Instant now = Instant.parse("2017-07-03T08:15:00Z");
+        UUIDGenerator testee = new UUIDGenerator.TimeOrderedUUIDGenerator(Clock.fixed(now, ZoneOffset.UTC));
+
+        assertThat(testee.random().getMostSignificantBits() >>> 16).isEqualTo(now.toEpochMilli());
+    }
+
+    @Test
+    public void timeOrderedShouldSortByCreationTime() {
+        UUID before = new UUIDGenerator.TimeOrderedUUIDGenerator(Clock.fixed(Instant.parse("2017-07-03T08:15:00Z"), ZoneOffset.UTC)).random();
+        UUID after = new UUIDGenerator.TimeOrderedUUIDGenerator(Clock.fixed(Instant.parse("2017-07-03T08:15:01Z"), ZoneOffset.UTC)).random();
+
+        assertThat(before.toString()).isLessThan(after.toString());
+    }
+
+    @Test
+    public void deterministicShouldGenerateTheSameUUIDForTheSameMail() throws Exception {
+        UUIDGenerator testee = UUIDGenerator.of(UUIDGenerator.Strategy.DETERMINISTIC);
+
+        assertThat(testee.generate(mail("mail1", "<1@james.org>")))
+            .isEqualTo(testee.generate(mail("mail1", "<1@james.org>")));
+    }
+
+    @Test
+    public void deterministicShouldDependOnTheMessageId() throws Exception {
+        UUIDGenerator testee = UUIDGenerator.of(UUIDGenerator.Strategy.DETERMINISTIC);
+
+        assertThat(testee.generate(mail("mail1", "<1@james.org>")))
+            .isNotEqualTo(testee.generate(mail("mail1", "<2@james.org>")));
+    }
+
+    @Test
+    public void deterministicShouldDependOnTheMailName() throws Exception {
+        UUIDGenerator testee = UUIDGenerator.of(UUIDGenerator.Strategy.DETERMINISTIC);
+
+        assertThat(testee.generate(mail("mail1", "<1@james.org>")))
+            .isNotEqualTo(testee.generate(mail("mail2", "<1@james.org>")));
+    }
+
+    @Test
+    public void secureRandomShouldIgnoreTheMail() throws Exception {
+        UUIDGenerator testee = UUIDGenerator.of(UUIDGenerator.Strategy.SECURE_RANDOM);
+
+        assertThat(testee.generate(mail("mail1", "<1@james.org>")))
+            .isNotEqualTo(testee.generate(mail("mail1", "<1@james.org>")));
+    }
+}
@@ -0,0 +1,56 @@
+/*******************************************************************************
+ * OpenPaas :: Mailets                                                         *
+ * Copyright (C) 2017 Linagora                                                 *
+ *                                                                             *
+ * This program is free software: you can redistribute it and/or modify        *
+ * it under the terms of the GNU Affero General Public License as published by *
+ * the Free Software Foundation, either version 3 of the License, or           *
+ * (at your option) any later version.                                         *
+ *                                                                             *
+ * This program is distributed in the hope that it will be useful,             *
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of              *
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the               *
+ * GNU Affero General Public License for more details.                         *
+ *                                                                             *
+ * You should have received a copy of the GNU Affero General Public License    *
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.       *
+ *******************************************************************************/
+
+package com.linagora.james.mailets.json;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+public class WireFormatTest {
+
+    @Test
+    public void parseShouldIgnoreCase() {
+        assertThat(WireFormat.parse("Smile")).contains(WireFormat.SMILE);
+        assertThat(WireFormat.parse("CBOR")).contains(WireFormat.CBOR);
+        assertThat(WireFormat.parse("json")).contains(WireFormat.JSON);
+    }
+
+    @Test
+    public void parseShouldReturnEmptyWhenUnknown() {
+        assertThat(WireFormat.parse("xml")).isEmpty();
+    }
+
+    @Test
+    public void fromMimeTypeShouldReturnTheMatchingWireFormat() {
+        assertThat(WireFormat.fromMimeType("application/x-jackson-smile")).contains(WireFormat.SMILE);
+        assertThat(WireFormat.fromMimeType("application/cbor")).contains(WireFormat.CBOR);
+        assertThat(WireFormat.fromMimeType("application/json")).contains(WireFormat.JSON);
+        assertThat(WireFormat.fromMimeType("text/plain")).isEmpty();
+    }
+
+    @Test
+    public void acceptHeaderShouldOnlyContainJsonWhenJson() {
+        assertThat(WireFormat.JSON.getAcceptHeader()).isEqualTo("application/json");
+    }
+
+    @Test
+    public void acceptHeaderShouldFallBackToJsonWhenBinary() {
+        assertThat(WireFormat.CBOR.getAcceptHeader()).isEqualTo("application/cbor, application/json;q=0.5");
+    }
+}